@@ -68,5 +68,22 @@ public interface FeedFetcher {
      * @throws FetcherException If there is an error fetching the subscription.
      */
     Subscription fetchSubscription(String feedURL, Date lastModified) throws FetcherException;
+    
+    
+    /**
+     * Fetch a single subscription unless the server says it is unchanged.
+     *
+     * This sends the validators held by the request along with it, and
+     * updates them from the response.  Timeouts and proxy settings are taken
+     * from the request and only apply to this fetch.
+     *
+     * Like the other methods, this returns a transient Subscription and
+     * may be called from any thread.
+     *
+     * @param request The feed to fetch and what we know about it.
+     * @return Subscription The fetched subscription, or null if it is unchanged.
+     * @throws FetcherException If there is an error fetching the subscription.
+     */
+    Subscription fetchSubscription(FeedRequest request) throws FetcherException;
 
 }
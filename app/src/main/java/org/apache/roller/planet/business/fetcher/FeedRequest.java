@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.planet.business.fetcher;
+
+import java.net.Proxy;
+
+
+/**
+ * A request to fetch a feed only if it has changed.
+ *
+ * Carries the ETag and Last-Modified validators the server gave us the last
+ * time we fetched the feed, so the server can tell us it is unchanged, and
+ * the connection settings to fetch it with.  The validators are updated from
+ * the response, so the same request can be used for the next fetch.
+ */
+public class FeedRequest {
+    
+    private final String feedURL;
+    private volatile String eTag = null;
+    private volatile String lastModified = null;
+    private volatile Proxy proxy = Proxy.NO_PROXY;
+    private volatile int timeout = 0;
+    
+    
+    public FeedRequest(String feedURL) {
+        this.feedURL = feedURL;
+    }
+    
+    
+    public String getFeedURL() {
+        return feedURL;
+    }
+    
+    /**
+     * The ETag header from the last response, if any.
+     */
+    public String getETag() {
+        return eTag;
+    }
+    
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+    
+    /**
+     * The Last-Modified header from the last response, if any.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+    
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+    
+    public Proxy getProxy() {
+        return proxy;
+    }
+    
+    public void setProxy(Proxy proxy) {
+        this.proxy = (proxy != null) ? proxy : Proxy.NO_PROXY;
+    }
+    
+    /**
+     * Connect and read timeout in milliseconds, 0 for none.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+    
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+    
+}
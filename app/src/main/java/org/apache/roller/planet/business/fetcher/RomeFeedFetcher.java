@@ -28,15 +28,21 @@ import com.rometools.fetcher.impl.FeedFetcherCache;
 import com.rometools.fetcher.impl.HttpURLFeedFetcher;
 import com.rometools.fetcher.impl.SyndFeedInfo;
 import com.rometools.fetcher.impl.DiskFeedInfoCache;
+import com.rometools.rome.io.SyndFeedInput;
+import com.rometools.rome.io.XmlReader;
 
 import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
@@ -53,6 +59,8 @@ public class RomeFeedFetcher implements org.apache.roller.planet.business.fetche
     
     private static Log log = LogFactory.getLog(RomeFeedFetcher.class);
     
+    private static final String USER_AGENT = "RollerPlanetAggregator";
+    
     
     public RomeFeedFetcher() {
         // no-op
@@ -93,23 +101,8 @@ public class RomeFeedFetcher implements org.apache.roller.planet.business.fetche
         log.debug("Feed pulled, extracting data into Subscription");
         
         // build planet subscription from fetched feed
-        Subscription newSub = new Subscription();
-        newSub.setFeedURL(feedURL);
-        newSub.setSiteURL(feed.getLink());
-        newSub.setTitle(feed.getTitle());
-        newSub.setAuthor(feed.getAuthor());
-        newSub.setLastUpdated(feed.getPublishedDate());
-        
+        Subscription newSub = buildSubscription(feedURL, feed);
         
-        // normalize any data that couldn't be properly extracted
-        if(newSub.getSiteURL() == null) {
-            // set the site url to the feed url then
-            newSub.setSiteURL(newSub.getFeedURL());
-        }
-        if(newSub.getAuthor() == null) {
-            // set the author to the title
-            newSub.setAuthor(newSub.getTitle());
-        }
         if(newSub.getLastUpdated() == null) {
             // no update time specified in feed, so try consulting feed info cache
             FeedFetcherCache feedCache = getRomeFetcherCache();
@@ -136,6 +129,121 @@ public class RomeFeedFetcher implements org.apache.roller.planet.business.fetche
             log.debug("Subscription is: " + newSub.toString());
         }
         
+        addEntries(newSub, feed);
+        
+        return newSub;
+    }
+    
+    
+    /**
+     * @inheritDoc
+     */
+    public Subscription fetchSubscription(FeedRequest request)
+            throws FetcherException {
+        
+        if(request == null || request.getFeedURL() == null) {
+            throw new IllegalArgumentException("feed url cannot be null");
+        }
+        
+        String feedURL = request.getFeedURL();
+        log.debug("Conditionally fetching feed: "+feedURL);
+        
+        SyndFeed feed;
+        long lastModifiedHeader;
+        HttpURLConnection conn = null;
+        try {
+            URLConnection urlConn = new URL(feedURL).openConnection(request.getProxy());
+            if (!(urlConn instanceof HttpURLConnection)) {
+                throw new FetcherException("Not an http feed url - "+feedURL);
+            }
+            conn = (HttpURLConnection) urlConn;
+            
+            // these only apply to this connection, unlike the sun.net.client.* properties
+            conn.setConnectTimeout(request.getTimeout());
+            conn.setReadTimeout(request.getTimeout());
+            conn.setRequestProperty("User-Agent", USER_AGENT);
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            if (request.getETag() != null) {
+                conn.setRequestProperty("If-None-Match", request.getETag());
+            }
+            if (request.getLastModified() != null) {
+                conn.setRequestProperty("If-Modified-Since", request.getLastModified());
+            }
+            
+            int status = conn.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                log.debug("Feed not modified: "+feedURL);
+                conn.getInputStream().close();
+                return null;
+            }
+            if (status >= HttpURLConnection.HTTP_MULT_CHOICE) {
+                throw new FetcherException("Error fetching subscription - "+feedURL
+                        +" - HTTP status "+status);
+            }
+            
+            InputStream in = conn.getInputStream();
+            try {
+                if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                    in = new GZIPInputStream(in);
+                }
+                feed = new SyndFeedInput().build(new XmlReader(in, conn.getContentType(), true));
+            } finally {
+                in.close();
+            }
+            
+            request.setETag(conn.getHeaderField("ETag"));
+            request.setLastModified(conn.getHeaderField("Last-Modified"));
+            lastModifiedHeader = conn.getLastModified();
+            conn = null;
+            
+        } catch (FetcherException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new FetcherException("Error fetching subscription - "+feedURL, ex);
+        } finally {
+            // only when something went wrong, otherwise the connection may be reused
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+        
+        Subscription newSub = buildSubscription(feedURL, feed);
+        if (newSub.getLastUpdated() == null && lastModifiedHeader > 0) {
+            newSub.setLastUpdated(new Date(lastModifiedHeader));
+        }
+        addEntries(newSub, feed);
+        
+        return newSub;
+    }
+    
+    
+    // build a Subscription, without entries, from a Rome SyndFeed
+    private Subscription buildSubscription(String feedURL, SyndFeed feed) {
+        
+        Subscription newSub = new Subscription();
+        newSub.setFeedURL(feedURL);
+        newSub.setSiteURL(feed.getLink());
+        newSub.setTitle(feed.getTitle());
+        newSub.setAuthor(feed.getAuthor());
+        newSub.setLastUpdated(feed.getPublishedDate());
+        
+        
+        // normalize any data that couldn't be properly extracted
+        if(newSub.getSiteURL() == null) {
+            // set the site url to the feed url then
+            newSub.setSiteURL(newSub.getFeedURL());
+        }
+        if(newSub.getAuthor() == null) {
+            // set the author to the title
+            newSub.setAuthor(newSub.getTitle());
+        }
+        
+        return newSub;
+    }
+    
+    
+    // add the entries of a Rome SyndFeed to a Subscription
+    private void addEntries(Subscription newSub, SyndFeed feed) {
         
         // some kludge to deal with feeds w/ no entry dates
         // we assign arbitrary dates chronologically by entry starting either
@@ -152,22 +260,21 @@ public class RomeFeedFetcher implements org.apache.roller.planet.business.fetche
         List<SyndEntry> feedEntries = feed.getEntries();
         for (SyndEntry feedEntry : feedEntries) {
             SubscriptionEntry newEntry = buildEntry(feedEntry);
+            if(newEntry == null) {
+                continue;
+            }
             
             // some kludge to handle feeds with no entry dates
             if (newEntry.getPubTime() == null) {
-                log.debug("No published date, assigning fake date for "+feedURL);
+                log.debug("No published date, assigning fake date for "+newSub.getFeedURL());
                 newEntry.setPubTime(new Timestamp(cal.getTimeInMillis()));
                 cal.add(Calendar.DATE, -1);
             }
             
-            if(newEntry != null) {
-                newSub.addEntry(newEntry);
-            }
+            newSub.addEntry(newEntry);
         }
         
         log.debug(feedEntries.size()+" entries included");
-        
-        return newSub;
     }
     
     
@@ -183,6 +290,7 @@ public class RomeFeedFetcher implements org.apache.roller.planet.business.fetche
         
         newEntry.setTitle(romeEntry.getTitle());
         newEntry.setPermalink(romeEntry.getLink());
+        newEntry.setGuid(romeEntry.getUri());
         
         // Play some games to get the author
         DCModule entrydc = (DCModule)romeEntry.getModule(DCModule.URI);
@@ -296,7 +404,7 @@ public class RomeFeedFetcher implements org.apache.roller.planet.business.fetche
         
         // set options
         feedFetcher.setUsingDeltaEncoding(false);
-        feedFetcher.setUserAgent("RollerPlanetAggregator");
+        feedFetcher.setUserAgent(USER_AGENT);
         
         return feedFetcher;
     }
@@ -0,0 +1,666 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.planet.business.updater;
+
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.RollerException;
+import org.apache.roller.planet.business.PlanetManager;
+import org.apache.roller.planet.business.fetcher.FeedFetcher;
+import org.apache.roller.planet.business.fetcher.FeedRequest;
+import org.apache.roller.planet.business.fetcher.FetcherException;
+import org.apache.roller.planet.pojos.PlanetGroup;
+import org.apache.roller.planet.pojos.Subscription;
+import org.apache.roller.planet.pojos.SubscriptionEntry;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.weblogger.business.Weblogger;
+import org.apache.roller.weblogger.business.WebloggerFactory;
+import org.apache.roller.weblogger.business.runnable.ThreadManager;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.config.WebloggerRuntimeConfig;
+
+
+/**
+ * A FeedUpdater which fetches feeds in parallel, using conditional GETs.
+ *
+ * Feeds are grouped by host and each host gets no more than
+ * planet.updater.maxFetchesPerHost fetches at a time on the "planet" thread
+ * pool.  The fetching threads only see feed urls, everything which touches
+ * the database happens on the calling thread, where each fetched feed is
+ * merged into its stored subscription entry by entry rather than replacing
+ * all of the entries.  Feeds which aren't fetched over http, like Weblogger's
+ * local weblogger:handle feeds, are fetched on the calling thread.
+ *
+ * The ETag and Last-Modified validators of each feed and the backoff of feeds
+ * which keep failing are kept in memory, so they start over after a restart.
+ * Each fetch works on its own copy of the validators, which only replace the
+ * remembered ones once what was fetched has been saved, so a feed which
+ * didn't make it into the database is fetched in full next time.
+ */
+public class ConcurrentFeedUpdater implements FeedUpdater {
+    
+    private static Log log = LogFactory.getLog(ConcurrentFeedUpdater.class);
+    
+    // what we know about each feed in between updates, keyed by feed url
+    private static final ConcurrentMap<String, FeedState> FEED_STATES =
+            new ConcurrentHashMap<String, FeedState>();
+    
+    private final int maxFetchesPerHost;
+    private final int timeoutSecs;
+    private final long backoffBase;
+    private final long backoffMax;
+    private final int batchSize;
+    
+    
+    public ConcurrentFeedUpdater() {
+        maxFetchesPerHost = Math.max(1,
+                WebloggerConfig.getIntProperty("planet.updater.maxFetchesPerHost", 2));
+        timeoutSecs = Math.max(1,
+                WebloggerConfig.getIntProperty("planet.updater.timeout", 15));
+        backoffBase = (long) Math.max(0, WebloggerConfig.getIntProperty(
+                "planet.updater.backoff.base", 300)) * RollerConstants.SEC_IN_MS;
+        backoffMax = (long) Math.max(0, WebloggerConfig.getIntProperty(
+                "planet.updater.backoff.max", 86400)) * RollerConstants.SEC_IN_MS;
+        batchSize = Math.max(1,
+                WebloggerConfig.getIntProperty("planet.updater.batchSize", 50));
+    }
+    
+    
+    /**
+     * @inheritDoc
+     *
+     * The subscription is fetched right away on the calling thread, even if
+     * it is backing off after earlier failures.
+     */
+    public void updateSubscription(Subscription sub) throws UpdaterException {
+        
+        if (sub == null) {
+            throw new IllegalArgumentException("cannot update null subscription");
+        }
+        
+        log.debug("updating feed: "+sub.getFeedURL());
+        
+        FeedState state = getState(sub.getFeedURL());
+        Fetch fetch = new Fetch(sub.getId(), sub.getLastUpdated(), state.newRequest(getProxy(),
+                timeoutSecs * RollerConstants.SEC_IN_MS));
+        fetch.run(WebloggerFactory.getWeblogger().getFeedFetcher());
+        if (fetch.error != null) {
+            state.failed(backoffBase, backoffMax);
+            throw new UpdaterException("Error fetching updated subscription", fetch.error);
+        }
+        state.succeeded();
+        
+        if (fetch.result == null) {
+            log.debug("Feed unchanged - "+sub.getFeedURL());
+            return;
+        }
+        
+        try {
+            UpdateStats stats = new UpdateStats();
+            merge(sub, fetch.result, stats);
+            WebloggerFactory.getWeblogger().flush();
+            state.saved(fetch.request);
+            log.debug("updated feed -- "+sub.getFeedURL()+" -- "+stats);
+        } catch (RollerException ex) {
+            throw new UpdaterException("Error persisting updated subscription", ex);
+        }
+    }
+    
+    
+    /**
+     * @inheritDoc
+     */
+    public void updateSubscriptions() throws UpdaterException {
+        
+        log.debug("--- BEGIN --- Updating all subscriptions");
+        
+        long startTime = System.currentTimeMillis();
+        
+        List<Subscription> subs;
+        try {
+            PlanetManager pmgr = WebloggerFactory.getWeblogger().getPlanetManager();
+            subs = pmgr.getSubscriptions();
+        } catch (RollerException ex) {
+            throw new UpdaterException("Error getting subscriptions list", ex);
+        }
+        
+        // forget about feeds which aren't subscribed to anymore
+        Set<String> feedURLs = new HashSet<String>();
+        for (Subscription sub : subs) {
+            feedURLs.add(sub.getFeedURL());
+        }
+        FEED_STATES.keySet().retainAll(feedURLs);
+        
+        UpdateStats stats = updateSubscriptions(subs);
+        
+        long endTime = System.currentTimeMillis();
+        log.info("--- DONE --- Updated subscriptions in "
+                + ((endTime-startTime) / RollerConstants.SEC_IN_MS) + " seconds -- " + stats);
+    }
+    
+    
+    /**
+     * @inheritDoc
+     */
+    public void updateSubscriptions(PlanetGroup group) throws UpdaterException {
+        
+        if(group == null) {
+            throw new IllegalArgumentException("cannot update null group");
+        }
+        
+        log.debug("--- BEGIN --- Updating subscriptions in group = "+group.getHandle());
+        
+        long startTime = System.currentTimeMillis();
+        
+        UpdateStats stats = updateSubscriptions(new ArrayList<Subscription>(group.getSubscriptions()));
+        
+        long endTime = System.currentTimeMillis();
+        log.info("--- DONE --- Updated subscriptions in "
+                + ((endTime-startTime) / RollerConstants.SEC_IN_MS) + " seconds -- " + stats);
+    }
+    
+    
+    // fetch all the subscriptions which are due, then merge what changed
+    private UpdateStats updateSubscriptions(Collection<Subscription> subscriptions)
+            throws UpdaterException {
+        
+        UpdateStats stats = new UpdateStats();
+        Weblogger roller = WebloggerFactory.getWeblogger();
+        FeedFetcher fetcher = roller.getFeedFetcher();
+        Proxy proxy = getProxy();
+        int timeout = timeoutSecs * RollerConstants.SEC_IN_MS;
+        long now = System.currentTimeMillis();
+        
+        // group what is due by host, feeds which aren't http are done right here
+        List<Fetch> fetched = new ArrayList<Fetch>();
+        Map<String, List<Fetch>> hosts = new LinkedHashMap<String, List<Fetch>>();
+        for (Subscription sub : subscriptions) {
+            FeedState state = getState(sub.getFeedURL());
+            if (!state.isDue(now)) {
+                log.debug("Backing off, skipping feed - "+sub.getFeedURL());
+                stats.skipped++;
+                continue;
+            }
+            
+            Fetch fetch = new Fetch(sub.getId(), sub.getLastUpdated(), state.newRequest(proxy, timeout));
+            String host = getHttpHost(sub.getFeedURL());
+            if (host == null) {
+                fetch.run(fetcher);
+                fetched.add(fetch);
+                continue;
+            }
+            
+            List<Fetch> hostFetches = hosts.get(host);
+            if (hostFetches == null) {
+                hostFetches = new ArrayList<Fetch>();
+                hosts.put(host, hostFetches);
+            }
+            hostFetches.add(fetch);
+        }
+        
+        // split each host into a few runs of fetches done one after another
+        BlockingQueue<Fetch> done = new LinkedBlockingQueue<Fetch>(fetched);
+        ThreadManager threadManager = roller.getThreadManager();
+        int expected = fetched.size();
+        int longestRun = 0;
+        int totalRuns = 0;
+        try {
+            for (List<Fetch> hostFetches : hosts.values()) {
+                int runs = Math.min(maxFetchesPerHost, hostFetches.size());
+                for (int i = 0; i < runs; i++) {
+                    List<Fetch> run = new ArrayList<Fetch>();
+                    for (int j = i; j < hostFetches.size(); j += runs) {
+                        run.add(hostFetches.get(j));
+                    }
+                    longestRun = Math.max(longestRun, run.size());
+                    totalRuns++;
+                    threadManager.executeInBackground(ThreadManager.PLANET_POOL,
+                            new FetchRun(fetcher, run, done));
+                    expected += run.size();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while starting feed fetches, merging what is done");
+        }
+        
+        // each fetch may take up to the timeout to connect, and again to read,
+        // and with more runs than pool threads some runs wait for others
+        int poolSize = getPoolSize(threadManager);
+        long waves = Math.max(1, (totalRuns + poolSize - 1) / poolSize);
+        long deadline = System.currentTimeMillis()
+                + (2L * longestRun + 1) * waves * timeoutSecs * RollerConstants.SEC_IN_MS;
+        PlanetManager pmgr = roller.getPlanetManager();
+        int merged = 0;
+        
+        // fetched feeds whose validators wait for the next flush
+        List<Fetch> unflushed = new ArrayList<Fetch>();
+        for (int i = 0; i < expected; i++) {
+            Fetch fetch;
+            try {
+                fetch = done.poll(Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                fetch = null;
+            }
+            if (fetch == null) {
+                log.warn("Gave up waiting for "+(expected - i)+" feeds to be fetched");
+                stats.failed += expected - i;
+                break;
+            }
+            
+            FeedState state = getState(fetch.request.getFeedURL());
+            if (fetch.error != null) {
+                long delay = state.failed(backoffBase, backoffMax);
+                stats.failed++;
+                logFailure(fetch, delay);
+                continue;
+            }
+            state.succeeded();
+            
+            if (fetch.result == null) {
+                stats.unchanged++;
+                continue;
+            }
+            
+            try {
+                // subscriptions get detached as we release, so look it up again
+                Subscription sub = pmgr.getSubscriptionById(fetch.subscriptionId);
+                if (sub == null) {
+                    log.warn("Subscription went missing while doing update: "
+                            +fetch.request.getFeedURL());
+                    continue;
+                }
+                merge(sub, fetch.result, stats);
+                unflushed.add(fetch);
+                stats.fetched++;
+            } catch (RollerException ex) {
+                stats.failed++;
+                log.warn("Error saving updated subscription - "+fetch.request.getFeedURL(), ex);
+                continue;
+            }
+            
+            if (++merged % batchSize == 0) {
+                try {
+                    roller.flush();
+                    saved(unflushed);
+                } catch (RollerException ex) {
+                    // these get fetched in full next time
+                    stats.fetched -= unflushed.size();
+                    stats.failed += unflushed.size();
+                    unflushed.clear();
+                    log.warn("Error saving updated subscriptions", ex);
+                }
+                roller.release();
+            }
+        }
+        
+        try {
+            roller.flush();
+            saved(unflushed);
+        } catch (RollerException ex) {
+            throw new UpdaterException("Error persisting updated subscriptions", ex);
+        }
+        
+        return stats;
+    }
+    
+    
+    // remember the validators of feeds which have been flushed
+    private void saved(List<Fetch> flushed) {
+        for (Fetch fetch : flushed) {
+            getState(fetch.request.getFeedURL()).saved(fetch.request);
+        }
+        flushed.clear();
+    }
+    
+    
+    private static int getPoolSize(ThreadManager threadManager) {
+        Map<String, Object> stats = threadManager.getPoolStats().get(ThreadManager.PLANET_POOL);
+        Object size = (stats != null) ? stats.get("maxThreads") : null;
+        return (size instanceof Number) ? Math.max(1, ((Number) size).intValue()) : 1;
+    }
+    
+    
+    // merge a freshly fetched subscription into the stored one
+    private void merge(Subscription sub, Subscription fetched, UpdateStats stats)
+            throws RollerException {
+        
+        PlanetManager pmgr = WebloggerFactory.getWeblogger().getPlanetManager();
+        
+        sub.setSiteURL(fetched.getSiteURL());
+        sub.setTitle(fetched.getTitle());
+        sub.setAuthor(fetched.getAuthor());
+        sub.setLastUpdated(fetched.getLastUpdated());
+        
+        // match fetched entries to stored ones by guid, then by permalink
+        Map<String, SubscriptionEntry> byGuid = new HashMap<String, SubscriptionEntry>();
+        Map<String, SubscriptionEntry> byPermalink = new HashMap<String, SubscriptionEntry>();
+        for (SubscriptionEntry entry : sub.getEntries()) {
+            if (entry.getGuid() != null) {
+                byGuid.put(entry.getGuid(), entry);
+            }
+            byPermalink.put(entry.getPermalink(), entry);
+        }
+        
+        Map<SubscriptionEntry, SubscriptionEntry> matches =
+                new LinkedHashMap<SubscriptionEntry, SubscriptionEntry>();
+        Set<String> matchedIds = new HashSet<String>();
+        List<SubscriptionEntry> added = new ArrayList<SubscriptionEntry>();
+        for (SubscriptionEntry entry : fetched.getEntries()) {
+            SubscriptionEntry existing = null;
+            if (entry.getGuid() != null) {
+                existing = byGuid.get(entry.getGuid());
+            }
+            if (existing == null) {
+                existing = byPermalink.get(entry.getPermalink());
+            }
+            if (existing != null && matchedIds.add(existing.getId())) {
+                matches.put(entry, existing);
+            } else {
+                added.add(entry);
+            }
+        }
+        
+        // entries which dropped out of the feed go, unless the feed came back empty
+        if (!fetched.getEntries().isEmpty()) {
+            for (Iterator<SubscriptionEntry> it = sub.getEntries().iterator(); it.hasNext();) {
+                SubscriptionEntry entry = it.next();
+                if (!matchedIds.contains(entry.getId())) {
+                    it.remove();
+                    pmgr.deleteEntry(entry);
+                    stats.removed++;
+                }
+            }
+        }
+        
+        for (Map.Entry<SubscriptionEntry, SubscriptionEntry> match : matches.entrySet()) {
+            if (copyChanges(match.getKey(), match.getValue(), sub)) {
+                stats.updated++;
+            }
+        }
+        
+        for (SubscriptionEntry entry : added) {
+            if (!sub.getEntries().contains(entry)) {
+                sub.addEntry(entry);
+                stats.added++;
+            }
+        }
+        
+        pmgr.saveSubscription(sub);
+    }
+    
+    
+    // copy whatever changed from a fetched entry to a stored one
+    private static boolean copyChanges(SubscriptionEntry from, SubscriptionEntry to,
+            Subscription sub) {
+        
+        if (StringUtils.equals(from.getTitle(), to.getTitle())
+                && StringUtils.equals(from.getGuid(), to.getGuid())
+                && StringUtils.equals(from.getPermalink(), to.getPermalink())
+                && StringUtils.equals(from.getAuthor(), to.getAuthor())
+                && StringUtils.equals(from.getText(), to.getText())
+                && StringUtils.equals(from.getCategoriesString(), to.getCategoriesString())
+                && sameTime(from.getPubTime(), to.getPubTime())
+                && sameTime(from.getUpdateTime(), to.getUpdateTime())) {
+            return false;
+        }
+        
+        // entries are hashed by permalink, so take it out while that changes
+        boolean relink = !StringUtils.equals(from.getPermalink(), to.getPermalink());
+        if (relink) {
+            sub.getEntries().remove(to);
+        }
+        to.setTitle(from.getTitle());
+        to.setGuid(from.getGuid());
+        to.setPermalink(from.getPermalink());
+        to.setAuthor(from.getAuthor());
+        to.setText(from.getText());
+        to.setCategoriesString(from.getCategoriesString());
+        to.setPubTime(from.getPubTime());
+        to.setUpdateTime(from.getUpdateTime());
+        if (relink) {
+            sub.getEntries().add(to);
+        }
+        
+        return true;
+    }
+    
+    
+    private static boolean sameTime(Date one, Date two) {
+        if (one == null || two == null) {
+            return one == two;
+        }
+        return one.getTime() == two.getTime();
+    }
+    
+    
+    private static void logFailure(Fetch fetch, long delay) {
+        
+        // do a little work to get at the source of the problem
+        Throwable cause = fetch.error;
+        if (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        
+        String msg = "Error updating subscription - "+fetch.request.getFeedURL()
+                +", next try in "+(delay / RollerConstants.SEC_IN_MS)+" seconds";
+        if (log.isDebugEnabled()) {
+            log.debug(msg, cause);
+        } else {
+            log.warn(msg+" - "+cause.getMessage());
+        }
+    }
+    
+    
+    // the host of an http or https feed url, or null if it is anything else
+    private static String getHttpHost(String feedURL) {
+        try {
+            URL url = new URL(feedURL);
+            if ("http".equalsIgnoreCase(url.getProtocol())
+                    || "https".equalsIgnoreCase(url.getProtocol())) {
+                return url.getHost().toLowerCase(Locale.ENGLISH);
+            }
+        } catch (MalformedURLException ex) {
+            // not a url we can fetch over the network
+        }
+        return null;
+    }
+    
+    
+    private static FeedState getState(String feedURL) {
+        FeedState state = FEED_STATES.get(feedURL);
+        if (state == null) {
+            FeedState newState = new FeedState(feedURL);
+            state = FEED_STATES.putIfAbsent(feedURL, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+        return state;
+    }
+    
+    
+    // the proxy from the planet configuration, per connection instead of jvm wide
+    private static Proxy getProxy() {
+        String proxyHost = WebloggerRuntimeConfig.getProperty("planet.site.proxyhost");
+        int proxyPort = WebloggerRuntimeConfig.getIntProperty("planet.site.proxyport");
+        if (StringUtils.isNotEmpty(proxyHost) && proxyPort > 0) {
+            return new Proxy(Proxy.Type.HTTP,
+                    InetSocketAddress.createUnresolved(proxyHost, proxyPort));
+        }
+        return Proxy.NO_PROXY;
+    }
+    
+    
+    /**
+     * Validators and failure backoff of one feed.
+     */
+    private static class FeedState {
+        
+        private final String feedURL;
+        private String eTag = null;
+        private String lastModified = null;
+        private int failures = 0;
+        private long nextAttempt = 0;
+        
+        FeedState(String feedURL) {
+            this.feedURL = feedURL;
+        }
+        
+        // a request of our own for the next fetch, with the saved validators
+        synchronized FeedRequest newRequest(Proxy proxy, int timeout) {
+            FeedRequest request = new FeedRequest(feedURL);
+            request.setETag(eTag);
+            request.setLastModified(lastModified);
+            request.setProxy(proxy);
+            request.setTimeout(timeout);
+            return request;
+        }
+        
+        // what was fetched with the request has been saved
+        synchronized void saved(FeedRequest request) {
+            eTag = request.getETag();
+            lastModified = request.getLastModified();
+        }
+        
+        synchronized boolean isDue(long now) {
+            return now >= nextAttempt;
+        }
+        
+        synchronized void succeeded() {
+            failures = 0;
+            nextAttempt = 0;
+        }
+        
+        // back off exponentially, returns how long for
+        synchronized long failed(long base, long max) {
+            failures++;
+            long delay = base;
+            for (int i = 1; i < failures && delay < max; i++) {
+                delay *= 2;
+            }
+            delay = Math.min(delay, max);
+            nextAttempt = System.currentTimeMillis() + delay;
+            return delay;
+        }
+    }
+    
+    
+    /**
+     * One feed to fetch, and how that went.
+     */
+    private static class Fetch {
+        
+        private final String subscriptionId;
+        private final Date lastUpdated;
+        private final FeedRequest request;
+        private Subscription result = null;
+        private Exception error = null;
+        
+        Fetch(String subscriptionId, Date lastUpdated, FeedRequest request) {
+            this.subscriptionId = subscriptionId;
+            this.lastUpdated = lastUpdated;
+            this.request = request;
+        }
+        
+        void run(FeedFetcher fetcher) {
+            try {
+                if (getHttpHost(request.getFeedURL()) != null) {
+                    result = fetcher.fetchSubscription(request);
+                } else {
+                    result = fetcher.fetchSubscription(request.getFeedURL(), lastUpdated);
+                }
+            } catch (FetcherException ex) {
+                error = ex;
+            } catch (RuntimeException ex) {
+                error = ex;
+            }
+        }
+    }
+    
+    
+    /**
+     * Fetches feeds of one host one after another, on a pool thread.
+     */
+    private static class FetchRun implements Runnable {
+        
+        private final FeedFetcher fetcher;
+        private final List<Fetch> fetches;
+        private final BlockingQueue<Fetch> done;
+        
+        FetchRun(FeedFetcher fetcher, List<Fetch> fetches, BlockingQueue<Fetch> done) {
+            this.fetcher = fetcher;
+            this.fetches = fetches;
+            this.done = done;
+        }
+        
+        public void run() {
+            for (Fetch fetch : fetches) {
+                fetch.run(fetcher);
+                done.add(fetch);
+            }
+        }
+    }
+    
+    
+    /**
+     * What an update did, for the logs.
+     */
+    private static class UpdateStats {
+        
+        private int fetched = 0;
+        private int unchanged = 0;
+        private int failed = 0;
+        private int skipped = 0;
+        private int added = 0;
+        private int updated = 0;
+        private int removed = 0;
+        
+        @Override
+        public String toString() {
+            return fetched+" fetched, "+unchanged+" unchanged, "+failed+" failed, "
+                    +skipped+" skipped; entries "+added+" added, "+updated+" updated, "
+                    +removed+" removed";
+        }
+    }
+    
+}
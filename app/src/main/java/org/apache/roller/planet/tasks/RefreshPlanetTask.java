@@ -20,8 +20,8 @@ package org.apache.roller.planet.tasks;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.roller.planet.business.updater.ConcurrentFeedUpdater;
 import org.apache.roller.planet.business.updater.FeedUpdater;
-import org.apache.roller.planet.business.updater.SingleThreadedFeedUpdater;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.business.startup.WebloggerStartup;
 
@@ -42,7 +42,7 @@ public class RefreshPlanetTask extends PlanetTask {
         try {            
             // Update all feeds in planet
             log.info("Refreshing Planet entries");
-            FeedUpdater updater = new SingleThreadedFeedUpdater();
+            FeedUpdater updater = new ConcurrentFeedUpdater();
             updater.updateSubscriptions();
             WebloggerFactory.getWeblogger().release();
             
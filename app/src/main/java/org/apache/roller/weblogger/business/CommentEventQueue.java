@@ -0,0 +1,487 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.weblogger.business.runnable.ThreadManager;
+import org.apache.roller.weblogger.business.search.IndexManager;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.pojos.WeblogEntry;
+import org.apache.roller.weblogger.pojos.WeblogEntryComment;
+import org.apache.roller.weblogger.util.I18nMessages;
+import org.apache.roller.weblogger.util.MailUtil;
+import org.apache.roller.weblogger.util.RollerMessages;
+
+
+/**
+ * Does the slow work which follows a new comment, sending notification mail
+ * and updating the search index, off the request thread.
+ *
+ * Each event is written to a journal directory before it is queued and only
+ * removed from there once it has been handled, so events survive a restart
+ * and are picked up again when the queue starts.  Events which fail are
+ * retried with an increasing delay, up to a maximum number of attempts,
+ * after which the journal file is kept with a .failed suffix.
+ *
+ * Notification mail is handed to the mail provider's delivery queue, which
+ * does its own retrying when the mail server is in trouble, so retries here
+ * only cover reindexing and getting the mail queued.  An event remembers who
+ * it has already queued mail for, so nobody is sent a notification twice.
+ */
+public final class CommentEventQueue {
+    
+    private static Log log = LogFactory.getLog(CommentEventQueue.class);
+    
+    private static final String SUFFIX = ".event";
+    private static final String FAILED_SUFFIX = ".failed";
+    
+    private static CommentEventQueue instance = null;
+    
+    private final DelayQueue<PendingEvent> queue = new DelayQueue<PendingEvent>();
+    private final Set<Thread> workers = Collections.newSetFromMap(
+            new ConcurrentHashMap<Thread, Boolean>());
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean running = true;
+    private volatile CountDownLatch stopped = new CountDownLatch(0);
+    
+    // where events are journaled, null if we can't
+    private final File journalDir;
+    
+    private final int threads;
+    private final int maxAttempts;
+    private final long retryDelay;
+    
+    // does the work for an event, null for the usual mail and index updates
+    private final EventProcessor processor;
+    
+    private final AtomicLong sequence = new AtomicLong(0);
+    
+    // for metrics
+    private final AtomicLong processed = new AtomicLong(0);
+    private final AtomicLong retried = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    
+    
+    static {
+        instance = new CommentEventQueue();
+    }
+    
+    
+    // non-instantiable because we are a singleton
+    private CommentEventQueue() {
+        this(getConfiguredJournalDir(),
+                WebloggerConfig.getIntProperty("comment.queue.threads", 2),
+                WebloggerConfig.getIntProperty("comment.queue.maxAttempts", 5),
+                WebloggerConfig.getIntProperty("comment.queue.retryDelay", 60)
+                        * (long) RollerConstants.SEC_IN_MS,
+                null);
+    }
+    
+    
+    CommentEventQueue(File journalDir, int threads, int maxAttempts,
+            long retryDelay, EventProcessor processor) {
+        
+        this.journalDir = journalDir;
+        this.threads = Math.max(1, threads);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelay = Math.max(0, retryDelay);
+        this.processor = processor;
+        
+        // pick up anything left over from last time
+        if (journalDir != null) {
+            File[] leftovers = journalDir.listFiles();
+            if (leftovers != null) {
+                Arrays.sort(leftovers);
+                for (File file : leftovers) {
+                    if (file.getName().endsWith(SUFFIX)) {
+                        PendingEvent pending = readEvent(file);
+                        if (pending != null) {
+                            queue.add(pending);
+                        }
+                    }
+                }
+                if (!queue.isEmpty()) {
+                    log.info("Recovered " + queue.size() + " queued comment events");
+                }
+            }
+        }
+    }
+    
+    
+    private static File getConfiguredJournalDir() {
+        String dirName = WebloggerConfig.getProperty("comment.queue.dir");
+        if (dirName == null) {
+            return null;
+        }
+        File dir = new File(dirName);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.warn("Unable to create comment queue directory " + dir
+                    + ", queued comment events will not survive a restart");
+            return null;
+        }
+        return dir;
+    }
+    
+    
+    public static CommentEventQueue getInstance() {
+        return instance;
+    }
+    
+    
+    /**
+     * Start working through queued events on the mail thread pool.  Each
+     * worker keeps one of the pool's threads busy until we are shut down.
+     */
+    public void start(final ThreadManager threadManager) {
+        start(new Executor() {
+            public void execute(Runnable command) {
+                try {
+                    threadManager.executeInBackground(ThreadManager.MAIL_POOL, command);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            }
+        });
+    }
+    
+    
+    void start(Executor executor) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        stopped = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            try {
+                executor.execute(new Worker());
+            } catch (RejectedExecutionException e) {
+                log.error("Unable to start comment event worker", e);
+                stopped.countDown();
+            }
+        }
+    }
+    
+    
+    /**
+     * Queue up the work which follows a newly saved comment.
+     *
+     * @param comment the comment, which must already have been committed.
+     * @param messages validation messages to include in notification mail.
+     * @param locale locale to write the notification mail in.
+     * @param notifySubscribers notify subscribers to the entry, not just the owner.
+     * @param reindex update the entry in the search index.
+     */
+    public void commentSaved(WeblogEntryComment comment, RollerMessages messages,
+            Locale locale, boolean notifySubscribers, boolean reindex) {
+        
+        CommentEvent event = new CommentEvent();
+        event.commentId = comment.getId();
+        event.messages = messages;
+        event.locale = (locale != null) ? locale.toString() : Locale.getDefault().toString();
+        event.notifySubscribers = notifySubscribers;
+        event.notify = true;
+        event.reindex = reindex;
+        
+        PendingEvent pending = new PendingEvent(event, 0);
+        if (journalDir != null) {
+            pending.file = new File(journalDir, String.format("%d-%06d%s",
+                    System.currentTimeMillis(), sequence.incrementAndGet(), SUFFIX));
+            writeEvent(pending);
+        }
+        queue.add(pending);
+    }
+    
+    
+    /**
+     * Do the work for an event.
+     *
+     * Each part which succeeds is marked as done, so a retry only repeats
+     * the parts which failed.
+     */
+    private void process(PendingEvent pending) throws Exception {
+        
+        CommentEvent event = pending.event;
+        if (processor != null) {
+            processor.process(event);
+            return;
+        }
+        
+        Weblogger roller = WebloggerFactory.getWeblogger();
+        try {
+            WeblogEntryComment comment = roller.getWeblogEntryManager().getComment(event.commentId);
+            if (comment == null) {
+                log.debug("Comment " + event.commentId + " is gone, nothing to do");
+                return;
+            }
+            
+            if (event.reindex) {
+                IndexManager manager = roller.getIndexManager();
+                WeblogEntry entry = comment.getWeblogEntry();
+                if (entry.isPublished()) {
+                    // replaces any older copy of the entry in one go
+                    manager.addEntryReIndexOperation(entry);
+                } else {
+                    manager.removeEntryIndexOperation(entry);
+                }
+                event.reindex = false;
+            }
+            
+            if (event.notify) {
+                // fails if the mail can't be queued, so we get to try again
+                // for whoever hasn't been notified yet
+                if (event.notified == null) {
+                    event.notified = new HashSet<String>();
+                }
+                MailUtil.sendCommentNotification(comment, event.messages,
+                        I18nMessages.getMessages(event.locale), event.notifySubscribers,
+                        event.notified);
+                event.notify = false;
+            }
+        } finally {
+            roller.release();
+        }
+    }
+    
+    
+    private void handle(PendingEvent pending) {
+        try {
+            process(pending);
+            processed.incrementAndGet();
+            deleteEvent(pending);
+            
+        } catch (Exception e) {
+            int attempts = pending.attempts + 1;
+            if (attempts >= maxAttempts) {
+                log.error("Giving up on event for comment " + pending.event.commentId
+                        + " after " + attempts + " attempts", e);
+                failed.incrementAndGet();
+                if (pending.file != null
+                        && !pending.file.renameTo(new File(pending.file.getPath() + FAILED_SUFFIX))) {
+                    deleteEvent(pending);
+                }
+            } else {
+                // back off a little more each time
+                long delay = retryDelay << (attempts - 1);
+                log.warn("Error handling event for comment " + pending.event.commentId
+                        + ", will try again in " + (delay / RollerConstants.SEC_IN_MS)
+                        + " seconds: " + e.getMessage());
+                log.debug(e.getMessage(), e);
+                retried.incrementAndGet();
+                
+                PendingEvent retry = new PendingEvent(pending.event, attempts);
+                retry.file = pending.file;
+                retry.due = System.currentTimeMillis() + delay;
+                writeEvent(retry);
+                queue.add(retry);
+            }
+        }
+    }
+    
+    
+    private void writeEvent(PendingEvent pending) {
+        if (pending.file == null) {
+            return;
+        }
+        
+        // write it out of the way then move it into place, so we never
+        // pick up a half written event
+        File temp = new File(pending.file.getPath() + ".tmp");
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(pending.attempts);
+                out.writeObject(pending.event);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(pending.file)) {
+                // renameTo won't replace an existing file on some platforms
+                pending.file.delete();
+                if (!temp.renameTo(pending.file)) {
+                    throw new IOException("Unable to rename " + temp);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Unable to journal event for comment " + pending.event.commentId, e);
+            temp.delete();
+        }
+    }
+    
+    
+    private PendingEvent readEvent(File file) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                int attempts = in.readInt();
+                PendingEvent pending = new PendingEvent((CommentEvent) in.readObject(), attempts);
+                pending.file = file;
+                return pending;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            log.error("Unreadable comment event " + file + ", ignoring it", e);
+            file.renameTo(new File(file.getPath() + FAILED_SUFFIX));
+            return null;
+        }
+    }
+    
+    
+    private void deleteEvent(PendingEvent pending) {
+        if (pending.file != null && pending.file.exists() && !pending.file.delete()) {
+            log.warn("Unable to remove handled comment event " + pending.file);
+        }
+    }
+    
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("queued", queue.size());
+        stats.put("processed", processed.get());
+        stats.put("retried", retried.get());
+        stats.put("failed", failed.get());
+        stats.put("journaled", journalDir != null);
+        return stats;
+    }
+    
+    
+    /**
+     * Clean up.  Events which haven't been handled yet stay in the journal
+     * until the next start.
+     */
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            log.info("stopping worker " + worker.getName());
+            worker.interrupt();
+        }
+        try {
+            stopped.await(RollerConstants.GRACEFUL_SHUTDOWN_WAIT_IN_MILLISECONDS,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            log.debug(e.getMessage(), e);
+        }
+    }
+    
+    
+    private class Worker implements Runnable {
+        public void run() {
+            workers.add(Thread.currentThread());
+            try {
+                while (running) {
+                    try {
+                        handle(queue.take());
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (Throwable t) {
+                        log.error("Unexpected error in comment event queue", t);
+                    }
+                }
+            } finally {
+                // don't leave our interrupt behind on a pooled thread
+                workers.remove(Thread.currentThread());
+                Thread.interrupted();
+                stopped.countDown();
+            }
+        }
+    }
+    
+    
+    /**
+     * Does the work for an event, throwing an exception if it should be
+     * tried again later.
+     */
+    interface EventProcessor {
+        void process(CommentEvent event) throws Exception;
+    }
+    
+    
+    /**
+     * What needs doing for a comment.
+     */
+    static class CommentEvent implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        String commentId;
+        RollerMessages messages;
+        String locale;
+        boolean notifySubscribers;
+        boolean notify;
+        boolean reindex;
+        
+        // addresses already sent a notification, null in older journals
+        HashSet<String> notified;
+    }
+    
+    
+    /**
+     * An event waiting in the queue until it is due.
+     */
+    private static class PendingEvent implements Delayed {
+        
+        private final CommentEvent event;
+        private final int attempts;
+        private File file = null;
+        private long due = System.currentTimeMillis();
+        
+        PendingEvent(CommentEvent event, int attempts) {
+            this.event = event;
+            this.attempts = attempts;
+        }
+        
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        
+        public int compareTo(Delayed other) {
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+        }
+    }
+    
+}
@@ -51,10 +51,14 @@ public class FileContentManagerImpl implements FileContentManager {
      */
     public FileContentManagerImpl() {
 
-        String inStorageDir = WebloggerConfig
-                .getProperty("mediafiles.storage.dir");
-
         // Note: System property expansion is now handled by WebloggerConfig.
+        this(WebloggerConfig.getProperty("mediafiles.storage.dir"));
+    }
+
+    /**
+     * Create file content manager keeping files in the given directory.
+     */
+    FileContentManagerImpl(String inStorageDir) {
 
         if (inStorageDir == null || inStorageDir.trim().length() < 1) {
             inStorageDir = System.getProperty("user.home") + File.separator
@@ -169,10 +173,7 @@ public class FileContentManagerImpl implements FileContentManager {
                 .doubleValue());
 
         try {
-            File storageDirectory = this.getRealFile(weblog, null);
-            long weblogDirSize = this.getDirSize(storageDirectory, true);
-
-            return weblogDirSize > maxDirBytes;
+            return getUsage(weblog) > maxDirBytes;
         } catch (Exception ex) {
             // shouldn't ever happen, this means user's uploads dir is bad
             // rethrow as a runtime exception
@@ -215,9 +216,7 @@ public class FileContentManagerImpl implements FileContentManager {
         long maxDirBytes = (long) (RollerConstants.ONE_MB_IN_BYTES * maxDirMB
                 .doubleValue());
         try {
-            File storageDirectory = this.getRealFile(weblog, null);
-            long userDirSize = getDirSize(storageDirectory, true);
-            if (userDirSize + size > maxDirBytes) {
+            if (getUsage(weblog) + size > maxDirBytes) {
                 messages.addError("error.upload.dirmax", maxDirMB.toString());
                 return false;
             }
@@ -246,6 +245,21 @@ public class FileContentManagerImpl implements FileContentManager {
         return true;
     }
 
+    /**
+     * Get the number of bytes a weblog's files take up, for the quota.
+     */
+    protected long getUsage(Weblog weblog) throws FileNotFoundException,
+            FilePathException {
+        return getDirSize(this.getRealFile(weblog, null), true);
+    }
+
+    /**
+     * Get the directory all weblogs' upload areas are in.
+     */
+    protected String getStorageDir() {
+        return this.storageDir;
+    }
+
     /**
      * Get the size in bytes of given directory.
      *
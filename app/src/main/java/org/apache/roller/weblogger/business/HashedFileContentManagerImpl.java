@@ -0,0 +1,602 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.pojos.FileContent;
+import org.apache.roller.weblogger.pojos.Weblog;
+
+
+/**
+ * Keeps file content by its SHA-256 hash, so that a file uploaded many times
+ * is only stored once.
+ *
+ * Under mediafiles.storage.hashed.dir content is kept in blobs/ab/cd/abcd...,
+ * next to a count of the files using it, and each weblog's files are small
+ * references to that content in refs/[handle]/[first two characters of the
+ * file id]/[file id].  No directory gets very large, and the bytes each
+ * weblog uses for its quota are kept in refs/[handle]/usage and updated as
+ * files come and go instead of being added up on every upload.
+ *
+ * Files which are still in the old mediafiles.storage.dir layout keep working
+ * until MigrateFileContentTask moves them over.
+ *
+ * The counts are guarded by locks in this JVM, so a hashed store must not be
+ * shared by several servers.
+ */
+public class HashedFileContentManagerImpl extends FileContentManagerImpl {
+
+    private static Log log = LogFactory.getLog(HashedFileContentManagerImpl.class);
+
+    private static final String REF_COUNT_SUFFIX = ".refs";
+
+    private static final String USAGE_FILE = "usage";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final File blobsDir;
+    private final File refsDir;
+
+    // content being written before we know its hash
+    private final File incomingDir;
+
+    // guard content reference counts, and references, by hash and file id
+    private final Object[] blobLocks = new Object[LOCK_STRIPES];
+    private final Object[] refLocks = new Object[LOCK_STRIPES];
+
+    // bytes used by each weblog, loaded from the usage files when first needed
+    private final ConcurrentMap<String, AtomicLong> usage =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Create file content manager.
+     */
+    public HashedFileContentManagerImpl() {
+        this(WebloggerConfig.getProperty("mediafiles.storage.dir"),
+                WebloggerConfig.getProperty("mediafiles.storage.hashed.dir"));
+    }
+
+    /**
+     * Create file content manager keeping files in the given directory, and
+     * reading not yet migrated files from the old storage directory.
+     */
+    HashedFileContentManagerImpl(String oldStorageDir, String hashedDir) {
+
+        super(oldStorageDir);
+
+        if (hashedDir == null || hashedDir.trim().length() < 1) {
+            hashedDir = System.getProperty("user.home") + File.separator
+                    + "roller_data" + File.separator + "mediastore";
+        }
+
+        File root = new File(hashedDir.replace('/', File.separatorChar));
+        this.blobsDir = new File(root, "blobs");
+        this.refsDir = new File(root, "refs");
+        this.incomingDir = new File(this.blobsDir, "incoming");
+
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            blobLocks[i] = new Object();
+            refLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @see org.apache.roller.weblogger.business.FileContentManager#getFileContent(Weblog,
+     *      String)
+     */
+    @Override
+    public FileContent getFileContent(Weblog weblog, String fileId)
+            throws FileNotFoundException, FilePathException {
+
+        checkFileId(fileId);
+
+        String hash = readRef(weblog.getHandle(), fileId);
+        File file = (hash != null) ? getBlobFile(hash)
+                : getOldFile(weblog.getHandle(), fileId);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Invalid file id [" + fileId
+                    + "], file does not exist.");
+        }
+
+        return new FileContent(weblog, fileId, file);
+    }
+
+    /**
+     * @see org.apache.roller.weblogger.business.FileContentManager#saveFileContent(Weblog,
+     *      String, java.io.InputStream)
+     */
+    @Override
+    public void saveFileContent(Weblog weblog, String fileId, InputStream is)
+            throws FileNotFoundException, FilePathException, FileIOException {
+
+        checkFileId(fileId);
+        String handle = weblog.getHandle();
+
+        // hashing the content doesn't need any locks
+        File incoming = receive(is);
+        String hash = incoming.getName().substring(0, incoming.getName().indexOf('.'));
+
+        synchronized (getRefLock(handle, fileId)) {
+            store(handle, fileId, hash, incoming);
+            deleteOldFile(handle, fileId);
+        }
+    }
+
+    /**
+     * @see org.apache.roller.weblogger.business.FileContentManager#deleteFile(Weblog,
+     *      String)
+     */
+    @Override
+    public void deleteFile(Weblog weblog, String fileId)
+            throws FileNotFoundException, FilePathException, FileIOException {
+
+        checkFileId(fileId);
+        String handle = weblog.getHandle();
+
+        synchronized (getRefLock(handle, fileId)) {
+            String hash = readRef(handle, fileId);
+            if (hash == null) {
+                File oldFile = getOldFile(handle, fileId);
+                if (!oldFile.exists()) {
+                    throw new FileNotFoundException("Invalid file id [" + fileId
+                            + "], file does not exist.");
+                }
+                deleteOldFile(handle, fileId);
+                return;
+            }
+
+            getUsageCounter(handle);
+            if (!getRefFile(handle, fileId).delete()) {
+                throw new FileIOException("Unable to delete file id [" + fileId + "]");
+            }
+            addUsage(handle, -release(hash));
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void deleteAllFiles(Weblog weblog) throws FileIOException {
+
+        String handle = weblog.getHandle();
+        File[] shards = new File(this.refsDir, handle).listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                File[] refs = shard.listFiles();
+                if (refs == null) {
+                    continue;
+                }
+                for (File ref : refs) {
+                    if (ref.getName().startsWith(".")) {
+                        continue;
+                    }
+                    try {
+                        deleteFile(weblog, ref.getName());
+                    } catch (FileIOException ex) {
+                        throw ex;
+                    } catch (Exception ex) {
+                        log.debug("File to be deleted already unavailable in the file store");
+                    }
+                }
+            }
+        }
+
+        deleteDirectory(new File(this.refsDir, handle));
+        deleteDirectory(new File(getStorageDir(), handle));
+        usage.remove(handle);
+    }
+
+    /**
+     * Move all files still in the old storage directory over to the hashed
+     * store, the old directory is left empty.  This can be run again if it
+     * is interrupted.
+     *
+     * @return the number of files moved.
+     */
+    public int migrateOldFiles() {
+
+        File[] weblogDirs = new File(getStorageDir()).listFiles();
+        if (weblogDirs == null) {
+            return 0;
+        }
+
+        int moved = 0;
+        for (File weblogDir : weblogDirs) {
+            File[] files = weblogDir.listFiles();
+            if (files == null || isInHashedStore(weblogDir)) {
+                continue;
+            }
+
+            String handle = weblogDir.getName();
+            for (File file : files) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                try {
+                    if (migrate(handle, file)) {
+                        moved++;
+                    }
+                } catch (Exception ex) {
+                    log.warn("Unable to move " + file + " to the hashed store", ex);
+                }
+            }
+
+            String[] left = weblogDir.list();
+            if (left != null && left.length == 0 && !weblogDir.delete()) {
+                log.debug("Unable to delete " + weblogDir);
+            }
+        }
+
+        log.info("Moved " + moved + " files to the hashed store");
+        return moved;
+    }
+
+    /**
+     * Bytes used by the weblog's files, counting content it shares with
+     * other files once per file.
+     */
+    @Override
+    protected long getUsage(Weblog weblog) throws FileNotFoundException,
+            FilePathException {
+
+        long bytes = getUsageCounter(weblog.getHandle()).get();
+
+        // plus whatever hasn't been migrated yet
+        if (new File(getStorageDir(), weblog.getHandle()).isDirectory()) {
+            bytes += super.getUsage(weblog);
+        }
+        return bytes;
+    }
+
+    // move one file out of the old storage directory
+    private boolean migrate(String handle, File oldFile)
+            throws FilePathException, FileIOException {
+
+        String fileId = oldFile.getName();
+        checkFileId(fileId);
+
+        synchronized (getRefLock(handle, fileId)) {
+            // whatever was saved since switching to this store is newer
+            if (readRef(handle, fileId) != null) {
+                deleteOldFile(handle, fileId);
+                return false;
+            }
+
+            File incoming;
+            try {
+                InputStream in = new FileInputStream(oldFile);
+                try {
+                    incoming = receive(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                throw new FileIOException("Unable to read " + oldFile, ex);
+            }
+            String hash = incoming.getName().substring(0, incoming.getName().indexOf('.'));
+
+            store(handle, fileId, hash, incoming);
+            deleteOldFile(handle, fileId);
+            return true;
+        }
+    }
+
+    // write content to the incoming directory, named after its hash
+    private File receive(InputStream is) throws FileIOException {
+
+        if (!this.incomingDir.exists() && !this.incomingDir.mkdirs()) {
+            throw new FileIOException("Unable to create " + this.incomingDir);
+        }
+
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("upload", ".tmp", this.incomingDir);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            byte[] buffer = new byte[RollerConstants.EIGHT_KB_IN_BYTES];
+            int bytesRead;
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                while ((bytesRead = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, bytesRead);
+                    out.write(buffer, 0, bytesRead);
+                }
+            } finally {
+                out.close();
+            }
+
+            String hash = Hex.encodeHexString(digest.digest());
+            File named = File.createTempFile(hash + ".", ".tmp", this.incomingDir);
+            if (!named.delete() || !tmp.renameTo(named)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+            return named;
+
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            if (tmp != null && tmp.exists() && !tmp.delete()) {
+                log.debug("Unable to delete " + tmp);
+            }
+            throw new FileIOException("ERROR uploading file", ex);
+        }
+    }
+
+    // point a file id at received content, caller holds the reference lock
+    private void store(String handle, String fileId, String hash, File incoming)
+            throws FileIOException {
+
+        // count up what's there before changing it, if that wasn't done yet
+        getUsageCounter(handle);
+
+        String oldHash = readRef(handle, fileId);
+        long added = retain(hash, incoming);
+        try {
+            writeSmallFile(getRefFile(handle, fileId), hash);
+        } catch (IOException ex) {
+            release(hash);
+            throw new FileIOException("ERROR uploading file", ex);
+        }
+        long removed = (oldHash != null) ? release(oldHash) : 0;
+
+        addUsage(handle, added - removed);
+        log.debug("File id [" + fileId + "] of weblog " + handle + " is " + hash);
+    }
+
+    // add a reference to content, storing it if it is new
+    private long retain(String hash, File incoming) throws FileIOException {
+
+        File blob = getBlobFile(hash);
+        synchronized (getBlobLock(hash)) {
+            try {
+                if (blob.exists()) {
+                    // already have it, keep it looking as new as the upload
+                    if (!incoming.delete()) {
+                        log.debug("Unable to delete " + incoming);
+                    }
+                    if (!blob.setLastModified(System.currentTimeMillis())) {
+                        log.debug("Unable to touch " + blob);
+                    }
+                } else {
+                    File dir = blob.getParentFile();
+                    if (!dir.exists() && !dir.mkdirs()) {
+                        throw new IOException("Unable to create " + dir);
+                    }
+                    if (!incoming.renameTo(blob)) {
+                        throw new IOException("Unable to rename " + incoming + " to " + blob);
+                    }
+                }
+
+                File count = getRefCountFile(blob);
+                writeSmallFile(count, String.valueOf(readRefCount(count) + 1));
+                return blob.length();
+
+            } catch (IOException ex) {
+                throw new FileIOException("ERROR storing file content", ex);
+            }
+        }
+    }
+
+    // remove a reference to content, deleting it if that was the last one
+    private long release(String hash) {
+
+        File blob = getBlobFile(hash);
+        synchronized (getBlobLock(hash)) {
+            long length = blob.length();
+            File count = getRefCountFile(blob);
+            int refs = readRefCount(count) - 1;
+            if (refs > 0) {
+                try {
+                    writeSmallFile(count, String.valueOf(refs));
+                } catch (IOException ex) {
+                    log.warn("Unable to update reference count of " + hash, ex);
+                }
+            } else if (!blob.delete() || !count.delete()) {
+                log.warn("Delete appears to have failed for [" + hash + "]");
+            }
+            return length;
+        }
+    }
+
+    private AtomicLong getUsageCounter(String handle) {
+
+        AtomicLong counter = usage.get(handle);
+        if (counter == null) {
+            AtomicLong loaded = new AtomicLong(loadUsage(handle));
+            counter = usage.putIfAbsent(handle, loaded);
+            if (counter == null) {
+                counter = loaded;
+            }
+        }
+        return counter;
+    }
+
+    private void addUsage(String handle, long delta) {
+
+        if (delta == 0) {
+            return;
+        }
+
+        AtomicLong counter = getUsageCounter(handle);
+        synchronized (counter) {
+            long bytes = counter.addAndGet(delta);
+            try {
+                writeSmallFile(new File(new File(this.refsDir, handle), USAGE_FILE),
+                        String.valueOf(bytes));
+            } catch (IOException ex) {
+                log.warn("Unable to save usage of weblog " + handle, ex);
+            }
+        }
+    }
+
+    // read a weblog's usage, counting it up again if it was never saved
+    private long loadUsage(String handle) {
+
+        File weblogDir = new File(this.refsDir, handle);
+        String saved = readSmallFile(new File(weblogDir, USAGE_FILE));
+        if (saved != null) {
+            try {
+                return Long.parseLong(saved);
+            } catch (NumberFormatException ex) {
+                log.warn("Invalid usage of weblog " + handle + ", counting it again");
+            }
+        }
+
+        long bytes = 0;
+        File[] shards = weblogDir.listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                File[] refs = shard.listFiles();
+                if (refs == null) {
+                    continue;
+                }
+                for (File ref : refs) {
+                    String hash = ref.getName().startsWith(".") ? null : readSmallFile(ref);
+                    if (hash != null) {
+                        bytes += getBlobFile(hash).length();
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private String readRef(String handle, String fileId) {
+        return readSmallFile(getRefFile(handle, fileId));
+    }
+
+    private static int readRefCount(File count) {
+        String refs = readSmallFile(count);
+        try {
+            return (refs != null) ? Integer.parseInt(refs) : 0;
+        } catch (NumberFormatException ex) {
+            log.warn("Invalid reference count in " + count);
+            return 0;
+        }
+    }
+
+    private void deleteOldFile(String handle, String fileId) {
+        File oldFile = getOldFile(handle, fileId);
+        if (oldFile.exists() && !oldFile.delete()) {
+            log.warn("Delete appears to have failed for [" + oldFile + "]");
+        }
+    }
+
+    private File getBlobFile(String hash) {
+        return new File(new File(new File(this.blobsDir, hash.substring(0, 2)),
+                hash.substring(2, 4)), hash);
+    }
+
+    private static File getRefCountFile(File blob) {
+        return new File(blob.getParentFile(), blob.getName() + REF_COUNT_SUFFIX);
+    }
+
+    private File getRefFile(String handle, String fileId) {
+        String shard = (fileId.length() > 1) ? fileId.substring(0, 2) : fileId;
+        return new File(new File(new File(this.refsDir, handle), shard), fileId);
+    }
+
+    private File getOldFile(String handle, String fileId) {
+        return new File(new File(getStorageDir(), handle), fileId);
+    }
+
+    // the old storage directory may be the same as the hashed one
+    private boolean isInHashedStore(File dir) {
+        return dir.equals(this.blobsDir) || dir.equals(this.refsDir);
+    }
+
+    private Object getBlobLock(String hash) {
+        return blobLocks[(hash.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    private Object getRefLock(String handle, String fileId) {
+        int hash = (handle + "/" + fileId).hashCode();
+        return refLocks[(hash & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    /**
+     * File ids become file names, make sure nobody gets outside of the
+     * storage directories with one.
+     */
+    private static void checkFileId(String fileId) throws FilePathException {
+        if (fileId == null || fileId.length() == 0 || fileId.startsWith(".")
+                || fileId.indexOf('/') != -1 || fileId.indexOf('\\') != -1
+                || USAGE_FILE.equals(fileId)) {
+            throw new FilePathException("Invalid file id [" + fileId + "]");
+        }
+    }
+
+    private static String readSmallFile(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file.toPath()), "UTF-8").trim();
+        } catch (IOException ex) {
+            log.warn("Unable to read " + file, ex);
+            return null;
+        }
+    }
+
+    // replace a file in one step, so nobody sees it half written
+    private static void writeSmallFile(File file, String value) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        File tmp = new File(dir, "." + file.getName() + ".tmp");
+        Files.write(tmp.toPath(), value.getBytes("UTF-8"));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleteDirectory(file);
+            } else if (!file.delete()) {
+                log.warn("Delete appears to have failed for [" + file + "]");
+            }
+        }
+        if (!dir.delete()) {
+            log.warn("Delete appears to have failed for [" + dir + "]");
+        }
+    }
+
+}
@@ -18,9 +18,12 @@
 
 package org.apache.roller.weblogger.business;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.roller.util.RollerConstants;
@@ -35,6 +38,11 @@ import org.apache.roller.weblogger.pojos.Weblog;
  * Queue's up incoming hit counts so that they can be recorded to the db in
  * an asynchronous manner at give intervals.
  *
+ * Hits are tallied as they come in, with one counter per weblog, so a hit
+ * costs an atomic increment and no garbage.  Draining swaps in a fresh set
+ * of counters, and any hit which raced with the swap and landed on the old
+ * set is picked up by the next drain.
+ *
  * We also start up a single thread which runs continously to take the queued
  * hit counts, tally them, and record them into the db.
  *
@@ -48,7 +56,19 @@ public final class HitCountQueue {
     private static HitCountQueue instance = null;
     
     private WorkerThread worker = null;
-    private List<String> queue = null;
+    private final AtomicReference<ConcurrentHashMap<String, AtomicLong>> counts =
+            new AtomicReference<ConcurrentHashMap<String, AtomicLong>>(
+                    new ConcurrentHashMap<String, AtomicLong>());
+    
+    // the counters we drained last time, only touched while draining
+    private Map<String, AtomicLong> drained = new HashMap<String, AtomicLong>();
+    
+    // for metrics
+    private final AtomicLong flushes = new AtomicLong(0);
+    private final AtomicLong hitsFlushed = new AtomicLong(0);
+    private volatile long lastFlushMillis = 0;
+    private volatile long maxFlushMillis = 0;
+    private volatile Date lastFlushTime = null;
     
     
     static {
@@ -68,9 +88,6 @@ public final class HitCountQueue {
             log.warn("Invalid sleep time ["+sleep+"], using default");
         }
         
-        // create the hits queue
-        this.queue = Collections.synchronizedList(new ArrayList<String>());
-        
         // start up a worker to process the hits at intervals
         HitCountProcessingJob job = new HitCountProcessingJob();
         worker = new ContinuousWorkerThread("HitCountQueueProcessor", job, sleepTime);
@@ -85,24 +102,83 @@ public final class HitCountQueue {
     
     public void processHit(Weblog weblog) {
         
-        // if the weblog isn't null then just drop its handle in the queue
-        // each entry in the queue is a weblog handle and indicates a single hit
+        // if the weblog isn't null then just count a hit for its handle
         if(weblog != null) {
-            this.queue.add(weblog.getHandle());
+            ConcurrentHashMap<String, AtomicLong> current = this.counts.get();
+            AtomicLong counter = current.get(weblog.getHandle());
+            if(counter == null) {
+                AtomicLong created = new AtomicLong(0);
+                counter = current.putIfAbsent(weblog.getHandle(), created);
+                if(counter == null) {
+                    counter = created;
+                }
+            }
+            counter.incrementAndGet();
         }
     }
     
     
-    public List<String> getHits() {
-        return new ArrayList<String>(this.queue);
+    /**
+     * Take the queued hits, leaving the queue empty.
+     *
+     * @return number of hits keyed by weblog handle.
+     */
+    public synchronized Map<String, Long> drainHits() {
+        
+        ConcurrentHashMap<String, AtomicLong> current =
+                this.counts.getAndSet(new ConcurrentHashMap<String, AtomicLong>());
+        
+        Map<String, Long> hits = new HashMap<String, Long>();
+        tally(this.drained, hits);
+        tally(current, hits);
+        this.drained = current;
+        
+        return hits;
     }
     
     
     /**
-     * Reset the queued hits.
+     * Record how long it took to write a batch of hits to the db.
      */
-    public synchronized void resetHits() {
-        this.queue = Collections.synchronizedList(new ArrayList<String>());
+    public void recordFlush(long hits, long millis) {
+        flushes.incrementAndGet();
+        hitsFlushed.addAndGet(hits);
+        lastFlushMillis = millis;
+        lastFlushTime = new Date();
+        if(millis > maxFlushMillis) {
+            maxFlushMillis = millis;
+        }
+    }
+    
+    
+    public Map<String, Object> getStats() {
+        
+        long queued = 0;
+        ConcurrentHashMap<String, AtomicLong> current = this.counts.get();
+        for (AtomicLong counter : current.values()) {
+            queued += counter.get();
+        }
+        
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("queuedHits", queued);
+        stats.put("queuedWeblogs", current.size());
+        stats.put("flushes", flushes.get());
+        stats.put("hitsFlushed", hitsFlushed.get());
+        stats.put("lastFlushMillis", lastFlushMillis);
+        stats.put("maxFlushMillis", maxFlushMillis);
+        stats.put("lastFlushTime", lastFlushTime);
+        return stats;
+    }
+    
+    
+    private static void tally(Map<String, AtomicLong> counters, Map<String, Long> hits) {
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            long count = entry.getValue().getAndSet(0);
+            if(count > 0) {
+                Long previous = hits.get(entry.getKey());
+                hits.put(entry.getKey(), (previous == null) ? count : previous + count);
+            }
+        }
     }
     
     
@@ -0,0 +1,403 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.weblogger.business.runnable.ThreadManager;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.pojos.FileContent;
+import org.apache.roller.weblogger.pojos.Weblog;
+import org.apache.roller.weblogger.util.ImageScaler;
+
+
+/**
+ * Makes the smaller copies of uploaded images: the thumbnail of each image
+ * and the sizes listed in mediafiles.derivatives.sizes, which are made the
+ * first time somebody asks for them.
+ *
+ * All the decoding and scaling happens on the "image" thread pool, so a bulk
+ * upload can't tie up more than its few threads.  Callers which need a copy
+ * right away wait for it, at most mediafiles.derivatives.timeout seconds,
+ * and several requests for the same copy share the work.
+ *
+ * Thumbnails are kept next to the image in the media file storage, as
+ * before.  The other sizes are kept in mediafiles.derivatives.dir and made
+ * again whenever the image is newer than the copy.
+ */
+public final class ImageDerivativeService {
+    
+    private static Log log = LogFactory.getLog(ImageDerivativeService.class);
+    
+    // suffix of the thumbnail file id
+    private static final String THUMBNAIL_SUFFIX = "_sm";
+    
+    private final File derivativesDir;
+    private final Map<String, Integer> sizes;
+    private final int timeoutSecs;
+    
+    // work which is queued or running, by what it makes
+    private final ConcurrentMap<String, FutureTask<Void>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<Void>>();
+    
+    private final AtomicLong made = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    
+    // reference to our singleton instance
+    private static ImageDerivativeService singletonInstance = new ImageDerivativeService();
+    
+    
+    private ImageDerivativeService() {
+        
+        String dir = WebloggerConfig.getProperty("mediafiles.derivatives.dir");
+        if (dir == null || dir.trim().length() < 1) {
+            dir = System.getProperty("user.home") + File.separator
+                    + "roller_data" + File.separator + "derivatives";
+        }
+        derivativesDir = new File(dir);
+        
+        // name:longest edge, e.g. small:240,medium:640
+        Map<String, Integer> sizeMap = new LinkedHashMap<String, Integer>();
+        String sizesProp = WebloggerConfig.getProperty("mediafiles.derivatives.sizes", "");
+        for (String size : sizesProp.split(",")) {
+            String[] parts = size.trim().split(":");
+            if (parts.length != 2) {
+                continue;
+            }
+            try {
+                int edge = Integer.parseInt(parts[1].trim());
+                if (edge > 0) {
+                    sizeMap.put(parts[0].trim(), edge);
+                }
+            } catch (NumberFormatException ex) {
+                log.warn("Invalid image size: " + size);
+            }
+        }
+        sizes = Collections.unmodifiableMap(sizeMap);
+        
+        timeoutSecs = Math.max(1,
+                WebloggerConfig.getIntProperty("mediafiles.derivatives.timeout", 30));
+        
+        log.info("Image sizes " + sizes + ", kept in " + derivativesDir);
+    }
+    
+    
+    public static ImageDerivativeService getInstance() {
+        return singletonInstance;
+    }
+    
+    
+    /**
+     * The names of the sizes images can be asked for in.
+     */
+    public Set<String> getSizes() {
+        return sizes.keySet();
+    }
+    
+    
+    /**
+     * Make the thumbnail of a new or changed image in the background.
+     *
+     * @param image the content of the image.
+     */
+    public void scheduleThumbnail(FileContent image) {
+        submit(thumbnailKey(image), thumbnailWork(image), false);
+    }
+    
+    
+    /**
+     * Get the thumbnail of an image, making it now if it is missing or older
+     * than the image.
+     *
+     * @return the thumbnail, or null if it couldn't be made in time.
+     */
+    public FileContent getThumbnail(FileContent image) {
+        
+        FileContent thumbnail = findThumbnail(image);
+        if (thumbnail == null
+                && submit(thumbnailKey(image), thumbnailWork(image), true)) {
+            thumbnail = findThumbnail(image);
+        }
+        return thumbnail;
+    }
+    
+    
+    /**
+     * Get a copy of an image in one of the configured sizes, making it now if
+     * it is missing or older than the image.
+     *
+     * @return the copy, or null if there is no such size or it couldn't be
+     *         made in time.
+     */
+    public FileContent getDerivative(FileContent image, String size) {
+        
+        if (!sizes.containsKey(size)) {
+            return null;
+        }
+        
+        FileContent derivative = findDerivative(image, size);
+        if (derivative == null
+                && submit(derivativeKey(image, size), derivativeWork(image, size), true)) {
+            derivative = findDerivative(image, size);
+        }
+        return derivative;
+    }
+    
+    
+    /**
+     * Content type of a copy returned by getThumbnail() or getDerivative().
+     *
+     * Goes by the file id the copy was saved under, the name of the file
+     * behind it is up to wherever the copy happens to be stored.
+     */
+    public static String getContentType(FileContent derivative) {
+        return derivative.getFileId().endsWith(".jpg") ? "image/jpeg" : "image/png";
+    }
+    
+    
+    /**
+     * Remove the sized copies of an image, the thumbnail goes along with the
+     * rest of the media file.
+     */
+    public void deleteDerivatives(Weblog weblog, String fileId) {
+        File dir = new File(derivativesDir, weblog.getHandle());
+        for (String size : sizes.keySet()) {
+            for (String format : new String[] {"jpg", "png"}) {
+                File file = new File(dir, fileId + "_" + size + "." + format);
+                if (file.exists() && !file.delete()) {
+                    log.warn("Unable to delete " + file);
+                }
+            }
+        }
+    }
+    
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("inFlight", inFlight.size());
+        stats.put("made", made.get());
+        stats.put("failed", failed.get());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+    
+    
+    // the stored thumbnail, if it is at least as new as the image
+    private FileContent findThumbnail(FileContent image) {
+        try {
+            FileContent thumbnail = WebloggerFactory.getWeblogger().getFileContentManager()
+                    .getFileContent(image.getWeblog(), image.getFileId() + THUMBNAIL_SUFFIX);
+            if (thumbnail.getLastModified() >= image.getLastModified()) {
+                return thumbnail;
+            }
+        } catch (Exception ex) {
+            // not made yet
+        }
+        return null;
+    }
+    
+    
+    // the sized copy, if it is at least as new as the image
+    private FileContent findDerivative(FileContent image, String size) {
+        File dir = new File(derivativesDir, image.getWeblog().getHandle());
+        for (String format : new String[] {"jpg", "png"}) {
+            String fileId = image.getFileId() + "_" + size + "." + format;
+            File file = new File(dir, fileId);
+            if (file.exists() && file.lastModified() >= image.getLastModified()) {
+                return new FileContent(image.getWeblog(), fileId, file);
+            }
+        }
+        return null;
+    }
+    
+    
+    private static String thumbnailKey(FileContent image) {
+        return image.getWeblog().getHandle() + "/" + image.getFileId() + THUMBNAIL_SUFFIX;
+    }
+    
+    
+    private static String derivativeKey(FileContent image, String size) {
+        return image.getWeblog().getHandle() + "/" + image.getFileId() + "_" + size;
+    }
+    
+    
+    private Callable<Void> thumbnailWork(final FileContent image) {
+        return new Callable<Void>() {
+            public Void call() throws Exception {
+                BufferedImage scaled = scale(image, MediaFileManager.MAX_WIDTH,
+                        MediaFileManager.MAX_HEIGHT);
+                if (scaled == null) {
+                    return null;
+                }
+                
+                // thumbnails are small, and this way there is no half written
+                // file in the storage for long
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ImageScaler.write(scaled, "png", bytes);
+                WebloggerFactory.getWeblogger().getFileContentManager().saveFileContent(
+                        image.getWeblog(), image.getFileId() + THUMBNAIL_SUFFIX,
+                        new ByteArrayInputStream(bytes.toByteArray()));
+                return null;
+            }
+        };
+    }
+    
+    
+    private Callable<Void> derivativeWork(final FileContent image, final String size) {
+        return new Callable<Void>() {
+            public Void call() throws Exception {
+                int edge = sizes.get(size);
+                BufferedImage scaled = scale(image, edge, edge);
+                if (scaled == null) {
+                    return null;
+                }
+                
+                boolean png = ImageScaler.hasAlpha(scaled);
+                File dir = new File(derivativesDir, image.getWeblog().getHandle());
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Unable to create " + dir);
+                }
+                String name = image.getFileId() + "_" + size + (png ? ".png" : ".jpg");
+                
+                // write it aside first so nobody gets to see half of it
+                File tmp = File.createTempFile(name, ".tmp", dir);
+                try {
+                    OutputStream out = new FileOutputStream(tmp);
+                    try {
+                        ImageScaler.write(scaled, png ? "png" : "jpeg", out);
+                    } finally {
+                        out.close();
+                    }
+                    File file = new File(dir, name);
+                    if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                        throw new IOException("Unable to rename " + tmp + " to " + file);
+                    }
+                } finally {
+                    if (tmp.exists() && !tmp.delete()) {
+                        log.debug("Unable to delete " + tmp);
+                    }
+                }
+                return null;
+            }
+        };
+    }
+    
+    
+    // decode and scale an image to fit within the given size
+    private static BufferedImage scale(FileContent image, int maxWidth, int maxHeight)
+            throws IOException {
+        
+        BufferedImage img = ImageScaler.read(image.getInputStream(), maxWidth, maxHeight);
+        if (img == null) {
+            log.debug("Not an image we can read - " + image.getFileId());
+            return null;
+        }
+        Dimension size = ImageScaler.fitWithin(img.getWidth(), img.getHeight(),
+                maxWidth, maxHeight);
+        return ImageScaler.scale(img, size.width, size.height);
+    }
+    
+    
+    /**
+     * Run work on the image pool, unless the same work is already queued or
+     * running, and optionally wait for it.
+     *
+     * @return true if the work was done, or was started when not waiting.
+     */
+    private boolean submit(final String key, Callable<Void> work, boolean wait) {
+        
+        final FutureTask<Void> task = new FutureTask<Void>(work);
+        FutureTask<Void> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                ThreadManager threadManager = WebloggerFactory.getWeblogger().getThreadManager();
+                threadManager.executeInBackground(ThreadManager.IMAGE_POOL, new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                            // the task keeps what went wrong to itself
+                            task.get();
+                            made.incrementAndGet();
+                        } catch (ExecutionException ex) {
+                            failed.incrementAndGet();
+                            log.warn("Error making " + key, ex.getCause());
+                        } catch (InterruptedException ex) {
+                            // can't happen, the task has already run
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            inFlight.remove(key, task);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                inFlight.remove(key, task);
+                rejected.incrementAndGet();
+                log.debug("Too busy to make " + key);
+                return false;
+            } catch (InterruptedException ex) {
+                inFlight.remove(key, task);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        
+        if (!wait) {
+            return true;
+        }
+        
+        try {
+            running.get(timeoutSecs, TimeUnit.SECONDS);
+            return true;
+        } catch (ExecutionException ex) {
+            log.debug("Error making " + key, ex.getCause());
+            return false;
+        } catch (TimeoutException ex) {
+            log.warn("Gave up waiting for " + key + " after " + timeoutSecs + " seconds");
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+}
@@ -0,0 +1,633 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.weblogger.business.runnable.ThreadManager;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+
+
+/**
+ * Sends outgoing mail in the background.
+ *
+ * Mail is put on a bounded queue and a single sender, running on the mail
+ * thread pool once the queue has been started, takes it off in batches, sending each batch over one connection to the mail server.  The
+ * connection is kept open for a while after a batch in case more mail turns
+ * up.  If the queue is full the mail is sent straight away on the caller's
+ * thread, the way it was always done before we had a queue.
+ *
+ * Mail marked as a digest candidate, such as comment notifications, is held
+ * back for up to the digest window and everything which piles up for the
+ * same address in that time is sent as a single mail.
+ *
+ * Mail which can't be sent because of trouble with the mail server is tried
+ * again a few times, with an increasing delay.
+ */
+public class MailDeliveryQueue {
+    
+    private static final Log LOG = LogFactory.getLog(MailDeliveryQueue.class);
+    
+    private static final String TEXT_SEPARATOR =
+            "\n\n--------------------------------------------------------------\n\n";
+    private static final String HTML_SEPARATOR = "\n<hr/>\n";
+    
+    private final MailProvider mailProvider;
+    
+    private final BlockingQueue<OutboundMail> queue;
+    private final int capacity;
+    private final int batchSize;
+    private final long digestWindow;
+    private final int digestMaxMessages;
+    private final long idleTimeout;
+    private final int maxAttempts;
+    private final long retryDelay;
+    
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile Thread sender = null;
+    private volatile boolean running = true;
+    
+    // only touched by the sender thread
+    private final Map<String, OutboundMail> digests = new LinkedHashMap<String, OutboundMail>();
+    private final List<OutboundMail> retries = new ArrayList<OutboundMail>();
+    private Transport transport = null;
+    private long transportLastUsed = 0;
+    
+    // for metrics
+    private final AtomicLong queued = new AtomicLong(0);
+    private final AtomicLong sentDirect = new AtomicLong(0);
+    private final AtomicLong sent = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong retried = new AtomicLong(0);
+    private final AtomicLong digested = new AtomicLong(0);
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong connections = new AtomicLong(0);
+    private final AtomicLong totalSendMillis = new AtomicLong(0);
+    private final AtomicLong totalLatencyMillis = new AtomicLong(0);
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private volatile long maxSendMillis = 0;
+    private volatile long maxLatencyMillis = 0;
+    private volatile Date lastFailureTime = null;
+    private volatile String lastFailure = null;
+    
+    
+    /**
+     * Create a queue for the given provider, configured from the mail.queue.*
+     * and mail.digest.* properties.
+     */
+    public MailDeliveryQueue(MailProvider mailProvider) {
+        this(mailProvider,
+                WebloggerConfig.getIntProperty("mail.queue.size", 1000),
+                WebloggerConfig.getIntProperty("mail.queue.batchSize", 50),
+                WebloggerConfig.getIntProperty("mail.queue.idleTimeout", 30) * (long) RollerConstants.SEC_IN_MS,
+                WebloggerConfig.getIntProperty("mail.queue.maxAttempts", 3),
+                WebloggerConfig.getIntProperty("mail.queue.retryDelay", 60) * (long) RollerConstants.SEC_IN_MS,
+                WebloggerConfig.getIntProperty("mail.digest.window", 60) * (long) RollerConstants.SEC_IN_MS,
+                WebloggerConfig.getIntProperty("mail.digest.maxMessages", 20));
+    }
+    
+    
+    MailDeliveryQueue(MailProvider mailProvider, int capacity, int batchSize,
+            long idleTimeout, int maxAttempts, long retryDelay,
+            long digestWindow, int digestMaxMessages) {
+        
+        this.mailProvider = mailProvider;
+        this.capacity = Math.max(1, capacity);
+        this.queue = new LinkedBlockingQueue<OutboundMail>(this.capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.idleTimeout = Math.max(0, idleTimeout);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelay = Math.max(0, retryDelay);
+        this.digestWindow = Math.max(0, digestWindow);
+        this.digestMaxMessages = Math.max(1, digestMaxMessages);
+    }
+    
+    
+    /**
+     * Start sending queued mail on the mail thread pool.  Mail queued before
+     * this is sent once we are started.
+     */
+    public void start(final ThreadManager threadManager) {
+        start(new Executor() {
+            public void execute(Runnable command) {
+                try {
+                    threadManager.executeInBackground(ThreadManager.MAIL_POOL, command);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            }
+        });
+    }
+    
+    
+    void start(Executor executor) {
+        if (started.compareAndSet(false, true)) {
+            try {
+                executor.execute(new Sender());
+            } catch (RejectedExecutionException e) {
+                // mail will go out directly instead
+                LOG.error("Unable to start mail sender, mail will not be queued", e);
+                running = false;
+                stopped.countDown();
+            }
+        }
+    }
+    
+    
+    /**
+     * Queue a mail for sending.  If the queue is full, or has been shut down,
+     * the mail is sent right away instead.
+     *
+     * @throws MessagingException if the mail had to be sent right away and
+     *         that failed.  Failures sending queued mail are only logged.
+     */
+    public void send(OutboundMail mail) throws MessagingException {
+        
+        if (running && queue.offer(mail)) {
+            queued.incrementAndGet();
+            return;
+        }
+        
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Mail queue is full, sending directly: " + mail.getSubject());
+        }
+        sentDirect.incrementAndGet();
+        
+        Transport direct = mailProvider.getTransport();
+        try {
+            sendMessage(direct, mail);
+        } finally {
+            direct.close();
+        }
+    }
+    
+    
+    /**
+     * Take queued mail and send it, until we are shut down.
+     */
+    private class Sender implements Runnable {
+        public void run() {
+            
+            sender = Thread.currentThread();
+            try {
+                sendUntilStopped();
+            } finally {
+                // don't leave our interrupt behind on a pooled thread
+                sender = null;
+                Thread.interrupted();
+                stopped.countDown();
+            }
+        }
+        
+        private void sendUntilStopped() {
+            
+            List<OutboundMail> incoming = new ArrayList<OutboundMail>();
+            List<OutboundMail> batch = new ArrayList<OutboundMail>();
+            
+            while (running) {
+                try {
+                    OutboundMail first = queue.poll(getWaitMillis(), TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        incoming.add(first);
+                        queue.drainTo(incoming, batchSize - 1);
+                    }
+                    
+                    for (OutboundMail mail : incoming) {
+                        if (mail.isDigest() && digestWindow > 0) {
+                            addToDigests(mail);
+                        } else {
+                            batch.add(mail);
+                        }
+                    }
+                    collectDue(batch, System.currentTimeMillis());
+                    
+                    if (!batch.isEmpty()) {
+                        deliver(batch);
+                    } else if (transport != null
+                            && System.currentTimeMillis() - transportLastUsed >= idleTimeout) {
+                        closeTransport();
+                    }
+                    
+                } catch (InterruptedException e) {
+                    // we are being shut down
+                    break;
+                } catch (Exception e) {
+                    // never let the sender die
+                    LOG.error("Unexpected error in mail sender", e);
+                } finally {
+                    incoming.clear();
+                    batch.clear();
+                }
+            }
+            
+            // send whatever is left, just the once
+            try {
+                queue.drainTo(incoming);
+                batch.addAll(incoming);
+                collectDue(batch, Long.MAX_VALUE);
+                if (!batch.isEmpty()) {
+                    LOG.info("Sending " + batch.size() + " queued mails before shutting down");
+                    for (OutboundMail mail : batch) {
+                        mail.attempts = maxAttempts;
+                    }
+                    deliver(batch);
+                }
+            } finally {
+                closeTransport();
+            }
+        }
+    }
+    
+    
+    /**
+     * How long until something needs doing, if nothing is queued meanwhile.
+     */
+    private long getWaitMillis() {
+        
+        long next = Long.MAX_VALUE;
+        for (OutboundMail mail : digests.values()) {
+            next = Math.min(next, mail.due);
+        }
+        for (OutboundMail mail : retries) {
+            next = Math.min(next, mail.due);
+        }
+        if (transport != null) {
+            next = Math.min(next, transportLastUsed + idleTimeout);
+        }
+        
+        if (next == Long.MAX_VALUE) {
+            return RollerConstants.HOUR_IN_MS;
+        }
+        return Math.max(1, next - System.currentTimeMillis());
+    }
+    
+    
+    /**
+     * Split a digest candidate by recipient and add it to the pending digest
+     * for each of them.
+     */
+    private void addToDigests(OutboundMail mail) {
+        
+        for (InternetAddress recipient : mail.getAllRecipients()) {
+            String key = recipient.getAddress().toLowerCase() + "\n"
+                    + mail.from + "\n" + mail.mimeType;
+            
+            OutboundMail digest = digests.get(key);
+            if (digest == null) {
+                digest = new OutboundMail(mail.from, new InternetAddress[] {recipient},
+                        null, null, mail.subjects.get(0), mail.contents.get(0), mail.mimeType, true);
+                digest.queued = mail.queued;
+                digest.due = mail.queued + digestWindow;
+                digests.put(key, digest);
+            } else {
+                digest.subjects.add(mail.subjects.get(0));
+                digest.contents.add(mail.contents.get(0));
+                digested.incrementAndGet();
+            }
+            
+            if (digest.contents.size() >= digestMaxMessages) {
+                digest.due = 0;
+            }
+        }
+        pending.set(digests.size() + retries.size());
+    }
+    
+    
+    /**
+     * Move digests and retries which are due by the given time into the batch.
+     */
+    private void collectDue(List<OutboundMail> batch, long time) {
+        
+        for (Iterator<OutboundMail> it = digests.values().iterator(); it.hasNext();) {
+            OutboundMail digest = it.next();
+            if (digest.due <= time) {
+                batch.add(digest);
+                it.remove();
+            }
+        }
+        for (Iterator<OutboundMail> it = retries.iterator(); it.hasNext();) {
+            OutboundMail retry = it.next();
+            if (retry.due <= time) {
+                batch.add(retry);
+                it.remove();
+            }
+        }
+        pending.set(digests.size() + retries.size());
+    }
+    
+    
+    /**
+     * Send a batch of mail over the current connection.
+     */
+    private void deliver(List<OutboundMail> batch) {
+        
+        batches.incrementAndGet();
+        for (OutboundMail mail : batch) {
+            long start = System.currentTimeMillis();
+            try {
+                if (transport == null || !transport.isConnected()) {
+                    closeTransport();
+                    transport = mailProvider.getTransport();
+                    connections.incrementAndGet();
+                }
+                sendMessage(transport, mail);
+                
+                long end = System.currentTimeMillis();
+                transportLastUsed = end;
+                sent.incrementAndGet();
+                
+                long sendMillis = end - start;
+                totalSendMillis.addAndGet(sendMillis);
+                if (sendMillis > maxSendMillis) {
+                    maxSendMillis = sendMillis;
+                }
+                long latencyMillis = end - mail.queued;
+                totalLatencyMillis.addAndGet(latencyMillis);
+                if (latencyMillis > maxLatencyMillis) {
+                    maxLatencyMillis = latencyMillis;
+                }
+                
+            } catch (SendFailedException e) {
+                // bad addresses, trying again won't help
+                failed(mail, e);
+                
+            } catch (MessagingException e) {
+                // probably the connection, so start over with a fresh one
+                closeTransport();
+                mail.attempts++;
+                if (mail.attempts >= maxAttempts) {
+                    failed(mail, e);
+                } else {
+                    long delay = retryDelay << (mail.attempts - 1);
+                    LOG.warn("Error sending mail \"" + mail.getSubject() + "\", will try again in "
+                            + (delay / RollerConstants.SEC_IN_MS) + " seconds: " + e.getMessage());
+                    retried.incrementAndGet();
+                    mail.due = System.currentTimeMillis() + delay;
+                    retries.add(mail);
+                }
+            }
+        }
+        pending.set(digests.size() + retries.size());
+    }
+    
+    
+    private void failed(OutboundMail mail, MessagingException e) {
+        LOG.error("Unable to send mail \"" + mail.getSubject() + "\"", e);
+        failed.incrementAndGet();
+        lastFailureTime = new Date();
+        lastFailure = e.getMessage();
+    }
+    
+    
+    private void closeTransport() {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                LOG.debug("Error closing mail transport", e);
+            }
+            transport = null;
+        }
+    }
+    
+    
+    /**
+     * Send a mail over the given transport, trying to reach as many of the
+     * recipients as possible.
+     *
+     * @throws SendFailedException if some of the recipients couldn't be reached.
+     */
+    private void sendMessage(Transport transport, OutboundMail mail) throws MessagingException {
+        
+        MimeMessage message = mail.toMimeMessage(mailProvider.getSession());
+        
+        // First collect all the addresses together.
+        Address[] remainingAddresses = message.getAllRecipients();
+        int nAddresses;
+        boolean bFailedToSome = false;
+        
+        SendFailedException sendex = new SendFailedException("Unable to send message to some recipients");
+        
+        // Try to send while there remain some potentially good addresses
+        do {
+            // Avoid a loop if we are stuck
+            nAddresses = remainingAddresses.length;
+            
+            try {
+                // Send to the list of remaining addresses, ignoring the addresses attached to the message
+                transport.sendMessage(message, remainingAddresses);
+            } catch(SendFailedException ex) {
+                bFailedToSome=true;
+                sendex.setNextException(ex);
+                
+                // Extract the remaining potentially good addresses
+                remainingAddresses=ex.getValidUnsentAddresses();
+            }
+        } while (remainingAddresses!=null && remainingAddresses.length>0
+                && remainingAddresses.length!=nAddresses);
+        
+        if (bFailedToSome) {
+            throw sendex;
+        }
+    }
+    
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        long sentCount = sent.get();
+        stats.put("queueSize", queue.size());
+        stats.put("queueCapacity", capacity);
+        stats.put("pending", pending.get());
+        stats.put("queued", queued.get());
+        stats.put("sentDirect", sentDirect.get());
+        stats.put("sent", sentCount);
+        stats.put("failed", failed.get());
+        stats.put("retried", retried.get());
+        stats.put("digested", digested.get());
+        stats.put("batches", batches.get());
+        stats.put("connections", connections.get());
+        stats.put("avgSendMillis", (sentCount > 0) ? totalSendMillis.get() / sentCount : 0);
+        stats.put("maxSendMillis", maxSendMillis);
+        stats.put("avgLatencyMillis", (sentCount > 0) ? totalLatencyMillis.get() / sentCount : 0);
+        stats.put("maxLatencyMillis", maxLatencyMillis);
+        stats.put("lastFailureTime", lastFailureTime);
+        stats.put("lastFailure", lastFailure);
+        return stats;
+    }
+    
+    
+    /**
+     * Stop the sender, after it has had a go at sending what is left
+     * including any digests which aren't due yet.
+     */
+    public void shutdown() {
+        running = false;
+        LOG.info("stopping mail sender");
+        
+        if (started.compareAndSet(false, true)) {
+            // never started, so send what is left ourselves
+            new Sender().run();
+            return;
+        }
+        
+        Thread current = sender;
+        if (current != null) {
+            current.interrupt();
+        }
+        try {
+            stopped.await(RollerConstants.GRACEFUL_SHUTDOWN_WAIT_IN_MILLISECONDS,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            LOG.debug("Interrupted waiting for mail sender", e);
+        }
+    }
+    
+    
+    /**
+     * A mail waiting to be sent, or a digest of several.
+     */
+    public static final class OutboundMail {
+        
+        private final InternetAddress from;
+        private final InternetAddress[] to;
+        private final InternetAddress[] cc;
+        private final InternetAddress[] bcc;
+        private final String mimeType;
+        private final boolean digest;
+        
+        // more than one of each if this is a digest
+        private final List<String> subjects = new ArrayList<String>(1);
+        private final List<String> contents = new ArrayList<String>(1);
+        
+        private long queued = System.currentTimeMillis();
+        private long due = 0;
+        private int attempts = 0;
+        
+        
+        /**
+         * @param from sender, may be null to leave it to the mail session.
+         * @param digest true if this may be combined with other mail to the
+         *        same recipients into a digest.
+         */
+        public OutboundMail(InternetAddress from, InternetAddress[] to,
+                InternetAddress[] cc, InternetAddress[] bcc, String subject,
+                String content, String mimeType, boolean digest) {
+            this.from = from;
+            this.to = to;
+            this.cc = cc;
+            this.bcc = bcc;
+            this.subjects.add((subject == null) ? "(no subject)" : subject);
+            this.contents.add(content);
+            this.mimeType = mimeType;
+            this.digest = digest;
+        }
+        
+        
+        public boolean isDigest() {
+            return digest;
+        }
+        
+        
+        public String getSubject() {
+            if (subjects.size() == 1) {
+                return subjects.get(0);
+            }
+            return subjects.get(0) + " (+" + (subjects.size() - 1) + ")";
+        }
+        
+        
+        public String getContent() {
+            if (contents.size() == 1) {
+                return contents.get(0);
+            }
+            String separator = (mimeType != null && mimeType.startsWith("text/html"))
+                    ? HTML_SEPARATOR : TEXT_SEPARATOR;
+            StringBuilder content = new StringBuilder();
+            for (String part : contents) {
+                if (content.length() > 0) {
+                    content.append(separator);
+                }
+                content.append(part);
+            }
+            return content.toString();
+        }
+        
+        
+        List<InternetAddress> getAllRecipients() {
+            List<InternetAddress> recipients = new ArrayList<InternetAddress>();
+            for (InternetAddress[] addresses : new InternetAddress[][] {to, cc, bcc}) {
+                if (addresses != null) {
+                    for (InternetAddress address : addresses) {
+                        recipients.add(address);
+                    }
+                }
+            }
+            return recipients;
+        }
+        
+        
+        MimeMessage toMimeMessage(Session session) throws MessagingException {
+            MimeMessage message = new MimeMessage(session);
+            if (from != null) {
+                message.setFrom(from);
+            }
+            if (to != null) {
+                message.setRecipients(Message.RecipientType.TO, to);
+            }
+            if (cc != null) {
+                message.setRecipients(Message.RecipientType.CC, cc);
+            }
+            if (bcc != null) {
+                message.setRecipients(Message.RecipientType.BCC, bcc);
+            }
+            message.setSubject(getSubject(), "UTF-8");
+            message.setContent(getContent(), mimeType);
+            message.setSentDate(new Date(queued));
+            return message;
+        }
+    }
+    
+}
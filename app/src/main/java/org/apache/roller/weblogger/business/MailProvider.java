@@ -32,7 +32,8 @@ import org.apache.roller.weblogger.config.WebloggerConfig;
 
 
 /**
- * Encapsulates Roller mail configuration, returns mail sessions.
+ * Encapsulates Roller mail configuration, returns mail sessions and the
+ * queue outgoing mail is sent through.
  */
 public class MailProvider {
     
@@ -48,6 +49,8 @@ public class MailProvider {
     private int    mailPort = -1;
     private String mailUsername = null;
     private String mailPassword = null;
+    
+    private MailDeliveryQueue deliveryQueue = null;
 
     
     public MailProvider() throws StartupException {
@@ -99,6 +102,23 @@ public class MailProvider {
             throw new StartupException("ERROR connecting to mail server", e);
         }
         
+        deliveryQueue = new MailDeliveryQueue(this);
+    }
+    
+    
+    /**
+     * Provider for an unauthenticated mail server, used for testing.  The
+     * caller sets up the delivery queue, if it needs one.
+     */
+    MailProvider(String hostname, int port) {
+        type = ConfigurationType.MAIL_PROPERTIES;
+        mailHostname = hostname;
+        mailPort = port;
+        
+        Properties props = new Properties();
+        props.put("mail.smtp.host", mailHostname);
+        props.put("mail.smtp.port", ""+mailPort);
+        session = Session.getInstance(props, null);
     }
     
     
@@ -136,4 +156,22 @@ public class MailProvider {
         return transport;
     }
     
+    
+    /**
+     * Get the queue which outgoing mail is sent through.
+     */
+    public MailDeliveryQueue getDeliveryQueue() {
+        return deliveryQueue;
+    }
+    
+    
+    /**
+     * Send whatever mail is still queued and stop the delivery queue.
+     */
+    public void shutdown() {
+        if (deliveryQueue != null) {
+            deliveryQueue.shutdown();
+        }
+    }
+    
 }
@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+
+/**
+ * Index of when a weblog's published entries were published, by category and
+ * locale, so the calendar and archive navigation can tell which days and
+ * months have entries without loading any.
+ *
+ * For each category and locale there is a count of entries per day of each
+ * month, the days with entries are answered as a bitmap with bit n set for
+ * day n of the month.  Days and months are those of the weblog's time zone
+ * when the index was built.  Each entry's last known posting is kept too, so
+ * an entry which changes can be taken out of the counts it was in.
+ *
+ * Categories are kept by id, so renaming one doesn't affect the index.  As
+ * in the entry queries, a locale matches all locales it is a prefix of.
+ */
+public class PostingDays {
+    
+    private final TimeZone timeZone;
+    
+    // used for all date calculations, guarded by this
+    private final Calendar calendar;
+    
+    private final Map<String, Posting> postings = new HashMap<String, Posting>();
+    
+    private final TreeSet<Posting> byPubTime = new TreeSet<Posting>();
+    
+    // category id + locale -> month number -> entries per day, [0] is the month total
+    private final Map<String, TreeMap<Integer, int[]>> dayCounts =
+            new HashMap<String, TreeMap<Integer, int[]>>();
+    
+    
+    public PostingDays(TimeZone timeZone) {
+        this.timeZone = timeZone;
+        this.calendar = Calendar.getInstance(timeZone);
+    }
+    
+    
+    /**
+     * The time zone days and months are counted in.
+     */
+    public TimeZone getTimeZone() {
+        return timeZone;
+    }
+    
+    
+    /**
+     * Add a published entry, or move it if it is already in the index.
+     */
+    public synchronized void add(String entryId, Date pubTime, String categoryId,
+            String locale) {
+        
+        remove(entryId);
+        
+        Posting posting = new Posting(entryId, pubTime.getTime(), categoryId,
+                (locale != null) ? locale : "");
+        postings.put(entryId, posting);
+        byPubTime.add(posting);
+        
+        String key = posting.getKey();
+        TreeMap<Integer, int[]> months = dayCounts.get(key);
+        if (months == null) {
+            months = new TreeMap<Integer, int[]>();
+            dayCounts.put(key, months);
+        }
+        
+        calendar.setTimeInMillis(posting.pubTime);
+        int month = getMonthNumber(calendar);
+        int[] days = months.get(month);
+        if (days == null) {
+            days = new int[32];
+            months.put(month, days);
+        }
+        days[0]++;
+        days[calendar.get(Calendar.DAY_OF_MONTH)]++;
+    }
+    
+    
+    /**
+     * Remove an entry which is no longer published, if it is in the index.
+     */
+    public synchronized void remove(String entryId) {
+        
+        Posting posting = postings.remove(entryId);
+        if (posting == null) {
+            return;
+        }
+        byPubTime.remove(posting);
+        
+        String key = posting.getKey();
+        TreeMap<Integer, int[]> months = dayCounts.get(key);
+        calendar.setTimeInMillis(posting.pubTime);
+        int month = getMonthNumber(calendar);
+        int[] days = months.get(month);
+        days[calendar.get(Calendar.DAY_OF_MONTH)]--;
+        if (--days[0] == 0) {
+            // only months with entries are kept, for finding the nearest one
+            months.remove(month);
+            if (months.isEmpty()) {
+                dayCounts.remove(key);
+            }
+        }
+    }
+    
+    
+    /**
+     * Get the days of the month containing the given date which have entries.
+     *
+     * @param categoryId category, or null for all.
+     * @param locale locale prefix, or null for all.
+     * @return bitmap with bit n set if there are entries on day n.
+     */
+    public synchronized int getDays(Date month, String categoryId, String locale) {
+        
+        calendar.setTime(month);
+        int monthNumber = getMonthNumber(calendar);
+        
+        int bitmap = 0;
+        for (Map.Entry<String, TreeMap<Integer, int[]>> counts : dayCounts.entrySet()) {
+            if (!matches(counts.getKey(), categoryId, locale)) {
+                continue;
+            }
+            int[] days = counts.getValue().get(monthNumber);
+            if (days == null) {
+                continue;
+            }
+            for (int day = 1; day < days.length; day++) {
+                if (days[day] > 0) {
+                    bitmap |= 1 << day;
+                }
+            }
+        }
+        return bitmap;
+    }
+    
+    
+    /**
+     * Get the start of the nearest month before or after the one containing
+     * the given date which has entries.
+     *
+     * @return start of the month, or null if there is none.
+     */
+    public synchronized Date getMonth(Date month, String categoryId, String locale,
+            boolean next) {
+        
+        calendar.setTime(month);
+        int monthNumber = getMonthNumber(calendar);
+        
+        Integer nearest = null;
+        for (Map.Entry<String, TreeMap<Integer, int[]>> counts : dayCounts.entrySet()) {
+            if (!matches(counts.getKey(), categoryId, locale)) {
+                continue;
+            }
+            Integer found = next ? counts.getValue().higherKey(monthNumber)
+                    : counts.getValue().lowerKey(monthNumber);
+            if (found != null && (nearest == null
+                    || (next ? found < nearest : found > nearest))) {
+                nearest = found;
+            }
+        }
+        
+        if (nearest == null) {
+            return null;
+        }
+        calendar.clear();
+        calendar.set(nearest / 12, nearest % 12, 1);
+        return calendar.getTime();
+    }
+    
+    
+    /**
+     * Get the ids of the entries published closest after, or before, the
+     * given time, nearest first.
+     *
+     * @param pubTime time to start at, or null to start at the latest entry
+     *        when looking backwards.
+     */
+    public synchronized List<String> getEntryIds(Date pubTime, String categoryId,
+            String locale, int maxEntries, boolean next) {
+        
+        List<String> ids = new ArrayList<String>();
+        if (pubTime == null && next) {
+            return ids;
+        }
+        
+        NavigableSet<Posting> candidates;
+        if (next) {
+            candidates = byPubTime.tailSet(new Posting("", pubTime.getTime() + 1, "", ""), true);
+        } else if (pubTime != null) {
+            candidates = byPubTime.headSet(new Posting("", pubTime.getTime(), "", ""), false)
+                    .descendingSet();
+        } else {
+            candidates = byPubTime.descendingSet();
+        }
+        
+        for (Iterator<Posting> it = candidates.iterator(); it.hasNext() && ids.size() < maxEntries;) {
+            Posting posting = it.next();
+            if (matches(posting.getKey(), categoryId, locale)) {
+                ids.add(posting.entryId);
+            }
+        }
+        return ids;
+    }
+    
+    
+    /**
+     * Number of entries in the index.
+     */
+    public synchronized int size() {
+        return postings.size();
+    }
+    
+    
+    private static int getMonthNumber(Calendar cal) {
+        return cal.get(Calendar.YEAR) * 12 + cal.get(Calendar.MONTH);
+    }
+    
+    
+    private static boolean matches(String key, String categoryId, String locale) {
+        int separator = key.indexOf('|');
+        return (categoryId == null || key.regionMatches(0, categoryId, 0, separator)
+                && categoryId.length() == separator)
+                && (locale == null || key.startsWith(locale, separator + 1));
+    }
+    
+    
+    /**
+     * When an entry was published, where.  Ordered by time and then id, an
+     * empty id comes before all others at the same time.
+     */
+    private static final class Posting implements Comparable<Posting> {
+        
+        private final String entryId;
+        private final long pubTime;
+        private final String categoryId;
+        private final String locale;
+        
+        Posting(String entryId, long pubTime, String categoryId, String locale) {
+            this.entryId = entryId;
+            this.pubTime = pubTime;
+            this.categoryId = categoryId;
+            this.locale = locale;
+        }
+        
+        String getKey() {
+            return categoryId + '|' + locale;
+        }
+        
+        public int compareTo(Posting other) {
+            if (pubTime != other.pubTime) {
+                return (pubTime < other.pubTime) ? -1 : 1;
+            }
+            return entryId.compareTo(other.entryId);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Posting && compareTo((Posting) other) == 0;
+        }
+        
+        @Override
+        public int hashCode() {
+            return entryId.hashCode();
+        }
+    }
+    
+}
@@ -60,6 +60,13 @@ public interface PropertiesManager {
     RuntimeConfigProperty getProperty(String name) throws WebloggerException;
     
     
+    /**
+     * Retrieve the value of a single property by name, without going to the
+     * database.  Returns null if there is no such property.
+     */
+    String getPropertyValue(String name);
+    
+    
     /**
      * Retrieve a list of all properties
      */
@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.weblogger.business.runnable.ContinuousWorkerThread;
+import org.apache.roller.weblogger.business.runnable.TagAggregateProcessingJob;
+import org.apache.roller.weblogger.business.runnable.WorkerThread;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+
+
+/**
+ * Queue's up changes to tag aggregate counts so that they can be recorded to
+ * the db in an asynchronous manner at given intervals, rather than as part of
+ * saving each entry.  Only used when tags.aggregates.async is enabled.
+ *
+ * Changes are summed per weblog and tag as they come in, so a tag which is
+ * used many times between two runs costs a single update.  Changes which are
+ * still queued when the server stops are lost, the RebuildTagAggregatesTask
+ * puts the counts right again.
+ */
+public final class TagAggregateQueue {
+    
+    private static Log log = LogFactory.getLog(TagAggregateQueue.class);
+    
+    private static TagAggregateQueue instance = null;
+    
+    private final boolean enabled;
+    private WorkerThread worker = null;
+    
+    // weblog id -> tag name -> change in count
+    private Map<String, Map<String, Integer>> deltas =
+            new HashMap<String, Map<String, Integer>>();
+    
+    // for metrics
+    private final AtomicLong flushes = new AtomicLong(0);
+    private final AtomicLong changesFlushed = new AtomicLong(0);
+    private volatile long lastFlushMillis = 0;
+    private volatile Date lastFlushTime = null;
+    
+    
+    static {
+        instance = new TagAggregateQueue();
+    }
+    
+    
+    // non-instantiable because we are a singleton
+    private TagAggregateQueue() {
+        enabled = WebloggerConfig.getBooleanProperty("tags.aggregates.async");
+        if (!enabled) {
+            return;
+        }
+        
+        int sleepTime = RollerConstants.MIN_IN_MS;
+        String sleep = WebloggerConfig.getProperty("tags.aggregates.queue.sleepTime", "60");
+        
+        try {
+            // convert input in seconds to ms
+            sleepTime = Integer.parseInt(sleep) * RollerConstants.SEC_IN_MS;
+        } catch(NumberFormatException nfe) {
+            log.warn("Invalid sleep time ["+sleep+"], using default");
+        }
+        
+        // start up a worker to process the changes at intervals
+        TagAggregateProcessingJob job = new TagAggregateProcessingJob();
+        worker = new ContinuousWorkerThread("TagAggregateQueueProcessor", job, sleepTime);
+        worker.start();
+    }
+    
+    
+    public static TagAggregateQueue getInstance() {
+        return instance;
+    }
+    
+    
+    /**
+     * Are tag aggregates maintained in the background?
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    
+    /**
+     * Queue changes to the tag counts of a weblog.
+     *
+     * @param weblogId the weblog the tags were changed in.
+     * @param tagDeltas change in count keyed by tag name.
+     */
+    public synchronized void queueDeltas(String weblogId, Map<String, Integer> tagDeltas) {
+        
+        Map<String, Integer> queued = this.deltas.get(weblogId);
+        if (queued == null) {
+            queued = new HashMap<String, Integer>();
+            this.deltas.put(weblogId, queued);
+        }
+        
+        for (Map.Entry<String, Integer> delta : tagDeltas.entrySet()) {
+            Integer previous = queued.get(delta.getKey());
+            int amount = (previous == null) ? delta.getValue() : previous + delta.getValue();
+            if (amount == 0) {
+                queued.remove(delta.getKey());
+            } else {
+                queued.put(delta.getKey(), amount);
+            }
+        }
+        
+        if (queued.isEmpty()) {
+            this.deltas.remove(weblogId);
+        }
+    }
+    
+    
+    /**
+     * Take the queued changes, leaving the queue empty.
+     *
+     * @return change in count keyed by tag name, keyed by weblog id.
+     */
+    public synchronized Map<String, Map<String, Integer>> drainDeltas() {
+        Map<String, Map<String, Integer>> drained = this.deltas;
+        this.deltas = new HashMap<String, Map<String, Integer>>();
+        return drained;
+    }
+    
+    
+    /**
+     * Put back changes which could not be recorded, so they are tried again.
+     */
+    public synchronized void requeueDeltas(Map<String, Map<String, Integer>> failed) {
+        for (Map.Entry<String, Map<String, Integer>> weblogDeltas : failed.entrySet()) {
+            queueDeltas(weblogDeltas.getKey(), weblogDeltas.getValue());
+        }
+    }
+    
+    
+    /**
+     * Copy of the queued changes, leaving them on the queue.
+     *
+     * @return change in count keyed by tag name, keyed by weblog id.
+     */
+    public synchronized Map<String, Map<String, Integer>> getQueuedDeltas() {
+        Map<String, Map<String, Integer>> queued = new HashMap<String, Map<String, Integer>>();
+        for (Map.Entry<String, Map<String, Integer>> weblogDeltas : deltas.entrySet()) {
+            queued.put(weblogDeltas.getKey(), new HashMap<String, Integer>(weblogDeltas.getValue()));
+        }
+        return queued;
+    }
+    
+    
+    /**
+     * Copy of the queued changes to the tag counts of one weblog.
+     *
+     * @return change in count keyed by tag name, empty if there are none.
+     */
+    public synchronized Map<String, Integer> getQueuedDeltas(String weblogId) {
+        Map<String, Integer> queued = deltas.get(weblogId);
+        return (queued == null)
+                ? new HashMap<String, Integer>() : new HashMap<String, Integer>(queued);
+    }
+    
+    
+    /**
+     * Take back changes which have been accounted for some other way, such
+     * as by rebuilding the counts.  Changes which have been drained in the
+     * meantime are undone the next time the queue is processed.
+     */
+    public synchronized void cancelDeltas(Map<String, Map<String, Integer>> accounted) {
+        for (Map.Entry<String, Map<String, Integer>> weblogDeltas : accounted.entrySet()) {
+            Map<String, Integer> negated = new HashMap<String, Integer>();
+            for (Map.Entry<String, Integer> delta : weblogDeltas.getValue().entrySet()) {
+                negated.put(delta.getKey(), -delta.getValue());
+            }
+            queueDeltas(weblogDeltas.getKey(), negated);
+        }
+    }
+    
+    
+    /**
+     * Record how long it took to write a batch of changes to the db.
+     */
+    public void recordFlush(long changes, long millis) {
+        flushes.incrementAndGet();
+        changesFlushed.addAndGet(changes);
+        lastFlushMillis = millis;
+        lastFlushTime = new Date();
+    }
+    
+    
+    public synchronized Map<String, Object> getStats() {
+        
+        int queued = 0;
+        for (Map<String, Integer> weblogDeltas : deltas.values()) {
+            queued += weblogDeltas.size();
+        }
+        
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("enabled", enabled);
+        stats.put("queuedChanges", queued);
+        stats.put("queuedWeblogs", deltas.size());
+        stats.put("flushes", flushes.get());
+        stats.put("changesFlushed", changesFlushed.get());
+        stats.put("lastFlushMillis", lastFlushMillis);
+        stats.put("lastFlushTime", lastFlushTime);
+        return stats;
+    }
+    
+    
+    /**
+     * clean up.
+     */
+    public void shutdown() {
+        
+        if(this.worker != null) {
+            log.info("stopping worker "+this.worker.getName());
+            worker.interrupt();
+            try {
+                worker.join(RollerConstants.GRACEFUL_SHUTDOWN_WAIT_IN_MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.debug(e.getMessage(), e);
+            }
+        }
+        
+    }
+    
+}
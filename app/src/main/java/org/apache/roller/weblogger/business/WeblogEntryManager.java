@@ -31,6 +31,7 @@ import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment.ApprovalStatus;
 import org.apache.roller.weblogger.pojos.WeblogEntrySearchCriteria;
+import org.apache.roller.weblogger.pojos.WeblogEntrySummary;
 import org.apache.roller.weblogger.pojos.WeblogHitCount;
 
 
@@ -70,6 +71,17 @@ public interface WeblogEntryManager {
     List<WeblogEntry> getWeblogEntries(WeblogEntrySearchCriteria wesc)
             throws WebloggerException;
 
+    /**
+     * Get the listing fields of WeblogEntries, for pages which only show their
+     * titles, dates and links.  Works like getWeblogEntries() but doesn't
+     * load entry text, and is best paged with WeblogEntrySearchCriteria.setAfter().
+     * @param wesc WeblogEntrySearchCriteria object listing desired search parameters
+     * @return List of WeblogEntrySummary objects in order specified by search criteria
+     * @throws WebloggerException
+     */
+    List<WeblogEntrySummary> getWeblogEntrySummaries(WeblogEntrySearchCriteria wesc)
+            throws WebloggerException;
+
     /**
      * Get Weblog Entries grouped by day.
      * @param wesc WeblogEntrySearchCriteria object listing desired search parameters
@@ -89,6 +101,33 @@ public interface WeblogEntryManager {
      */
     Map<Date, String> getWeblogEntryStringMap(WeblogEntrySearchCriteria wesc)
             throws WebloggerException;
+
+    /**
+     * Get the days of a month on which entries were published.  This is
+     * answered from an index kept in memory, no entries are loaded.
+     * @param weblog  Weblog to look in.
+     * @param month   Any date in the month, in the weblog's time zone.
+     * @param catName Category name or null for all categories.
+     * @param locale  Locale or null for all locales.
+     * @return Bitmap with bit n set if entries were published on day n.
+     * @throws WebloggerException
+     */
+    int getPostingDays(Weblog weblog, Date month, String catName, String locale)
+            throws WebloggerException;
+
+    /**
+     * Get the nearest month before or after a month in which entries were
+     * published, from the same index as getPostingDays().
+     * @param weblog  Weblog to look in.
+     * @param month   Any date in the month to start from.
+     * @param catName Category name or null for all categories.
+     * @param locale  Locale or null for all locales.
+     * @param next    True to look forward, false to look back.
+     * @return Start of the month, or null if there is none.
+     * @throws WebloggerException
+     */
+    Date getPostingMonth(Weblog weblog, Date month, String catName, String locale,
+            boolean next) throws WebloggerException;
     
     /**
      * Get weblog entries ordered by descending number of comments.
@@ -132,6 +171,20 @@ public interface WeblogEntryManager {
      * @return Collection of WeblogEntry objects.
      */
     List<WeblogEntry> getWeblogEntriesPinnedToMain(Integer max) throws WebloggerException;
+    
+    
+    /**
+     * Get a page of published entries in order of id, for walking through
+     * all of them without using offsets.  The weblog and category of each
+     * entry are fetched along with it.
+     * @param weblog Weblog to get entries of, or null for all visible weblogs.
+     * @param afterId Only return entries with an id after this one, or null
+     *        to start at the beginning.
+     * @param max Maximum number to return.
+     * @return List of WeblogEntry objects.
+     */
+    List<WeblogEntry> getPublishedWeblogEntries(Weblog weblog, String afterId, int max)
+            throws WebloggerException;
 
     /**
      * Remove attribute with given name from given WeblogEntryData
@@ -197,6 +250,15 @@ public interface WeblogEntryManager {
      * @return list of comments fitting search criteria
      */
     List<WeblogEntryComment> getComments(CommentSearchCriteria csc) throws WebloggerException;
+    
+    /**
+     * Get the approved comments of a number of entries at once.
+     * @param entries Entries to get the comments of.
+     * @return Comments in order of post time, keyed by entry id.  Entries
+     *         without approved comments are left out.
+     */
+    Map<String, List<WeblogEntryComment>> getApprovedComments(List<WeblogEntry> entries)
+            throws WebloggerException;
 
     /**
      * Deletes comments that match paramters.
@@ -285,7 +347,31 @@ public interface WeblogEntryManager {
      */
     boolean getTagComboExists(List tags, Weblog weblog)
         throws WebloggerException;
-    
+
+    /**
+     * Apply changes to the tag aggregate counts of a number of weblogs, and
+     * to the site-wide counts, at once.
+     *
+     * Counts are changed in the database rather than by a lookup, modify,
+     * save, using one statement for all of the tags changed by the same
+     * amount.  Weblogs which no longer exist are skipped, removing a weblog
+     * applies whatever was still queued for it.
+     *
+     * @param deltas Change in count keyed by tag name, keyed by weblog id.
+     * @throws WebloggerException If there was a problem with the backend.
+     */
+    void updateTagAggregates(Map<String, Map<String, Integer>> deltas)
+        throws WebloggerException;
+
+    /**
+     * Throw away all tag aggregate counts and count them again from the tags
+     * of published entries.  Changes still queued in the TagAggregateQueue
+     * are part of the new counts, so they are cancelled once it is committed.
+     *
+     * @throws WebloggerException If there was a problem with the backend.
+     */
+    void rebuildTagAggregates() throws WebloggerException;
+
     /**
      * Get a HitCountData by id.
      *
@@ -358,6 +444,20 @@ public interface WeblogEntryManager {
         throws WebloggerException;
     
     
+    /**
+     * Increment the hit counts for a number of weblogs at once.
+     *
+     * Unlike incrementHitCount() the counts are incremented in the database
+     * rather than by a lookup, modify, save, using one statement for all of
+     * the weblogs which are incremented by the same amount.
+     *
+     * @param hits How much to increment by, keyed by weblog handle.
+     * @throws WebloggerException If there was a problem with the backend.
+     */
+    void incrementHitCounts(Map<String, Long> hits)
+        throws WebloggerException;
+    
+    
     /**
      * Reset the hit counts for all weblogs.  This sets the counts back to 0.
      *
@@ -30,6 +30,7 @@ import org.apache.roller.weblogger.business.pings.AutoPingManager;
 import org.apache.roller.weblogger.business.pings.PingQueueManager;
 import org.apache.roller.weblogger.business.pings.PingTargetManager;
 import org.apache.roller.weblogger.business.search.IndexManager;
+import org.apache.roller.weblogger.business.startup.WebloggerStartup;
 import org.apache.roller.weblogger.business.runnable.ThreadManager;
 import org.apache.roller.weblogger.business.themes.ThemeManager;
 import org.apache.roller.weblogger.config.PingConfig;
@@ -335,6 +336,14 @@ public abstract class WebloggerImpl implements Weblogger {
         getIndexManager().initialize();
         getMediaFileManager().initialize();
         
+        // start working through any comment events left over from last time,
+        // and sending mail
+        CommentEventQueue.getInstance().start(getThreadManager());
+        if (WebloggerStartup.getMailProvider() != null
+                && WebloggerStartup.getMailProvider().getDeliveryQueue() != null) {
+            WebloggerStartup.getMailProvider().getDeliveryQueue().start(getThreadManager());
+        }
+        
         try {
             // Initialize ping systems
             // TODO: this should probably be moving inside ping manager initialize() methods?
@@ -372,6 +381,11 @@ public abstract class WebloggerImpl implements Weblogger {
     public void shutdown() {
         try {
             HitCountQueue.getInstance().shutdown();
+            CommentEventQueue.getInstance().shutdown();
+            TagAggregateQueue.getInstance().shutdown();
+            if (WebloggerStartup.getMailProvider() != null) {
+                WebloggerStartup.getMailProvider().shutdown();
+            }
             if (indexManager != null) {
                 indexManager.shutdown();
             }
@@ -17,11 +17,7 @@
  */
 package org.apache.roller.weblogger.business.jpa;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.awt.Dimension;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -36,7 +32,6 @@ import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 
-import javax.imageio.ImageIO;
 import javax.persistence.NoResultException;
 import javax.persistence.TypedQuery;
 
@@ -46,6 +41,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.FileContentManager;
 import org.apache.roller.weblogger.business.FileIOException;
+import org.apache.roller.weblogger.business.ImageDerivativeService;
 import org.apache.roller.weblogger.business.MediaFileManager;
 import org.apache.roller.weblogger.business.WeblogManager;
 import org.apache.roller.weblogger.business.Weblogger;
@@ -59,6 +55,7 @@ import org.apache.roller.weblogger.pojos.MediaFileTag;
 import org.apache.roller.weblogger.pojos.MediaFileType;
 import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.Weblog;
+import org.apache.roller.weblogger.util.ImageScaler;
 import org.apache.roller.weblogger.util.RollerMessages;
 import org.apache.roller.weblogger.util.Utilities;
 
@@ -227,37 +224,24 @@ public class JPAMediaFileManagerImpl implements MediaFileManager {
                     .getFileContentManager();
             FileContent fc = cmgr.getFileContent(mediaFile.getWeblog(),
                     mediaFile.getId());
-            BufferedImage img;
 
-            img = ImageIO.read(fc.getInputStream());
-
-            // determine and save width and height
-            mediaFile.setWidth(img.getWidth());
-            mediaFile.setHeight(img.getHeight());
+            // determine and save width and height, that only needs the header
+            Dimension size = ImageScaler.readSize(fc.getInputStream());
+            if (size == null) {
+                log.debug("Not an image we can read - " + mediaFile.getId());
+                return;
+            }
+            mediaFile.setWidth(size.width);
+            mediaFile.setHeight(size.height);
             strategy.store(mediaFile);
 
-            int newWidth = mediaFile.getThumbnailWidth();
-            int newHeight = mediaFile.getThumbnailHeight();
-
-            // create thumbnail image
-            Image newImage = img.getScaledInstance(newWidth, newHeight,
-                    Image.SCALE_SMOOTH);
-            BufferedImage tmp = new BufferedImage(newWidth, newHeight,
-                    BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g2 = tmp.createGraphics();
-            g2.drawImage(newImage, 0, 0, newWidth, newHeight, null);
-            g2.dispose();
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(tmp, "png", baos);
-
-            cmgr.saveFileContent(mediaFile.getWeblog(), mediaFile.getId()
-                    + "_sm", new ByteArrayInputStream(baos.toByteArray()));
-
             roller.flush();
             // Refresh associated parent for changes
             strategy.refresh(mediaFile.getDirectory());
 
+            // the thumbnail itself is made in the background
+            ImageDerivativeService.getInstance().scheduleThumbnail(fc);
+
         } catch (Exception e) {
             log.debug("ERROR creating thumbnail", e);
         }
@@ -465,6 +449,8 @@ public class JPAMediaFileManagerImpl implements MediaFileManager {
         // update weblog last modified date. date updated by saveWeblog()
         roller.getWeblogManager().saveWeblog(weblog);
 
+        ImageDerivativeService.getInstance().deleteDerivatives(weblog,
+                mediaFile.getId());
         try {
             cmgr.deleteFile(weblog, mediaFile.getId());
             // Now thumbnail
@@ -822,6 +808,8 @@ public class JPAMediaFileManagerImpl implements MediaFileManager {
                 .getFileContentManager();
         Set<MediaFile> files = dir.getMediaFiles();
         for (MediaFile mf : files) {
+            ImageDerivativeService.getInstance().deleteDerivatives(
+                    dir.getWeblog(), mf.getId());
             try {
                 cmgr.deleteFile(dir.getWeblog(), mf.getId());
                 // Now thumbnail
@@ -18,13 +18,18 @@
 
 package org.apache.roller.weblogger.business.jpa;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.util.cache.CacheManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityManager;
 import javax.persistence.FlushModeType;
@@ -52,11 +57,32 @@ public class JPAPersistenceStrategy {
      */
     private final ThreadLocal<EntityManager> threadLocalEntityManager = new ThreadLocal<EntityManager>();
     
+    /**
+     * Work to be done once the thread's current transaction is committed.
+     */
+    private final ThreadLocal<List<Runnable>> threadLocalAfterCommit = new ThreadLocal<List<Runnable>>();
+    
     /**
      * The EntityManagerFactory for this Roller instance.
      */
     private EntityManagerFactory emf = null;
     
+    /**
+     * The shared cache of the EntityManagerFactory, as managed by the CacheManager.
+     */
+    private JPASharedCache sharedCache = null;
+    
+    /**
+     * Queries defined by getPrecompiledQuery(), names by query string.
+     */
+    private final Map<String, String> precompiledQueries = new ConcurrentHashMap<String, String>();
+    
+    /**
+     * Beyond this many shapes of query getPrecompiledQuery() is no better than
+     * parsing each query again.
+     */
+    private static final int MAX_PRECOMPILED_QUERIES = 500;
+    
             
     /**
      * Construct by finding JPA EntityManagerFactory.
@@ -108,6 +134,12 @@ public class JPAPersistenceStrategy {
                 throw new WebloggerException(pe);
             }
         }
+
+        // let the shared cache be cleared, invalidated and watched along
+        // with all our other caches
+        sharedCache = new JPASharedCache(emf);
+        CacheManager.registerCache(sharedCache);
+        CacheManager.registerHandler(sharedCache);
     }
     /**
      * Refresh changes to the current object.
@@ -130,12 +162,38 @@ public class JPAPersistenceStrategy {
      * @throws org.apache.roller.weblogger.WebloggerException on any error
      */
     public void flush() throws WebloggerException {
+        List<Runnable> afterCommit = threadLocalAfterCommit.get();
+        threadLocalAfterCommit.remove();
         try {
             EntityManager em = getEntityManager(true);
             em.getTransaction().commit();
         } catch (PersistenceException pe) {
             throw new WebloggerException(pe);
         }
+        
+        if (afterCommit != null) {
+            for (Runnable work : afterCommit) {
+                try {
+                    work.run();
+                } catch (RuntimeException e) {
+                    logger.error("error after committing transaction", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Do some work once the current transaction has been committed by flush(),
+     * such as updating in-memory state to match what was saved.  The work is
+     * dropped if the session is released without a successful flush.
+     */
+    public void afterCommit(Runnable work) {
+        List<Runnable> afterCommit = threadLocalAfterCommit.get();
+        if (afterCommit == null) {
+            afterCommit = new ArrayList<Runnable>();
+            threadLocalAfterCommit.set(afterCommit);
+        }
+        afterCommit.add(work);
     }
     
     /**
@@ -159,6 +217,7 @@ public class JPAPersistenceStrategy {
                 }
             }
             threadLocalEntityManager.remove();
+            threadLocalAfterCommit.remove();
         }
     }
     
@@ -221,9 +280,38 @@ public class JPAPersistenceStrategy {
     public Object load(Class clazz, String id)
     throws WebloggerException {
         EntityManager em = getEntityManager(false);
+        sharedCache.recordLookup(clazz, id);
         return em.find(clazz, id);
     }
     
+    /**
+     * Evict an object from the shared cache, so that it is read from the
+     * database when next loaded.
+     * @param clazz the class of object to evict
+     * @param id the id of the object to evict
+     */
+    public void evict(Class clazz, String id) {
+        sharedCache.evict(clazz, id);
+    }
+    
+    /**
+     * Evict all objects of a class from the shared cache.  Bulk updates and
+     * deletes of a cached class should be followed by this, since they
+     * bypass the objects the provider keeps the cache up to date with.
+     * @param clazz the class of objects to evict
+     */
+    public void evict(Class clazz) {
+        sharedCache.evict(clazz);
+    }
+    
+    /**
+     * Return true if the current thread has an active transaction, so what it
+     * reads may include changes which are not committed yet.
+     */
+    public boolean isTransactionActive() {
+        return isTransactionActive(threadLocalEntityManager.get());
+    }
+    
     /**
      * Return true if a transaction is active on the current EntityManager.
      * @param em the persistence manager
@@ -338,6 +426,49 @@ public class JPAPersistenceStrategy {
         return q;
     }
 
+    /**
+     * Create TypedQuery from a queryString which is built at runtime but comes
+     * in a limited number of shapes, like the weblog entry searches.  Each
+     * distinct queryString is defined as a named query the first time it's
+     * seen, so that it is parsed and prepared once instead of on every call.
+     * Won't commit changes to DB first (FlushModeType.COMMIT).
+     * @param queryString the query
+     * @param resultClass return type of query
+     * @throws org.apache.roller.weblogger.WebloggerException on any error
+     */
+    public <T> TypedQuery<T> getPrecompiledQuery(String queryString, Class<T> resultClass)
+            throws WebloggerException {
+        String queryName = getPrecompiledQueryName(queryString);
+        if (queryName == null) {
+            return getDynamicQuery(queryString, resultClass);
+        }
+        return getNamedQuery(queryName, resultClass);
+    }
+
+    /**
+     * Name of the named query defined for a queryString, defining it if
+     * needed, or null if too many have been defined already.
+     */
+    private String getPrecompiledQueryName(String queryString)
+            throws WebloggerException {
+        String queryName = precompiledQueries.get(queryString);
+        if (queryName == null) {
+            if (precompiledQueries.size() >= MAX_PRECOMPILED_QUERIES) {
+                return null;
+            }
+            EntityManager em = getEntityManager(false);
+            synchronized (precompiledQueries) {
+                queryName = precompiledQueries.get(queryString);
+                if (queryName == null) {
+                    queryName = "precompiled." + precompiledQueries.size();
+                    emf.addNamedQuery(queryName, em.createQuery(queryString));
+                    precompiledQueries.put(queryString, queryName);
+                }
+            }
+        }
+        return queryName;
+    }
+
     /**
      * Get named update query with default flush mode (usually FlushModeType.AUTO)
      * FlushModeType.AUTO commits changes to DB prior to running statement
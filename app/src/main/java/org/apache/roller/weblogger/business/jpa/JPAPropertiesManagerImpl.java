@@ -18,9 +18,12 @@
  */
 package org.apache.roller.weblogger.business.jpa;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,6 +31,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.InitializationException;
 import org.apache.roller.weblogger.business.PropertiesManager;
+import org.apache.roller.weblogger.config.WebloggerConfig;
 import org.apache.roller.weblogger.config.WebloggerRuntimeConfig;
 import org.apache.roller.weblogger.config.runtime.ConfigDef;
 import org.apache.roller.weblogger.config.runtime.DisplayGroup;
@@ -41,6 +45,10 @@ import org.apache.roller.weblogger.pojos.RuntimeConfigProperty;
  *
  * Created on May 29, 2006, 2:06 PM
  *
+ * Property values are read from an in-memory snapshot of the whole table,
+ * which is replaced once saved properties have been committed.  Each save also writes a
+ * new token to the version row, other servers in a cluster poll that row
+ * and reload their snapshot when it changes.
  */
 @com.google.inject.Singleton
 public class JPAPropertiesManagerImpl implements PropertiesManager {
@@ -49,8 +57,18 @@ public class JPAPropertiesManagerImpl implements PropertiesManager {
     private static Log log = LogFactory.getLog(
         JPAPropertiesManagerImpl.class);
 
+    // row holding a token which changes every time properties are saved
+    static final String VERSION_PROPERTY = "runtimeConfig.version";
+    
     private final JPAPersistenceStrategy strategy;
     
+    // the current property values
+    private volatile Snapshot snapshot = new Snapshot(null, Collections.<String, String>emptyMap());
+    
+    // how often to check the version row, 0 to never check
+    private final long pollInterval;
+    private final AtomicLong lastPoll = new AtomicLong(0);
+    
     
     /**
      * Creates a new instance of JPAPropertiesManagerImpl
@@ -59,6 +77,8 @@ public class JPAPropertiesManagerImpl implements PropertiesManager {
     protected JPAPropertiesManagerImpl(JPAPersistenceStrategy strategy) {
         log.debug("Instantiating JPA Properties Manager");
         this.strategy = strategy;
+        this.pollInterval = WebloggerConfig.getIntProperty(
+                "runtimeConfig.pollInterval", 60) * 1000L;
     }
     
     
@@ -75,7 +95,18 @@ public class JPAPropertiesManagerImpl implements PropertiesManager {
             // if any default props missing from the properties DB table,
             // initialize them and save them to that table.
             initializeMissingProps(props);
-            this.saveProperties(props);
+            for (RuntimeConfigProperty prop : props.values()) {
+                this.strategy.store(prop);
+            }
+            
+            RuntimeConfigProperty version = props.get(VERSION_PROPERTY);
+            if (version == null) {
+                version = new RuntimeConfigProperty(VERSION_PROPERTY, newVersion());
+                this.strategy.store(version);
+            }
+            
+            snapshot = new Snapshot(version.getValue(), toValues(props));
+            lastPoll.set(System.currentTimeMillis());
 
         } catch (Exception e) {
             log.fatal("Failed to initialize runtime configuration properties."+
@@ -95,6 +126,43 @@ public class JPAPropertiesManagerImpl implements PropertiesManager {
     }
 
 
+    /**
+     * Retrieve the value of a single property from the snapshot.
+     */
+    public String getPropertyValue(String name) {
+        
+        long now = System.currentTimeMillis();
+        long last = lastPoll.get();
+        if (pollInterval > 0 && now - last > pollInterval
+                && lastPoll.compareAndSet(last, now)) {
+            checkVersion();
+        }
+        
+        return snapshot.values.get(name);
+    }
+    
+    
+    /**
+     * Reload the snapshot if somebody else has saved properties since we
+     * loaded it.
+     */
+    private void checkVersion() {
+        try {
+            List<String> versions = strategy.getNamedQuery(
+                    "RuntimeConfigProperty.getValueByName", String.class)
+                    .setParameter(1, VERSION_PROPERTY).getResultList();
+            String version = versions.isEmpty() ? null : versions.get(0);
+            
+            if (version != null && !version.equals(snapshot.version)) {
+                log.debug("Runtime properties changed, reloading");
+                snapshot = new Snapshot(version, toValues(getProperties()));
+            }
+        } catch (Exception e) {
+            log.warn("Unable to check for changed runtime properties", e);
+        }
+    }
+
+
     /**
      * Retrieve all properties.
      * 
@@ -126,6 +194,7 @@ public class JPAPropertiesManagerImpl implements PropertiesManager {
     public void saveProperty(RuntimeConfigProperty property) 
             throws WebloggerException {
         this.strategy.store(property);
+        updateSnapshot(Collections.singletonList(property));
     }
 
 
@@ -138,6 +207,60 @@ public class JPAPropertiesManagerImpl implements PropertiesManager {
         for (Object prop : properties.values()) {
             this.strategy.store(prop);
         }
+        updateSnapshot(properties.values());
+    }
+    
+    
+    /**
+     * Let other servers know about the saved values, and put them in place of
+     * the old ones once they have been committed.
+     */
+    private void updateSnapshot(Iterable<?> saved) throws WebloggerException {
+        
+        final String version = newVersion();
+        RuntimeConfigProperty versionProp = (RuntimeConfigProperty)
+                strategy.load(RuntimeConfigProperty.class, VERSION_PROPERTY);
+        if (versionProp == null) {
+            versionProp = new RuntimeConfigProperty(VERSION_PROPERTY, version);
+        } else {
+            versionProp.setValue(version);
+        }
+        strategy.store(versionProp);
+        
+        final Map<String, String> changed = new HashMap<String, String>();
+        for (Object obj : saved) {
+            RuntimeConfigProperty prop = (RuntimeConfigProperty) obj;
+            if (!VERSION_PROPERTY.equals(prop.getName())) {
+                changed.put(prop.getName(), prop.getValue());
+            }
+        }
+        
+        strategy.afterCommit(new Runnable() {
+            public void run() {
+                // copy on write, readers never see a half updated snapshot
+                synchronized (JPAPropertiesManagerImpl.this) {
+                    Map<String, String> values = new HashMap<String, String>(snapshot.values);
+                    values.putAll(changed);
+                    snapshot = new Snapshot(version, values);
+                }
+            }
+        });
+    }
+    
+    
+    private static String newVersion() {
+        return UUID.randomUUID().toString();
+    }
+    
+    
+    private static Map<String, String> toValues(Map<String, RuntimeConfigProperty> props) {
+        Map<String, String> values = new HashMap<String, String>(props.size());
+        for (RuntimeConfigProperty prop : props.values()) {
+            if (!VERSION_PROPERTY.equals(prop.getName())) {
+                values.put(prop.getName(), prop.getValue());
+            }
+        }
+        return values;
     }
     
 
@@ -191,5 +314,20 @@ public class JPAPropertiesManagerImpl implements PropertiesManager {
 
 
     public void release() {}
+    
+    
+    /**
+     * An unchanging copy of all property values.
+     */
+    private static final class Snapshot {
+        
+        private final String version;
+        private final Map<String, String> values;
+        
+        Snapshot(String version, Map<String, String> values) {
+            this.version = version;
+            this.values = Collections.unmodifiableMap(values);
+        }
+    }
 
 }
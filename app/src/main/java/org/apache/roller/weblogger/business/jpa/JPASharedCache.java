@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business.jpa;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.weblogger.pojos.User;
+import org.apache.roller.weblogger.pojos.Weblog;
+import org.apache.roller.weblogger.pojos.WeblogBookmark;
+import org.apache.roller.weblogger.pojos.WeblogBookmarkFolder;
+import org.apache.roller.weblogger.pojos.WeblogCategory;
+import org.apache.roller.weblogger.pojos.WeblogEntry;
+import org.apache.roller.weblogger.pojos.WeblogEntryComment;
+import org.apache.roller.weblogger.pojos.WeblogPermission;
+import org.apache.roller.weblogger.pojos.WeblogTemplate;
+import org.apache.roller.weblogger.util.cache.Cache;
+import org.apache.roller.weblogger.util.cache.CacheHandler;
+import org.eclipse.persistence.jpa.JpaCache;
+
+
+/**
+ * The JPA provider's shared (second level) cache, as seen by the CacheManager.
+ *
+ * What is cached is configured for the provider rather than here: the
+ * shared-cache-mode in persistence.xml, the cacheable entities and query
+ * hints in the *.orm.xml mappings and the eclipselink.cache.* or
+ * hibernate.cache.* properties.  This adds what the JPA api allows on top of
+ * that, namely hit rates for lookups by id in the cache stats, clearing the
+ * shared cache along with all other caches, and evicting objects which the
+ * CacheManager is told have changed.  The provider already keeps the cache
+ * up to date for changes committed through this server, so evictions matter
+ * for invalidations passed on from other servers in a cluster.  Invalidating
+ * a user also clears the cached permission lookups, which takes EclipseLink's
+ * JpaCache since JPA has no api for query results.
+ */
+class JPASharedCache implements Cache, CacheHandler {
+    
+    private static Log log = LogFactory.getLog(JPASharedCache.class);
+    
+    public static final String CACHE_ID = "jpa.sharedCache";
+    
+    // permission lookups with query-results-cache hints
+    private static final String[] PERMISSION_QUERIES = {
+        "WeblogPermission.getByUserName",
+        "WeblogPermission.getByUserName&WeblogId"
+    };
+    
+    private final EntityManagerFactory emf;
+    
+    // hits and misses of lookups by id, by entity name
+    private final ConcurrentMap<String, AtomicLong> hits =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> misses =
+            new ConcurrentHashMap<String, AtomicLong>();
+    
+    private Date startTime = new Date();
+    
+    
+    JPASharedCache(EntityManagerFactory emf) {
+        this.emf = emf;
+    }
+    
+    
+    /**
+     * Count a lookup of an object by id as a hit or a miss of the shared cache.
+     */
+    void recordLookup(Class clazz, Object id) {
+        try {
+            boolean cached = emf.getCache().contains(clazz, id);
+            increment(cached ? hits : misses, clazz.getSimpleName());
+        } catch (RuntimeException e) {
+            // stats are not worth failing a lookup for
+            log.debug("Unable to check shared cache for " + clazz.getName(), e);
+        }
+    }
+    
+    
+    /**
+     * Evict a single object from the shared cache.
+     */
+    void evict(Class clazz, Object id) {
+        if (id != null) {
+            emf.getCache().evict(clazz, id);
+        }
+    }
+    
+    
+    /**
+     * Evict all objects of a class from the shared cache, as is needed after
+     * bulk updates and deletes which the provider may not track.
+     */
+    void evict(Class clazz) {
+        emf.getCache().evict(clazz);
+    }
+    
+    
+    private static void increment(ConcurrentMap<String, AtomicLong> counts, String name) {
+        AtomicLong count = counts.get(name);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = counts.putIfAbsent(name, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+    
+    
+    /**
+     * Evict permissions along with the cached results of the permission
+     * lookups by user name, so access which was revoked on another server
+     * isn't still granted from here until the results expire.
+     */
+    void evictPermissions() {
+        emf.getCache().evict(WeblogPermission.class);
+        try {
+            JpaCache cache = emf.getCache().unwrap(JpaCache.class);
+            for (String query : PERMISSION_QUERIES) {
+                cache.clearQueryCache(query);
+            }
+        } catch (PersistenceException e) {
+            // not EclipseLink, the provider's query cache is on its own
+            log.debug("Unable to clear permission query results", e);
+        }
+    }
+    
+    
+    private static long total(ConcurrentMap<String, AtomicLong> counts) {
+        long total = 0;
+        for (AtomicLong count : counts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+    
+    
+    public String getId() {
+        return CACHE_ID;
+    }
+    
+    
+    public void put(String key, Object value) {
+        // ignored, the provider fills the shared cache
+    }
+    
+    
+    public Object get(String key) {
+        return null;
+    }
+    
+    
+    public void remove(String key) {
+        // ignored, objects are evicted by class and id
+    }
+    
+    
+    public void clear() {
+        emf.getCache().evictAll();
+        hits.clear();
+        misses.clear();
+        startTime = new Date();
+    }
+    
+    
+    public Map<String, Object> getStats() {
+        
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("startTime", startTime);
+        
+        long totalHits = total(hits);
+        long totalMisses = total(misses);
+        stats.put("hits", totalHits);
+        stats.put("misses", totalMisses);
+        if (totalHits + totalMisses > 0) {
+            double efficiency = (double) totalHits / (totalHits + totalMisses);
+            stats.put("efficiency", efficiency * RollerConstants.PERCENT_100);
+        }
+        
+        // and per entity, which is where the provider keeps its regions
+        for (Map.Entry<String, AtomicLong> entry : hits.entrySet()) {
+            stats.put(entry.getKey() + ".hits", entry.getValue().get());
+        }
+        for (Map.Entry<String, AtomicLong> entry : misses.entrySet()) {
+            stats.put(entry.getKey() + ".misses", entry.getValue().get());
+        }
+        
+        return stats;
+    }
+    
+    
+    public void invalidate(WeblogEntry entry) {
+        evict(WeblogEntry.class, entry.getId());
+    }
+    
+    public void invalidate(Weblog website) {
+        evict(Weblog.class, website.getId());
+    }
+    
+    public void invalidate(WeblogBookmark bookmark) {
+        evict(WeblogBookmark.class, bookmark.getId());
+    }
+    
+    public void invalidate(WeblogBookmarkFolder folder) {
+        evict(WeblogBookmarkFolder.class, folder.getId());
+    }
+    
+    public void invalidate(WeblogEntryComment comment) {
+        evict(WeblogEntryComment.class, comment.getId());
+    }
+    
+    public void invalidate(User user) {
+        evict(User.class, user.getId());
+        evictPermissions();
+    }
+    
+    public void invalidate(WeblogCategory category) {
+        evict(WeblogCategory.class, category.getId());
+    }
+    
+    public void invalidate(WeblogTemplate template) {
+        evict(WeblogTemplate.class, template.getId());
+    }
+    
+}
@@ -27,9 +27,7 @@ import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.UserManager;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -41,6 +39,7 @@ import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.UserRole;
 import org.apache.roller.weblogger.pojos.Weblog;
 import org.apache.roller.weblogger.pojos.WeblogPermission;
+import org.apache.roller.weblogger.util.cache.LookupCache;
 
 
 @com.google.inject.Singleton
@@ -49,8 +48,15 @@ public class JPAUserManagerImpl implements UserManager {
 
     private final JPAPersistenceStrategy strategy;
     
+    public static final String USER_NAMES_CACHE_ID = "cache.userNames";
+    
     // cached mapping of userNames -> userIds
-    private Map<String, String> userNameToIdMap = Collections.synchronizedMap(new HashMap<String, String>());
+    private final LookupCache userNameToIdMap = new LookupCache(USER_NAMES_CACHE_ID) {
+        @Override
+        public void invalidate(User user) {
+            remove(user.getUserName());
+        }
+    };
     
 
     @com.google.inject.Inject
@@ -110,6 +116,9 @@ public class JPAUserManagerImpl implements UserManager {
         }
 
         this.strategy.store(newUser);
+        
+        // the user name may be cached as unknown
+        this.userNameToIdMap.remove(newUser.getUserName());
 
         grantRole("editor", newUser);
         if (adminUser) {
@@ -157,10 +166,13 @@ public class JPAUserManagerImpl implements UserManager {
         
         // check cache first
         // NOTE: if we ever allow changing usernames then this needs updating
-        if(this.userNameToIdMap.containsKey(userName)) {
+        String userId = this.userNameToIdMap.lookup(userName);
+        if (LookupCache.MISSING.equals(userId)) {
+            log.debug("userNameToIdMap CACHE HIT (unknown) - "+userName);
+            return null;
+        } else if (userId != null) {
 
-            User user = this.getUser(
-                    this.userNameToIdMap.get(userName));
+            User user = this.getUser(userId);
             if (user != null) {
                 // only return the user if the enabled status matches
                 if(enabled == null || enabled.equals(user.getEnabled())) {
@@ -195,10 +207,13 @@ public class JPAUserManagerImpl implements UserManager {
             user = null;
         }
 
-        // add mapping to cache
+        // add mapping to cache, not finding a user only means there is
+        // none if we didn't ask for a particular enabled status
+        log.debug("userNameToIdMap CACHE MISS - " + userName);
         if(user != null) {
-            log.debug("userNameToIdMap CACHE MISS - " + userName);
             this.userNameToIdMap.put(user.getUserName(), user.getId());
+        } else if (enabled == null) {
+            this.userNameToIdMap.putMissing(userName);
         }
 
         return user;
@@ -21,6 +21,9 @@ package org.apache.roller.weblogger.business.jpa;
 import java.util.*;
 import java.text.SimpleDateFormat;
 import java.sql.Timestamp;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.persistence.NoResultException;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
@@ -31,11 +34,14 @@ import org.apache.commons.logging.LogFactory;
 
 import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
+import org.apache.roller.weblogger.business.PostingDays;
+import org.apache.roller.weblogger.business.TagAggregateQueue;
 import org.apache.roller.weblogger.business.Weblogger;
 import org.apache.roller.weblogger.pojos.CommentSearchCriteria;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment.ApprovalStatus;
 import org.apache.roller.weblogger.pojos.WeblogEntrySearchCriteria;
+import org.apache.roller.weblogger.pojos.WeblogEntrySummary;
 import org.apache.roller.weblogger.pojos.WeblogHitCount;
 import org.apache.roller.weblogger.pojos.StatCount;
 import org.apache.roller.weblogger.pojos.TagStat;
@@ -51,6 +57,10 @@ import org.apache.roller.weblogger.pojos.WeblogEntryAttribute;
 import org.apache.roller.weblogger.pojos.StatCountCountComparator;
 import org.apache.roller.util.DateUtil;
 import org.apache.roller.weblogger.business.WeblogEntryManager;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.util.cache.Cache;
+import org.apache.roller.weblogger.util.cache.CacheManager;
+import org.apache.roller.weblogger.util.cache.LookupCache;
 
 
 /**
@@ -67,8 +77,15 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
     private final Weblogger roller;
     private final JPAPersistenceStrategy strategy;
     
+    public static final String ENTRY_ANCHORS_CACHE_ID = "cache.entryAnchors";
+    
     // cached mapping of entryAnchors -> entryIds
-    private Map<String, String> entryAnchorToIdMap = Collections.synchronizedMap(new HashMap<String, String>());
+    private final LookupCache entryAnchorToIdMap = new LookupCache(ENTRY_ANCHORS_CACHE_ID) {
+        @Override
+        public void invalidate(WeblogEntry entry) {
+            remove(entry.getWebsite().getHandle() + ":" + entry.getAnchor());
+        }
+    };
     
     private static final Comparator<TagStat> TAG_STAT_NAME_COMPARATOR = new TagStatComparator();
     
@@ -78,12 +95,39 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
     private static final Comparator<StatCount> STAT_COUNT_COUNT_REVERSE_COMPARATOR =
             Collections.reverseOrder(StatCountCountComparator.getInstance());
     
+    // keep IN lists well below what databases will accept
+    private static final int MAX_IN_LIST_SIZE = 500;
+    
+    public static final String POSTING_DAYS_CACHE_ID = "cache.postingdays";
+    
+    // weblog id -> PostingDays of its published entries
+    private final Cache postingDaysCache;
+    
+    // weblog id -> number of committed changes to its posting days, so an
+    // index built while one was committed isn't cached
+    private final ConcurrentMap<String, AtomicLong> postingDaysGenerations =
+            new ConcurrentHashMap<String, AtomicLong>();
+    
     
     @com.google.inject.Inject
     protected JPAWeblogEntryManagerImpl(Weblogger roller, JPAPersistenceStrategy strategy) {
         LOG.debug("Instantiating JPA Weblog Manager");
         this.roller = roller;
         this.strategy = strategy;
+        
+        Map<String, String> cacheProps = new HashMap<String, String>();
+        cacheProps.put("id", POSTING_DAYS_CACHE_ID);
+        Enumeration allProps = WebloggerConfig.keys();
+        while (allProps.hasMoreElements()) {
+            String prop = (String) allProps.nextElement();
+            
+            // we are only interested in props for this cache
+            if (prop.startsWith(POSTING_DAYS_CACHE_ID + ".")) {
+                cacheProps.put(prop.substring(POSTING_DAYS_CACHE_ID.length() + 1),
+                        WebloggerConfig.getProperty(prop));
+            }
+        }
+        this.postingDaysCache = CacheManager.constructCache(null, cacheProps);
     }
     
     /**
@@ -139,6 +183,7 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
             entry.setCategory(destCat);
             entry.setWebsite(website);
             this.strategy.store(entry);
+            updatePostingDays(entry);
         }
         
         // Update Blogger API category if applicable
@@ -194,32 +239,35 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
             entry.setAnchor(this.createAnchor(entry));
         }
         
+        // tag count changes are collected and applied together
+        Map<String, Integer> tagDeltas = new HashMap<String, Integer>();
         if (entry.isPublished()) {
             // tag aggregates are updated only when entry published in order for
             // tag cloud counts to match published articles
             if (entry.getRefreshAggregates()) {
                 // blog entry wasn't published before, so all tags need to be incremented
                 for (WeblogEntryTag tag : entry.getTags()) {
-                    updateTagCount(tag.getName(), entry.getWebsite(), 1);
+                    addTagDelta(tagDeltas, tag.getName(), 1);
                 }
             } else {
                 // only new tags need to be incremented
                 for (WeblogEntryTag tag : entry.getAddedTags()) {
-                    updateTagCount(tag.getName(), entry.getWebsite(), 1);
+                    addTagDelta(tagDeltas, tag.getName(), 1);
                 }
             }
         } else {
             if (entry.getRefreshAggregates()) {
                 // blog entry no longer published so need to reduce aggregate count
                 for (WeblogEntryTag tag : entry.getTags()) {
-                    updateTagCount(tag.getName(), entry.getWebsite(), -1);
+                    addTagDelta(tagDeltas, tag.getName(), -1);
                 }
             }
         }
 
         for (WeblogEntryTag tag : entry.getRemovedTags()) {
-            removeWeblogEntryTag(tag);
+            removeWeblogEntryTag(tag, tagDeltas);
         }
+        applyTagDeltas(entry.getWebsite(), tagDeltas);
 
         // if the entry was published to future, set status as SCHEDULED
         // we only consider an entry future published if it is scheduled
@@ -233,6 +281,10 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         entry.setUpdateTime(new Timestamp(new Date().getTime()));
         
         this.strategy.store(entry);
+        updatePostingDays(entry);
+        
+        // the anchor may be cached as unknown
+        this.entryAnchorToIdMap.remove(entry.getWebsite().getHandle()+":"+entry.getAnchor());
         
         // update weblog last modified date.  date updated by saveWebsite()
         if(entry.isPublished()) {
@@ -262,9 +314,11 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         
         // remove tag & tag aggregates
         if (entry.getTags() != null) {
+            Map<String, Integer> tagDeltas = new HashMap<String, Integer>();
             for (WeblogEntryTag tag : entry.getTags()) {
-                removeWeblogEntryTag(tag);
+                removeWeblogEntryTag(tag, tagDeltas);
             }
+            applyTagDeltas(weblog, tagDeltas);
         }
         
         // remove attributes
@@ -278,6 +332,7 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
 
         // remove entry
         this.strategy.remove(entry);
+        updatePostingDays(weblog.getId(), entry.getId(), null, null, null);
         
         // update weblog last modified date.  date updated by saveWebsite()
         if (entry.isPublished()) {
@@ -297,58 +352,149 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
 			return Collections.emptyList();
 		}
 
-        TypedQuery<WeblogEntry> query;
-        WeblogCategory category;
-        
-        List<Object> params = new ArrayList<Object>();
-        int size = 0;
-        String queryString = "SELECT e FROM WeblogEntry e WHERE ";
-        StringBuilder whereClause = new StringBuilder();
-
-        params.add(size++, current.getWebsite());
-        whereClause.append("e.website = ?").append(size);
-        
-        params.add(size++, PubStatus.PUBLISHED);
-        whereClause.append(" AND e.status = ?").append(size);
-                
-        if (next) {
-            params.add(size++, current.getPubTime());
-            whereClause.append(" AND e.pubTime > ?").append(size);
-        } else {
-            // pub time null if current article not yet published, in Draft view
-            if (current.getPubTime() != null) {
-                params.add(size++, current.getPubTime());
-                whereClause.append(" AND e.pubTime < ?").append(size);
-            }
-        }
-        
+        String categoryId = null;
         if (catName != null) {
-            category = getWeblogCategoryByName(current.getWebsite(), catName);
+            WeblogCategory category = getWeblogCategoryByName(current.getWebsite(), catName);
             if (category != null) {
-                params.add(size++, category);
-                whereClause.append(" AND e.category = ?").append(size);
+                categoryId = category.getId();
             } else {
                 throw new WebloggerException("Cannot find category: " + catName);
             } 
         }
         
-        if(locale != null) {
-            params.add(size++, locale + '%');
-            whereClause.append(" AND e.locale like ?").append(size);
+        // find them in the index, and only load the ones we want
+        List<String> ids = getPostingDays(current.getWebsite()).getEntryIds(
+                current.getPubTime(), categoryId, locale, maxEntries, next);
+        List<WeblogEntry> entries = new ArrayList<WeblogEntry>(ids.size());
+        for (String id : ids) {
+            WeblogEntry entry = getWeblogEntry(id);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+    
+    /**
+     * @inheritDoc
+     */
+    public int getPostingDays(Weblog weblog, Date month, String catName, String locale)
+            throws WebloggerException {
+        String categoryId = null;
+        if (catName != null) {
+            WeblogCategory category = getWeblogCategoryByName(weblog, catName);
+            if (category == null) {
+                return 0;
+            }
+            categoryId = category.getId();
         }
+        return getPostingDays(weblog).getDays(month, categoryId, locale);
+    }
+    
+    /**
+     * @inheritDoc
+     */
+    public Date getPostingMonth(Weblog weblog, Date month, String catName, String locale,
+            boolean next) throws WebloggerException {
+        String categoryId = null;
+        if (catName != null) {
+            WeblogCategory category = getWeblogCategoryByName(weblog, catName);
+            if (category == null) {
+                return null;
+            }
+            categoryId = category.getId();
+        }
+        return getPostingDays(weblog).getMonth(month, categoryId, locale, next);
+    }
+    
+    /**
+     * Get the index of when the weblog's entries were published, building it
+     * from just the dates, categories and locales of its entries if needed.
+     */
+    private PostingDays getPostingDays(Weblog weblog) throws WebloggerException {
         
-        if (next) {
-            whereClause.append(" ORDER BY e.pubTime ASC");
-        } else {
-            whereClause.append(" ORDER BY e.pubTime DESC");
+        TimeZone tz = weblog.getTimeZoneInstance();
+        PostingDays postingDays = (PostingDays) postingDaysCache.get(weblog.getId());
+        if (postingDays != null && postingDays.getTimeZone().equals(tz)) {
+            return postingDays;
         }
-        query = strategy.getDynamicQuery(queryString + whereClause.toString(), WeblogEntry.class);
-        for (int i=0; i<params.size(); i++) {
-            query.setParameter(i+1, params.get(i));
+        
+        AtomicLong generation = getPostingDaysGeneration(weblog.getId());
+        long built = generation.get();
+        
+        postingDays = new PostingDays(tz);
+        TypedQuery<Object[]> q = strategy.getNamedQuery(
+                "WeblogEntry.getPostingsByWebsite&Status", Object[].class);
+        q.setParameter(1, weblog);
+        q.setParameter(2, PubStatus.PUBLISHED);
+        for (Object[] row : q.getResultList()) {
+            if (row[1] != null) {
+                postingDays.add((String) row[0], (Date) row[1], (String) row[2], (String) row[3]);
+            }
         }
-        query.setMaxResults(maxEntries);
         
-        return query.getResultList();
+        LOG.debug("Indexed " + postingDays.size() + " entries of " + weblog.getHandle());
+        
+        // an open transaction may have shown us changes which never get
+        // committed, and anything committed since we started may be missing
+        if (!strategy.isTransactionActive() && generation.get() == built) {
+            postingDaysCache.put(weblog.getId(), postingDays);
+            
+            // a commit between the check and the put may have updated the
+            // previous index instead of ours
+            if (generation.get() != built) {
+                postingDaysCache.remove(weblog.getId());
+            }
+        }
+        return postingDays;
+    }
+    
+    private AtomicLong getPostingDaysGeneration(String weblogId) {
+        AtomicLong generation = postingDaysGenerations.get(weblogId);
+        if (generation == null) {
+            AtomicLong created = new AtomicLong();
+            generation = postingDaysGenerations.putIfAbsent(weblogId, created);
+            if (generation == null) {
+                generation = created;
+            }
+        }
+        return generation;
+    }
+    
+    /**
+     * Keep an already built posting days index in line with a saved entry.
+     */
+    private void updatePostingDays(WeblogEntry entry) {
+        if (entry.isPublished() && entry.getPubTime() != null) {
+            updatePostingDays(entry.getWebsite().getId(), entry.getId(),
+                    new Date(entry.getPubTime().getTime()), entry.getCategory().getId(),
+                    entry.getLocale());
+        } else {
+            updatePostingDays(entry.getWebsite().getId(), entry.getId(), null, null, null);
+        }
+    }
+    
+    /**
+     * Add an entry to, or with a null pubTime remove it from, the weblog's
+     * posting days index.  The index is shared by all sessions, so this only
+     * happens once the change has been committed.
+     */
+    private void updatePostingDays(final String weblogId, final String entryId,
+            final Date pubTime, final String categoryId, final String locale) {
+        strategy.afterCommit(new Runnable() {
+            public void run() {
+                getPostingDaysGeneration(weblogId).incrementAndGet();
+                PostingDays postingDays = (PostingDays) postingDaysCache.get(weblogId);
+                if (postingDays == null) {
+                    return;
+                }
+                if (pubTime != null) {
+                    postingDays.add(entryId, pubTime, categoryId, locale);
+                } else {
+                    postingDays.remove(entryId);
+                }
+            }
+        });
     }
     
     /**
@@ -363,7 +509,7 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         
         TypedQuery<WeblogCategory> q = strategy.getNamedQuery(
                 "WeblogCategory.getByWeblog", WeblogCategory.class);
-        q.setParameter(1, website);
+        q.setParameter(1, website.getId());
         return q.getResultList();
     }
 
@@ -371,20 +517,57 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
      * @inheritDoc
      */
     public List<WeblogEntry> getWeblogEntries(WeblogEntrySearchCriteria wesc) throws WebloggerException {
+        List<Object> params = new ArrayList<Object>();
+        String queryString = buildEntrySearchQuery("SELECT e FROM WeblogEntry e", wesc, params);
+        TypedQuery<WeblogEntry> query = strategy.getPrecompiledQuery(queryString, WeblogEntry.class);
+        setEntrySearchParameters(query, wesc, params);
+        return query.getResultList();
+    }
+    
+    /**
+     * @inheritDoc
+     */
+    public List<WeblogEntrySummary> getWeblogEntrySummaries(WeblogEntrySearchCriteria wesc)
+            throws WebloggerException {
+        List<Object> params = new ArrayList<Object>();
+        String queryString = buildEntrySearchQuery(
+                "SELECT e.id, e.anchor, e.title, e.status, e.pubTime, e.updateTime, "
+                + "e.creatorUserName, c.name, e.website FROM WeblogEntry e LEFT JOIN e.category c",
+                wesc, params);
+        TypedQuery<Object[]> query = strategy.getPrecompiledQuery(queryString, Object[].class);
+        setEntrySearchParameters(query, wesc, params);
+        
+        List<Object[]> rows = query.getResultList();
+        List<WeblogEntrySummary> results = new ArrayList<WeblogEntrySummary>(rows.size());
+        for (Object[] row : rows) {
+            results.add(new WeblogEntrySummary(
+                    (String) row[0], (String) row[1], (String) row[2], (PubStatus) row[3],
+                    (Timestamp) row[4], (Timestamp) row[5], (String) row[6],
+                    (String) row[7], (Weblog) row[8]));
+        }
+        return results;
+    }
+    
+    /**
+     * Build the query for a weblog entry search, collecting its parameters.
+     * The query only depends on which criteria are set, and not on their
+     * values, so there are few enough of them to be precompiled.
+     */
+    private String buildEntrySearchQuery(String selectFrom, WeblogEntrySearchCriteria wesc,
+            List<Object> params) throws WebloggerException {
 
         WeblogCategory cat = null;
         if (StringUtils.isNotEmpty(wesc.getCatName()) && wesc.getWeblog() != null) {
             cat = getWeblogCategoryByName(wesc.getWeblog(), wesc.getCatName());
         }
 
-        List<Object> params = new ArrayList<Object>();
         int size = 0;
-        StringBuilder queryString = new StringBuilder();
+        StringBuilder queryString = new StringBuilder(selectFrom);
         
         if (wesc.getTags() == null || wesc.getTags().size()==0) {
-            queryString.append("SELECT e FROM WeblogEntry e WHERE ");
+            queryString.append(" WHERE ");
         } else {
-            queryString.append("SELECT e FROM WeblogEntry e JOIN e.tags t WHERE ");
+            queryString.append(" JOIN e.tags t WHERE ");
             queryString.append("(");
             for (int i = 0; i < wesc.getTags().size(); i++) {
                 if (i != 0) {
@@ -444,20 +627,48 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
             queryString.append(") ");
         }
 
+        String sortBy;
         if (wesc.getSortBy() != null && wesc.getSortBy().equals(WeblogEntrySearchCriteria.SortBy.UPDATE_TIME)) {
-            queryString.append(" ORDER BY e.updateTime ");
+            sortBy = "e.updateTime";
         } else {
-            queryString.append(" ORDER BY e.pubTime ");
+            sortBy = "e.pubTime";
         }
         
+        String sortOrder;
+        String after;
+        String notBefore;
         if (wesc.getSortOrder() != null && wesc.getSortOrder().equals(WeblogEntrySearchCriteria.SortOrder.ASCENDING)) {
-            queryString.append("ASC ");
+            sortOrder = " ASC";
+            after = " > ";
+            notBefore = " >= ";
         } else {
-            queryString.append("DESC ");
+            sortOrder = " DESC";
+            after = " < ";
+            notBefore = " <= ";
+        }
+        
+        // keyset paging, entries with the same time are ordered by id.  The
+        // plain range on the time comes first so the time index can be used.
+        if (wesc.getAfterTime() != null) {
+            params.add(size++, new Timestamp(wesc.getAfterTime().getTime()));
+            int timeParam = size;
+            params.add(size++, wesc.getAfterId());
+            queryString.append(" AND ").append(sortBy).append(notBefore).append('?').append(timeParam);
+            queryString.append(" AND (").append(sortBy).append(after).append('?').append(timeParam);
+            queryString.append(" OR e.id").append(after).append('?').append(size).append(')');
         }
         
+        queryString.append(" ORDER BY ").append(sortBy).append(sortOrder);
+        queryString.append(", e.id").append(sortOrder);
         
-        TypedQuery<WeblogEntry> query = strategy.getDynamicQuery(queryString.toString(), WeblogEntry.class);
+        return queryString.toString();
+    }
+    
+    /**
+     * Set the parameters and range of a weblog entry search query.
+     */
+    private static void setEntrySearchParameters(Query query, WeblogEntrySearchCriteria wesc,
+            List<Object> params) {
         for (int i=0; i<params.size(); i++) {
             query.setParameter(i+1, params.get(i));
         }
@@ -468,8 +679,6 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         if (wesc.getMaxResults() != -1) {
             query.setMaxResults(wesc.getMaxResults());
         }
-        
-        return query.getResultList();
     }
     
     /**
@@ -487,6 +696,28 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         return query.getResultList();
     }
     
+    /**
+     * @inheritDoc
+     */
+    public List<WeblogEntry> getPublishedWeblogEntries(Weblog weblog, String afterId, int max)
+    throws WebloggerException {
+        TypedQuery<WeblogEntry> query;
+        if (weblog != null) {
+            query = strategy.getNamedQuery(
+                    "WeblogEntry.getByStatus&Website&IdGreaterThanOrderById", WeblogEntry.class);
+            query.setParameter(3, weblog);
+        } else {
+            query = strategy.getNamedQuery(
+                    "WeblogEntry.getByStatus&WebsiteVisible&IdGreaterThanOrderById", WeblogEntry.class);
+            query.setParameter(3, Boolean.TRUE);
+        }
+        query.setParameter(1, PubStatus.PUBLISHED);
+        // every id sorts after the empty string
+        query.setParameter(2, (afterId != null) ? afterId : "");
+        query.setMaxResults(max);
+        return query.getResultList();
+    }
+    
     public void removeWeblogEntryAttribute(String name, WeblogEntry entry)
     throws WebloggerException {
 
@@ -505,9 +736,10 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         }
     }
     
-    private void removeWeblogEntryTag(WeblogEntryTag tag) throws WebloggerException {
+    private void removeWeblogEntryTag(WeblogEntryTag tag, Map<String, Integer> tagDeltas)
+    throws WebloggerException {
         if (tag.getWeblogEntry().isPublished()) {
-            updateTagCount(tag.getName(), tag.getWeblogEntry().getWebsite(), -1);
+            addTagDelta(tagDeltas, tag.getName(), -1);
         }
         this.strategy.remove(tag);
     }
@@ -531,9 +763,13 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         
         // check cache first
         // NOTE: if we ever allow changing anchors then this needs updating
-        if(this.entryAnchorToIdMap.containsKey(mappingKey)) {
+        String entryId = this.entryAnchorToIdMap.lookup(mappingKey);
+        if (LookupCache.MISSING.equals(entryId)) {
+            LOG.debug("entryAnchorToIdMap CACHE HIT (unknown) - " + mappingKey);
+            return null;
+        } else if (entryId != null) {
             
-            WeblogEntry entry = this.getWeblogEntry(this.entryAnchorToIdMap.get(mappingKey));
+            WeblogEntry entry = this.getWeblogEntry(entryId);
             if(entry != null) {
                 LOG.debug("entryAnchorToIdMap CACHE HIT - " + mappingKey);
                 return entry;
@@ -556,9 +792,11 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         }
         
         // add mapping to cache
+        LOG.debug("entryAnchorToIdMap CACHE MISS - " + mappingKey);
         if(entry != null) {
-            LOG.debug("entryAnchorToIdMap CACHE MISS - " + mappingKey);
             this.entryAnchorToIdMap.put(mappingKey, entry.getId());
+        } else {
+            this.entryAnchorToIdMap.putMissing(mappingKey);
         }
         return entry;
     }
@@ -680,6 +918,42 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
     }
     
     
+    /**
+     * @inheritDoc
+     */
+    public Map<String, List<WeblogEntryComment>> getApprovedComments(List<WeblogEntry> entries)
+    throws WebloggerException {
+        
+        Map<String, List<WeblogEntryComment>> comments =
+                new HashMap<String, List<WeblogEntryComment>>();
+        
+        List<String> ids = new ArrayList<String>(entries.size());
+        for (WeblogEntry entry : entries) {
+            ids.add(entry.getId());
+        }
+        
+        for (int i = 0; i < ids.size(); i += MAX_IN_LIST_SIZE) {
+            TypedQuery<WeblogEntryComment> query = strategy.getNamedQuery(
+                    "WeblogEntryComment.getByWeblogEntryIds&StatusOrderByPostTime",
+                    WeblogEntryComment.class);
+            query.setParameter(1, ids.subList(i, Math.min(i + MAX_IN_LIST_SIZE, ids.size())));
+            query.setParameter(2, ApprovalStatus.APPROVED);
+            
+            for (WeblogEntryComment comment : query.getResultList()) {
+                String entryId = comment.getWeblogEntry().getId();
+                List<WeblogEntryComment> list = comments.get(entryId);
+                if (list == null) {
+                    list = new ArrayList<WeblogEntryComment>();
+                    comments.put(entryId, list);
+                }
+                list.add(comment);
+            }
+        }
+        
+        return comments;
+    }
+    
+    
     /**
      * @inheritDoc
      */
@@ -731,7 +1005,7 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
             String categoryName) throws WebloggerException {
         TypedQuery<WeblogCategory> q = strategy.getNamedQuery(
                 "WeblogCategory.getByWeblog&Name", WeblogCategory.class);
-        q.setParameter(1, weblog);
+        q.setParameter(1, weblog.getId());
         q.setParameter(2, categoryName);
         try {
             return q.getSingleResult();
@@ -918,6 +1192,7 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         q.setParameter(2, website.getDefaultCommentDays());
         q.setParameter(3, website);
         q.executeUpdate();
+        strategy.evict(WeblogEntry.class);
     }
     
     /**
@@ -1107,81 +1382,235 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
     }
 
     /**
-     * This method maintains the tag aggregate table up-to-date with total counts. More
-     * specifically every time this method is called it will act upon exactly two rows
-     * in the database (tag,website,count), one with website matching the argument passed
-     * and one where website is null. If the count ever reaches zero, the row must be deleted.
-     *
-     * @param name      The tag name
-     * @param website   The website to used when updating the stats.
-     * @param amount    The amount to increment the tag count (it can be positive or negative).
-     * @throws WebloggerException
+     * Add a change in count for a tag to those collected so far.
      */
-    private void updateTagCount(String name, Weblog website, int amount)
+    private static void addTagDelta(Map<String, Integer> tagDeltas, String name, int amount) {
+        Integer previous = tagDeltas.get(name);
+        tagDeltas.put(name, (previous == null) ? amount : previous + amount);
+    }
+
+    /**
+     * Apply the tag count changes collected while saving or removing an
+     * entry, or queue them to be applied in the background if tag aggregates
+     * are maintained asynchronously.
+     */
+    private void applyTagDeltas(Weblog website, Map<String, Integer> tagDeltas)
     throws WebloggerException {
-        if (amount == 0) {
-            throw new WebloggerException("Tag increment amount cannot be zero.");
-        }
-        
         if (website == null) {
             throw new WebloggerException("Website cannot be NULL.");
         }
-        
-        // The reason why add order lastUsed desc is to make sure we keep picking the most recent
-        // one in the case where we have multiple rows (clustered environment)
-        // eventually that second entry will have a very low total (most likely 1) and
-        // won't matter
-        TypedQuery<WeblogEntryTagAggregate> weblogQuery = strategy.getNamedQuery(
-                "WeblogEntryTagAggregate.getByName&WebsiteOrderByLastUsedDesc", WeblogEntryTagAggregate.class);
-        weblogQuery.setParameter(1, name);
-        weblogQuery.setParameter(2, website);
-        WeblogEntryTagAggregate weblogTagData;
-        try {
-            weblogTagData = weblogQuery.getSingleResult();
-        } catch (NoResultException e) {
-            weblogTagData = null;
+
+        // changes which cancel out don't need to go anywhere
+        for (Iterator<Integer> it = tagDeltas.values().iterator(); it.hasNext();) {
+            if (it.next() == 0) {
+                it.remove();
+            }
+        }
+        if (tagDeltas.isEmpty()) {
+            return;
         }
 
-        TypedQuery<WeblogEntryTagAggregate> siteQuery = strategy.getNamedQuery(
-                "WeblogEntryTagAggregate.getByName&WebsiteNullOrderByLastUsedDesc", WeblogEntryTagAggregate.class);
-        siteQuery.setParameter(1, name);
-        WeblogEntryTagAggregate siteTagData;
-        try {
-            siteTagData = siteQuery.getSingleResult();
-        } catch (NoResultException e) {
-            siteTagData = null;
+        final TagAggregateQueue queue = TagAggregateQueue.getInstance();
+        if (queue.isEnabled()) {
+            // only once the tags themselves are saved, a rebuild counts them
+            // from then on
+            final String weblogId = website.getId();
+            final Map<String, Integer> queued = new HashMap<String, Integer>(tagDeltas);
+            strategy.afterCommit(new Runnable() {
+                public void run() {
+                    queue.queueDeltas(weblogId, queued);
+                }
+            });
+        } else {
+            updateTagAggregates(website, tagDeltas);
+            pruneTagAggregates(tagDeltas);
         }
-        Timestamp lastUsed = new Timestamp((new Date()).getTime());
-        
-        // create it only if we are going to need it.
-        if (weblogTagData == null && amount > 0) {
-            weblogTagData = new WeblogEntryTagAggregate(null, website, name, amount);
-            weblogTagData.setLastUsed(lastUsed);
-            strategy.store(weblogTagData);
-            
-        } else if (weblogTagData != null) {
-            weblogTagData.setTotal(weblogTagData.getTotal() + amount);
-            weblogTagData.setLastUsed(lastUsed);
-            strategy.store(weblogTagData);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public void updateTagAggregates(Map<String, Map<String, Integer>> deltas)
+    throws WebloggerException {
+
+        if (deltas == null || deltas.isEmpty()) {
+            return;
         }
-        
-        // create it only if we are going to need it.
-        if (siteTagData == null && amount > 0) {
-            siteTagData = new WeblogEntryTagAggregate(null, null, name, amount);
-            siteTagData.setLastUsed(lastUsed);
-            strategy.store(siteTagData);
-            
-        } else if (siteTagData != null) {
-            siteTagData.setTotal(siteTagData.getTotal() + amount);
-            siteTagData.setLastUsed(lastUsed);
-            strategy.store(siteTagData);
+
+        Map<String, Integer> allDeltas = new HashMap<String, Integer>();
+        for (Map.Entry<String, Map<String, Integer>> weblogDeltas : deltas.entrySet()) {
+            Weblog website = roller.getWeblogManager().getWeblog(weblogDeltas.getKey());
+            if (website == null) {
+                // removed since, the removal took the changes queued for it
+                // then into account and cancelled them
+                continue;
+            }
+            updateTagAggregates(website, weblogDeltas.getValue());
+            for (Map.Entry<String, Integer> delta : weblogDeltas.getValue().entrySet()) {
+                addTagDelta(allDeltas, delta.getKey(), delta.getValue());
+            }
         }
-        
-        // delete all bad counts
-        Query removeq = strategy.getNamedUpdate(
-                "WeblogEntryTagAggregate.removeByTotalLessEqual");
-        removeq.setParameter(1, 0);
+        pruneTagAggregates(allDeltas);
+    }
+
+    /**
+     * This method maintains the tag aggregate table up-to-date with total counts.
+     * Every tag changed acts upon exactly two rows in the database
+     * (tag,website,count), one with website matching the argument passed and
+     * one where website is null.
+     *
+     * Rather than a lookup, modify, save for each tag, the rows which exist
+     * are found with one query and incremented in the database with one
+     * update per distinct amount, so concurrent changes to the same tag don't
+     * overwrite each other.  Rows are only created for tags which are counted
+     * up.  Rows which reach zero are left for pruneTagAggregates().
+     *
+     * @param website   The website to used when updating the stats.
+     * @param tagDeltas The amount to change each tag's count by, keyed by name.
+     * @throws WebloggerException
+     */
+    private void updateTagAggregates(Weblog website, Map<String, Integer> tagDeltas)
+    throws WebloggerException {
+        Timestamp lastUsed = new Timestamp(System.currentTimeMillis());
+        updateTagTotals(website, tagDeltas, lastUsed);
+        updateTagTotals(null, tagDeltas, lastUsed);
+    }
+
+    private void updateTagTotals(Weblog website, Map<String, Integer> tagDeltas,
+            Timestamp lastUsed) throws WebloggerException {
+
+        List<String> names = new ArrayList<String>(tagDeltas.keySet());
+        for (int i = 0; i < names.size(); i += MAX_IN_LIST_SIZE) {
+            List<String> chunk = names.subList(i, Math.min(i + MAX_IN_LIST_SIZE, names.size()));
+
+            // which of these tags already have a row?  Flush first to see rows
+            // created earlier in this transaction.
+            TypedQuery<Object[]> q;
+            if (website != null) {
+                q = strategy.getNamedQueryCommitFirst(
+                        "WeblogEntryTagAggregate.getIdsByWebsite&Names", Object[].class);
+                q.setParameter(1, website);
+                q.setParameter(2, chunk);
+            } else {
+                q = strategy.getNamedQueryCommitFirst(
+                        "WeblogEntryTagAggregate.getIdsByWebsiteNull&Names", Object[].class);
+                q.setParameter(1, chunk);
+            }
+
+            // The reason why the rows are ordered by lastUsed desc is to make sure
+            // we keep picking the most recent one in the case where we have
+            // multiple rows (clustered environment), eventually that second row
+            // will have a very low total (most likely 1) and won't matter
+            Map<String, String> existing = new HashMap<String, String>();
+            for (Object[] row : q.getResultList()) {
+                if (!existing.containsKey((String) row[1])) {
+                    existing.put((String) row[1], (String) row[0]);
+                }
+            }
+
+            // group the rest by amount, so that there are only as many
+            // updates as there are distinct amounts
+            Map<Integer, List<String>> byAmount = new HashMap<Integer, List<String>>();
+            for (String name : chunk) {
+                int amount = tagDeltas.get(name);
+                String id = existing.get(name);
+                if (id == null) {
+                    // create it only if we are going to need it.
+                    if (amount > 0) {
+                        WeblogEntryTagAggregate tagData =
+                                new WeblogEntryTagAggregate(null, website, name, amount);
+                        tagData.setLastUsed(lastUsed);
+                        strategy.store(tagData);
+                    }
+                    continue;
+                }
+
+                List<String> group = byAmount.get(amount);
+                if (group == null) {
+                    group = new ArrayList<String>();
+                    byAmount.put(amount, group);
+                }
+                group.add(id);
+            }
+
+            for (Map.Entry<Integer, List<String>> group : byAmount.entrySet()) {
+                Query update = strategy.getNamedUpdate(
+                        "WeblogEntryTagAggregate.incrementTotalByIds");
+                update.setParameter(1, group.getKey());
+                update.setParameter(2, lastUsed);
+                update.setParameter(3, group.getValue());
+                update.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Delete all bad counts, if any of the changes could have made one.
+     */
+    private void pruneTagAggregates(Map<String, Integer> tagDeltas)
+    throws WebloggerException {
+        for (Integer amount : tagDeltas.values()) {
+            if (amount < 0) {
+                Query removeq = strategy.getNamedUpdate(
+                        "WeblogEntryTagAggregate.removeByTotalLessEqual");
+                removeq.setParameter(1, 0);
+                removeq.executeUpdate();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public void rebuildTagAggregates() throws WebloggerException {
+
+        // changes waiting to be applied are already in the tags counted
+        // below, so take them back once the new counts are committed
+        final TagAggregateQueue queue = TagAggregateQueue.getInstance();
+        final Map<String, Map<String, Integer>> queued = queue.getQueuedDeltas();
+        if (!queued.isEmpty()) {
+            strategy.afterCommit(new Runnable() {
+                public void run() {
+                    queue.cancelDeltas(queued);
+                }
+            });
+        }
+
+        // start over
+        Query removeq = strategy.getNamedUpdate("WeblogEntryTagAggregate.removeAll");
         removeq.executeUpdate();
+
+        TypedQuery<Object[]> q = strategy.getNamedQuery(
+                "WeblogEntryTag.getCountsByStatus", Object[].class);
+        q.setParameter(1, PubStatus.PUBLISHED);
+
+        Map<String, Integer> siteTotals = new HashMap<String, Integer>();
+        Map<String, Timestamp> siteLastUsed = new HashMap<String, Timestamp>();
+        for (Object[] row : q.getResultList()) {
+            Weblog website = roller.getWeblogManager().getWeblog((String) row[0]);
+            String name = (String) row[1];
+            int total = ((Number) row[2]).intValue();
+            Timestamp lastUsed = (Timestamp) row[3];
+
+            WeblogEntryTagAggregate tagData =
+                    new WeblogEntryTagAggregate(null, website, name, total);
+            tagData.setLastUsed(lastUsed);
+            strategy.store(tagData);
+
+            addTagDelta(siteTotals, name, total);
+            Timestamp siteTime = siteLastUsed.get(name);
+            if (siteTime == null || siteTime.before(lastUsed)) {
+                siteLastUsed.put(name, lastUsed);
+            }
+        }
+
+        for (Map.Entry<String, Integer> total : siteTotals.entrySet()) {
+            WeblogEntryTagAggregate tagData =
+                    new WeblogEntryTagAggregate(null, null, total.getKey(), total.getValue());
+            tagData.setLastUsed(siteLastUsed.get(total.getKey()));
+            strategy.store(tagData);
+        }
     }
     
     /**
@@ -1285,6 +1714,63 @@ public class JPAWeblogEntryManagerImpl implements WeblogEntryManager {
         }
     }
     
+    /**
+     * @inheritDoc
+     */
+    public void incrementHitCounts(Map<String, Long> hits)
+    throws WebloggerException {
+        
+        if(hits == null || hits.isEmpty()) {
+            return;
+        }
+        
+        List<String> handles = new ArrayList<String>(hits.keySet());
+        for (int i = 0; i < handles.size(); i += MAX_IN_LIST_SIZE) {
+            List<String> chunk = handles.subList(i,
+                    Math.min(i + MAX_IN_LIST_SIZE, handles.size()));
+            
+            // which of these weblogs already have a hit count?
+            TypedQuery<String> q = strategy.getNamedQuery(
+                    "WeblogHitCount.getWeblogHandlesByWeblogHandles", String.class);
+            q.setParameter(1, chunk);
+            Set<String> existing = new HashSet<String>(q.getResultList());
+            
+            // group the rest by amount, so that there are only as many
+            // updates as there are distinct amounts
+            Map<Integer, List<String>> byAmount = new HashMap<Integer, List<String>>();
+            for (String handle : chunk) {
+                int amount = hits.get(handle).intValue();
+                if(amount <= 0) {
+                    continue;
+                }
+                
+                if(!existing.contains(handle)) {
+                    // first hits ever for this weblog, create its count
+                    Weblog weblog = roller.getWeblogManager().getWeblogByHandle(handle);
+                    if(weblog != null) {
+                        incrementHitCount(weblog, amount);
+                    }
+                    continue;
+                }
+                
+                List<String> group = byAmount.get(amount);
+                if(group == null) {
+                    group = new ArrayList<String>();
+                    byAmount.put(amount, group);
+                }
+                group.add(handle);
+            }
+            
+            for (Map.Entry<Integer, List<String>> group : byAmount.entrySet()) {
+                Query update = strategy.getNamedUpdate(
+                        "WeblogHitCount.incrementDailyHitsByWeblogHandles");
+                update.setParameter(1, group.getKey());
+                update.setParameter(2, group.getValue());
+                update.executeUpdate();
+            }
+        }
+    }
+    
     /**
      * @inheritDoc
      */
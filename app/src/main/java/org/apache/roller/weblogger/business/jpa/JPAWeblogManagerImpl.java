@@ -34,12 +34,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 import org.apache.roller.weblogger.business.MediaFileManager;
+import org.apache.roller.weblogger.business.TagAggregateQueue;
 import org.apache.roller.weblogger.business.UserManager;
 import org.apache.roller.weblogger.business.WeblogEntryManager;
 import org.apache.roller.weblogger.business.WeblogManager;
@@ -60,9 +61,9 @@ import org.apache.roller.weblogger.pojos.WeblogBookmarkFolder;
 import org.apache.roller.weblogger.pojos.WeblogCategory;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.WeblogEntryTag;
-import org.apache.roller.weblogger.pojos.WeblogEntryTagAggregate;
 import org.apache.roller.weblogger.pojos.WeblogPermission;
 import org.apache.roller.weblogger.pojos.WeblogTemplate;
+import org.apache.roller.weblogger.util.cache.LookupCache;
 
 
 /*
@@ -81,8 +82,15 @@ public class JPAWeblogManagerImpl implements WeblogManager {
     private final Weblogger roller;
     private final JPAPersistenceStrategy strategy;
     
+    public static final String WEBLOG_HANDLES_CACHE_ID = "cache.weblogHandles";
+    
     // cached mapping of weblogHandles -> weblogIds
-    private Map<String,String> weblogHandleToIdMap = new Hashtable<String,String>();
+    private final LookupCache weblogHandleToIdMap = new LookupCache(WEBLOG_HANDLES_CACHE_ID) {
+        @Override
+        public void invalidate(Weblog website) {
+            remove(website.getHandle());
+        }
+    };
 
     @com.google.inject.Inject
     protected JPAWeblogManagerImpl(Weblogger roller, JPAPersistenceStrategy strat) {
@@ -137,9 +145,24 @@ public class JPAWeblogManagerImpl implements WeblogManager {
             this.strategy.remove(tagData);
         }
         
-        // remove site tag aggregates
+        // changes to the weblog's counts still waiting in the queue go in
+        // now, so they reach the site-wide counts before the weblog is gone
+        final TagAggregateQueue queue = TagAggregateQueue.getInstance();
+        final Map<String, Integer> queued = queue.getQueuedDeltas(weblog.getId());
+        if (!queued.isEmpty()) {
+            final Map<String, Map<String, Integer>> applied =
+                    Collections.singletonMap(weblog.getId(), queued);
+            emgr.updateTagAggregates(applied);
+            strategy.afterCommit(new Runnable() {
+                public void run() {
+                    queue.cancelDeltas(applied);
+                }
+            });
+        }
+        
+        // remove site tag aggregates, this also deletes bad counts
         List<TagStat> tags = emgr.getTags(weblog, null, null, 0, -1);
-        updateTagAggregates(tags);
+        updateTagAggregates(weblog, tags);
         
         // delete all weblog tag aggregates
         Query removeAggs= strategy.getNamedUpdate(
@@ -147,12 +170,6 @@ public class JPAWeblogManagerImpl implements WeblogManager {
         removeAggs.setParameter(1, weblog);
         removeAggs.executeUpdate();
         
-        // delete all bad counts
-        Query removeCounts = strategy.getNamedUpdate(
-                "WeblogEntryTagAggregate.removeByTotalLessEqual");
-        removeCounts.setParameter(1, 0);
-        removeCounts.executeUpdate();
-        
         // Remove the weblog's ping queue entries
         TypedQuery<PingQueueEntry> q = strategy.getNamedQuery("PingQueueEntry.getByWebsite", PingQueueEntry.class);
         q.setParameter(1, weblog);
@@ -171,7 +188,7 @@ public class JPAWeblogManagerImpl implements WeblogManager {
         // remove associated templates
         TypedQuery<WeblogTemplate> templateQuery = strategy.getNamedQuery("WeblogTemplate.getByWeblog",
                 WeblogTemplate.class);
-        templateQuery.setParameter(1, weblog);
+        templateQuery.setParameter(1, weblog.getId());
         List<WeblogTemplate> templates = templateQuery.getResultList();
 
         for (WeblogTemplate template : templates) {
@@ -210,6 +227,7 @@ public class JPAWeblogManagerImpl implements WeblogManager {
         Query removeCategories= strategy.getNamedUpdate("WeblogCategory.removeByWeblog");
         removeCategories.setParameter(1, weblog);
         removeCategories.executeUpdate();
+        strategy.evict(WeblogCategory.class);
 
         // remove permissions
         for (WeblogPermission perm : umgr.getWeblogPermissions(weblog)) {
@@ -221,17 +239,15 @@ public class JPAWeblogManagerImpl implements WeblogManager {
         this.strategy.flush();        
     }
     
-    protected void updateTagAggregates(List<TagStat> tags) throws WebloggerException {
+    protected void updateTagAggregates(Weblog weblog, List<TagStat> tags)
+    throws WebloggerException {
+        Map<String, Integer> tagDeltas = new HashMap<String, Integer>();
         for (TagStat stat : tags) {
-            TypedQuery<WeblogEntryTagAggregate> query = strategy.getNamedQueryCommitFirst(
-                    "WeblogEntryTagAggregate.getByName&WebsiteNullOrderByLastUsedDesc", WeblogEntryTagAggregate.class);
-            query.setParameter(1, stat.getName());
-            try {
-                WeblogEntryTagAggregate agg = query.getSingleResult();
-                agg.setTotal(agg.getTotal() - stat.getCount());
-            } catch (NoResultException ignored) {
-                // nothing to update
-            }
+            tagDeltas.put(stat.getName(), -stat.getCount());
+        }
+        if (!tagDeltas.isEmpty()) {
+            roller.getWeblogEntryManager().updateTagAggregates(
+                    Collections.singletonMap(weblog.getId(), tagDeltas));
         }
     }
     
@@ -262,6 +278,9 @@ public class JPAWeblogManagerImpl implements WeblogManager {
         this.strategy.store(newWeblog);
         this.strategy.flush();
         this.addWeblogContents(newWeblog);
+        
+        // the handle may be cached as unknown
+        this.weblogHandleToIdMap.remove(newWeblog.getHandle());
     }
     
     private void addWeblogContents(Weblog newWeblog)
@@ -362,9 +381,13 @@ public class JPAWeblogManagerImpl implements WeblogManager {
         
         // check cache first
         // NOTE: if we ever allow changing handles then this needs updating
-        if(this.weblogHandleToIdMap.containsKey(handle)) {
+        String weblogId = this.weblogHandleToIdMap.lookup(handle);
+        if (LookupCache.MISSING.equals(weblogId)) {
+            log.debug("weblogHandleToId CACHE HIT (unknown) - "+handle);
+            return null;
+        } else if (weblogId != null) {
             
-            Weblog weblog = this.getWeblog(this.weblogHandleToIdMap.get(handle));
+            Weblog weblog = this.getWeblog(weblogId);
             if (weblog != null) {
                 // only return weblog if enabled status matches
                 if(visible == null || visible.equals(weblog.getVisible())) {
@@ -387,9 +410,11 @@ public class JPAWeblogManagerImpl implements WeblogManager {
         }
         
         // add mapping to cache
+        log.debug("weblogHandleToId CACHE MISS - "+handle);
         if(weblog != null) {
-            log.debug("weblogHandleToId CACHE MISS - "+handle);
             this.weblogHandleToIdMap.put(weblog.getHandle(), weblog.getId());
+        } else {
+            this.weblogHandleToIdMap.putMissing(handle);
         }
         
         if(weblog != null &&
@@ -519,7 +544,7 @@ public class JPAWeblogManagerImpl implements WeblogManager {
 
         TypedQuery<WeblogTemplate> query = strategy.getNamedQuery("WeblogTemplate.getByWeblog&Link",
                 WeblogTemplate.class);
-        query.setParameter(1, weblog);
+        query.setParameter(1, weblog.getId());
         query.setParameter(2, templateLink);
         try {
             return query.getSingleResult();
@@ -544,7 +569,7 @@ public class JPAWeblogManagerImpl implements WeblogManager {
         
         TypedQuery<WeblogTemplate> query = strategy.getNamedQuery("WeblogTemplate.getByAction",
                 WeblogTemplate.class);
-        query.setParameter(1, weblog);
+        query.setParameter(1, weblog.getId());
         query.setParameter(2, action);
         try {
             return query.getSingleResult();
@@ -569,7 +594,7 @@ public class JPAWeblogManagerImpl implements WeblogManager {
         
         TypedQuery<WeblogTemplate> query = strategy.getNamedQuery("WeblogTemplate.getByWeblog&Name",
                 WeblogTemplate.class);
-        query.setParameter(1, weblog);
+        query.setParameter(1, weblog.getId());
         query.setParameter(2, templateName);
         try {
             return query.getSingleResult();
@@ -32,6 +32,7 @@ import org.apache.roller.planet.business.jpa.JPAPlanetManagerImpl;
 import org.apache.roller.weblogger.business.BookmarkManager;
 import org.apache.roller.weblogger.business.FileContentManager;
 import org.apache.roller.weblogger.business.FileContentManagerImpl;
+import org.apache.roller.weblogger.business.HashedFileContentManagerImpl;
 import org.apache.roller.weblogger.business.MediaFileManager;
 import org.apache.roller.weblogger.business.MultiWeblogURLStrategy;
 import org.apache.roller.weblogger.business.OAuthManager;
@@ -51,6 +52,7 @@ import org.apache.roller.weblogger.business.search.IndexManager;
 import org.apache.roller.weblogger.business.search.IndexManagerImpl;
 import org.apache.roller.weblogger.business.themes.ThemeManager;
 import org.apache.roller.weblogger.business.themes.ThemeManagerImpl;
+import org.apache.roller.weblogger.config.WebloggerConfig;
 import org.apache.roller.weblogger.planet.business.WebloggerRomeFeedFetcher;
 
 
@@ -79,7 +81,11 @@ public class JPAWebloggerModule implements Module {
         binder.bind(OAuthValidator.class).to(      SimpleOAuthValidator.class);
                 
         binder.bind(MediaFileManager.class).to(    JPAMediaFileManagerImpl.class);
-        binder.bind(FileContentManager.class).to(  FileContentManagerImpl.class);
+        if ("hashed".equals(WebloggerConfig.getProperty("mediafiles.storage.layout"))) {
+            binder.bind(FileContentManager.class).to(HashedFileContentManagerImpl.class);
+        } else {
+            binder.bind(FileContentManager.class).to(FileContentManagerImpl.class);
+        }
         binder.bind(IndexManager.class).to(        IndexManagerImpl.class);
         binder.bind(PluginManager.class).to(       PluginManagerImpl.class);    
         binder.bind(ThemeManager.class).to(        ThemeManagerImpl.class);
@@ -18,11 +18,25 @@
 
 package org.apache.roller.weblogger.business.pings;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.WebloggerFactory;
+import org.apache.roller.weblogger.business.runnable.ThreadManager;
 import org.apache.roller.weblogger.config.PingConfig;
 import org.apache.roller.weblogger.config.WebloggerRuntimeConfig;
 import org.apache.roller.weblogger.pojos.PingQueueEntry;
@@ -33,6 +47,11 @@ import org.apache.roller.weblogger.pojos.Weblog;
 /**
  * Ping Queue Processor.  Singleton encapsulating logic for processing the weblog update ping queue.
  *
+ * Queue entries are grouped by ping target and the pings are sent on the ping thread pool, with a limit on how many
+ * go to the same target at once, so that one slow target doesn't hold up the pings for all the others.  A target
+ * which keeps failing is left alone for a while, its queued pings wait for it without using up their attempts.
+ * The outcome of all the pings is written back to the queue once the pass is over.
+ *
  * @author <a href="mailto:anil@busybuddha.org">Anil Gangolli</a>
  */
 public final class PingQueueProcessor {
@@ -43,6 +62,9 @@ public final class PingQueueProcessor {
     
     private PingQueueManager pingQueueMgr;
     
+    // how each ping target has been doing, keyed by ping url
+    private final Map<String, TargetStats> targetStats = new ConcurrentHashMap<String, TargetStats>();
+    
     
     public static PingQueueProcessor getInstance() {
         return theInstance;
@@ -74,7 +96,7 @@ public final class PingQueueProcessor {
     /**
      * Process the ping queue.  Performs one pass through the ping queue, processing every entry once.  On ping failure
      * an entry is requeued for processing on subsequent passes until the configured maximum number of attempts is
-     * reached.
+     * reached.  Entries for a ping target which is being left alone because of repeated failures are left as they are.
      */
     public synchronized void processQueue() {
         if (PingConfig.getSuspendPingProcessing()) {
@@ -88,11 +110,6 @@ public final class PingQueueProcessor {
             return;
         }
         
-        // TODO: Group by ping target and ping all sites for that target?
-        // We're currently not taking advantage of grouping by ping target site and then sending
-        // all of the pings for that target at once.  If it becomes an efficiency issue, we should do
-        // that.
-        
         try {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Started processing ping queue.");
@@ -100,9 +117,43 @@ public final class PingQueueProcessor {
             // Get all of the entries
             List<PingQueueEntry> entries = pingQueueMgr.getAllQueueEntries();
             
-            // Process each entry
+            if (PingConfig.getLogPingsOnly()) {
+                // Just log the pings and pretend they succeeded.
+                for (PingQueueEntry pingQueueEntry : entries) {
+                    LOGGER.info("Logging simulated ping for ping queue entry " + pingQueueEntry);
+                    pingQueueMgr.removeQueueEntry(pingQueueEntry);
+                }
+                return;
+            }
+            
+            // Group the entries by ping target, only pinging a target once for each weblog
+            Map<String, List<Ping>> pingsByTarget = new LinkedHashMap<String, List<Ping>>();
+            Set<String> seen = new HashSet<String>();
             for (PingQueueEntry pingQueueEntry : entries) {
-                processQueueEntry(pingQueueEntry);
+                PingTarget pingTarget = pingQueueEntry.getPingTarget();
+                if (!seen.add(pingTarget.getId() + "/" + pingQueueEntry.getWebsite().getId())) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Removing duplicate ping queue entry: " + pingQueueEntry);
+                    }
+                    pingQueueMgr.removeQueueEntry(pingQueueEntry);
+                    continue;
+                }
+                
+                List<Ping> pings = pingsByTarget.get(pingTarget.getPingUrl());
+                if (pings == null) {
+                    pings = new ArrayList<Ping>();
+                    pingsByTarget.put(pingTarget.getPingUrl(), pings);
+                }
+                pings.add(new Ping(pingQueueEntry));
+            }
+            
+            sendPings(pingsByTarget);
+            
+            // Record the results, the caller flushes them all in one go
+            for (List<Ping> pings : pingsByTarget.values()) {
+                for (Ping ping : pings) {
+                    recordResult(ping);
+                }
             }
 
             if (LOGGER.isDebugEnabled()) {
@@ -115,43 +166,94 @@ public final class PingQueueProcessor {
     
     
     /**
-     * Process an individual ping queue entry.
-     *
-     * @param pingQueueEntry     the ping queue entry
-     * @throws WebloggerException only if there are problems processing the queue.  Exceptions from sending pings are
-     *                         handled, not thrown.
+     * Send the pings for each target on the ping thread pool, and wait for them.
      */
-    private void processQueueEntry(PingQueueEntry pingQueueEntry) throws WebloggerException {
-        if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Processing ping queue entry: " + pingQueueEntry);
+    private void sendPings(Map<String, List<Ping>> pingsByTarget) throws InterruptedException {
+        
+        int perTarget = PingConfig.getMaxConcurrentPingsPerTarget();
+        List<PingRun> runs = new ArrayList<PingRun>();
+        int longestRun = 0;
+        
+        for (Map.Entry<String, List<Ping>> target : pingsByTarget.entrySet()) {
+            List<Ping> pings = target.getValue();
+            TargetStats stats = getTargetStats(target.getKey(), pings.get(0).pingTargetName);
+            if (stats.isOpen()) {
+                LOGGER.info("Ping target " + target.getKey() + " has been failing, leaving "
+                        + pings.size() + " pings queued for later");
+                stats.skipped(pings.size());
+                continue;
+            }
+            
+            // share the pings out between as many runs as we may ping the target at once
+            int count = Math.min(perTarget, pings.size());
+            List<List<Ping>> shares = new ArrayList<List<Ping>>(count);
+            for (int i = 0; i < count; i++) {
+                shares.add(new ArrayList<Ping>());
+            }
+            for (int i = 0; i < pings.size(); i++) {
+                shares.get(i % count).add(pings.get(i));
+            }
+            for (List<Ping> share : shares) {
+                runs.add(new PingRun(share, stats));
+                longestRun = Math.max(longestRun, share.size());
+            }
         }
         
-        PingTarget pingTarget = pingQueueEntry.getPingTarget();
-        Weblog website = pingQueueEntry.getWebsite();
-        boolean pingSucceeded = false;
-        if (PingConfig.getLogPingsOnly()) {
-            // Just log the ping and pretend it succeeded.
-            LOGGER.info("Logging simulated ping for ping queue entry " + pingQueueEntry);
-            pingSucceeded = true;
-        } else {
-            // Actually process the ping
+        if (runs.isEmpty()) {
+            return;
+        }
+        
+        Batch batch = new Batch(runs.size());
+        ThreadManager threadManager = WebloggerFactory.getWeblogger().getThreadManager();
+        for (final PingRun run : runs) {
+            run.batch = batch;
             try {
-                // Send the ping
-                WeblogUpdatePinger.sendPing(pingTarget, website);
-                // Consider successful ping transmission if we didn't get an exception.  We don't care here
-                // about the result of the ping if it was transmitted.
-                pingSucceeded = true;
-            } catch (Exception ex) {
-                // Handle the ping error, either removing or requeuing the ping queue entry.
-                handlePingError(pingQueueEntry, ex);
+                // a full pool which discards work cancels the task, so we
+                // don't wait on a run which is never going to happen
+                threadManager.executeInBackground(ThreadManager.PING_POOL, new FutureTask<Object>(run, null) {
+                    @Override
+                    protected void done() {
+                        if (isCancelled()) {
+                            run.rejected();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                run.rejected();
             }
         }
-        // We do this outside of the previous try-catch because we don't want an exception here to be considered a ping error.
-        if (pingSucceeded) {
+        
+        // each ping may take up to the timeout to connect, and again to reply
+        long timeout = (2L * longestRun + 1) * PingConfig.getPingTimeoutSecs();
+        try {
+            if (!batch.latch.await(timeout, TimeUnit.SECONDS)) {
+                LOGGER.warn("Gave up waiting for pings after " + timeout
+                        + " seconds, unfinished pings stay queued for the next pass");
+            }
+        } finally {
+            // from here on the results are ours, anything finishing late is ignored
+            batch.close();
+        }
+    }
+    
+    
+    /**
+     * Remove the queue entry for a ping which went through, deal with the ones which didn't.
+     */
+    private void recordResult(Ping ping) throws WebloggerException {
+        if (!ping.done) {
+            // never sent, try again next time
+            return;
+        }
+        
+        if (ping.error == null) {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Processed ping: " + pingQueueEntry);
+                LOGGER.debug("Processed ping: " + ping.entry);
             }
-            pingQueueMgr.removeQueueEntry(pingQueueEntry);
+            pingQueueMgr.removeQueueEntry(ping.entry);
+        } else {
+            // Handle the ping error, either removing or requeuing the ping queue entry.
+            handlePingError(ping.entry, ping.error);
         }
     }
     
@@ -177,7 +279,215 @@ public final class PingQueueProcessor {
             LOGGER.warn("Error on ping attempt (" + pingQueueEntry.getAttempts() + ") for " + pingQueueEntry + ": [" + ex.getMessage() + "].  Entry will be REMOVED from ping queue.");
             LOGGER.debug("Error on last ping attempt was: ", ex);
             pingQueueMgr.removeQueueEntry(pingQueueEntry);
-            // TODO: mark ping target invalid?
+        }
+    }
+    
+    
+    private TargetStats getTargetStats(String pingUrl, String name) {
+        TargetStats stats = targetStats.get(pingUrl);
+        if (stats == null) {
+            stats = new TargetStats(name);
+            targetStats.put(pingUrl, stats);
+        }
+        return stats;
+    }
+    
+    
+    /**
+     * Get latency and failure statistics for each ping target we have pinged, keyed by ping url.
+     */
+    public Map<String, Map<String, Object>> getTargetStats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, TargetStats> target : targetStats.entrySet()) {
+            stats.put(target.getKey(), target.getValue().getStats());
+        }
+        return stats;
+    }
+    
+    
+    /**
+     * A ping to send.  Everything needed to send it is copied out of the queue entry up front, the entry itself is
+     * only touched by the thread processing the queue.
+     */
+    private static class Ping {
+        
+        private final PingQueueEntry entry;
+        private final String pingTargetName;
+        private final String pingTargetUrl;
+        private final String websiteName;
+        private final String websiteUrl;
+        
+        // only set through the Batch, and only read once it is closed
+        private boolean done = false;
+        private Exception error = null;
+        
+        Ping(PingQueueEntry entry) {
+            this.entry = entry;
+            PingTarget pingTarget = entry.getPingTarget();
+            Weblog website = entry.getWebsite();
+            this.pingTargetName = pingTarget.getName();
+            this.pingTargetUrl = pingTarget.getPingUrl();
+            this.websiteName = website.getName();
+            this.websiteUrl = website.getAbsoluteURL();
+        }
+    }
+    
+    
+    /**
+     * The runs of one pass, which hands the results over to the queue
+     * processing thread when it stops waiting for them.
+     */
+    private static class Batch {
+        
+        private final CountDownLatch latch;
+        private boolean closed = false;
+        
+        Batch(int runs) {
+            this.latch = new CountDownLatch(runs);
+        }
+        
+        synchronized boolean isClosed() {
+            return closed;
+        }
+        
+        synchronized void record(Ping ping, Exception error) {
+            if (!closed) {
+                ping.done = true;
+                ping.error = error;
+            }
+        }
+        
+        synchronized void close() {
+            closed = true;
+        }
+    }
+    
+    
+    /**
+     * Sends some of the pings for one target, one after the other.
+     */
+    private static class PingRun implements Runnable {
+        
+        private final List<Ping> pings;
+        private final TargetStats stats;
+        private Batch batch = null;
+        
+        PingRun(List<Ping> pings, TargetStats stats) {
+            this.pings = pings;
+            this.stats = stats;
+        }
+        
+        /**
+         * The pool had no room for us, the pings stay queued for next time.
+         */
+        void rejected() {
+            stats.skipped(pings.size());
+            batch.latch.countDown();
+        }
+        
+        public void run() {
+            try {
+                for (Ping ping : pings) {
+                    if (batch.isClosed()) {
+                        // nobody is waiting for the results any more
+                        break;
+                    }
+                    if (stats.isOpen()) {
+                        // the target started failing while we were at it
+                        stats.skipped(1);
+                        continue;
+                    }
+                    
+                    long start = System.currentTimeMillis();
+                    Exception error = null;
+                    try {
+                        // Consider successful ping transmission if we didn't get an exception.  We don't care here
+                        // about the result of the ping if it was transmitted.
+                        WeblogUpdatePinger.sendPing(ping.pingTargetUrl, ping.websiteName, ping.websiteUrl);
+                        stats.succeeded(System.currentTimeMillis() - start);
+                    } catch (Exception ex) {
+                        error = ex;
+                        stats.failed(System.currentTimeMillis() - start, ex);
+                    }
+                    batch.record(ping, error);
+                }
+            } finally {
+                batch.latch.countDown();
+            }
+        }
+    }
+    
+    
+    /**
+     * Keeps track of how a ping target is doing, and stops us pinging it for a while once it has failed too many
+     * times in a row.
+     */
+    private static class TargetStats {
+        
+        private final String name;
+        
+        private long pings = 0;
+        private long failures = 0;
+        private long skipped = 0;
+        private int failuresInARow = 0;
+        private long totalMillis = 0;
+        private long maxMillis = 0;
+        private long openUntil = 0;
+        private String lastError = null;
+        private Date lastErrorTime = null;
+        
+        TargetStats(String name) {
+            this.name = name;
+        }
+        
+        synchronized boolean isOpen() {
+            return System.currentTimeMillis() < openUntil;
+        }
+        
+        synchronized void succeeded(long millis) {
+            record(millis);
+            failuresInARow = 0;
+            openUntil = 0;
+        }
+        
+        synchronized void failed(long millis, Exception ex) {
+            record(millis);
+            failures++;
+            lastError = ex.getMessage();
+            lastErrorTime = new Date();
+            
+            // once tripped, a single failure after the wait trips it again
+            if (++failuresInARow >= PingConfig.getCircuitBreakerFailures()) {
+                int openMins = PingConfig.getCircuitBreakerOpenMins();
+                openUntil = System.currentTimeMillis() + openMins * (long) RollerConstants.MIN_IN_MS;
+                LOGGER.warn("Ping target " + name + " failed " + failuresInARow
+                        + " times in a row, not pinging it for " + openMins + " minutes");
+            }
+        }
+        
+        synchronized void skipped(int count) {
+            skipped += count;
+        }
+        
+        private void record(long millis) {
+            pings++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+        
+        synchronized Map<String, Object> getStats() {
+            Map<String, Object> stats = new HashMap<String, Object>();
+            stats.put("name", name);
+            stats.put("pings", pings);
+            stats.put("failures", failures);
+            stats.put("failuresInARow", failuresInARow);
+            stats.put("skipped", skipped);
+            stats.put("avgMillis", (pings > 0) ? totalMillis / pings : 0);
+            stats.put("maxMillis", maxMillis);
+            stats.put("suspendedUntil", (openUntil > System.currentTimeMillis()) ? new Date(openUntil) : null);
+            stats.put("lastError", lastError);
+            stats.put("lastErrorTime", lastErrorTime);
+            return stats;
         }
     }
     
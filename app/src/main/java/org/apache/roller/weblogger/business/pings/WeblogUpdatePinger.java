@@ -20,6 +20,7 @@ package org.apache.roller.weblogger.business.pings;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.config.PingConfig;
 import org.apache.roller.weblogger.pojos.PingTarget;
 import org.apache.roller.weblogger.pojos.Weblog;
@@ -98,24 +99,40 @@ public final class WeblogUpdatePinger {
      * @throws XmlRpcException if the XML RPC client throws one
      */
     public static PingResult sendPing(PingTarget pingTarget, Weblog website) throws IOException, XmlRpcException {
-        String websiteUrl = website.getAbsoluteURL();
-        String pingTargetUrl = pingTarget.getPingUrl();
+        return sendPing(pingTarget.getPingUrl(), website.getName(), website.getAbsoluteURL());
+    }
+
+    /**
+     * Send a weblog update ping.  This doesn't touch any persistent objects, so it may be called from any thread.
+     *
+     * @param pingTargetUrl      the ping url of the target site
+     * @param websiteName        the name of the website that changed
+     * @param websiteUrl         the absolute url of the website that changed
+     * @return the result message string sent by the server.
+     * @throws IOException if an IOException occurs during the ping
+     * @throws XmlRpcException if the XML RPC client throws one
+     */
+    public static PingResult sendPing(String pingTargetUrl, String websiteName, String websiteUrl)
+            throws IOException, XmlRpcException {
         Set variantOptions = PingConfig.getVariantOptions(pingTargetUrl);
 
         // Set up the ping parameters.
-        List params = new ArrayList();
+        List<String> params = new ArrayList<String>();
         if (!variantOptions.contains("noname")) {
             // ping variant for icerocket and anyone with similar bug, where we must omit the blog name.
-            params.add(website.getName());
+            params.add(websiteName);
         }
         params.add(websiteUrl);
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Executing ping to '" + pingTargetUrl + "' for website '" + websiteUrl + "' (" + website.getName() + ")" + (variantOptions.isEmpty() ? "" : " with variant options " + variantOptions));
+            LOGGER.debug("Executing ping to '" + pingTargetUrl + "' for website '" + websiteUrl + "' (" + websiteName + ")" + (variantOptions.isEmpty() ? "" : " with variant options " + variantOptions));
         }
 
         // Send the ping.
         XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
         config.setServerURL(new URL(pingTargetUrl));
+        int timeout = PingConfig.getPingTimeoutSecs() * RollerConstants.SEC_IN_MS;
+        config.setConnectionTimeout(timeout);
+        config.setReplyTimeout(timeout);
         XmlRpcClient client = new XmlRpcClient();
         client.setConfig(config);
         PingResult pingResult = parseResult(client.execute("weblogUpdates.ping", params.toArray()));
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business.runnable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A thread pool with a fixed maximum number of threads and a bounded queue,
+ * which keeps track of how busy it is.
+ *
+ * What happens to work submitted while the queue is full depends on the
+ * rejection policy:
+ *
+ *   callerRuns - run it on the submitting thread, slowing the submitter down
+ *   discard    - drop it, with a warning in the log
+ *   abort      - throw a RejectedExecutionException to the submitter
+ *
+ * A discarded task which was handed in through submit() has its Future
+ * cancelled, so nobody waits on it in vain.
+ */
+public class BoundedThreadPool extends ThreadPoolExecutor {
+
+    private static final Log LOG = LogFactory.getLog(BoundedThreadPool.class);
+
+    public static final String CALLER_RUNS = "callerRuns";
+    public static final String DISCARD = "discard";
+    public static final String ABORT = "abort";
+
+    // how long idle threads are kept around
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final String name;
+    private final String rejectionPolicy;
+
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong totalWaitMillis = new AtomicLong(0);
+    private final AtomicLong maxWaitMillis = new AtomicLong(0);
+    private final AtomicLong totalRunMillis = new AtomicLong(0);
+    private final AtomicLong maxRunMillis = new AtomicLong(0);
+
+    // when the task running on each thread was started
+    private final ThreadLocal<Long> startTime = new ThreadLocal<Long>();
+
+
+    /**
+     * @param name name of the pool, used for naming its threads.
+     * @param threads maximum number of threads.
+     * @param queueSize maximum number of tasks waiting for a thread.
+     * @param rejectionPolicy one of CALLER_RUNS, DISCARD or ABORT.
+     */
+    public BoundedThreadPool(String name, int threads, int queueSize,
+            String rejectionPolicy) {
+
+        super(Math.max(1, threads), Math.max(1, threads), KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new NamedThreadFactory(name));
+
+        this.name = name;
+        this.rejectionPolicy = (DISCARD.equals(rejectionPolicy) || ABORT.equals(rejectionPolicy))
+                ? rejectionPolicy : CALLER_RUNS;
+        setRejectedExecutionHandler(new Rejector());
+
+        // don't keep threads around for pools which are rarely used
+        allowCoreThreadTimeOut(true);
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    @Override
+    public void execute(Runnable command) {
+        submitted.incrementAndGet();
+        super.execute(new TimedTask(command));
+    }
+
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        super.beforeExecute(thread, task);
+
+        long now = System.currentTimeMillis();
+        if (task instanceof TimedTask) {
+            long waited = now - ((TimedTask) task).queuedAt;
+            totalWaitMillis.addAndGet(waited);
+            updateMax(maxWaitMillis, waited);
+        }
+        startTime.set(now);
+    }
+
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable t) {
+        super.afterExecute(task, t);
+
+        Long started = startTime.get();
+        if (started != null) {
+            long ran = System.currentTimeMillis() - started;
+            totalRunMillis.addAndGet(ran);
+            updateMax(maxRunMillis, ran);
+            startTime.remove();
+        }
+
+        if (t != null) {
+            LOG.error("Uncaught exception in " + name + " thread pool", t);
+        }
+    }
+
+
+    /**
+     * Get some statistics about this pool.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+
+        long completed = getCompletedTaskCount();
+        stats.put("maxThreads", getMaximumPoolSize());
+        stats.put("threads", getPoolSize());
+        stats.put("activeThreads", getActiveCount());
+        stats.put("queueDepth", getQueue().size());
+        stats.put("queueCapacity", getQueue().size() + getQueue().remainingCapacity());
+        stats.put("rejectionPolicy", rejectionPolicy);
+        stats.put("submitted", submitted.get());
+        stats.put("completed", completed);
+        stats.put("rejected", rejected.get());
+        stats.put("avgWaitMillis", (completed > 0) ? totalWaitMillis.get() / completed : 0);
+        stats.put("maxWaitMillis", maxWaitMillis.get());
+        stats.put("avgRunMillis", (completed > 0) ? totalRunMillis.get() / completed : 0);
+        stats.put("maxRunMillis", maxRunMillis.get());
+
+        return stats;
+    }
+
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+
+    /**
+     * Remembers when a task was queued.
+     */
+    private static class TimedTask implements Runnable {
+
+        private final Runnable task;
+        private final long queuedAt = System.currentTimeMillis();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        public void run() {
+            task.run();
+        }
+    }
+
+
+    private class Rejector implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            rejected.incrementAndGet();
+
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException(
+                        "Thread pool " + name + " has been shut down");
+            }
+
+            if (CALLER_RUNS.equals(rejectionPolicy)) {
+                // back-pressure, the submitter has to do the work itself
+                task.run();
+            } else if (DISCARD.equals(rejectionPolicy)) {
+                LOG.warn("Thread pool " + name + " is full, discarding task");
+                Runnable discarded = (task instanceof TimedTask) ? ((TimedTask) task).task : task;
+                if (discarded instanceof Future) {
+                    ((Future<?>) discarded).cancel(false);
+                }
+            } else {
+                throw new RejectedExecutionException(
+                        "Thread pool " + name + " is full");
+            }
+        }
+    }
+
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        NamedThreadFactory(String name) {
+            this.prefix = "Roller " + name + " thread ";
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
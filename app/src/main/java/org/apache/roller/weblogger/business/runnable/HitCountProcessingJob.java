@@ -18,8 +18,6 @@
 
 package org.apache.roller.weblogger.business.runnable;
 
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,9 +25,6 @@ import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.HitCountQueue;
 import org.apache.roller.weblogger.business.WebloggerFactory;
-import org.apache.roller.weblogger.business.WeblogEntryManager;
-import org.apache.roller.weblogger.business.WeblogManager;
-import org.apache.roller.weblogger.pojos.Weblog;
 
 
 /**
@@ -52,48 +47,32 @@ public class HitCountProcessingJob implements Job {
      */
     public void execute() {
         
-        WeblogManager wmgr = WebloggerFactory.getWeblogger().getWeblogManager();
-        WeblogEntryManager emgr = WebloggerFactory.getWeblogger().getWeblogEntryManager();
-        
         HitCountQueue hitCounter = HitCountQueue.getInstance();
         
-        // first get the current set of hits
-        List<String> currentHits = hitCounter.getHits();
-        
-        // now reset the queued hits
-        hitCounter.resetHits();
-        
-        // tally the counts, grouped by weblog handle
-        Map<String, Long> hitsTally = new HashMap<String, Long>();
-        for (String weblogHandle : currentHits) {
-            Long count = hitsTally.get(weblogHandle);
-            if(count == null) {
-                count = 1L;
-            } else {
-                count = count + 1;
-            }
-            hitsTally.put(weblogHandle, count);
+        // take the current hits, tallied by weblog handle
+        Map<String, Long> hitsTally = hitCounter.drainHits();
+        if(hitsTally.isEmpty()) {
+            return;
         }
-
-        // iterate over the tallied hits and store them in the db
+        
+        // store them in the db
         try {
             long startTime = System.currentTimeMillis();
             
-            Weblog weblog;
-            for (Map.Entry<String, Long> entry : hitsTally.entrySet()) {
-                try {
-                    weblog = wmgr.getWeblogByHandle(entry.getKey());
-                    emgr.incrementHitCount(weblog, entry.getValue().intValue());
-                } catch (WebloggerException ex) {
-                    log.error(ex);
-                }
-            }
+            WebloggerFactory.getWeblogger().getWeblogEntryManager()
+                    .incrementHitCounts(hitsTally);
 
             // flush the results to the db
             WebloggerFactory.getWeblogger().flush();
             
             long endTime = System.currentTimeMillis();
             
+            long hits = 0;
+            for (Long count : hitsTally.values()) {
+                hits += count;
+            }
+            hitCounter.recordFlush(hits, endTime - startTime);
+            
             log.debug("Completed: "+ (endTime-startTime)/ RollerConstants.SEC_IN_MS + " secs");
             
         } catch (WebloggerException ex) {
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business.runnable;
+
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.weblogger.WebloggerException;
+import org.apache.roller.weblogger.business.TagAggregateQueue;
+import org.apache.roller.weblogger.business.WebloggerFactory;
+
+
+/**
+ * A job which gathers the currently queued tag count changes from the
+ * TagAggregateQueue and applies them to the tag aggregates in the database.
+ */
+public class TagAggregateProcessingJob implements Job {
+    
+    private static Log log = LogFactory.getLog(TagAggregateProcessingJob.class);
+    
+    
+    public TagAggregateProcessingJob() {}
+    
+    
+    /**
+     * Execute the job.
+     *
+     * Changes which could not be applied are put back on the queue, so they
+     * are tried again next time.
+     */
+    public void execute() {
+        
+        TagAggregateQueue queue = TagAggregateQueue.getInstance();
+        
+        Map<String, Map<String, Integer>> deltas = queue.drainDeltas();
+        if(deltas.isEmpty()) {
+            return;
+        }
+        
+        try {
+            long startTime = System.currentTimeMillis();
+            
+            WebloggerFactory.getWeblogger().getWeblogEntryManager()
+                    .updateTagAggregates(deltas);
+
+            // flush the results to the db
+            WebloggerFactory.getWeblogger().flush();
+            
+            long endTime = System.currentTimeMillis();
+            
+            long changes = 0;
+            for (Map<String, Integer> weblogDeltas : deltas.values()) {
+                changes += weblogDeltas.size();
+            }
+            queue.recordFlush(changes, endTime - startTime);
+            
+            log.debug("Completed: "+ (endTime-startTime)/ RollerConstants.SEC_IN_MS + " secs");
+            
+        } catch (WebloggerException ex) {
+            log.error("Error persisting tag aggregate changes, will retry", ex);
+            queue.requeueDeltas(deltas);
+        } finally {
+            // release session
+            WebloggerFactory.getWeblogger().release();
+        }
+    }
+    
+    
+    public void input(Map<String, Object> input) {
+        // no-op
+    }
+    
+    public Map<String, Object> output() {
+        return null;
+    }
+    
+}
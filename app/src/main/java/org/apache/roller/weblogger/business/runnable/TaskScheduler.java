@@ -22,8 +22,6 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,8 +30,6 @@ import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.pojos.TaskLock;
 
-import static org.apache.roller.util.RollerConstants.GRACEFUL_SHUTDOWN_WAIT_IN_SECONDS;
-
 
 /**
  * Manages scheduling of periodic tasks.
@@ -44,8 +40,8 @@ import static org.apache.roller.util.RollerConstants.GRACEFUL_SHUTDOWN_WAIT_IN_S
  * the scheduler will launch any tasks that need to be executed.  
  * 
  * Tasks are executed each on their own thread, so this scheduler does not run
- * serially like a TimerTask.  The threads used for running tasks are managed
- * by an instance of a ThreadPoolExecutor.
+ * serially like a TimerTask.  The threads used for running tasks come from
+ * the pool handed to the scheduler, which is owned by the ThreadManager.
  */
 public class TaskScheduler implements Runnable {
     
@@ -54,13 +50,13 @@ public class TaskScheduler implements Runnable {
     private final List<RollerTask> tasks;
     
     
-    public TaskScheduler(List<RollerTask> webloggerTasks) {
+    public TaskScheduler(List<RollerTask> webloggerTasks, ExecutorService taskPool) {
         
         // store list of tasks available to run
         tasks = webloggerTasks;
         
-        // use an expanding thread executor pool
-        pool = Executors.newCachedThreadPool();
+        // the thread manager takes care of shutting this down
+        pool = taskPool;
     }
     
     
@@ -119,15 +115,6 @@ public class TaskScheduler implements Runnable {
                 break;
             }
         }
-
-        // thread interrupted
-        pool.shutdownNow();
-        try {
-            pool.awaitTermination(GRACEFUL_SHUTDOWN_WAIT_IN_SECONDS, TimeUnit.SECONDS);
-            log.debug("TaskScheduler executor was terminated successfully");
-        } catch (InterruptedException e) {
-            log.debug(e.getMessage(), e);
-        }
     }
     
     
@@ -186,7 +173,7 @@ public class TaskScheduler implements Runnable {
                 long differential = currentTime.getTime() - nextRunTime.getTime();
                 if (differential >= 0 && !needToWait) {
                     log.debug(task.getName()+": LAUNCHING task");
-                    pool.submit(task);
+                    pool.execute(task);
                 }
             } catch (ThreadDeath t) {
                 throw t;
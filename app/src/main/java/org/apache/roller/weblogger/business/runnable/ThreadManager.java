@@ -18,6 +18,7 @@
 
 package org.apache.roller.weblogger.business.runnable;
 
+import java.util.Map;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.InitializationException;
 import org.apache.roller.weblogger.pojos.TaskLock;
@@ -30,6 +31,27 @@ public interface ThreadManager {
     
     long MIN_RATE_INTERVAL_MINS = 1;
     
+    /** Pool used when no pool is named. */
+    String DEFAULT_POOL = "default";
+    
+    /** Pool for making image thumbnails and resized copies. */
+    String IMAGE_POOL = "image";
+    
+    /** Pool for search index operations. */
+    String INDEX_POOL = "index";
+    
+    /** Pool for sending mail. */
+    String MAIL_POOL = "mail";
+    
+    /** Pool for sending weblog update pings. */
+    String PING_POOL = "ping";
+    
+    /** Pool for fetching planet feeds. */
+    String PLANET_POOL = "planet";
+    
+    /** Pool which runs the scheduled RollerTasks. */
+    String TASKS_POOL = "tasks";
+    
     
     /**
      * Initialize the thread management system.
@@ -55,6 +77,33 @@ public interface ThreadManager {
         throws InterruptedException;
     
     
+    /**
+     * Execute runnable in background (asynchronously) on the named pool.
+     *
+     * Each pool has a bounded queue, what happens when it is full depends on
+     * the pool's rejection policy.  Unknown pool names use the default pool.
+     */
+    void executeInBackground(String pool, Runnable runnable)
+        throws InterruptedException;
+    
+    
+    /**
+     * Execute runnable in foreground (synchronously) on the named pool,
+     * waiting no longer than the configured foreground timeout for it.
+     *
+     * If the pool is full this returns right away when the pool discards
+     * work, rather than waiting for a task which will never run.
+     */
+    void executeInForeground(String pool, Runnable runnable)
+        throws InterruptedException;
+    
+    
+    /**
+     * Get statistics for each of the thread pools, keyed by pool name.
+     */
+    Map<String, Map<String, Object>> getPoolStats();
+    
+    
     /**
      * Lookup a TaskLock by name.
      * 
@@ -19,17 +19,20 @@
 package org.apache.roller.weblogger.business.runnable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.InitializationException;
 import org.apache.roller.weblogger.config.WebloggerConfig;
@@ -40,6 +43,12 @@ import static org.apache.roller.util.RollerConstants.GRACEFUL_SHUTDOWN_WAIT_IN_S
 
 /**
  * Manage Roller's thread use.
+ *
+ * Work is split across a few named pools (see ThreadManager) so that, for
+ * example, a flood of pings can't hold up indexing.  Each pool has a fixed
+ * number of threads and a bounded queue, configured with the properties
+ * threads.<pool>.size, threads.<pool>.queueSize and
+ * threads.<pool>.rejectionPolicy.
  */
 @com.google.inject.Singleton
 public abstract class ThreadManagerImpl implements ThreadManager {
@@ -49,15 +58,44 @@ public abstract class ThreadManagerImpl implements ThreadManager {
     // our own scheduler thread
     private Thread schedulerThread = null;
     
-    // a simple thread executor
-    private final ExecutorService serviceScheduler;
+    // our thread pools, keyed by name
+    private final Map<String, BoundedThreadPool> pools;
+    
+    // how long to wait for foreground tasks
+    private final long foregroundTimeout;
     
     
     public ThreadManagerImpl() {
         
         LOG.info("Instantiating Thread Manager");
         
-        serviceScheduler = Executors.newCachedThreadPool();
+        Map<String, BoundedThreadPool> poolMap = new LinkedHashMap<String, BoundedThreadPool>();
+        for (String name : new String[] {DEFAULT_POOL, IMAGE_POOL, INDEX_POOL, MAIL_POOL, PING_POOL,
+                PLANET_POOL, TASKS_POOL}) {
+            poolMap.put(name, createPool(name));
+        }
+        pools = Collections.unmodifiableMap(poolMap);
+        
+        foregroundTimeout = WebloggerConfig.getIntProperty("threads.foregroundTimeout", 300);
+    }
+    
+    
+    private static BoundedThreadPool createPool(String name) {
+        
+        int size = WebloggerConfig.getIntProperty("threads." + name + ".size", 4);
+        int queueSize = WebloggerConfig.getIntProperty("threads." + name + ".queueSize", 100);
+        String policy = WebloggerConfig.getProperty("threads." + name + ".rejectionPolicy");
+        
+        LOG.debug("Creating thread pool " + name + " with " + size
+                + " threads and room for " + queueSize + " queued tasks");
+        
+        return new BoundedThreadPool(name, size, queueSize, policy);
+    }
+    
+    
+    private BoundedThreadPool getPool(String name) {
+        BoundedThreadPool pool = pools.get(name);
+        return (pool != null) ? pool : pools.get(DEFAULT_POOL);
     }
     
     
@@ -108,7 +146,7 @@ public abstract class ThreadManagerImpl implements ThreadManager {
         }
         
         // create scheduler
-        TaskScheduler scheduler = new TaskScheduler(webloggerTasks);
+        TaskScheduler scheduler = new TaskScheduler(webloggerTasks, getPool(TASKS_POOL));
         
         // start scheduler thread, but only if it's not already running
         if (schedulerThread == null) {
@@ -123,20 +161,47 @@ public abstract class ThreadManagerImpl implements ThreadManager {
     
     public void executeInBackground(Runnable runnable)
             throws InterruptedException {
-        serviceScheduler.submit(runnable);
+        executeInBackground(DEFAULT_POOL, runnable);
     }
     
     
     public void executeInForeground(Runnable runnable)
             throws InterruptedException {
-        Future task = serviceScheduler.submit(runnable);
+        executeInForeground(DEFAULT_POOL, runnable);
+    }
+    
+    
+    public void executeInBackground(String pool, Runnable runnable)
+            throws InterruptedException {
+        getPool(pool).execute(runnable);
+    }
+    
+    
+    public void executeInForeground(String pool, Runnable runnable)
+            throws InterruptedException {
         
-        // since this task is really meant to be executed within this calling 
-        // thread, here we can add a little code here to loop until it realizes 
-        // the task is done
-        while(!task.isDone()) {
-            Thread.sleep(RollerConstants.HALF_SEC_IN_MS);
+        Future<?> task = getPool(pool).submit(runnable);
+        try {
+            task.get(foregroundTimeout, TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            // leave it running, but stop holding up the caller
+            LOG.warn("Gave up waiting for task on " + pool + " thread pool after "
+                    + foregroundTimeout + " seconds");
+        } catch (CancellationException ex) {
+            // the pool was full and dropped it
+            LOG.warn("Task was discarded by " + pool + " thread pool");
+        } catch (ExecutionException ex) {
+            LOG.error("Error executing task on " + pool + " thread pool", ex.getCause());
+        }
+    }
+    
+    
+    public Map<String, Map<String, Object>> getPoolStats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<String, Map<String, Object>>();
+        for (BoundedThreadPool pool : pools.values()) {
+            stats.put(pool.getName(), pool.getStats());
         }
+        return stats;
     }
     
     
@@ -144,14 +209,6 @@ public abstract class ThreadManagerImpl implements ThreadManager {
         
         LOG.debug("starting shutdown sequence");
         
-        // trigger an immediate shutdown of any backgrounded tasks
-        serviceScheduler.shutdownNow();
-        try {
-            serviceScheduler.awaitTermination(GRACEFUL_SHUTDOWN_WAIT_IN_SECONDS, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            LOG.debug(e.getMessage(), e);
-        }
-
         // only stop if we are already running
         if(schedulerThread != null) {
             LOG.debug("Stopping scheduler");
@@ -163,6 +220,18 @@ public abstract class ThreadManagerImpl implements ThreadManager {
                 LOG.debug(e.getMessage(), e);
             }
         }
+        
+        // trigger an immediate shutdown of any backgrounded tasks
+        for (BoundedThreadPool pool : pools.values()) {
+            pool.shutdownNow();
+        }
+        for (BoundedThreadPool pool : pools.values()) {
+            try {
+                pool.awaitTermination(GRACEFUL_SHUTDOWN_WAIT_IN_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                LOG.debug(e.getMessage(), e);
+            }
+        }
     }
     
     
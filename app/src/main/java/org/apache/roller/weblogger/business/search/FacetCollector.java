@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+
+/**
+ * Counts the values of a few fields over every document matching a query,
+ * using the doc values written for those fields.
+ *
+ * Counting is done by ordinal for each segment and only turned into strings
+ * when moving on to the next segment, so the cost per matching document is
+ * an array increment per field.  Documents indexed before a field had doc
+ * values are not counted for it.
+ */
+public class FacetCollector extends Collector {
+
+    private final String[] singleFields;
+    private final String[] multiFields;
+
+    // counts by value for each field, over the segments done so far
+    private final Map<String, Map<String, Integer>> counts =
+            new HashMap<String, Map<String, Integer>>();
+
+    // doc values and counts by ordinal for the current segment
+    private SortedDocValues[] singleValues;
+    private int[][] singleCounts;
+    private SortedSetDocValues[] multiValues;
+    private int[][] multiCounts;
+
+
+    /**
+     * @param singleFields fields with one value per document.
+     * @param multiFields fields with any number of values per document.
+     */
+    public FacetCollector(String[] singleFields, String[] multiFields) {
+        this.singleFields = singleFields.clone();
+        this.multiFields = multiFields.clone();
+        for (String field : singleFields) {
+            counts.put(field, new HashMap<String, Integer>());
+        }
+        for (String field : multiFields) {
+            counts.put(field, new HashMap<String, Integer>());
+        }
+    }
+
+
+    public void setScorer(Scorer scorer) {
+        // scores don't matter
+    }
+
+
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+        finishSegment();
+
+        singleValues = new SortedDocValues[singleFields.length];
+        singleCounts = new int[singleFields.length][];
+        for (int i = 0; i < singleFields.length; i++) {
+            singleValues[i] = context.reader().getSortedDocValues(singleFields[i]);
+            if (singleValues[i] != null) {
+                singleCounts[i] = new int[singleValues[i].getValueCount()];
+            }
+        }
+
+        multiValues = new SortedSetDocValues[multiFields.length];
+        multiCounts = new int[multiFields.length][];
+        for (int i = 0; i < multiFields.length; i++) {
+            multiValues[i] = context.reader().getSortedSetDocValues(multiFields[i]);
+            if (multiValues[i] != null) {
+                multiCounts[i] = new int[(int) multiValues[i].getValueCount()];
+            }
+        }
+    }
+
+
+    public void collect(int doc) {
+        for (int i = 0; i < singleFields.length; i++) {
+            if (singleValues[i] != null) {
+                int ord = singleValues[i].getOrd(doc);
+                if (ord >= 0) {
+                    singleCounts[i][ord]++;
+                }
+            }
+        }
+
+        for (int i = 0; i < multiFields.length; i++) {
+            if (multiValues[i] != null) {
+                multiValues[i].setDocument(doc);
+                long ord;
+                while ((ord = multiValues[i].nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                    multiCounts[i][(int) ord]++;
+                }
+            }
+        }
+    }
+
+
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+
+    /**
+     * Get the counts for a field, largest first.
+     *
+     * @param max The maximum number of values to return.
+     */
+    public Map<String, Integer> getCounts(String field, int max) {
+        finishSegment();
+
+        List<Map.Entry<String, Integer>> entries =
+                new ArrayList<Map.Entry<String, Integer>>(counts.get(field).entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                int byCount = b.getValue().compareTo(a.getValue());
+                return (byCount != 0) ? byCount : a.getKey().compareTo(b.getKey());
+            }
+        });
+
+        Map<String, Integer> top = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : entries) {
+            if (top.size() >= max) {
+                break;
+            }
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+
+
+    // fold the counts of the current segment into the totals
+    private void finishSegment() {
+        if (singleValues != null) {
+            for (int i = 0; i < singleFields.length; i++) {
+                if (singleValues[i] != null) {
+                    Map<String, Integer> fieldCounts = counts.get(singleFields[i]);
+                    for (int ord = 0; ord < singleCounts[i].length; ord++) {
+                        if (singleCounts[i][ord] > 0) {
+                            add(fieldCounts, singleValues[i].lookupOrd(ord).utf8ToString(),
+                                    singleCounts[i][ord]);
+                        }
+                    }
+                }
+            }
+            singleValues = null;
+        }
+
+        if (multiValues != null) {
+            for (int i = 0; i < multiFields.length; i++) {
+                if (multiValues[i] != null) {
+                    Map<String, Integer> fieldCounts = counts.get(multiFields[i]);
+                    for (int ord = 0; ord < multiCounts[i].length; ord++) {
+                        if (multiCounts[i][ord] > 0) {
+                            add(fieldCounts, multiValues[i].lookupOrd(ord).utf8ToString(),
+                                    multiCounts[i][ord]);
+                        }
+                    }
+                }
+            }
+            multiValues = null;
+        }
+    }
+
+
+    private static void add(Map<String, Integer> counts, String value, int count) {
+        Integer current = counts.get(value);
+        counts.put(value, (current != null) ? current + count : count);
+    }
+
+}
@@ -47,4 +47,7 @@ public final class FieldConstants {
     public static final String CONSTANT_V = "v";
     public static final String WEBSITE_HANDLE = "handle";
     public static final String LOCALE = "locale";
+    public static final String TAG = "tag";
+    // when the document was written, see RebuildWebsiteIndexOperation
+    public static final String INDEXED = "indexed";
 }
@@ -21,24 +21,31 @@ package org.apache.roller.weblogger.business.search;
 import java.io.File;
 import java.io.IOException;
 
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.miscellaneous.LimitTokenCountAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.InitializationException;
 import org.apache.roller.weblogger.business.Weblogger;
+import org.apache.roller.weblogger.business.runnable.ThreadManager;
 import org.apache.roller.weblogger.business.search.operations.AddEntryOperation;
 import org.apache.roller.weblogger.business.search.operations.IndexOperation;
 import org.apache.roller.weblogger.business.search.operations.ReIndexEntryOperation;
@@ -49,11 +56,22 @@ import org.apache.roller.weblogger.business.search.operations.WriteToIndexOperat
 import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.Weblog;
 import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.util.cache.Cache;
+import org.apache.roller.weblogger.util.cache.CacheManager;
 
 /**
  * Lucene implementation of IndexManager. This is the central entry point into
  * the Lucene searching API.
  * 
+ * A single IndexWriter is kept open for the life of the manager and shared by
+ * all write operations, searches use near-real-time searchers obtained from
+ * that writer which are refreshed after each write. Changes are committed to
+ * the index directory at most every search.index.commitInterval seconds and
+ * on shutdown, in between they are only visible to this instance.
+ * 
+ * Parsed queries and search results are kept in a small cache, which is
+ * cleared whenever a refresh makes changes to the index visible.
+ * 
  * @author Mindaugas Idzelis (min@idzelis.com)
  * @author mraible (formatting and making indexDir configurable)
  */
@@ -62,7 +80,6 @@ public class IndexManagerImpl implements IndexManager {
     // ~ Static fields/initializers
     // =============================================
 
-    private IndexReader reader;
     private final Weblogger roller;
 
     static Log mLogger = LogFactory.getFactory().getInstance(
@@ -83,7 +100,27 @@ public class IndexManagerImpl implements IndexManager {
 
     private boolean inconsistentAtStartup = false;
 
-    private ReadWriteLock rwl = new ReentrantReadWriteLock();
+    // shared by all write operations, see getSharedIndexWriter()
+    private volatile IndexWriter writer = null;
+
+    // hands out searchers over the writer's latest changes
+    private volatile SearcherManager searcherManager = null;
+
+    // how long changes may remain uncommitted
+    private long commitInterval = 60 * RollerConstants.SEC_IN_MS;
+
+    private final AtomicLong lastCommit = new AtomicLong(System.currentTimeMillis());
+
+    // a unique identifier for the search result cache, this is used as the
+    // prefix for roller config properties that apply to this cache
+    public static final String RESULT_CACHE_ID = "cache.searchresults";
+
+    private Cache resultCache = null;
+
+    // parsed queries don't depend on the index, so they outlive refreshes
+    public static final String QUERY_CACHE_ID = "cache.searchqueries";
+
+    private Cache queryCache = null;
 
     // ~ Constructors
     // ===========================================================
@@ -111,6 +148,10 @@ public class IndexManagerImpl implements IndexManager {
         String searchIndexDir = WebloggerConfig.getProperty("search.index.dir");
         this.indexDir = searchIndexDir.replace('/', File.separatorChar);
 
+        int commitSecs = WebloggerConfig.getIntProperty(
+                "search.index.commitInterval", 60);
+        this.commitInterval = commitSecs * (long) RollerConstants.SEC_IN_MS;
+
         // a little debugging
         mLogger.info("search enabled: " + this.searchEnabled);
         mLogger.info("index dir: " + this.indexDir);
@@ -170,6 +211,9 @@ public class IndexManagerImpl implements IndexManager {
                 }
             }
 
+            openIndexWriter();
+            openResultCache();
+
             if (isInconsistentAtStartup()) {
                 mLogger.info("Index was inconsistent. Rebuilding index in the background...");
                 try {
@@ -222,10 +266,6 @@ public class IndexManagerImpl implements IndexManager {
         executeIndexOperationNow(removeOp);
     }
 
-    public ReadWriteLock getReadWriteLock() {
-        return rwl;
-    }
-
     public boolean isInconsistentAtStartup() {
         return inconsistentAtStartup;
     }
@@ -245,7 +285,7 @@ public class IndexManagerImpl implements IndexManager {
             if (this.searchEnabled) {
                 mLogger.debug("Starting scheduled index operation: "
                         + op.getClass().getName());
-                roller.getThreadManager().executeInBackground(op);
+                roller.getThreadManager().executeInBackground(ThreadManager.INDEX_POOL, op);
             }
         } catch (InterruptedException e) {
             mLogger.error("Error executing operation", e);
@@ -261,25 +301,108 @@ public class IndexManagerImpl implements IndexManager {
             if (this.searchEnabled) {
                 mLogger.debug("Executing index operation now: "
                         + op.getClass().getName());
-                roller.getThreadManager().executeInForeground(op);
+                roller.getThreadManager().executeInForeground(ThreadManager.INDEX_POOL, op);
             }
         } catch (InterruptedException e) {
             mLogger.error("Error executing operation", e);
         }
     }
 
-    public synchronized void resetSharedReader() {
-        reader = null;
+    /**
+     * Get the IndexWriter shared by all write operations. The writer is
+     * thread safe and must not be closed by callers, once done writing they
+     * should call indexChanged() to make their changes visible.
+     * 
+     * @return the writer, or null if the index could not be opened.
+     */
+    public IndexWriter getSharedIndexWriter() {
+        return writer;
     }
 
-    public synchronized IndexReader getSharedIndexReader() {
-        if (reader == null) {
+    /**
+     * Make changes made through the shared writer visible to searches and
+     * commit them if the commit interval has passed. This only blocks other
+     * writers, searches keep using the previous searcher until the refresh is
+     * done.
+     */
+    public void indexChanged() {
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            searcherManager.maybeRefreshBlocking();
+        } catch (IOException e) {
+            mLogger.error("Error refreshing index searcher", e);
+        }
+
+        long last = lastCommit.get();
+        long now = System.currentTimeMillis();
+        if (now - last >= commitInterval && lastCommit.compareAndSet(last, now)) {
             try {
-                reader = DirectoryReader.open(getIndexDirectory());
+                writer.commit();
+                mLogger.debug("Committed index changes");
             } catch (IOException e) {
+                mLogger.error("Error committing index changes", e);
             }
         }
-        return reader;
+    }
+
+    /**
+     * Get something cached by a search operation.
+     * 
+     * @param key
+     *            the key, which must include the generation of the index for
+     *            anything that depends on the content of the index.
+     * @return the cached object or null if not found.
+     */
+    public Object getCachedSearch(String key) {
+        return (resultCache != null) ? resultCache.get(key) : null;
+    }
+
+    public void cacheSearch(String key, Object value) {
+        if (resultCache != null) {
+            resultCache.put(key, value);
+        }
+    }
+
+    /**
+     * Get a query parsed by a search operation. Parsed queries are kept
+     * when the index changes.
+     */
+    public Query getCachedQuery(String key) {
+        return (queryCache != null) ? (Query) queryCache.get(key) : null;
+    }
+
+    public void cacheQuery(String key, Query query) {
+        if (queryCache != null) {
+            queryCache.put(key, query);
+        }
+    }
+
+    /**
+     * Get a searcher over the latest changes to the index. Every searcher
+     * acquired must be given back with releaseSearcher() once the caller is
+     * done with it and any documents it returned.
+     * 
+     * @return the searcher, or null if the index could not be opened.
+     */
+    public IndexSearcher acquireSearcher() throws IOException {
+        if (searcherManager == null) {
+            return null;
+        }
+        return searcherManager.acquire();
+    }
+
+    public void releaseSearcher(IndexSearcher searcher) {
+        if (searcher == null || searcherManager == null) {
+            return;
+        }
+        try {
+            searcherManager.release(searcher);
+        } catch (IOException e) {
+            mLogger.error("Error releasing index searcher", e);
+        }
     }
 
     /**
@@ -357,6 +480,86 @@ public class IndexManagerImpl implements IndexManager {
         }
     }
 
+    private void openIndexWriter() {
+        try {
+            // Limit to 1000 tokens.
+            IndexWriterConfig config = new IndexWriterConfig(
+                    FieldConstants.LUCENE_VERSION, new LimitTokenCountAnalyzer(
+                            IndexManagerImpl.getAnalyzer(), 1000));
+
+            writer = new IndexWriter(getIndexDirectory(), config);
+            searcherManager = new SearcherManager(writer, true, null);
+            lastCommit.set(System.currentTimeMillis());
+
+        } catch (IOException e) {
+            mLogger.error("Error opening index writer", e);
+            closeIndexWriter();
+        }
+    }
+
+    private void openResultCache() {
+        if (searcherManager == null
+                || !WebloggerConfig.getBooleanProperty(RESULT_CACHE_ID + ".enabled", true)) {
+            return;
+        }
+
+        Map<String, String> cacheProps = new HashMap<String, String>();
+        cacheProps.put("id", RESULT_CACHE_ID);
+        Enumeration allProps = WebloggerConfig.keys();
+        String prop = null;
+        while (allProps.hasMoreElements()) {
+            prop = (String) allProps.nextElement();
+
+            // we are only interested in props for this cache
+            if (prop.startsWith(RESULT_CACHE_ID + ".")) {
+                cacheProps.put(prop.substring(RESULT_CACHE_ID.length() + 1),
+                        WebloggerConfig.getProperty(prop));
+            }
+        }
+
+        final Cache cache = CacheManager.constructCache(null, cacheProps);
+
+        // parsed queries get the same settings under their own id
+        cacheProps.put("id", QUERY_CACHE_ID);
+        queryCache = CacheManager.constructCache(null, cacheProps);
+
+        searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            public void beforeRefresh() {
+            }
+
+            public void afterRefresh(boolean didRefresh) {
+                // no results can be reused once the index has changed
+                if (didRefresh) {
+                    cache.clear();
+                }
+            }
+        });
+        resultCache = cache;
+    }
+
+    private void closeIndexWriter() {
+        try {
+            if (searcherManager != null) {
+                searcherManager.close();
+            }
+        } catch (IOException e) {
+            mLogger.warn("Unable to close SearcherManager.", e);
+        } finally {
+            searcherManager = null;
+        }
+
+        try {
+            if (writer != null) {
+                // closing commits whatever is still outstanding
+                writer.close();
+            }
+        } catch (IOException e) {
+            mLogger.error("Unable to close IndexWriter.", e);
+        } finally {
+            writer = null;
+        }
+    }
+
     private IndexOperation getSaveIndexOperation() {
         return new WriteToIndexOperation(this) {
             public void doRun() {
@@ -393,19 +596,13 @@ public class IndexManagerImpl implements IndexManager {
     }
 
     public void shutdown() {
+        closeIndexWriter();
+
         if (useRAMIndex) {
             scheduleIndexOperation(getSaveIndexOperation());
         } else {
             indexConsistencyMarker.delete();
         }
-
-        try {
-            if (reader != null) {
-                reader.close();
-            }
-        } catch (IOException e) {
-            // won't happen, since it was
-        }
     }
 
 }
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business.search;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.search.ScoreDoc;
+
+
+/**
+ * One page of results of a search of the index, along with the total number
+ * of hits and facet counts over all of them.
+ *
+ * Instances are immutable and hold no reference to the index, so they can be
+ * cached and used after the searcher which produced them is gone.
+ */
+public class SearchResultList {
+
+    private final int totalHits;
+    private final List<Hit> hits;
+    private final Map<String, Map<String, Integer>> facets;
+
+    // where the next page starts, only valid for the same index generation
+    private final ScoreDoc last;
+
+
+    public SearchResultList(int totalHits, List<Hit> hits,
+            Map<String, Map<String, Integer>> facets, ScoreDoc last) {
+        this.totalHits = totalHits;
+        this.hits = Collections.unmodifiableList(hits);
+        this.facets = Collections.unmodifiableMap(facets);
+        this.last = last;
+    }
+
+
+    /**
+     * Total number of entries matching the search, not just on this page.
+     */
+    public int getTotalHits() {
+        return totalHits;
+    }
+
+    public List<Hit> getHits() {
+        return hits;
+    }
+
+    /**
+     * Counts of matching entries by value, keyed by the facet field.  See
+     * FieldConstants.WEBSITE_HANDLE, CATEGORY, LOCALE and TAG.
+     */
+    public Map<String, Map<String, Integer>> getFacets() {
+        return facets;
+    }
+
+    public Map<String, Integer> getFacet(String field) {
+        Map<String, Integer> facet = facets.get(field);
+        return (facet != null) ? facet : Collections.<String, Integer>emptyMap();
+    }
+
+    public ScoreDoc getLast() {
+        return last;
+    }
+
+
+    /**
+     * A single matching entry.
+     */
+    public static class Hit {
+
+        private final String entryId;
+        private final String weblogHandle;
+        private final String category;
+        private final float score;
+
+        public Hit(String entryId, String weblogHandle, String category, float score) {
+            this.entryId = entryId;
+            this.weblogHandle = weblogHandle;
+            this.category = category;
+            this.score = score;
+        }
+
+        public String getEntryId() {
+            return entryId;
+        }
+
+        public String getWeblogHandle() {
+            return weblogHandle;
+        }
+
+        /**
+         * The category name, in lower case.
+         */
+        public String getCategory() {
+            return category;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+
+}
@@ -18,24 +18,27 @@
 /* Created on Jul 16, 2003 */
 package org.apache.roller.weblogger.business.search.operations;
 
-import java.io.IOException;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.lucene.analysis.miscellaneous.LimitTokenCountAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.util.BytesRef;
 import org.apache.roller.weblogger.business.search.FieldConstants;
 import org.apache.roller.weblogger.business.search.IndexManagerImpl;
 import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.WeblogCategory;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment;
+import org.apache.roller.weblogger.pojos.WeblogEntryTag;
 
 /**
  * This is the base class for all index operation. These operations include:<br>
@@ -54,7 +57,6 @@ public abstract class IndexOperation implements Runnable {
     // ~ Instance fields
     // ========================================================
     protected IndexManagerImpl manager;
-    private IndexWriter writer;
 
     // ~ Constructors
     // ===========================================================
@@ -66,39 +68,56 @@ public abstract class IndexOperation implements Runnable {
     // ================================================================
     protected Document getDocument(WeblogEntry data) {
 
-        // Actual comment content is indexed only if search.index.comments
-        // is true or absent from the (static) configuration properties.
-        // If false in the configuration, comments are treated as if empty.
-        boolean indexComments = WebloggerConfig.getBooleanProperty(
-                "search.index.comments", true);
+        List<WeblogEntryComment> comments = null;
+        if (isIndexComments()) {
+            comments = data.getComments();
+        }
+
+        // don't index deleted/disabled users of a group blog
+        User creator = data.getCreator();
+
+        return getDocument(data, comments,
+                (creator != null) ? creator.getUserName() : null);
+    }
+
+    /**
+     * Build the document for an entry from data which has already been
+     * looked up, so that no database access is needed. This is safe to call
+     * from any thread.
+     * 
+     * @param comments
+     *            the approved comments of the entry, or null if there are none
+     *            or they shouldn't be indexed
+     * @param creatorUserName
+     *            the creator of the entry, or null if it shouldn't be indexed
+     */
+    protected Document getDocument(WeblogEntry data,
+            List<WeblogEntryComment> comments, String creatorUserName) {
 
         String commentContent = "";
         String commentEmail = "";
         String commentName = "";
-        if (indexComments) {
-            List<WeblogEntryComment> comments = data.getComments();
-            if (comments != null) {
-                StringBuilder commentEmailBld = new StringBuilder();
-                StringBuilder commentContentBld = new StringBuilder();
-                StringBuilder commentNameBld = new StringBuilder();
-                for (WeblogEntryComment comment : comments) {
-                    if (comment.getContent() != null) {
-                        commentContentBld.append(comment.getContent());
-                        commentContentBld.append(",");
-                    }
-                    if (comment.getEmail() != null) {
-                        commentEmailBld.append(comment.getEmail());
-                        commentEmailBld.append(",");
-                    }
-                    if (comment.getName() != null) {
-                        commentNameBld.append(comment.getName());
-                        commentNameBld.append(",");
-                    }
+        if (comments != null) {
+            StringBuilder commentEmailBld = new StringBuilder();
+            StringBuilder commentContentBld = new StringBuilder();
+            StringBuilder commentNameBld = new StringBuilder();
+            for (WeblogEntryComment comment : comments) {
+                if (comment.getContent() != null) {
+                    commentContentBld.append(comment.getContent());
+                    commentContentBld.append(",");
+                }
+                if (comment.getEmail() != null) {
+                    commentEmailBld.append(comment.getEmail());
+                    commentEmailBld.append(",");
+                }
+                if (comment.getName() != null) {
+                    commentNameBld.append(comment.getName());
+                    commentNameBld.append(",");
                 }
-                commentEmail = commentEmailBld.toString();
-                commentContent = commentContentBld.toString();
-                commentName = commentNameBld.toString();
             }
+            commentEmail = commentEmailBld.toString();
+            commentContent = commentContentBld.toString();
+            commentName = commentNameBld.toString();
         }
 
         Document doc = new Document();
@@ -107,14 +126,17 @@ public abstract class IndexOperation implements Runnable {
         doc.add(new StringField(FieldConstants.ID, data.getId(),
                 Field.Store.YES));
 
-        // keyword
-        doc.add(new StringField(FieldConstants.WEBSITE_HANDLE, data
-                .getWebsite().getHandle(), Field.Store.YES));
+        // keyword, with doc values for counting
+        String handle = data.getWebsite().getHandle();
+        doc.add(new StringField(FieldConstants.WEBSITE_HANDLE, handle,
+                Field.Store.YES));
+        doc.add(new SortedDocValuesField(FieldConstants.WEBSITE_HANDLE,
+                new BytesRef(handle)));
 
         // text, don't index deleted/disabled users of a group blog
-        if (data.getCreator() != null) {
-            doc.add(new TextField(FieldConstants.USERNAME, data.getCreator()
-                    .getUserName().toLowerCase(), Field.Store.YES));
+        if (creatorUserName != null) {
+            doc.add(new TextField(FieldConstants.USERNAME, creatorUserName
+                    .toLowerCase(), Field.Store.YES));
         }
 
         // text
@@ -122,8 +144,11 @@ public abstract class IndexOperation implements Runnable {
                 Field.Store.YES));
 
         // keyword needs to be in lower case as we are used in a term
-        doc.add(new StringField(FieldConstants.LOCALE, data.getLocale()
-                .toLowerCase(), Field.Store.YES));
+        String locale = data.getLocale().toLowerCase();
+        doc.add(new StringField(FieldConstants.LOCALE, locale,
+                Field.Store.YES));
+        doc.add(new SortedDocValuesField(FieldConstants.LOCALE,
+                new BytesRef(locale)));
 
         // index the entry text, but don't store it
         doc.add(new TextField(FieldConstants.CONTENT, data.getText(),
@@ -142,8 +167,21 @@ public abstract class IndexOperation implements Runnable {
         // index Category, needs to be in lower case as it is used in a term
         WeblogCategory categorydata = data.getCategory();
         if (categorydata != null) {
-            doc.add(new StringField(FieldConstants.CATEGORY, categorydata
-                    .getName().toLowerCase(), Field.Store.YES));
+            String category = categorydata.getName().toLowerCase();
+            doc.add(new StringField(FieldConstants.CATEGORY, category,
+                    Field.Store.YES));
+            doc.add(new SortedDocValuesField(FieldConstants.CATEGORY,
+                    new BytesRef(category)));
+        }
+
+        // keyword for each tag, tags are already in lower case
+        if (data.getTags() != null) {
+            for (WeblogEntryTag tag : data.getTags()) {
+                doc.add(new StringField(FieldConstants.TAG, tag.getName(),
+                        Field.Store.NO));
+                doc.add(new SortedSetDocValuesField(FieldConstants.TAG,
+                        new BytesRef(tag.getName())));
+            }
         }
 
         // index Comments, unstored
@@ -158,44 +196,44 @@ public abstract class IndexOperation implements Runnable {
         doc.add(new StringField(FieldConstants.C_NAME, commentName,
                 Field.Store.YES));
 
+        // numeric, lets a rebuild find documents it didn't write
+        doc.add(new LongField(FieldConstants.INDEXED,
+                System.currentTimeMillis(), Field.Store.NO));
+
         return doc;
     }
 
+    /**
+     * Actual comment content is indexed only if search.index.comments is true
+     * or absent from the (static) configuration properties. If false in the
+     * configuration, comments are treated as if empty.
+     */
+    protected static boolean isIndexComments() {
+        return WebloggerConfig.getBooleanProperty("search.index.comments", true);
+    }
+
     /**
      * Begin writing.
      * 
-     * @return the index writer
+     * @return the index writer shared by all operations, which must not be
+     *         closed, or null if the index is not available.
      */
     protected IndexWriter beginWriting() {
-        try {
-
-            // Limit to 1000 tokens.
-            LimitTokenCountAnalyzer analyzer = new LimitTokenCountAnalyzer(
-                    IndexManagerImpl.getAnalyzer(), 1000);
-
-            IndexWriterConfig config = new IndexWriterConfig(
-                    FieldConstants.LUCENE_VERSION, analyzer);
-
-            writer = new IndexWriter(manager.getIndexDirectory(), config);
-
-        } catch (IOException e) {
-            mLogger.error("ERROR creating writer", e);
+        IndexWriter writer = manager.getSharedIndexWriter();
+        if (writer == null) {
+            mLogger.error("ERROR index writer is not available");
         }
-
         return writer;
     }
 
     /**
      * End writing.
+     * 
+     * The shared writer stays open, changes become visible to searches once
+     * the operation completes.
      */
     protected void endWriting() {
-        if (writer != null) {
-            try {
-                writer.close();
-            } catch (IOException e) {
-                mLogger.error("ERROR closing writer", e);
-            }
-        }
+        // no-op
     }
 
     /**
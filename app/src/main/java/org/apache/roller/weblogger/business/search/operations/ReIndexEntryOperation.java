@@ -83,12 +83,10 @@ public class ReIndexEntryOperation extends WriteToIndexOperation {
         try {
             if (writer != null) {
 
-                // Delete Doc
+                // Delete and add Doc in one go, so that searches never see
+                // the entry missing
                 Term term = new Term(FieldConstants.ID, data.getId());
-                writer.deleteDocuments(term);
-
-                // Add Doc
-                writer.addDocument(getDocument(data));
+                writer.updateDocument(term, getDocument(data));
             }
         } catch (IOException e) {
             mLogger.error("Problems adding/deleting doc to index", e);
@@ -33,14 +33,13 @@ public abstract class ReadFromIndexOperation extends IndexOperation {
             ReadFromIndexOperation.class);
     
     public final void run() {
+        // searchers are near-real-time snapshots, so there is no need to
+        // lock out writers while reading
         try {
-            manager.getReadWriteLock().readLock().lock();
             doRun();
 
         } catch (Exception e) {
-            mLogger.info("Error acquiring read lock on index", e);
-        } finally {
-            manager.getReadWriteLock().readLock().unlock();
+            mLogger.info("Error reading from index", e);
         }
     }
     
@@ -18,29 +18,51 @@
 /* Created on Jul 16, 2003 */
 package org.apache.roller.weblogger.business.search.operations;
 
-import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.WeblogEntryManager;
 import org.apache.roller.weblogger.business.Weblogger;
+import org.apache.roller.weblogger.business.runnable.ThreadManager;
 import org.apache.roller.weblogger.business.search.FieldConstants;
 import org.apache.roller.weblogger.business.search.IndexManagerImpl;
-import org.apache.roller.weblogger.business.search.IndexUtil;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.Weblog;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
-import org.apache.roller.weblogger.pojos.WeblogEntry.PubStatus;
-import org.apache.roller.weblogger.pojos.WeblogEntrySearchCriteria;
+import org.apache.roller.weblogger.pojos.WeblogEntryComment;
 
 /**
  * An index operation that rebuilds a given users index (or all indexes).
  * 
+ * Entries are read from the database a batch at a time, in order of id, with
+ * everything needed to index them looked up for the whole batch at once. The
+ * documents are built before the batch is released and then written by the
+ * index thread pool while the next batch is being read. Existing documents
+ * are replaced rather than deleted up front and documents which weren't
+ * rewritten are removed at the end, so searches keep working while the
+ * rebuild runs.
+ * 
  * @author Mindaugas Idzelis (min@idzelis.com)
  */
 public class RebuildWebsiteIndexOperation extends WriteToIndexOperation {
@@ -51,12 +73,20 @@ public class RebuildWebsiteIndexOperation extends WriteToIndexOperation {
     private static Log mLogger = LogFactory.getFactory().getInstance(
             RebuildWebsiteIndexOperation.class);
 
+    // how often to report progress
+    private static final long PROGRESS_INTERVAL = 30 * RollerConstants.SEC_IN_MS;
+
     // ~ Instance fields
     // ========================================================
 
     private Weblog website;
     private Weblogger roller;
 
+    private int batchSize;
+    private int threads;
+
+    private volatile long entriesIndexed = 0;
+
     // ~ Constructors
     // ===========================================================
 
@@ -71,6 +101,14 @@ public class RebuildWebsiteIndexOperation extends WriteToIndexOperation {
         super(mgr);
         this.roller = roller;
         this.website = website;
+
+        this.batchSize = Math.max(1, WebloggerConfig.getIntProperty(
+                "search.index.rebuild.batchSize", 500));
+        this.threads = WebloggerConfig.getIntProperty(
+                "search.index.rebuild.threads", 0);
+        if (this.threads <= 0) {
+            this.threads = Runtime.getRuntime().availableProcessors();
+        }
     }
 
     // ~ Methods
@@ -97,62 +135,206 @@ public class RebuildWebsiteIndexOperation extends WriteToIndexOperation {
         }
 
         IndexWriter writer = beginWriting();
+        if (writer == null) {
+            return;
+        }
 
+        List<Slice> pending = Collections.emptyList();
         try {
-            if (writer != null) {
+            WeblogEntryManager weblogManager = roller.getWeblogEntryManager();
+            boolean indexComments = isIndexComments();
+            Map<String, String> creators = new HashMap<String, String>();
+
+            long lastReport = start.getTime();
+            String lastId = null;
 
-                // Delete Doc
-                Term tWebsite = null;
-                if (website != null) {
-                    tWebsite = IndexUtil.getTerm(FieldConstants.WEBSITE_HANDLE,
-                            website.getHandle());
+            while (true) {
+                List<WeblogEntry> entries = weblogManager
+                        .getPublishedWeblogEntries(website, lastId, batchSize);
+                if (entries.isEmpty()) {
+                    break;
                 }
-                if (tWebsite != null) {
-                    writer.deleteDocuments(tWebsite);
+                lastId = entries.get(entries.size() - 1).getId();
+
+                Map<String, List<WeblogEntryComment>> comments;
+                if (indexComments) {
+                    comments = weblogManager.getApprovedComments(entries);
                 } else {
-                    Term all = IndexUtil.getTerm(FieldConstants.CONSTANT,
-                            FieldConstants.CONSTANT_V);
-                    writer.deleteDocuments(all);
+                    comments = Collections.emptyMap();
                 }
 
-                // Add Doc
-                WeblogEntryManager weblogManager = roller
-                        .getWeblogEntryManager();
-                WeblogEntrySearchCriteria wesc = new WeblogEntrySearchCriteria();
-                wesc.setWeblog(website);
-                wesc.setStatus(PubStatus.PUBLISHED);
-                List<WeblogEntry> entries = weblogManager.getWeblogEntries(wesc);
-
-                mLogger.debug("Entries to index: " + entries.size());
-
+                // build the documents while the entries are still attached,
+                // the tags of the whole batch are loaded on first use
+                List<Document> docs = new ArrayList<Document>(entries.size());
                 for (WeblogEntry entry : entries) {
-                    writer.addDocument(getDocument(entry));
-                    mLogger.debug(MessageFormat.format(
-                            "Indexed entry {0}: {1}",
-                            entry.getPubTime(), entry.getAnchor()));
+                    docs.add(getDocument(entry, comments.get(entry.getId()),
+                            getCreatorUserName(entry.getCreatorUserName(), creators)));
                 }
 
-                // release the database connection
+                // release the database connection, and with it the entries
+                // of the batch, the workers only get the finished documents
                 roller.release();
+
+                // only keep one batch in the works while reading the next
+                waitFor(pending);
+                pending = submit(writer, docs);
+
+                if (System.currentTimeMillis() - lastReport >= PROGRESS_INTERVAL) {
+                    lastReport = System.currentTimeMillis();
+                    logProgress("Rebuilding", start);
+                }
+            }
+            waitFor(pending);
+            pending = Collections.emptyList();
+
+            // Delete Docs the rebuild didn't write, i.e. those of entries which
+            // have been removed or unpublished since they were indexed
+            Query scope;
+            if (website != null) {
+                // the handle is indexed as is, not analyzed
+                scope = new TermQuery(new Term(FieldConstants.WEBSITE_HANDLE,
+                        website.getHandle()));
+            } else {
+                scope = new MatchAllDocsQuery();
             }
+            BooleanQuery stale = new BooleanQuery();
+            stale.add(scope, BooleanClause.Occur.MUST);
+            stale.add(NumericRangeQuery.newLongRange(FieldConstants.INDEXED,
+                    start.getTime(), null, true, true), BooleanClause.Occur.MUST_NOT);
+            writer.deleteDocuments(stale);
+
         } catch (Exception e) {
             mLogger.error("ERROR adding/deleting doc to index", e);
         } finally {
+            // make sure no worker is still writing when we close the writer
+            try {
+                waitFor(pending);
+            } catch (Exception e) {
+                mLogger.debug("Error finishing pending index writes", e);
+            }
             endWriting();
             if (roller != null) {
                 roller.release();
             }
         }
 
-        Date end = new Date();
-        double length = (end.getTime() - start.getTime()) / (double) RollerConstants.SEC_IN_MS;
+        logProgress("Completed rebuilding", start);
+    }
 
-        if (website == null) {
-            mLogger.info("Completed rebuilding index for all users in '"
-                    + length + "' secs");
-        } else {
-            mLogger.info("Completed rebuilding index for website handle: '"
-                    + website.getHandle() + "' in '" + length + "' seconds");
+    /**
+     * Number of entries written to the index so far.
+     */
+    public long getEntriesIndexed() {
+        return entriesIndexed;
+    }
+
+    /**
+     * Hand out the documents of a batch to the index pool, in about equal
+     * parts.
+     */
+    private List<Slice> submit(IndexWriter writer, List<Document> docs) {
+
+        ThreadManager threadManager = roller.getThreadManager();
+        List<Slice> slices = new ArrayList<Slice>(threads);
+        int sliceSize = (docs.size() + threads - 1) / threads;
+        for (int i = 0; i < docs.size(); i += sliceSize) {
+            Slice slice = new Slice(writer,
+                    docs.subList(i, Math.min(i + sliceSize, docs.size())));
+            slices.add(slice);
+            try {
+                threadManager.executeInBackground(ThreadManager.INDEX_POOL, slice);
+            } catch (RejectedExecutionException e) {
+                // no room on the pool, waitFor() will write it ourselves
+                mLogger.debug("Index pool is full, writing slice on rebuild thread");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return slices;
+    }
+
+    /**
+     * Wait for the slices to be written.
+     *
+     * Any slice that no pool thread has picked up yet is written by the
+     * calling thread, so the rebuild can't stall behind a full or discarding
+     * pool, or behind itself when it is running on the index pool too.
+     */
+    private void waitFor(List<Slice> slices) throws Exception {
+        for (Slice slice : slices) {
+            slice.run();
+        }
+        for (Slice slice : slices) {
+            entriesIndexed += slice.await();
+        }
+    }
+
+    /**
+     * A part of a batch of documents, written by whoever claims it first.
+     */
+    private static class Slice implements Runnable {
+
+        private final IndexWriter writer;
+        private final List<Document> docs;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Exception error = null;
+
+        Slice(IndexWriter writer, List<Document> docs) {
+            this.writer = writer;
+            this.docs = docs;
         }
+
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                for (Document doc : docs) {
+                    writer.updateDocument(new Term(FieldConstants.ID,
+                            doc.get(FieldConstants.ID)), doc);
+                }
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        int await() throws Exception {
+            done.await();
+            if (error != null) {
+                throw error;
+            }
+            return docs.size();
+        }
+    }
+
+    /**
+     * Look up whether the creator of an entry should be indexed, once per
+     * user for the whole rebuild.
+     */
+    private String getCreatorUserName(String userName, Map<String, String> creators)
+            throws WebloggerException {
+        if (userName == null) {
+            return null;
+        }
+        if (!creators.containsKey(userName)) {
+            // don't index deleted/disabled users of a group blog
+            User user = roller.getUserManager().getUserByUserName(userName);
+            creators.put(userName, (user != null) ? user.getUserName() : null);
+        }
+        return creators.get(userName);
+    }
+
+    private void logProgress(String what, Date start) {
+        double length = (System.currentTimeMillis() - start.getTime())
+                / (double) RollerConstants.SEC_IN_MS;
+        long rate = (length > 0) ? Math.round(entriesIndexed / length) : entriesIndexed;
+
+        String scope = (website == null) ? "all users"
+                : "website handle: '" + website.getHandle() + "'";
+        mLogger.info(what + " index for " + scope + ", " + entriesIndexed
+                + " entries in '" + length + "' secs (" + rate + " entries/sec)");
     }
 }
@@ -19,29 +19,48 @@
 package org.apache.roller.weblogger.business.search.operations;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiCollector;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.roller.weblogger.business.search.FacetCollector;
 import org.apache.roller.weblogger.business.search.FieldConstants;
 import org.apache.roller.weblogger.business.search.IndexManager;
 import org.apache.roller.weblogger.business.search.IndexManagerImpl;
 import org.apache.roller.weblogger.business.search.IndexUtil;
+import org.apache.roller.weblogger.business.search.SearchResultList;
 
 /**
  * An operation that searches the index.
  * 
+ * Results are returned a page at a time, along with facet counts over all
+ * matching entries. Pages are cached by the index manager until the index
+ * changes, and the next page is found with searchAfter() from where the
+ * cached previous page ended, so paging through results doesn't collect
+ * all the pages before it again.
+ * 
  * @author Mindaugas Idzelis (min@idzelis.com)
  */
 public class SearchOperation extends ReadFromIndexOperation {
@@ -56,19 +75,45 @@ public class SearchOperation extends ReadFromIndexOperation {
             FieldConstants.CONTENT, FieldConstants.TITLE,
             FieldConstants.C_CONTENT };
 
-    private static Sort SORTER = new Sort(new SortField(
+    private static Sort DATE_SORTER = new Sort(new SortField(
             FieldConstants.PUBLISHED, SortField.Type.STRING, true));
 
+    // fields we count matching entries by
+    private static final String[] SINGLE_FACETS = new String[] {
+            FieldConstants.WEBSITE_HANDLE, FieldConstants.CATEGORY,
+            FieldConstants.LOCALE };
+    private static final String[] MULTI_FACETS = new String[] {
+            FieldConstants.TAG };
+    private static final int MAX_FACET_VALUES = 20;
+
+    // stored fields needed for the results
+    private static final Set<String> HIT_FIELDS = new HashSet<String>(
+            Arrays.asList(FieldConstants.ID, FieldConstants.WEBSITE_HANDLE,
+                    FieldConstants.CATEGORY));
+
+    /**
+     * How to order results.
+     */
+    public enum SortBy {
+        /** Best matches first. */
+        RELEVANCE,
+        /** Most recently published first. */
+        DATE
+    }
+
     // ~ Instance fields
     // ========================================================
 
-    private IndexSearcher searcher;
-    private TopFieldDocs searchresults;
+    private SearchResultList searchresults;
 
     private String term;
     private String websiteHandle;
     private String category;
     private String locale;
+    private String tag;
+    private int offset = 0;
+    private int limit = 10;
+    private SortBy sortBy = SortBy.DATE;
     private String parseError;
 
     // ~ Constructors
@@ -96,54 +141,88 @@ public class SearchOperation extends ReadFromIndexOperation {
      * @see java.lang.Runnable#run()
      */
     public void doRun() {
-        final int docLimit = 500;
         searchresults = null;
-        searcher = null;
+        IndexSearcher searcher = null;
 
         try {
-            IndexReader reader = manager.getSharedIndexReader();
-            searcher = new IndexSearcher(reader);
+            searcher = manager.acquireSearcher();
+            if (searcher == null) {
+                return;
+            }
 
-            MultiFieldQueryParser multiParser = new MultiFieldQueryParser(
-                    FieldConstants.LUCENE_VERSION, SEARCH_FIELDS,
-                    IndexManagerImpl.getAnalyzer());
+            // anything depending on the index is only valid for this version
+            long generation = ((DirectoryReader) searcher.getIndexReader())
+                    .getVersion();
+            String queryKey = getQueryKey();
 
-            // Make it an AND by default. Comment this out for an or (default)
-            multiParser.setDefaultOperator(MultiFieldQueryParser.Operator.AND);
+            String pageKey = getPageKey(generation, queryKey, offset);
+            searchresults = (SearchResultList) manager.getCachedSearch(pageKey);
+            if (searchresults != null) {
+                return;
+            }
 
-            // Create a query object out of our term
-            Query query = multiParser.parse(term);
+            Query query = manager.getCachedQuery(queryKey);
+            if (query == null) {
+                query = parseQuery();
+                manager.cacheQuery(queryKey, query);
+            }
 
-            Term tUsername = IndexUtil.getTerm(FieldConstants.WEBSITE_HANDLE,
-                    websiteHandle);
+            Sort sort = (sortBy == SortBy.RELEVANCE) ? Sort.RELEVANCE
+                    : DATE_SORTER;
 
-            if (tUsername != null) {
-                BooleanQuery bQuery = new BooleanQuery();
-                bQuery.add(query, BooleanClause.Occur.MUST);
-                bQuery.add(new TermQuery(tUsername), BooleanClause.Occur.MUST);
-                query = bQuery;
+            SearchResultList previous = null;
+            if (offset >= limit) {
+                previous = (SearchResultList) manager.getCachedSearch(
+                        getPageKey(generation, queryKey, offset - limit));
             }
 
-            if (category != null) {
-                Term tCategory = new Term(FieldConstants.CATEGORY, category.toLowerCase());
-                BooleanQuery bQuery = new BooleanQuery();
-                bQuery.add(query, BooleanClause.Occur.MUST);
-                bQuery.add(new TermQuery(tCategory), BooleanClause.Occur.MUST);
-                query = bQuery;
+            TopDocs top;
+            Map<String, Map<String, Integer>> facets;
+            if (previous != null && previous.getLast() != null) {
+                // carry on from the previous page, facets are the same, and
+                // relevance hits still need their scores
+                top = searcher.searchAfter(previous.getLast(), query, null,
+                        limit, sort, sortBy == SortBy.RELEVANCE, false);
+                facets = previous.getFacets();
+            } else {
+                TopFieldCollector collector = TopFieldCollector.create(sort,
+                        offset + limit, true, sortBy == SortBy.RELEVANCE,
+                        false, false);
+                FacetCollector facetCollector = new FacetCollector(
+                        SINGLE_FACETS, MULTI_FACETS);
+                searcher.search(query,
+                        MultiCollector.wrap(collector, facetCollector));
+
+                top = collector.topDocs(offset, limit);
+                facets = new HashMap<String, Map<String, Integer>>();
+                for (String field : SINGLE_FACETS) {
+                    facets.put(field, facetCollector.getCounts(field,
+                            MAX_FACET_VALUES));
+                }
+                for (String field : MULTI_FACETS) {
+                    facets.put(field, facetCollector.getCounts(field,
+                            MAX_FACET_VALUES));
+                }
             }
 
-            Term tLocale = IndexUtil.getTerm(FieldConstants.LOCALE,
-                    locale);
+            List<SearchResultList.Hit> hits = new ArrayList<SearchResultList.Hit>(
+                    top.scoreDocs.length);
+            for (ScoreDoc scoreDoc : top.scoreDocs) {
+                Document doc = searcher.doc(scoreDoc.doc, HIT_FIELDS);
+                hits.add(new SearchResultList.Hit(doc.get(FieldConstants.ID),
+                        doc.get(FieldConstants.WEBSITE_HANDLE),
+                        doc.get(FieldConstants.CATEGORY), scoreDoc.score));
+            }
 
-            if (tLocale != null) {
-                BooleanQuery bQuery = new BooleanQuery();
-                bQuery.add(query, BooleanClause.Occur.MUST);
-                bQuery.add(new TermQuery(tLocale), BooleanClause.Occur.MUST);
-                query = bQuery;
+            // a full page might be followed by another one
+            ScoreDoc last = null;
+            if (top.scoreDocs.length == limit) {
+                last = top.scoreDocs[top.scoreDocs.length - 1];
             }
 
-            searchresults = searcher.search(query, null/* Filter */, docLimit,
-                    SORTER);
+            searchresults = new SearchResultList(top.totalHits, hits, facets,
+                    last);
+            manager.cacheSearch(pageKey, searchresults);
 
         } catch (IOException e) {
             mLogger.error("Error searching index", e);
@@ -152,40 +231,82 @@ public class SearchOperation extends ReadFromIndexOperation {
         } catch (ParseException e) {
             // who cares?
             parseError = e.getMessage();
+
+        } finally {
+            manager.releaseSearcher(searcher);
         }
-        // don't need to close the reader, since we didn't do any writing!
     }
 
-    /**
-     * Gets the searcher.
-     * 
-     * @return the searcher
-     */
-    public IndexSearcher getSearcher() {
-        return searcher;
+    private Query parseQuery() throws ParseException {
+        MultiFieldQueryParser multiParser = new MultiFieldQueryParser(
+                FieldConstants.LUCENE_VERSION, SEARCH_FIELDS,
+                IndexManagerImpl.getAnalyzer());
+
+        // Make it an AND by default. Comment this out for an or (default)
+        multiParser.setDefaultOperator(MultiFieldQueryParser.Operator.AND);
+
+        // Create a query object out of our term
+        Query query = multiParser.parse(term);
+
+        // the handle is indexed as is, not analyzed
+        if (websiteHandle != null) {
+            Term tUsername = new Term(FieldConstants.WEBSITE_HANDLE,
+                    websiteHandle);
+            query = and(query, new TermQuery(tUsername));
+        }
+
+        if (category != null) {
+            Term tCategory = new Term(FieldConstants.CATEGORY, category.toLowerCase());
+            query = and(query, new TermQuery(tCategory));
+        }
+
+        Term tLocale = IndexUtil.getTerm(FieldConstants.LOCALE,
+                locale);
+
+        if (tLocale != null) {
+            query = and(query, new TermQuery(tLocale));
+        }
+
+        if (tag != null) {
+            Term tTag = new Term(FieldConstants.TAG, tag.toLowerCase());
+            query = and(query, new TermQuery(tTag));
+        }
+
+        return query;
     }
 
-    /**
-     * Sets the searcher.
-     * 
-     * @param searcher
-     *            the new searcher
-     */
-    public void setSearcher(IndexSearcher searcher) {
-        this.searcher = searcher;
+    private static Query and(Query query, Query clause) {
+        BooleanQuery bQuery = new BooleanQuery();
+        bQuery.add(query, BooleanClause.Occur.MUST);
+        bQuery.add(clause, BooleanClause.Occur.MUST);
+        return bQuery;
+    }
+
+    // everything which affects which entries match and in what order
+    private String getQueryKey() {
+        StringBuilder key = new StringBuilder();
+        key.append(sortBy).append(':').append(websiteHandle);
+        key.append(':').append(category).append(':').append(locale);
+        key.append(':').append(tag).append(':').append(term);
+        return key.toString();
+    }
+
+    private String getPageKey(long generation, String queryKey, int pageOffset) {
+        return "results:" + generation + ":" + pageOffset + ":" + limit + ":"
+                + queryKey;
     }
 
     /**
      * Gets the results.
      * 
-     * @return the results
+     * @return the results, or null if the search failed
      */
-    public TopFieldDocs getResults() {
+    public SearchResultList getResults() {
         return searchresults;
     }
 
     /**
-     * Gets the results count.
+     * Gets the total number of results, over all pages.
      * 
      * @return the results count
      */
@@ -193,7 +314,7 @@ public class SearchOperation extends ReadFromIndexOperation {
         if (searchresults == null) {
             return -1;
         }
-        return searchresults.totalHits;
+        return searchresults.getTotalHits();
     }
 
     /**
@@ -235,4 +356,44 @@ public class SearchOperation extends ReadFromIndexOperation {
         this.locale = locale;
     }
 
+    /**
+     * Sets the tag.
+     * 
+     * @param tag
+     *            only return entries with this tag
+     */
+    public void setTag(String tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * Sets the offset.
+     * 
+     * @param offset
+     *            how many results to skip
+     */
+    public void setOffset(int offset) {
+        this.offset = Math.max(0, offset);
+    }
+
+    /**
+     * Sets the limit.
+     * 
+     * @param limit
+     *            how many results to return
+     */
+    public void setLimit(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * Sets the sort order, by date unless set otherwise.
+     * 
+     * @param sortBy
+     *            the new sort order
+     */
+    public void setSortBy(SortBy sortBy) {
+        this.sortBy = sortBy;
+    }
+
 }
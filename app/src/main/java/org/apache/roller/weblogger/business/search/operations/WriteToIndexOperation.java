@@ -36,18 +36,16 @@ public abstract class WriteToIndexOperation extends IndexOperation {
             LogFactory.getFactory().getInstance(WriteToIndexOperation.class);
     
     public void run() {
+        // the shared writer is thread safe, so operations don't need to
+        // wait for each other or for searches
         try {
-            manager.getReadWriteLock().writeLock().lock();
             mLogger.debug("Starting search index operation");
             doRun();
             mLogger.debug("Search index operation complete");
 
         } catch (Exception e) {
-            mLogger.error("Error acquiring write lock on index", e);
-            
-        } finally {
-            manager.getReadWriteLock().writeLock().unlock();
+            mLogger.error("Error running search index operation", e);
         }
-        manager.resetSharedReader();
+        manager.indexChanged();
     }
 }
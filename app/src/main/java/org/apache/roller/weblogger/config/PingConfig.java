@@ -56,6 +56,29 @@ public final class PingConfig {
     private static final int QUEUE_PROCESSING_INTERVAL_MIN = 0;
     private static final int QUEUE_PROCESSING_INTERVAL_MAX = 120;
 
+    // Config property for the connection and reply timeouts of a single ping, in seconds
+    private static final String PING_TIMEOUT_PROP = "pings.timeoutSecs";
+    private static final int PING_TIMEOUT_DEFAULT = 30;
+    private static final int PING_TIMEOUT_MIN = 1;
+    private static final int PING_TIMEOUT_MAX = 300;
+
+    // Config property for the number of pings sent to the same ping target at once
+    private static final String MAX_PINGS_PER_TARGET_PROP = "pings.maxConcurrentPingsPerTarget";
+    private static final int MAX_PINGS_PER_TARGET_DEFAULT = 2;
+    private static final int MAX_PINGS_PER_TARGET_MIN = 1;
+    private static final int MAX_PINGS_PER_TARGET_MAX = 20;
+
+    // Config properties for the number of failures in a row after which we stop pinging a
+    // target, and for how many minutes
+    private static final String CIRCUIT_BREAKER_FAILURES_PROP = "pings.circuitBreaker.failures";
+    private static final int CIRCUIT_BREAKER_FAILURES_DEFAULT = 5;
+    private static final int CIRCUIT_BREAKER_FAILURES_MIN = 1;
+    private static final int CIRCUIT_BREAKER_FAILURES_MAX = 100;
+    private static final String CIRCUIT_BREAKER_OPEN_PROP = "pings.circuitBreaker.openMins";
+    private static final int CIRCUIT_BREAKER_OPEN_DEFAULT = 30;
+    private static final int CIRCUIT_BREAKER_OPEN_MIN = 1;
+    private static final int CIRCUIT_BREAKER_OPEN_MAX = 1440;
+
     // PingConfig property for logging pings (not actually performing them).  Used for debugging.
     private static final String PINGS_LOG_ONLY_PROP = "pings.logOnly";
     private static final boolean PINGS_LOG_ONLY_DEFAULT = false;
@@ -124,6 +147,44 @@ public final class PingConfig {
     }
 
 
+    /**
+     * Get the connection and reply timeouts for a single ping, in seconds.
+     *
+     * @return the configured (or default) ping timeout in seconds.
+     */
+    public static int getPingTimeoutSecs() {
+        return getIntegerProperty(PING_TIMEOUT_PROP, PING_TIMEOUT_DEFAULT, PING_TIMEOUT_MIN, PING_TIMEOUT_MAX);
+    }
+
+    /**
+     * Get the maximum number of pings sent to the same ping target at the same time.
+     *
+     * @return the configured (or default) number of concurrent pings per target.
+     */
+    public static int getMaxConcurrentPingsPerTarget() {
+        return getIntegerProperty(MAX_PINGS_PER_TARGET_PROP, MAX_PINGS_PER_TARGET_DEFAULT, MAX_PINGS_PER_TARGET_MIN, MAX_PINGS_PER_TARGET_MAX);
+    }
+
+    /**
+     * Get the number of ping failures in a row after which a ping target is left alone for a while.
+     *
+     * @return the configured (or default) number of failures.
+     */
+    public static int getCircuitBreakerFailures() {
+        return getIntegerProperty(CIRCUIT_BREAKER_FAILURES_PROP, CIRCUIT_BREAKER_FAILURES_DEFAULT, CIRCUIT_BREAKER_FAILURES_MIN, CIRCUIT_BREAKER_FAILURES_MAX);
+    }
+
+    /**
+     * Get how long a failing ping target is left alone for, in minutes.  Queued pings for the target stay queued
+     * meanwhile and don't count as attempts.
+     *
+     * @return the configured (or default) time in minutes.
+     */
+    public static int getCircuitBreakerOpenMins() {
+        return getIntegerProperty(CIRCUIT_BREAKER_OPEN_PROP, CIRCUIT_BREAKER_OPEN_DEFAULT, CIRCUIT_BREAKER_OPEN_MIN, CIRCUIT_BREAKER_OPEN_MAX);
+    }
+
+
     /**
      * Get the logs only setting.  Get configuration value determining whether pings are to be logged only (not sent).
      * This configuration setting is used for development and debugging.
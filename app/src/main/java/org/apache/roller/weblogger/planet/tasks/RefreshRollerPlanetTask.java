@@ -23,8 +23,8 @@ import java.util.Properties;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.business.runnable.RollerTaskWithLeasing;
+import org.apache.roller.planet.business.updater.ConcurrentFeedUpdater;
 import org.apache.roller.planet.business.updater.FeedUpdater;
-import org.apache.roller.planet.business.updater.SingleThreadedFeedUpdater;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.GuiceWebloggerProvider;
 import org.apache.roller.weblogger.business.WebloggerFactory;
@@ -128,7 +128,7 @@ public class RefreshRollerPlanetTask extends RollerTaskWithLeasing {
         try {
             log.info("Refreshing Planet subscriptions");
             
-            FeedUpdater updater = new SingleThreadedFeedUpdater();
+            FeedUpdater updater = new ConcurrentFeedUpdater();
             updater.updateSubscriptions();
             
         } catch (Exception e) {
@@ -20,7 +20,10 @@ package org.apache.roller.weblogger.pojos;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 
 /**
@@ -76,4 +79,12 @@ public class FileContent {
             throw new RuntimeException("Error constructing input stream", ex);
         }
     }
+    
+    /**
+     * Returns a read only channel for the underlying file, which the caller
+     * must close.
+     */
+    public FileChannel getChannel() throws IOException {
+        return new RandomAccessFile(resourceFile, "r").getChannel();
+    }
 }
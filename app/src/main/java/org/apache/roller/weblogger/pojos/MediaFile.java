@@ -339,6 +339,10 @@ public class MediaFile implements Serializable {
         this.is = is;
     }
 
+    public FileContent getContent() {
+        return content;
+    }
+
     public void setContent(FileContent content) {
         this.content = content;
     }
@@ -470,6 +474,10 @@ public class MediaFile implements Serializable {
         return null;
     }
 
+    public FileContent getThumbnailContent() {
+        return thumbnail;
+    }
+
     public void setThumbnailContent(FileContent thumbnail) {
         this.thumbnail = thumbnail;
     }
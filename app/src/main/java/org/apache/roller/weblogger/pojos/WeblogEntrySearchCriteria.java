@@ -52,6 +52,9 @@ public class WeblogEntrySearchCriteria {
     private String locale;
     // Offset into results for paging
     private int offset = 0;
+    // Sort time and id of the entry to continue after, for keyset paging
+    private Date afterTime;
+    private String afterId;
 
     private int maxResults = -1;
 
@@ -151,6 +154,32 @@ public class WeblogEntrySearchCriteria {
         this.offset = offset;
     }
 
+    public Date getAfterTime() {
+        return afterTime;
+    }
+
+    public String getAfterId() {
+        return afterId;
+    }
+
+    /**
+     * Only get entries which sort after the given one, so that the next page
+     * starts where the last one ended.  Unlike an offset this doesn't read
+     * and skip all entries on the previous pages.  Both null starts from the
+     * first page again.
+     * @param time the publication or update time of the entry, as sorted by
+     * @param id the id of the entry
+     * @throws IllegalArgumentException if only one of time and id is given
+     */
+    public void setAfter(Date time, String id) {
+        if ((time == null) != (id == null)) {
+            throw new IllegalArgumentException("Both time and id of the entry are needed, got time="
+                    + time + ", id=" + id);
+        }
+        this.afterTime = time;
+        this.afterId = id;
+    }
+
     public int getMaxResults() {
         return maxResults;
     }
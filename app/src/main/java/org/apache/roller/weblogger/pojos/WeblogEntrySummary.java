@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.pojos;
+
+import java.sql.Timestamp;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.roller.weblogger.business.WebloggerFactory;
+import org.apache.roller.weblogger.pojos.WeblogEntry.PubStatus;
+import org.apache.roller.weblogger.util.Utilities;
+
+
+/**
+ * The fields of a weblog entry needed to list it, without its text.
+ */
+public class WeblogEntrySummary {
+    
+    private final String id;
+    private final String anchor;
+    private final String title;
+    private final PubStatus status;
+    private final Timestamp pubTime;
+    private final Timestamp updateTime;
+    private final String creatorUserName;
+    private final String categoryName;
+    private final Weblog website;
+    
+    
+    public WeblogEntrySummary(String id, String anchor, String title, PubStatus status,
+            Timestamp pubTime, Timestamp updateTime, String creatorUserName,
+            String categoryName, Weblog website) {
+        this.id = id;
+        this.anchor = anchor;
+        this.title = title;
+        this.status = status;
+        this.pubTime = pubTime;
+        this.updateTime = updateTime;
+        this.creatorUserName = creatorUserName;
+        this.categoryName = categoryName;
+        this.website = website;
+    }
+    
+    
+    public String getId() {
+        return id;
+    }
+    
+    public String getAnchor() {
+        return anchor;
+    }
+    
+    public String getTitle() {
+        return title;
+    }
+    
+    public PubStatus getStatus() {
+        return status;
+    }
+    
+    public Timestamp getPubTime() {
+        return pubTime;
+    }
+    
+    public Timestamp getUpdateTime() {
+        return updateTime;
+    }
+    
+    public String getCreatorUserName() {
+        return creatorUserName;
+    }
+    
+    public String getCategoryName() {
+        return categoryName;
+    }
+    
+    public Weblog getWebsite() {
+        return website;
+    }
+    
+    /**
+     * Title for display, or the anchor for entries without a title since the
+     * text they would otherwise show isn't loaded.
+     */
+    public String getDisplayTitle() {
+        if (StringUtils.isBlank(getTitle())) {
+            return getAnchor();
+        }
+        return Utilities.removeHTML(getTitle());
+    }
+    
+    /**
+     * Returns absolute entry permalink.
+     */
+    public String getPermalink() {
+        return WebloggerFactory.getWeblogger().getUrlStrategy().getWeblogEntryURL(getWebsite(), null, getAnchor(), true);
+    }
+    
+    public String toString() {
+        return "{" + getId() + ", " + getAnchor() + ", " + getPubTime() + "}";
+    }
+    
+}
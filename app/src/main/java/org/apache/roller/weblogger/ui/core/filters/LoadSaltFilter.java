@@ -19,15 +19,13 @@
 package org.apache.roller.weblogger.ui.core.filters;
  
 import java.io.IOException;
-import java.security.SecureRandom;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
-import org.apache.commons.lang3.RandomStringUtils;
-import org.apache.roller.weblogger.ui.rendering.util.cache.SaltCache;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Filter generates a unique salt value for use in any HTTP form generated by 
- * Roller. See also: ValidateSalt filter.
+ * Roller. See also: ValidateSalt filter and SaltTokens.
  */
 public class LoadSaltFilter implements Filter {
 
@@ -35,11 +33,9 @@ public class LoadSaltFilter implements Filter {
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
         throws IOException, ServletException {
         HttpServletRequest httpReq = (HttpServletRequest) request;
+        HttpServletResponse httpRes = (HttpServletResponse) response;
 
-		SaltCache saltCache = SaltCache.getInstance();
-        String salt = RandomStringUtils.random(20, 0, 0, true, true, null, new SecureRandom());
-        saltCache.put(salt, Boolean.TRUE);
-        httpReq.setAttribute("salt", salt);
+        httpReq.setAttribute("salt", SaltTokens.getInstance().newSalt(httpReq, httpRes));
 
         chain.doFilter(request, response);
     }
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.ui.core.filters;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.ui.rendering.util.cache.SaltCache;
+
+
+/**
+ * Makes and checks the salt values which protect Roller's forms against XSRF,
+ * for the LoadSaltFilter and the ValidateSaltFilter.
+ *
+ * With salt.mode=cache each salt is random and kept in the SaltCache until it
+ * is posted back, so it can only be checked by the server which made it and
+ * only as long as the cache holds on to it.
+ *
+ * With salt.mode=hmac a salt is the time it was made plus an HMAC of that time
+ * and the user name.  Anonymous users get a random key in a cookie of their
+ * own instead, rather than a session being made for every anonymous request
+ * which passes through the LoadSaltFilter.  Any server with
+ * the same salt.hmac.secret can check it without looking anything up, until
+ * it is salt.hmac.maxAge seconds old.  The HMAC key is derived from the
+ * secret for every salt.hmac.rotation seconds, so a key which leaks is only
+ * good for forging salts of one period.
+ */
+public final class SaltTokens {
+    
+    private static Log log = LogFactory.getLog(SaltTokens.class);
+    
+    private static final String HMAC = "HmacSHA256";
+    
+    // holds the random key anonymous users' salts are made for
+    private static final String COOKIE_NAME = "roller_salt_key";
+    
+    // SecureRandom is slow to create and seed, and contended when shared
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+    
+    private static final ThreadLocal<Mac> MAC = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(HMAC);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(HMAC + " not available", e);
+            }
+        }
+    };
+    
+    // reference to our singleton instance
+    private static SaltTokens singletonInstance = new SaltTokens();
+    
+    private final boolean hmac;
+    private final byte[] secret;
+    private final long rotation;
+    private final long maxAge;
+    
+    
+    private SaltTokens() {
+        hmac = "hmac".equals(WebloggerConfig.getProperty("salt.mode"));
+        rotation = (long) WebloggerConfig.getIntProperty("salt.hmac.rotation", 86400) * RollerConstants.SEC_IN_MS;
+        maxAge = (long) WebloggerConfig.getIntProperty("salt.hmac.maxAge", 3600) * RollerConstants.SEC_IN_MS;
+        
+        String configured = WebloggerConfig.getProperty("salt.hmac.secret");
+        if (StringUtils.isNotEmpty(configured)) {
+            secret = getBytes(configured);
+        } else {
+            secret = new byte[32];
+            RANDOM.get().nextBytes(secret);
+            if (hmac) {
+                log.warn("No salt.hmac.secret set, salts will only be accepted "
+                        + "by this server until it is restarted");
+            }
+        }
+    }
+    
+    
+    public static SaltTokens getInstance() {
+        return singletonInstance;
+    }
+    
+    
+    /**
+     * Make a new salt for forms in the response to a request.
+     */
+    public String newSalt(HttpServletRequest request, HttpServletResponse response) {
+        if (hmac) {
+            String subject = getSubject(request);
+            if (subject == null) {
+                subject = newAnonymousSubject(request, response);
+            }
+            return createToken(secret, rotation, subject, System.currentTimeMillis());
+        }
+        String salt = RandomStringUtils.random(20, 0, 0, true, true, null, RANDOM.get());
+        SaltCache.getInstance().put(salt, Boolean.TRUE);
+        return salt;
+    }
+    
+    
+    /**
+     * True if a salt posted with a request was made by Roller for the same
+     * user and hasn't expired.
+     */
+    public boolean isValid(HttpServletRequest request, String salt) {
+        if (salt == null) {
+            return false;
+        }
+        if (hmac) {
+            String subject = getSubject(request);
+            return subject != null && checkToken(secret, rotation, maxAge, subject, salt,
+                    System.currentTimeMillis());
+        }
+        Object value = SaltCache.getInstance().get(salt);
+        return value != null && !value.equals(false);
+    }
+    
+    
+    /**
+     * Who salts are made for, or null for an anonymous user who has no
+     * salt key cookie yet.
+     */
+    private static String getSubject(HttpServletRequest request) {
+        String userName = request.getRemoteUser();
+        if (userName != null) {
+            return "user:" + userName;
+        }
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (COOKIE_NAME.equals(cookie.getName())
+                        && StringUtils.isNotEmpty(cookie.getValue())) {
+                    return "anonymous:" + cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Give an anonymous user a salt key cookie, which lasts as long as the
+     * browser session.
+     */
+    private static String newAnonymousSubject(HttpServletRequest request,
+            HttpServletResponse response) {
+        
+        // a forwarded request passes the LoadSaltFilter again
+        String key = (String) request.getAttribute(COOKIE_NAME);
+        if (key != null) {
+            return "anonymous:" + key;
+        }
+        
+        key = RandomStringUtils.random(32, 0, 0, true, true, null, RANDOM.get());
+        request.setAttribute(COOKIE_NAME, key);
+        Cookie cookie = new Cookie(COOKIE_NAME, key);
+        String path = request.getContextPath();
+        cookie.setPath(StringUtils.isEmpty(path) ? "/" : path);
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        response.addCookie(cookie);
+        return "anonymous:" + key;
+    }
+    
+    
+    /**
+     * Make a salt for a subject at a time, which is the time in base 36 and
+     * the HMAC of both with the key for that time's period.
+     */
+    static String createToken(byte[] secret, long rotation, String subject, long time) {
+        String timeString = Long.toString(time, Character.MAX_RADIX);
+        return timeString + "." + Base64.encodeBase64URLSafeString(
+                hmac(secret, rotation, time, subject + "|" + timeString));
+    }
+    
+    
+    /**
+     * Check a salt for a subject, which must not be older than maxAge and
+     * not be from the future, give or take a minute of clock difference
+     * between servers.
+     */
+    static boolean checkToken(byte[] secret, long rotation, long maxAge,
+            String subject, String token, long now) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        String timeString = token.substring(0, dot);
+        long time;
+        try {
+            time = Long.parseLong(timeString, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (time > now + RollerConstants.MIN_IN_MS || now - time > maxAge) {
+            return false;
+        }
+        byte[] expected = hmac(secret, rotation, time, subject + "|" + timeString);
+        byte[] actual = Base64.decodeBase64(token.substring(dot + 1));
+        return MessageDigest.isEqual(expected, actual);
+    }
+    
+    
+    private static byte[] hmac(byte[] secret, long rotation, long time, String data) {
+        try {
+            // the key for the period the time falls in
+            Mac mac = MAC.get();
+            mac.init(new SecretKeySpec(secret, HMAC));
+            byte[] key = mac.doFinal(getBytes(Long.toString(time / rotation)));
+            
+            mac.init(new SecretKeySpec(key, HMAC));
+            return mac.doFinal(getBytes(data));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Invalid " + HMAC + " key", e);
+        }
+    }
+    
+    
+    private static byte[] getBytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+}
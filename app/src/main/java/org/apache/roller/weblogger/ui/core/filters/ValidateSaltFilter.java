@@ -34,12 +34,11 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.config.WebloggerConfig;
-import org.apache.roller.weblogger.ui.rendering.util.cache.SaltCache;
 
 /**
  * Filter checks all POST request for presence of valid salt value and rejects
- * those without a salt value or with a salt value not generated by this Roller
- * instance.
+ * those without a salt value or with a salt value not generated by Roller,
+ * see SaltTokens.
  */
 public class ValidateSaltFilter implements Filter {
 
@@ -58,9 +57,7 @@ public class ValidateSaltFilter implements Filter {
                 && !isIgnoredURL(httpReq.getServletPath())) {
 
             String salt = httpReq.getParameter("salt");
-            SaltCache saltCache = SaltCache.getInstance();
-            if (salt == null || saltCache.get(salt) == null
-                    || saltCache.get(salt).equals(false)) {
+            if (!SaltTokens.getInstance().isValid(httpReq, salt)) {
 
                 if (log.isDebugEnabled()) {
                     log.debug("Salt value not found on POST to URL : "
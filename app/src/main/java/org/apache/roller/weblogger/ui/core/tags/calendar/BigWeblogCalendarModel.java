@@ -60,6 +60,13 @@ public class BigWeblogCalendarModel extends WeblogCalendarModel {
     protected void loadWeblogEntries(Date startDate, Date endDate, String catName) {
         try {
             WeblogEntryManager mgr = WebloggerFactory.getWeblogger().getWeblogEntryManager();
+            
+            // nothing to load for a month without entries
+            if (mgr.getPostingDays(weblog, startDate, catName, locale) == 0) {
+                monthMap = new HashMap();
+                return;
+            }
+            
             WeblogEntrySearchCriteria wesc = new WeblogEntrySearchCriteria();
             wesc.setWeblog(weblog);
             wesc.setStartDate(startDate);
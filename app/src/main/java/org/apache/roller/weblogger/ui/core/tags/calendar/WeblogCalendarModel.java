@@ -23,7 +23,6 @@ import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
@@ -34,10 +33,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.business.WeblogEntryManager;
-import org.apache.roller.weblogger.pojos.WeblogEntry;
-import org.apache.roller.weblogger.pojos.WeblogEntry.PubStatus;
 import org.apache.roller.weblogger.pojos.Weblog;
-import org.apache.roller.weblogger.pojos.WeblogEntrySearchCriteria;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogPageRequest;
 import org.apache.roller.util.DateUtil;
 
@@ -101,53 +97,16 @@ public class WeblogCalendarModel implements CalendarModel {
         Date startDate = DateUtil.getStartOfMonth(month,cal);
         Date endDate = DateUtil.getEndOfMonth(month,cal);
         
-        // Determine previous non-empty month
-        // Get entries before startDate, using category restriction limit 1
-        // Use entry's date as previous month
+        // Determine previous and next non-empty months, using category
+        // restriction, from the weblog's posting days
         try {
             WeblogEntryManager mgr = WebloggerFactory.getWeblogger().getWeblogEntryManager();
-            WeblogEntrySearchCriteria wesc = new WeblogEntrySearchCriteria();
-            wesc.setWeblog(weblog);
-            // since we need an entry.pubTime < startDate, but the method uses endDate
-            wesc.setEndDate(new Date(startDate.getTime()-1));
-            wesc.setCatName(cat);
-            wesc.setStatus(PubStatus.PUBLISHED);
-            wesc.setSortOrder(WeblogEntrySearchCriteria.SortOrder.DESCENDING);
-            wesc.setLocale(locale);
-            wesc.setMaxResults(1);
-            List prevEntries = mgr.getWeblogEntries(wesc);
-
-            if (prevEntries.size() > 0) {
-                WeblogEntry prevEntry = (WeblogEntry)prevEntries.get(0);
-                prevMonth = DateUtil.getStartOfMonth(new Date(prevEntry.getPubTime().getTime()),getCalendar());
-            }
+            prevMonth = mgr.getPostingMonth(weblog, startDate, cat, locale, false);
+            nextMonth = mgr.getPostingMonth(weblog, startDate, cat, locale, true);
         } catch (WebloggerException e) {
-            log.error("ERROR determining previous non-empty month");
+            log.error("ERROR determining previous and next non-empty months");
         }
         
-        // Determine next non-empty month
-        // Get entries after endDate, using category restriction limit 1
-        // Use entry's date as next month
-        try {
-            WeblogEntryManager mgr = WebloggerFactory.getWeblogger().getWeblogEntryManager();
-            WeblogEntrySearchCriteria wesc = new WeblogEntrySearchCriteria();
-            wesc.setWeblog(weblog);
-            // since we need an entry.pubTime > endDate, but the method uses startDate
-            wesc.setStartDate(new Date(endDate.getTime()+1));
-            wesc.setCatName(cat);
-            wesc.setStatus(PubStatus.PUBLISHED);
-            wesc.setSortOrder(WeblogEntrySearchCriteria.SortOrder.ASCENDING);
-            wesc.setLocale(locale);
-            wesc.setMaxResults(1);
-            List nextEntries = mgr.getWeblogEntries(wesc);
-            if (nextEntries.size() > 0) {
-                WeblogEntry nextEntry = (WeblogEntry)nextEntries.get(0);
-                nextMonth = DateUtil.getStartOfMonth(new Date(nextEntry.getPubTime().getTime()),getCalendar());
-            }
-        } catch (WebloggerException e) {
-            log.error("ERROR determining next non-empty month");
-        }  
-        
         // Fix for ROL-840 Don't include future entries
         Date now = new Date();
         if (endDate.after(now)) {
@@ -159,19 +118,26 @@ public class WeblogCalendarModel implements CalendarModel {
     }
     
     protected void loadWeblogEntries(Date startDate, Date endDate, String catName) {
+        Map<Date, String> dayStrings = new HashMap<Date, String>();
+        monthMap = dayStrings;
         try {
             WeblogEntryManager mgr = WebloggerFactory.getWeblogger().getWeblogEntryManager();
-            WeblogEntrySearchCriteria wesc = new WeblogEntrySearchCriteria();
-            wesc.setWeblog(weblog);
-            wesc.setStartDate(startDate);
-            wesc.setEndDate(endDate);
-            wesc.setCatName(catName);
-            wesc.setStatus(PubStatus.PUBLISHED);
-            wesc.setLocale(locale);
-            monthMap = mgr.getWeblogEntryStringMap(wesc);
+            int days = mgr.getPostingDays(weblog, startDate, catName, locale);
+            
+            // one YYYYMMDD date string for each day of the month with entries
+            Calendar cal = (Calendar) calendar.clone();
+            SimpleDateFormat formatter = DateUtil.get8charDateFormat();
+            formatter.setTimeZone(cal.getTimeZone());
+            cal.setTime(startDate);
+            for (int day = 1; day <= cal.getActualMaximum(Calendar.DAY_OF_MONTH); day++) {
+                cal.set(Calendar.DAY_OF_MONTH, day);
+                if ((days & (1 << day)) != 0 && !cal.getTime().after(endDate)) {
+                    Date noon = DateUtil.getNoonOfDay(cal.getTime(), cal);
+                    dayStrings.put(noon, formatter.format(noon));
+                }
+            }
         } catch (WebloggerException e) {
             log.error(e);
-            monthMap = new HashMap<Date, String>();
         }
     }
 
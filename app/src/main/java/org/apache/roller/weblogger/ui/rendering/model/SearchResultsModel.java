@@ -18,7 +18,6 @@
 
 package org.apache.roller.weblogger.ui.rendering.model;
 
-import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.Collections;
 import java.util.Date;
@@ -29,9 +28,6 @@ import java.util.TreeSet;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopFieldDocs;
 import org.apache.roller.util.DateUtil;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.URLStrategy;
@@ -40,6 +36,7 @@ import org.apache.roller.weblogger.business.Weblogger;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.business.search.FieldConstants;
 import org.apache.roller.weblogger.business.search.IndexManager;
+import org.apache.roller.weblogger.business.search.SearchResultList;
 import org.apache.roller.weblogger.business.search.operations.SearchOperation;
 import org.apache.roller.weblogger.config.WebloggerRuntimeConfig;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
@@ -75,6 +72,7 @@ public class SearchResultsModel extends PageModel {
 	private int offset = 0;
 	private int limit = 0;
 	private Set categories = new TreeSet();
+	private Map<String, Map<String, Integer>> facets = Collections.emptyMap();
 	private boolean websiteSpecificSearch = true;
 	private String errorMessage = null;
 
@@ -125,6 +123,10 @@ public class SearchResultsModel extends PageModel {
 			search.setLocale(searchRequest.getLocale());
 		}
 
+		// only fetch the page we are showing
+		search.setOffset(searchRequest.getPageNum() * RESULTS_PER_PAGE);
+		search.setLimit(RESULTS_PER_PAGE);
+
 		// execute search
 		indexMgr.executeIndexOperationNow(search);
 
@@ -135,12 +137,12 @@ public class SearchResultsModel extends PageModel {
 					"error.searchProblem");
 		} else {
 
-			TopFieldDocs docs = search.getResults();
-			ScoreDoc[] hitsArr = docs.scoreDocs;
-			this.hits = search.getResultsCount();
+			SearchResultList resultList = search.getResults();
+			this.hits = resultList.getTotalHits();
+			this.facets = resultList.getFacets();
 
 			// Convert the Hits into WeblogEntryData instances.
-			convertHitsToEntries(hitsArr, search);
+			convertHitsToEntries(resultList);
 
 		}
 
@@ -169,64 +171,49 @@ public class SearchResultsModel extends PageModel {
 	/**
 	 * Convert hits to entries.
 	 * 
-	 * @param hits
-	 *            the hits
-	 * @param search
-	 *            the search
+	 * @param resultList
+	 *            the page of results
 	 * @throws WebloggerException
 	 *             the weblogger exception
 	 */
-	private void convertHitsToEntries(ScoreDoc[] hits, SearchOperation search)
+	private void convertHitsToEntries(SearchResultList resultList)
 			throws WebloggerException {
 
-		// determine offset
+		// determine offset and limit, the search only returned this page
 		this.offset = searchRequest.getPageNum() * RESULTS_PER_PAGE;
-		if (this.offset >= hits.length) {
-			this.offset = 0;
-		}
+		this.limit = resultList.getHits().size();
 
-		// determine limit
-		this.limit = RESULTS_PER_PAGE;
-		if (this.offset + this.limit > hits.length) {
-			this.limit = hits.length - this.offset;
+		TreeSet<String> categorySet = new TreeSet<String>();
+		if (!websiteSpecificSearch) {
+			// categories of all matching entries, if they have been counted
+			categorySet.addAll(resultList.getFacet(FieldConstants.CATEGORY)
+					.keySet());
 		}
 
-		try {
-			TreeSet<String> categorySet = new TreeSet<String>();
-			Weblogger roller = WebloggerFactory.getWeblogger();
-			WeblogEntryManager weblogMgr = roller.getWeblogEntryManager();
-
-			WeblogEntry entry;
-			Document doc;
-			String handle;
-			Timestamp now = new Timestamp(new Date().getTime());
-			for (int i = offset; i < offset + limit; i++) {
-				doc = search.getSearcher().doc(hits[i].doc);
-				handle = doc.getField(FieldConstants.WEBSITE_HANDLE)
-						.stringValue();
-
-                entry = weblogMgr.getWeblogEntry(doc.getField(
-                        FieldConstants.ID).stringValue());
-
-                if (!(websiteSpecificSearch && handle.equals(searchRequest.getWeblogHandle()))
-                        && doc.getField(FieldConstants.CATEGORY) != null) {
-                    categorySet.add(doc.getField(FieldConstants.CATEGORY).stringValue());
-                }
-
-				// maybe null if search result returned inactive user
-				// or entry's user is not the requested user.
-				// but don't return future posts
-				if (entry != null && entry.getPubTime().before(now)) {
-					addEntryToResults(WeblogEntryWrapper.wrap(entry,
-							urlStrategy));
-				}
+		Weblogger roller = WebloggerFactory.getWeblogger();
+		WeblogEntryManager weblogMgr = roller.getWeblogEntryManager();
+
+		WeblogEntry entry;
+		Timestamp now = new Timestamp(new Date().getTime());
+		for (SearchResultList.Hit hit : resultList.getHits()) {
+			entry = weblogMgr.getWeblogEntry(hit.getEntryId());
+
+			if (!(websiteSpecificSearch && hit.getWeblogHandle().equals(searchRequest.getWeblogHandle()))
+					&& hit.getCategory() != null) {
+				categorySet.add(hit.getCategory());
 			}
 
-			if (categorySet.size() > 0) {
-				this.categories = categorySet;
+			// maybe null if search result returned inactive user
+			// or entry's user is not the requested user.
+			// but don't return future posts
+			if (entry != null && entry.getPubTime().before(now)) {
+				addEntryToResults(WeblogEntryWrapper.wrap(entry,
+						urlStrategy));
 			}
-		} catch (IOException e) {
-			throw new WebloggerException(e);
+		}
+
+		if (categorySet.size() > 0) {
+			this.categories = categorySet;
 		}
 	}
 
@@ -277,6 +264,14 @@ public class SearchResultsModel extends PageModel {
 		return categories;
 	}
 
+	/**
+	 * Counts of all matching entries by weblog handle ("handle"), category
+	 * ("cat"), locale ("locale") and tag ("tag").
+	 */
+	public Map<String, Map<String, Integer>> getFacets() {
+		return facets;
+	}
+
 	public String getErrorMessage() {
 		return errorMessage;
 	}
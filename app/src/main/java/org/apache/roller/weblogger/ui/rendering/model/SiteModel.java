@@ -52,10 +52,14 @@ import org.apache.roller.weblogger.ui.rendering.pagers.WeblogsPager;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogFeedRequest;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogPageRequest;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogRequest;
+import org.apache.roller.weblogger.util.cache.ContentDependencies;
 
 
 /**
  * Page model that provides access to site-wide users, weblogs and entries.
+ *
+ * Everything handed out here is recorded with ContentDependencies so that
+ * the site-wide cache knows which changes affect the rendered content.
  */
 public class SiteModel implements Model {
     
@@ -113,6 +117,16 @@ public class SiteModel implements Model {
      */
     public Pager getWeblogEntriesPager(int sinceDays, int length) {
         
+        if (tags != null && !tags.isEmpty()) {
+            List<String> tagNames = new ArrayList<String>();
+            for (Object tag : tags) {
+                tagNames.add((String) tag);
+            }
+            ContentDependencies.recordTags(tagNames);
+        } else {
+            ContentDependencies.recordAllEntries();
+        }
+        
         String pagerUrl;
         
         if (feedRequest != null) {
@@ -171,6 +185,8 @@ public class SiteModel implements Model {
      */   
     public Pager getWeblogEntriesPager(WeblogWrapper queryWeblog, User user, String cat, int sinceDays, int length) {
         
+        ContentDependencies.recordWeblog(queryWeblog.getHandle());
+        
         String pagerUrl;
         if (feedRequest != null) {
             pagerUrl = urlStrategy.getWeblogFeedURL(weblog, 
@@ -202,6 +218,8 @@ public class SiteModel implements Model {
      */
     public Pager getCommentsPager(int sinceDays, int length) {
         
+        ContentDependencies.recordAllEntries();
+        
         String pagerUrl;
         if (feedRequest != null) {
             pagerUrl = urlStrategy.getWeblogFeedURL(weblog, 
@@ -227,6 +245,8 @@ public class SiteModel implements Model {
     /* Get pager of users whose names begin with specified letter */
     public Pager getUsersByLetterPager(String letter, int sinceDays, int length) {
         
+        ContentDependencies.recordAllWeblogs();
+        
         String pagerUrl;
         if (feedRequest != null) {
             pagerUrl = urlStrategy.getWeblogFeedURL(weblog, 
@@ -256,6 +276,8 @@ public class SiteModel implements Model {
     /** Get pager of weblogs whose handles begin with specified letter */
     public Pager getWeblogsByLetterPager(String letter, int sinceDays, int length) {
         
+        ContentDependencies.recordAllWeblogs();
+        
         String pagerUrl = urlStrategy.getWeblogPageURL(weblog, 
                 weblogRequest.getLocale(), pageLink, 
                 null, null, null, null, 0, false);
@@ -282,6 +304,7 @@ public class SiteModel implements Model {
      * names start with each letter.
      */
     public Map getUserNameLetterMap() {
+        ContentDependencies.recordAllWeblogs();
         Map results = new HashMap();
         try {            
             Weblogger roller = WebloggerFactory.getWeblogger();
@@ -300,6 +323,7 @@ public class SiteModel implements Model {
      * names start with each letter.
      */
     public Map getWeblogHandleLetterMap() {
+        ContentDependencies.recordAllWeblogs();
         Map results = new HashMap();
         try {            
             results = WebloggerFactory.getWeblogger().getWeblogManager().getWeblogHandleLetterMap();
@@ -314,6 +338,7 @@ public class SiteModel implements Model {
      * Return list of weblogs that user belongs to.
      */
     public List getUsersWeblogs(String userName) {
+        ContentDependencies.recordAllWeblogs();
         List results = new ArrayList();
         try {            
             Weblogger roller = WebloggerFactory.getWeblogger();
@@ -334,6 +359,7 @@ public class SiteModel implements Model {
      * Return list of users that belong to website.
      */
     public List getWeblogsUsers(String handle) {
+        ContentDependencies.recordWeblog(handle);
         List results = new ArrayList();
         try {            
             Weblogger roller = WebloggerFactory.getWeblogger();
@@ -368,6 +394,7 @@ public class SiteModel implements Model {
     
     /** Get Website object by handle */
     public WeblogWrapper getWeblog(String handle) {
+        ContentDependencies.recordWeblog(handle);
         WeblogWrapper wrappedWebsite = null;
         try {            
             Weblog website = WebloggerFactory.getWeblogger().getWeblogManager().getWeblogByHandle(handle);
@@ -388,6 +415,7 @@ public class SiteModel implements Model {
      * @param len      Max number of results to return
      */
     public List<WeblogWrapper> getNewWeblogs(int sinceDays, int length) {
+        ContentDependencies.recordAllWeblogs();
         List<WeblogWrapper> results = new ArrayList<WeblogWrapper>();
         Calendar cal = Calendar.getInstance();
         cal.setTime(new Date());
@@ -412,6 +440,7 @@ public class SiteModel implements Model {
      * @param len      Max number of results to return
      */
     public List<UserWrapper> getNewUsers(int sinceDays, int length) {
+        ContentDependencies.recordAllWeblogs();
         List<UserWrapper> results = new ArrayList<UserWrapper>();
         try {            
             Weblogger roller = WebloggerFactory.getWeblogger();
@@ -433,6 +462,7 @@ public class SiteModel implements Model {
      * @param length      Max number of results to return
      */
     public List<StatCount> getHotWeblogs(int sinceDays, int length) {
+        ContentDependencies.recordAllWeblogs();
         
         List<StatCount> results = new ArrayList<StatCount>();
         try {
@@ -465,6 +495,7 @@ public class SiteModel implements Model {
      * @param length   Max number of results to return
      */
     public List getMostCommentedWeblogs(int sinceDays , int length) {
+        ContentDependencies.recordAllWeblogs();
         List results = new ArrayList();
         Calendar cal = Calendar.getInstance();
         cal.setTime(new Date());
@@ -489,6 +520,7 @@ public class SiteModel implements Model {
      */
     public List getMostCommentedWeblogEntries(
             List cats, int sinceDays, int length) {
+        ContentDependencies.recordAllEntries();
         List results = new ArrayList();
         Calendar cal = Calendar.getInstance();
         cal.setTime(new Date());
@@ -510,6 +542,7 @@ public class SiteModel implements Model {
      * @param length    Max number of results to return
      */
     public List<WeblogEntryWrapper> getPinnedWeblogEntries(int length) {
+        ContentDependencies.recordAllEntries();
         List<WeblogEntryWrapper> results = new ArrayList<WeblogEntryWrapper>();
         try {            
             Weblogger roller = WebloggerFactory.getWeblogger();
@@ -531,6 +564,7 @@ public class SiteModel implements Model {
      * @return
      */
     public List<TagStat> getPopularTags(int sinceDays, int length) {
+        ContentDependencies.recordAllEntries();
         List results = new ArrayList();
         Date startDate = null;
         if(sinceDays > 0) {
@@ -552,6 +586,7 @@ public class SiteModel implements Model {
     
     
     public long getCommentCount() {
+        ContentDependencies.recordAllEntries();
         long count = 0;
         try {
             Weblogger roller = WebloggerFactory.getWeblogger();
@@ -565,6 +600,7 @@ public class SiteModel implements Model {
     
     
     public long getEntryCount() {
+        ContentDependencies.recordAllEntries();
         long count = 0;
         try {
             Weblogger roller = WebloggerFactory.getWeblogger();
@@ -578,6 +614,7 @@ public class SiteModel implements Model {
     
     
     public long getWeblogCount() {
+        ContentDependencies.recordAllWeblogs();
         long count = 0;
         try {
             count = WebloggerFactory.getWeblogger().getWeblogManager().getWeblogCount();            
@@ -589,6 +626,7 @@ public class SiteModel implements Model {
     
     
     public long getUserCount() {
+        ContentDependencies.recordAllWeblogs();
         long count = 0;
         try {
             Weblogger roller = WebloggerFactory.getWeblogger();
@@ -29,6 +29,8 @@ import java.util.TreeMap;
 import java.util.TimeZone;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.roller.weblogger.WebloggerException;
+import org.apache.roller.weblogger.business.WeblogEntryManager;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.Weblog;
@@ -81,28 +83,71 @@ public class WeblogEntriesDayPager extends AbstractWeblogEntriesPager {
         
         day = parseDate(dateString);
 
-        Calendar cal = Calendar.getInstance(tz);
+        if (tags == null || tags.isEmpty()) {
+            // go to the nearest days with entries
+            try {
+                nextDay = getPostingDay(day, true);
+                prevDay = getPostingDay(day, false);
+            } catch (WebloggerException e) {
+                log.error("ERROR: finding next and previous days with entries", e);
+            }
+            if (nextDay != null && nextDay.after(getToday())) {
+                nextDay = null;
+            }
+        } else {
+            Calendar cal = Calendar.getInstance(tz);
+        
+            cal.setTime(day);
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+            cal.set(Calendar.HOUR, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            nextDay = cal.getTime();
+            if (nextDay.after(getToday())) {
+                nextDay = null;
+            }
         
-        cal.setTime(day);
-        cal.add(Calendar.DAY_OF_MONTH, 1);
-        cal.set(Calendar.HOUR, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        nextDay = cal.getTime();
-        if (nextDay.after(getToday())) {
-            nextDay = null;
+            cal.setTime(day);
+            cal.add(Calendar.DAY_OF_MONTH, -1);
+            cal.set(Calendar.HOUR, 23);
+            cal.set(Calendar.MINUTE, 59);
+            cal.set(Calendar.SECOND, 59);
+            prevDay = cal.getTime();
+            Date weblogInitialDate = weblog.getDateCreated() != null ? weblog.getDateCreated() : new Date(0);
+            if (DateUtil.getEndOfDay(prevDay,cal).before(weblogInitialDate)) {
+                prevDay = null;
+            }
         }
+    }
+    
+    
+    /**
+     * Find the nearest day before or after the given one with entries, from
+     * the weblog's posting days.
+     */
+    private Date getPostingDay(Date date, boolean next) throws WebloggerException {
         
-        cal.setTime(day);
-        cal.add(Calendar.DAY_OF_MONTH, -1);
-        cal.set(Calendar.HOUR, 23);
-        cal.set(Calendar.MINUTE, 59);
-        cal.set(Calendar.SECOND, 59);
-        prevDay = cal.getTime();
-        Date weblogInitialDate = weblog.getDateCreated() != null ? weblog.getDateCreated() : new Date(0);
-        if (DateUtil.getEndOfDay(prevDay,cal).before(weblogInitialDate)) {
-            prevDay = null;
+        WeblogEntryManager mgr = WebloggerFactory.getWeblogger().getWeblogEntryManager();
+        Calendar cal = Calendar.getInstance(weblog.getTimeZoneInstance());
+        cal.setTime(date);
+        int dayOfMonth = cal.get(Calendar.DAY_OF_MONTH);
+        
+        Date month = date;
+        while (month != null) {
+            int days = mgr.getPostingDays(weblog, month, catName, locale);
+            if (month == date) {
+                // only the days on the side of this one we're looking at
+                days &= next ? ~((2 << dayOfMonth) - 1) : (1 << dayOfMonth) - 1;
+            }
+            if (days != 0) {
+                cal.setTime(month);
+                cal.set(Calendar.DAY_OF_MONTH, next ? Integer.numberOfTrailingZeros(days)
+                        : 31 - Integer.numberOfLeadingZeros(days));
+                return DateUtil.getStartOfDay(cal.getTime(), cal);
+            }
+            month = mgr.getPostingMonth(weblog, month, catName, locale, next);
         }
+        return null;
     }
     
     
@@ -117,6 +162,16 @@ public class WeblogEntriesDayPager extends AbstractWeblogEntriesPager {
         if (entries == null) {
             entries = new TreeMap<Date, List<WeblogEntryWrapper>>(Collections.reverseOrder());
             try {
+                // nothing to load if the weblog didn't post that day
+                if (tags == null || tags.isEmpty()) {
+                    cal.setTime(startDate);
+                    int days = WebloggerFactory.getWeblogger().getWeblogEntryManager()
+                            .getPostingDays(weblog, startDate, catName, locale);
+                    if ((days & (1 << cal.get(Calendar.DAY_OF_MONTH))) == 0) {
+                        return entries;
+                    }
+                }
+                
                 WeblogEntrySearchCriteria wesc = new WeblogEntrySearchCriteria();
                 wesc.setWeblog(weblog);
                 wesc.setStartDate(startDate);
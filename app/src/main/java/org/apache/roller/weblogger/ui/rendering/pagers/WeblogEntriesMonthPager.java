@@ -23,6 +23,8 @@ import java.util.*;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.roller.weblogger.WebloggerException;
+import org.apache.roller.weblogger.business.WeblogEntryManager;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.Weblog;
@@ -75,22 +77,36 @@ public class WeblogEntriesMonthPager extends AbstractWeblogEntriesPager {
         
         month = parseDate(dateString);
         
-        Calendar cal = Calendar.getInstance(tz);
+        if (tags == null || tags.isEmpty()) {
+            // go to the nearest months with entries
+            try {
+                WeblogEntryManager mgr = WebloggerFactory.getWeblogger().getWeblogEntryManager();
+                nextMonth = mgr.getPostingMonth(weblog, month, catName, locale, true);
+                prevMonth = mgr.getPostingMonth(weblog, month, catName, locale, false);
+            } catch (WebloggerException e) {
+                log.error("ERROR: finding next and previous months with entries", e);
+            }
+            if (nextMonth != null && nextMonth.after(getToday())) {
+                nextMonth = null;
+            }
+        } else {
+            Calendar cal = Calendar.getInstance(tz);
         
-        cal.setTime(month);
-        cal.add(Calendar.MONTH, 1);
-        nextMonth = cal.getTime();
-        if (nextMonth.after(getToday())) {
-            nextMonth = null;
-        }
+            cal.setTime(month);
+            cal.add(Calendar.MONTH, 1);
+            nextMonth = cal.getTime();
+            if (nextMonth.after(getToday())) {
+                nextMonth = null;
+            }
         
-        cal.setTime(month);
-        cal.add(Calendar.MONTH, -1);
-        prevMonth = cal.getTime();
-        Date endOfPrevMonth = DateUtil.getEndOfMonth(prevMonth,cal) ;
-        Date weblogInitialDate = weblog.getDateCreated() != null ? weblog.getDateCreated() : new Date(0);
-        if (endOfPrevMonth.before(weblogInitialDate)) {
-            prevMonth = null;
+            cal.setTime(month);
+            cal.add(Calendar.MONTH, -1);
+            prevMonth = cal.getTime();
+            Date endOfPrevMonth = DateUtil.getEndOfMonth(prevMonth,cal) ;
+            Date weblogInitialDate = weblog.getDateCreated() != null ? weblog.getDateCreated() : new Date(0);
+            if (endOfPrevMonth.before(weblogInitialDate)) {
+                prevMonth = null;
+            }
         }
     }
     
@@ -107,6 +123,12 @@ public class WeblogEntriesMonthPager extends AbstractWeblogEntriesPager {
         if (entries == null) {
             entries = new TreeMap<Date, List<WeblogEntryWrapper>>(Collections.reverseOrder());
             try {
+                // nothing to load if the weblog didn't post that month
+                if ((tags == null || tags.isEmpty()) && WebloggerFactory.getWeblogger()
+                        .getWeblogEntryManager().getPostingDays(weblog, startDate, catName, locale) == 0) {
+                    return entries;
+                }
+                
                 WeblogEntrySearchCriteria wesc = new WeblogEntrySearchCriteria();
                 wesc.setWeblog(weblog);
                 wesc.setStartDate(startDate);
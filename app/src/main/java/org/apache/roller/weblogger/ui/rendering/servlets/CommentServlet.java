@@ -37,7 +37,7 @@ import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.config.WebloggerConfig;
 import org.apache.roller.weblogger.config.WebloggerRuntimeConfig;
-import org.apache.roller.weblogger.business.search.IndexManager;
+import org.apache.roller.weblogger.business.CommentEventQueue;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.business.WeblogEntryManager;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment;
@@ -51,7 +51,6 @@ import org.apache.roller.weblogger.ui.rendering.util.WeblogCommentRequest;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogEntryCommentForm;
 import org.apache.roller.weblogger.util.GenericThrottle;
 import org.apache.roller.weblogger.util.IPBanList;
-import org.apache.roller.weblogger.util.MailUtil;
 import org.apache.roller.weblogger.util.I18nMessages;
 import org.apache.roller.weblogger.util.RollerMessages;
 import org.apache.roller.weblogger.util.RollerMessages.RollerMessage;
@@ -382,26 +381,16 @@ public class CommentServlet extends HttpServlet {
                     WebloggerFactory.getWeblogger().flush();
 
                     // Send email notifications only to subscribers if comment
-                    // is 100% valid
+                    // is 100% valid, and only re-index if comment isn't
+                    // moderated.  Both happen in the background.
                     boolean notifySubscribers = (validationScore == RollerConstants.PERCENT_100);
-                    MailUtil.sendEmailNotification(comment, messages,
-                            messageUtils, notifySubscribers);
+                    CommentEventQueue.getInstance().commentSaved(comment, messages,
+                            messageUtils.getLocale(), notifySubscribers,
+                            !weblog.getCommentModerationRequired());
 
-                    // only re-index/invalidate the cache if comment isn't
-                    // moderated
+                    // only invalidate the cache if comment isn't moderated,
+                    // right away so the commenter sees their comment
                     if (!weblog.getCommentModerationRequired()) {
-                        IndexManager manager = WebloggerFactory.getWeblogger()
-                                .getIndexManager();
-
-                        // remove entry before (re)adding it, or in case it
-                        // isn't Published
-                        manager.removeEntryIndexOperation(entry);
-
-                        // if published, index the entry
-                        if (entry.isPublished()) {
-                            manager.addEntryIndexOperation(entry);
-                        }
-
                         // Clear all caches associated with comment
                         CacheManager.invalidate(comment);
                     }
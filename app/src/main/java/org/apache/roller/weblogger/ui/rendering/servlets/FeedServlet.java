@@ -38,8 +38,11 @@ import org.apache.roller.weblogger.pojos.StaticTemplate;
 import org.apache.roller.weblogger.pojos.Template;
 import org.apache.roller.weblogger.pojos.TemplateRendition.TemplateLanguage;
 import org.apache.roller.weblogger.pojos.Weblog;
+import org.apache.roller.weblogger.ui.rendering.util.CachedContentResponder;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogFeedRequest;
 import org.apache.roller.weblogger.util.cache.CachedContent;
+import org.apache.roller.weblogger.util.cache.ContentDependencies;
+import org.apache.roller.weblogger.util.cache.RequestCoalescer;
 import org.apache.roller.weblogger.ui.rendering.Renderer;
 import org.apache.roller.weblogger.ui.rendering.RendererManager;
 import org.apache.roller.weblogger.ui.rendering.mobile.MobileDeviceRepository;
@@ -59,6 +62,11 @@ public class FeedServlet extends HttpServlet {
 
     private WeblogFeedCache weblogFeedCache = null;
     private SiteWideCache siteWideCache = null;
+    // for coalescing concurrent renders of the same feed
+    private static final String COALESCER_ID = "weblog.feed.renders";
+    private RequestCoalescer<CachedContent> renderCoalescer = null;
+    private long coalescingMaxWait = 0;
+    private boolean serveStale = false;
 
 
     /**
@@ -75,6 +83,15 @@ public class FeedServlet extends HttpServlet {
 
         // get a reference to the site wide cache
         this.siteWideCache = SiteWideCache.getInstance();
+
+        // see if concurrent cache misses for a feed should share one render
+        if (WebloggerConfig.getBooleanProperty("cache.coalescing.enabled")) {
+            this.renderCoalescer = new RequestCoalescer<CachedContent>(COALESCER_ID);
+            this.coalescingMaxWait = WebloggerConfig.getIntProperty(
+                    "cache.coalescing.maxWait", 5 * RollerConstants.SEC_IN_MS);
+            this.serveStale = WebloggerConfig
+                    .getBooleanProperty("cache.coalescing.serveStale");
+        }
     }
 
 
@@ -164,17 +181,66 @@ public class FeedServlet extends HttpServlet {
                     lastModified);
         }
 
+        // on a miss, see if another thread is already rendering this feed
+        // and use its output rather than rendering it again
+        RequestCoalescer<CachedContent>.Flight flight = null;
+        if (cachedContent == null && renderCoalescer != null) {
+            flight = renderCoalescer.join(cacheKey);
+            if (!flight.isLeader()) {
+                if (serveStale && !isSiteWide) {
+                    cachedContent = (CachedContent) weblogFeedCache
+                            .getStale(cacheKey);
+                }
+                if (cachedContent == null) {
+                    cachedContent = flight.await(coalescingMaxWait);
+                }
+
+                // if that didn't work out we render it ourselves
+                flight = null;
+            }
+        }
+
         if (cachedContent != null) {
             log.debug("HIT " + cacheKey);
 
-            response.setContentLength(cachedContent.getContent().length);
-            response.getOutputStream().write(cachedContent.getContent());
+            if (!CachedContentResponder.respondIfNoneMatch(request, response,
+                    cachedContent, feedRequest.getDeviceType())) {
+                CachedContentResponder.writeContent(request, response,
+                        cachedContent, feedRequest.getDeviceType(), true);
+            }
             return;
 
         } else {
             log.debug("MISS " + cacheKey);
         }
 
+        try {
+            renderFeed(request, response, feedRequest, weblog, isSiteWide,
+                    cacheKey, flight);
+        } finally {
+            // if rendering failed before the flight was completed then let
+            // anybody waiting on us know they are on their own
+            if (flight != null) {
+                flight.complete(null);
+            }
+        }
+
+        log.debug("Exiting");
+    }
+
+
+    /**
+     * Render a weblog feed, cache it and write it to the response.
+     *
+     * Coalesced followers get the feed as soon as it is cached rather than
+     * after it has been written out to the leader's client.
+     */
+    private void renderFeed(HttpServletRequest request,
+            HttpServletResponse response, WeblogFeedRequest feedRequest,
+            Weblog weblog, boolean isSiteWide, String cacheKey,
+            RequestCoalescer<CachedContent>.Flight flight)
+            throws ServletException, IOException {
+
         // validation. make sure that request input makes sense.
         boolean invalid = false;
         if (feedRequest.getLocale() != null
@@ -307,11 +373,23 @@ public class FeedServlet extends HttpServlet {
         CachedContent rendererOutput = new CachedContent(RollerConstants.TWENTYFOUR_KB_IN_BYTES);
         try {
             log.debug("Doing rendering");
+
+            // site-wide content keeps track of what it is built from so
+            // that it can be invalidated selectively
+            if (isSiteWide) {
+                ContentDependencies.begin();
+                ContentDependencies.recordWeblog(weblog.getHandle());
+            }
+
             renderer.render(model, rendererOutput.getCachedWriter());
 
             // flush rendered output and close
             rendererOutput.flush();
             rendererOutput.close();
+
+            if (isSiteWide) {
+                rendererOutput.setDependencies(ContentDependencies.end());
+            }
         } catch (Exception e) {
             // bummer, error during rendering
             log.error("Error during rendering for page " + pageId, e);
@@ -321,15 +399,13 @@ public class FeedServlet extends HttpServlet {
             }
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
+        } finally {
+            // don't let a failed render leak into the next request
+            ContentDependencies.end();
         }
 
         // post rendering process
 
-        // flush rendered content to response
-        log.debug("Flushing response output");
-        response.setContentLength(rendererOutput.getContent().length);
-        response.getOutputStream().write(rendererOutput.getContent());
-
         // cache rendered content. only cache if user is not logged in?
         log.debug("PUT " + cacheKey);
         if (isSiteWide) {
@@ -337,8 +413,14 @@ public class FeedServlet extends HttpServlet {
         } else {
             weblogFeedCache.put(cacheKey, rendererOutput);
         }
+        if (flight != null) {
+            flight.complete(rendererOutput);
+        }
 
-        log.debug("Exiting");
+        // flush rendered content to response
+        log.debug("Flushing response output");
+        CachedContentResponder.writeContent(request, response, rendererOutput,
+                feedRequest.getDeviceType(), true);
     }
 
 }
@@ -19,8 +19,6 @@
 package org.apache.roller.weblogger.ui.rendering.servlets;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -30,13 +28,15 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
+import org.apache.roller.weblogger.business.ImageDerivativeService;
 import org.apache.roller.weblogger.business.MediaFileManager;
 import org.apache.roller.weblogger.business.WebloggerFactory;
+import org.apache.roller.weblogger.pojos.FileContent;
 import org.apache.roller.weblogger.pojos.MediaFile;
 import org.apache.roller.weblogger.pojos.Weblog;
 import org.apache.roller.weblogger.ui.rendering.util.ModDateHeaderUtil;
+import org.apache.roller.weblogger.ui.rendering.util.ResourceResponder;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogMediaResourceRequest;
 
 /**
@@ -87,7 +87,6 @@ public class MediaResourceServlet extends HttpServlet {
         }
 
         long resourceLastMod;
-        InputStream resourceStream = null;
         MediaFile mediaFile;
 
         try {
@@ -102,9 +101,50 @@ public class MediaResourceServlet extends HttpServlet {
             return;
         }
 
+        // send the thumbnail or a smaller copy instead of the file if asked
+        // for, when it can't be had the file itself will do
+        FileContent content = null;
+        String contentType = null;
+        String cacheKey = "media:" + mediaFile.getId();
+        if (mediaFile.isImageFile() && mediaFile.getContent() != null) {
+            ImageDerivativeService derivatives = ImageDerivativeService.getInstance();
+            String size = resourceRequest.getSize();
+            if (resourceRequest.isThumbnail()) {
+                content = derivatives.getThumbnail(mediaFile.getContent());
+                cacheKey += ":thumbnail";
+                if (content == null) {
+                    log.warn("ERROR loading thumbnail for " + mediaFile.getId());
+                }
+            } else if (size != null && derivatives.getSizes().contains(size)) {
+                content = derivatives.getDerivative(mediaFile.getContent(), size);
+                cacheKey += ":" + size;
+                if (content == null) {
+                    log.warn("ERROR loading " + size + " image for " + mediaFile.getId());
+                }
+            }
+            if (content != null) {
+                contentType = ImageDerivativeService.getContentType(content);
+            }
+        }
+
+        if (content == null) {
+            content = mediaFile.getContent();
+            contentType = mediaFile.getContentType();
+            cacheKey = "media:" + mediaFile.getId();
+        }
+
+        if (content == null) {
+            log.debug("No content for media file " + mediaFile.getId());
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
         // Respond with 304 Not Modified if it is not modified.
-        if (ModDateHeaderUtil.respondIfNotModified(request, response,
-                resourceLastMod, resourceRequest.getDeviceType())) {
+        String eTag = ResourceResponder.getETag(content.getLength(),
+                resourceLastMod, resourceRequest.getDeviceType());
+        if (ResourceResponder.respondIfNoneMatch(request, response, eTag)
+                || ModDateHeaderUtil.respondIfNotModified(request, response,
+                        resourceLastMod, resourceRequest.getDeviceType())) {
             return;
         } else {
             // set last-modified date
@@ -112,39 +152,10 @@ public class MediaResourceServlet extends HttpServlet {
                     resourceRequest.getDeviceType());
         }
 
-        // set the content type based on whatever is in our web.xml mime defs
-        if (resourceRequest.isThumbnail()) {
-            response.setContentType("image/png");
-            try {
-                resourceStream = mediaFile.getThumbnailInputStream();
-            } catch (Exception e) {
-                if (log.isDebugEnabled()) {
-                    log.debug(
-                            "ERROR loading thumbnail for " + mediaFile.getId(),
-                            e);
-                } else {
-                    log.warn("ERROR loading thumbnail for " + mediaFile.getId());
-                }
-            }
-        }
-
-        if (resourceStream == null) {
-            response.setContentType(mediaFile.getContentType());
-            resourceStream = mediaFile.getInputStream();
-        }
-
-        OutputStream out;
         try {
             // ok, lets serve up the file
-            byte[] buf = new byte[RollerConstants.EIGHT_KB_IN_BYTES];
-            int length;
-            out = response.getOutputStream();
-            while ((length = resourceStream.read(buf)) > 0) {
-                out.write(buf, 0, length);
-            }
-
-            // close output stream
-            out.close();
+            ResourceResponder.sendFile(request, response, cacheKey, content,
+                    contentType, resourceLastMod, eTag);
 
         } catch (Exception ex) {
             log.error("ERROR", ex);
@@ -152,9 +163,6 @@ public class MediaResourceServlet extends HttpServlet {
                 response.reset();
                 response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             }
-        } finally {
-            // make sure stream to resource file is closed
-            resourceStream.close();
         }
 
     }
@@ -40,6 +40,7 @@ import org.apache.roller.weblogger.ui.core.RollerContext;
 import org.apache.roller.weblogger.ui.rendering.Renderer;
 import org.apache.roller.weblogger.ui.rendering.RendererManager;
 import org.apache.roller.weblogger.ui.rendering.model.ModelLoader;
+import org.apache.roller.weblogger.ui.rendering.util.CachedContentResponder;
 import org.apache.roller.weblogger.ui.rendering.util.InvalidRequestException;
 import org.apache.roller.weblogger.ui.rendering.util.ModDateHeaderUtil;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogEntryCommentForm;
@@ -49,6 +50,8 @@ import org.apache.roller.weblogger.ui.rendering.util.cache.WeblogPageCache;
 import org.apache.roller.weblogger.util.BlacklistChecker;
 import org.apache.roller.weblogger.util.I18nMessages;
 import org.apache.roller.weblogger.util.cache.CachedContent;
+import org.apache.roller.weblogger.util.cache.ContentDependencies;
+import org.apache.roller.weblogger.util.cache.RequestCoalescer;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -76,6 +79,11 @@ public class PageServlet extends HttpServlet {
     private boolean excludeOwnerPages = false;
     private WeblogPageCache weblogPageCache = null;
     private SiteWideCache siteWideCache = null;
+    // for coalescing concurrent renders of the same page
+    private static final String COALESCER_ID = "weblog.page.renders";
+    private RequestCoalescer<CachedContent> renderCoalescer = null;
+    private long coalescingMaxWait = 0;
+    private boolean serveStale = false;
 
     // Development theme reloading
     Boolean themeReload = false;
@@ -98,6 +106,15 @@ public class PageServlet extends HttpServlet {
         // get a reference to the site wide cache
         this.siteWideCache = SiteWideCache.getInstance();
 
+        // see if concurrent cache misses for a page should share one render
+        if (WebloggerConfig.getBooleanProperty("cache.coalescing.enabled")) {
+            this.renderCoalescer = new RequestCoalescer<CachedContent>(COALESCER_ID);
+            this.coalescingMaxWait = WebloggerConfig.getIntProperty(
+                    "cache.coalescing.maxWait", 5 * RollerConstants.SEC_IN_MS);
+            this.serveStale = WebloggerConfig
+                    .getBooleanProperty("cache.coalescing.serveStale");
+        }
+
         // see if built-in referrer spam check is enabled
         this.processReferrers = WebloggerConfig
                 .getBooleanProperty("site.blacklist.enable.referrers");
@@ -228,6 +245,7 @@ public class PageServlet extends HttpServlet {
         }
 
         // cached content checking
+        RequestCoalescer<CachedContent>.Flight flight = null;
         if ((!this.excludeOwnerPages || !pageRequest.isLoggedIn())
                 && request.getAttribute("skipCache") == null
                 && request.getParameter("skipCache") == null) {
@@ -240,9 +258,36 @@ public class PageServlet extends HttpServlet {
                         lastModified);
             }
 
+            // on a miss, see if another thread is already rendering this
+            // page and use its output rather than rendering it again
+            if (cachedContent == null && renderCoalescer != null) {
+                flight = renderCoalescer.join(cacheKey);
+                if (!flight.isLeader()) {
+                    if (serveStale && !isSiteWide) {
+                        cachedContent = (CachedContent) weblogPageCache
+                                .getStale(cacheKey);
+                    }
+                    if (cachedContent == null) {
+                        cachedContent = flight.await(coalescingMaxWait);
+                    }
+
+                    // if that didn't work out we render it ourselves
+                    flight = null;
+                }
+            }
+
             if (cachedContent != null) {
                 log.debug("HIT " + cacheKey);
 
+                // same content the client already has? (see 304 handling
+                // above for why logged in users are left out)
+                if (!pageRequest.isLoggedIn()
+                        && CachedContentResponder.respondIfNoneMatch(request,
+                                response, cachedContent,
+                                pageRequest.getDeviceType())) {
+                    return;
+                }
+
                 // allow for hit counting
                 if (!isSiteWide
                         && (pageRequest.isWebsitePageHit() || pageRequest
@@ -250,15 +295,44 @@ public class PageServlet extends HttpServlet {
                     this.processHit(weblog);
                 }
 
-                response.setContentLength(cachedContent.getContent().length);
                 response.setContentType(cachedContent.getContentType());
-                response.getOutputStream().write(cachedContent.getContent());
+                CachedContentResponder.writeContent(request, response,
+                        cachedContent, pageRequest.getDeviceType(),
+                        !pageRequest.isLoggedIn());
                 return;
             } else {
                 log.debug("MISS " + cacheKey);
             }
         }
 
+        try {
+            renderPage(request, response, pageRequest, weblog, isSiteWide,
+                    cacheKey, flight);
+        } finally {
+            // if rendering failed before the flight was completed then let
+            // anybody waiting on us know they are on their own
+            if (flight != null) {
+                flight.complete(null);
+            }
+        }
+
+        log.debug("Exiting");
+    }
+
+    /**
+     * Render a weblog page, cache it when appropriate and write it to the
+     * response.
+     *
+     * The rendered content is handed to any coalesced followers as soon as
+     * it is cached, so they don't have to wait for it to be written out to
+     * the leader's client.
+     */
+    private void renderPage(HttpServletRequest request,
+            HttpServletResponse response, WeblogPageRequest pageRequest,
+            Weblog weblog, boolean isSiteWide, String cacheKey,
+            RequestCoalescer<CachedContent>.Flight flight)
+            throws ServletException, IOException {
+
         log.debug("Looking for template to use for rendering");
 
         // figure out what template to use
@@ -504,11 +578,23 @@ public class PageServlet extends HttpServlet {
                 RollerConstants.TWENTYFOUR_KB_IN_BYTES, contentType);
         try {
             log.debug("Doing rendering");
+
+            // site-wide content keeps track of what it is built from so
+            // that it can be invalidated selectively
+            if (isSiteWide) {
+                ContentDependencies.begin();
+                ContentDependencies.recordWeblog(weblog.getHandle());
+            }
+
             renderer.render(model, rendererOutput.getCachedWriter());
 
             // flush rendered output and close
             rendererOutput.flush();
             rendererOutput.close();
+
+            if (isSiteWide) {
+                rendererOutput.setDependencies(ContentDependencies.end());
+            }
         } catch (Exception e) {
             // bummer, error during rendering
             log.error("Error during rendering for page " + page.getId(), e);
@@ -518,15 +604,12 @@ public class PageServlet extends HttpServlet {
             }
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
+        } finally {
+            // don't let a failed render leak into the next request
+            ContentDependencies.end();
         }
 
         // post rendering process
-        // flush rendered content to response
-        log.debug("Flushing response output");
-        response.setContentType(contentType);
-        response.setContentLength(rendererOutput.getContent().length);
-        response.getOutputStream().write(rendererOutput.getContent());
-
         // cache rendered content. only cache if user is not logged in?
         if ((!this.excludeOwnerPages || !pageRequest.isLoggedIn())
                 && request.getAttribute("skipCache") == null) {
@@ -538,11 +621,18 @@ public class PageServlet extends HttpServlet {
             } else {
                 weblogPageCache.put(cacheKey, rendererOutput);
             }
+            if (flight != null) {
+                flight.complete(rendererOutput);
+            }
         } else {
             log.debug("SKIPPED " + cacheKey);
         }
 
-        log.debug("Exiting");
+        // flush rendered content to response
+        log.debug("Flushing response output");
+        response.setContentType(contentType);
+        CachedContentResponder.writeContent(request, response, rendererOutput,
+                pageRequest.getDeviceType(), !pageRequest.isLoggedIn());
     }
 
     /**
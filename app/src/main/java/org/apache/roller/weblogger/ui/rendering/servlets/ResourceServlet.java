@@ -19,8 +19,6 @@
 package org.apache.roller.weblogger.ui.rendering.servlets;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -31,7 +29,6 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.MediaFileManager;
 import org.apache.roller.weblogger.business.WebloggerFactory;
@@ -40,6 +37,7 @@ import org.apache.roller.weblogger.pojos.ThemeResource;
 import org.apache.roller.weblogger.pojos.Weblog;
 import org.apache.roller.weblogger.pojos.WeblogTheme;
 import org.apache.roller.weblogger.ui.rendering.util.ModDateHeaderUtil;
+import org.apache.roller.weblogger.ui.rendering.util.ResourceResponder;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogResourceRequest;
 
 /**
@@ -99,17 +97,17 @@ public class ResourceServlet extends HttpServlet {
                 + "]");
 
         long resourceLastMod = 0;
-        InputStream resourceStream = null;
+        ThemeResource resource = null;
+        MediaFile mediaFile = null;
 
         // first see if resource comes from weblog's shared theme
         try {
             WeblogTheme weblogTheme = weblog.getTheme();
             if (weblogTheme != null) {
-                ThemeResource resource = weblogTheme
+                resource = weblogTheme
                         .getResource(resourceRequest.getResourcePath());
                 if (resource != null) {
                     resourceLastMod = resource.getLastModified();
-                    resourceStream = resource.getInputStream();
                 }
             }
         } catch (Exception ex) {
@@ -122,14 +120,17 @@ public class ResourceServlet extends HttpServlet {
         }
 
         // if not from theme then see if resource is in weblog's upload dir
-        if (resourceStream == null) {
+        if (resource == null) {
             try {
                 MediaFileManager mmgr = WebloggerFactory.getWeblogger()
                         .getMediaFileManager();
-                MediaFile mf = mmgr.getMediaFileByOriginalPath(weblog,
+                mediaFile = mmgr.getMediaFileByOriginalPath(weblog,
                         resourceRequest.getResourcePath());
-                resourceLastMod = mf.getLastModified();
-                resourceStream = mf.getInputStream();
+                resourceLastMod = mediaFile.getLastModified();
+                if (mediaFile.getContent() == null) {
+                    throw new WebloggerException("no content for media file "
+                            + mediaFile.getId());
+                }
 
             } catch (Exception ex) {
                 // still not found? then we don't have it, 404.
@@ -143,8 +144,13 @@ public class ResourceServlet extends HttpServlet {
         }
 
         // Respond with 304 Not Modified if it is not modified.
-        if (ModDateHeaderUtil.respondIfNotModified(request, response,
-                resourceLastMod, resourceRequest.getDeviceType())) {
+        long resourceLength = (resource != null) ? resource.getLength()
+                : mediaFile.getContent().getLength();
+        String eTag = ResourceResponder.getETag(resourceLength,
+                resourceLastMod, resourceRequest.getDeviceType());
+        if (ResourceResponder.respondIfNoneMatch(request, response, eTag)
+                || ModDateHeaderUtil.respondIfNotModified(request, response,
+                        resourceLastMod, resourceRequest.getDeviceType())) {
             return;
         } else {
             // set last-modified date
@@ -153,30 +159,26 @@ public class ResourceServlet extends HttpServlet {
         }
 
         // set the content type based on whatever is in our web.xml mime defs
-        response.setContentType(this.context.getMimeType(resourceRequest
-                .getResourcePath()));
+        String contentType = this.context.getMimeType(resourceRequest
+                .getResourcePath());
 
-        OutputStream out;
         try {
             // ok, lets serve up the file
-            byte[] buf = new byte[RollerConstants.EIGHT_KB_IN_BYTES];
-            int length;
-            out = response.getOutputStream();
-            while ((length = resourceStream.read(buf)) > 0) {
-                out.write(buf, 0, length);
+            if (resource != null) {
+                ResourceResponder.sendResource(request, response, "resource:"
+                        + weblog.getHandle() + ":" + resource.getPath(),
+                        resource, contentType, resourceLastMod, eTag);
+            } else {
+                ResourceResponder.sendFile(request, response, "media:"
+                        + mediaFile.getId(), mediaFile.getContent(),
+                        contentType, resourceLastMod, eTag);
             }
 
-            // close output stream
-            out.close();
-
         } catch (Exception ex) {
             if (!response.isCommitted()) {
                 response.reset();
             }
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-        } finally {
-            // make sure stream to resource file is closed
-            resourceStream.close();
         }
 
     }
@@ -32,6 +32,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.config.WebloggerRuntimeConfig;
+import org.apache.roller.weblogger.business.CommentEventQueue;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.business.WeblogEntryManager;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment;
@@ -41,8 +42,6 @@ import org.apache.roller.weblogger.pojos.Weblog;
 import org.apache.roller.weblogger.ui.rendering.plugins.comments.CommentValidationManager;
 import org.apache.roller.weblogger.ui.rendering.plugins.comments.TrackbackLinkbackCommentValidator;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogTrackbackRequest;
-import org.apache.roller.weblogger.util.I18nMessages;
-import org.apache.roller.weblogger.util.MailUtil;
 import org.apache.roller.weblogger.util.RollerMessages;
 import org.apache.roller.weblogger.util.cache.CacheManager;
 
@@ -189,10 +188,10 @@ public class TrackbackServlet extends HttpServlet {
                         CacheManager.invalidate(comment);
                     }
                     
-                    // Send email notifications
-                    MailUtil.sendEmailNotification(comment, messages, 
-                            I18nMessages.getMessages(trackbackRequest.getLocaleInstance()),
-                            validationScore == RollerConstants.PERCENT_100);
+                    // Send email notifications, in the background
+                    CommentEventQueue.getInstance().commentSaved(comment, messages,
+                            trackbackRequest.getLocaleInstance(),
+                            validationScore == RollerConstants.PERCENT_100, false);
                     
                     if (ApprovalStatus.PENDING.equals(comment.getStatus())) {
                         pw.println(this.getSuccessResponse("Trackback submitted to moderator"));
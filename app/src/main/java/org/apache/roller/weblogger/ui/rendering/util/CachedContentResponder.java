@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.ui.rendering.util;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.weblogger.ui.rendering.mobile.MobileDeviceRepository;
+import org.apache.roller.weblogger.util.cache.CachedContent;
+
+
+/**
+ * Writes CachedContent to the response, gzip compressed when the client
+ * accepts it, along with a strong ETag for the representation being sent.
+ *
+ * The ETag is the device type followed by a hash of the content, so that it
+ * keeps working with the device type check in ModDateHeaderUtil.
+ */
+public final class CachedContentResponder {
+
+    private static Log log = LogFactory.getLog(CachedContentResponder.class);
+
+    private static final String GZIP = "gzip";
+
+
+    private CachedContentResponder() {
+    }
+
+
+    /**
+     * Does the client accept gzip content encoding?
+     */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+
+        String accepts = request.getHeader("Accept-Encoding");
+        if (accepts == null) {
+            return false;
+        }
+
+        for (String coding : accepts.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                // gzip;q=0 means the client explicitly does NOT want it
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Float.parseFloat(param.substring(2)) > 0;
+                        } catch (NumberFormatException ex) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Build the ETag for the given content as it would be sent.
+     */
+    public static String getETag(CachedContent content,
+            MobileDeviceRepository.DeviceType deviceType, boolean gzipped) {
+
+        StringBuilder eTag = new StringBuilder("\"");
+        if (deviceType != null) {
+            eTag.append(deviceType.name()).append('-');
+        }
+        eTag.append(content.getContentHash());
+        if (gzipped) {
+            eTag.append('-').append(GZIP);
+        }
+        return eTag.append('"').toString();
+    }
+
+
+    /**
+     * Sets the HTTP response status to 304 (NOT MODIFIED) if the request
+     * contains an If-None-Match header matching the ETag of the content we
+     * would otherwise send.
+     *
+     * @return true if a response status was sent, false otherwise.
+     */
+    public static boolean respondIfNoneMatch(HttpServletRequest request,
+            HttpServletResponse response, CachedContent content,
+            MobileDeviceRepository.DeviceType deviceType) {
+
+        String previousTokens = request.getHeader("If-None-Match");
+        if (previousTokens == null) {
+            return false;
+        }
+
+        boolean gzipped = acceptsGzip(request) && content.hasGzippedContent();
+        String eTag = getETag(content, deviceType, gzipped);
+
+        for (String token : previousTokens.split(",")) {
+            if (eTag.equals(token.trim())) {
+                if (log.isDebugEnabled()) {
+                    log.debug("NOT MODIFIED " + request.getRequestURL());
+                }
+
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                response.setHeader("ETag", eTag);
+                response.addHeader("Vary", "Accept-Encoding");
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Write the content to the response, compressed if possible.
+     *
+     * @param withETag set the ETag header.  Callers which don't do conditional
+     *        request handling for this response should pass false.
+     */
+    public static void writeContent(HttpServletRequest request,
+            HttpServletResponse response, CachedContent content,
+            MobileDeviceRepository.DeviceType deviceType, boolean withETag)
+            throws IOException {
+
+        boolean gzipped = acceptsGzip(request) && content.hasGzippedContent();
+        if (gzipped) {
+            response.setHeader("Content-Encoding", GZIP);
+        }
+
+        response.addHeader("Vary", "Accept-Encoding");
+        if (withETag) {
+            response.setHeader("ETag", getETag(content, deviceType, gzipped));
+        }
+        response.setContentLength(content.getContentLength(gzipped));
+        content.writeContent(response.getOutputStream(), gzipped);
+    }
+
+}
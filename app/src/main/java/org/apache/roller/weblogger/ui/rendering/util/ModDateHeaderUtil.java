@@ -98,7 +98,8 @@ public final class ModDateHeaderUtil {
 		}
 
 		String previousToken = request.getHeader("If-None-Match");
-		if (eTag != null && previousToken != null && eTag.equals(previousToken)
+		if (eTag != null && previousToken != null
+				&& matchesDeviceType(previousToken, eTag)
 				&& lastModifiedTimeMillis <= sinceDate
 				|| (eTag == null || previousToken == null)
 				&& lastModifiedTimeMillis <= sinceDate) {
@@ -120,6 +121,17 @@ public final class ModDateHeaderUtil {
 		}
 	}
 
+	/**
+	 * Does the If-None-Match token belong to the given device type? Besides
+	 * the bare device type we also accept the content ETags handed out by
+	 * CachedContentResponder, which start with it.
+	 */
+	private static boolean matchesDeviceType(String previousToken,
+			String deviceType) {
+		return deviceType.equals(previousToken)
+				|| previousToken.startsWith("\"" + deviceType + "-");
+	}
+
 	/**
 	 * Set the Last-Modified header using the given time in milliseconds. Note
 	 * that because the header has the granularity of one second, the value will
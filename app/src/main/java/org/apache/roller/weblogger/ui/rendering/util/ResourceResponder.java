@@ -0,0 +1,436 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.ui.rendering.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.util.UUIDGenerator;
+import org.apache.roller.weblogger.pojos.FileContent;
+import org.apache.roller.weblogger.pojos.Resource;
+import org.apache.roller.weblogger.ui.rendering.mobile.MobileDeviceRepository;
+import org.apache.roller.weblogger.ui.rendering.util.cache.ResourceCache;
+
+
+/**
+ * Writes static resources such as media files and theme resources to the
+ * response, with a Content-Length and a strong ETag, honouring Range and
+ * If-Range requests so that clients can resume downloads and seek in audio
+ * and video.
+ *
+ * Files are sent from their FileChannel rather than copied through a buffer
+ * of our own, and small ones are served from the ResourceCache.
+ *
+ * Like CachedContentResponder the ETag starts with the device type, so that
+ * it keeps working with the device type check in ModDateHeaderUtil.
+ */
+public final class ResourceResponder {
+    
+    private static Log log = LogFactory.getLog(ResourceResponder.class);
+    
+    // more ranges than this in one request and we just send everything
+    private static final int MAX_RANGES = 20;
+    
+    
+    private ResourceResponder() {
+    }
+    
+    
+    /**
+     * Build the ETag for a resource of the given length and modification time.
+     */
+    public static String getETag(long length, long lastModified,
+            MobileDeviceRepository.DeviceType deviceType) {
+        
+        StringBuilder eTag = new StringBuilder("\"");
+        if (deviceType != null) {
+            eTag.append(deviceType.name()).append('-');
+        }
+        eTag.append(Long.toHexString(lastModified));
+        eTag.append('-').append(Long.toHexString(length));
+        return eTag.append('"').toString();
+    }
+    
+    
+    /**
+     * Sets the HTTP response status to 304 (NOT MODIFIED) if the request
+     * contains an If-None-Match header matching the given ETag.
+     *
+     * @return true if a response status was sent, false otherwise.
+     */
+    public static boolean respondIfNoneMatch(HttpServletRequest request,
+            HttpServletResponse response, String eTag) {
+        
+        String previousTokens = request.getHeader("If-None-Match");
+        if (previousTokens == null) {
+            return false;
+        }
+        
+        for (String token : previousTokens.split(",")) {
+            token = token.trim();
+            if (eTag.equals(token) || "*".equals(token)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("NOT MODIFIED " + request.getRequestURL());
+                }
+                
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                response.setHeader("ETag", eTag);
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    
+    /**
+     * Send a file, from the ResourceCache if it is small enough to be kept.
+     */
+    public static void sendFile(HttpServletRequest request,
+            HttpServletResponse response, String cacheKey, FileContent content,
+            String contentType, long lastModified, String eTag)
+            throws IOException {
+        
+        long length = content.getLength();
+        
+        ResourceCache cache = ResourceCache.getInstance();
+        if (cache.isCacheable(length)) {
+            byte[] bytes = cache.get(cacheKey, lastModified, length);
+            if (bytes == null) {
+                bytes = readFully(content.getInputStream(), length);
+                cache.put(cacheKey, lastModified, bytes);
+            }
+            send(request, response, new BytesSource(bytes), contentType,
+                    lastModified, eTag);
+            return;
+        }
+        
+        FileChannel channel = content.getChannel();
+        try {
+            send(request, response, new ChannelSource(channel, length), contentType,
+                    lastModified, eTag);
+        } finally {
+            channel.close();
+        }
+    }
+    
+    
+    /**
+     * Send a resource which can only be read as a stream, like a theme
+     * resource.  Small ones are kept in the ResourceCache and can be sent in
+     * ranges, anything larger is always sent in full.
+     */
+    public static void sendResource(HttpServletRequest request,
+            HttpServletResponse response, String cacheKey, Resource resource,
+            String contentType, long lastModified, String eTag)
+            throws IOException {
+        
+        long length = resource.getLength();
+        
+        ResourceCache cache = ResourceCache.getInstance();
+        if (cache.isCacheable(length)) {
+            byte[] bytes = cache.get(cacheKey, lastModified, length);
+            if (bytes == null) {
+                bytes = readFully(resource.getInputStream(), length);
+                cache.put(cacheKey, lastModified, bytes);
+            }
+            send(request, response, new BytesSource(bytes), contentType,
+                    lastModified, eTag);
+            return;
+        }
+        
+        InputStream in = resource.getInputStream();
+        try {
+            response.setContentType(contentType);
+            response.setHeader("ETag", eTag);
+            response.setHeader("Content-Length", Long.toString(length));
+            OutputStream out = response.getOutputStream();
+            byte[] buf = new byte[RollerConstants.EIGHT_KB_IN_BYTES];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    
+    /**
+     * Parse a Range header into the byte ranges to send, as inclusive
+     * {first, last} pairs.
+     *
+     * @return the ranges, an empty list if none of them can be satisfied, or
+     *         null if the header should be ignored and everything sent.
+     */
+    static List<long[]> parseRanges(String header, long length) {
+        
+        header = header.trim();
+        if (!header.startsWith("bytes=") || length <= 0) {
+            return null;
+        }
+        
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        
+        List<long[]> ranges = new ArrayList<long[]>();
+        long total = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // the final N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = length - 1;
+                    if (dash < spec.length() - 1) {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                    }
+                    if (first < 0) {
+                        return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            
+            if (first >= length) {
+                continue;
+            }
+            ranges.add(new long[] {first, last});
+            total += last - first + 1;
+        }
+        
+        // overlapping ranges adding up to more than the whole thing
+        if (total > length) {
+            return null;
+        }
+        
+        return ranges;
+    }
+    
+    
+    // send all of the source, or the ranges of it which were asked for
+    private static void send(HttpServletRequest request,
+            HttpServletResponse response, Source source, String contentType,
+            long lastModified, String eTag) throws IOException {
+        
+        long length = source.length();
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", eTag);
+        
+        List<long[]> ranges = null;
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader != null && ifRangeMatches(request, lastModified, eTag)) {
+            ranges = parseRanges(rangeHeader, length);
+        }
+        
+        if (ranges == null) {
+            response.setContentType(contentType);
+            response.setHeader("Content-Length", Long.toString(length));
+            source.transferTo(0, length, response.getOutputStream());
+            return;
+        }
+        
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.setHeader("Content-Length", "0");
+            return;
+        }
+        
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", contentRange(range, length));
+            response.setHeader("Content-Length", Long.toString(range[1] - range[0] + 1));
+            source.transferTo(range[0], range[1] - range[0] + 1, response.getOutputStream());
+            return;
+        }
+        
+        // several ranges go as a multipart/byteranges body
+        String boundary = UUIDGenerator.generateUUID();
+        List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+        long bodyLength = 0;
+        for (long[] range : ranges) {
+            StringBuilder partHeader = new StringBuilder();
+            partHeader.append("\r\n--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                partHeader.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            partHeader.append("Content-Range: ").append(contentRange(range, length));
+            partHeader.append("\r\n\r\n");
+            byte[] bytes = partHeader.toString().getBytes("ISO-8859-1");
+            partHeaders.add(bytes);
+            bodyLength += bytes.length + range[1] - range[0] + 1;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+        bodyLength += end.length;
+        
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setHeader("Content-Length", Long.toString(bodyLength));
+        OutputStream out = response.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            out.write(partHeaders.get(i));
+            source.transferTo(range[0], range[1] - range[0] + 1, out);
+        }
+        out.write(end);
+    }
+    
+    
+    // a Range only applies if the If-Range validator, if any, still matches
+    private static boolean ifRangeMatches(HttpServletRequest request,
+            long lastModified, String eTag) {
+        
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(eTag);
+        }
+        
+        try {
+            long date = request.getDateHeader("If-Range");
+            return date != -1
+                    && date == lastModified - (lastModified % RollerConstants.SEC_IN_MS);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+    
+    
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+    
+    
+    private static byte[] readFully(InputStream in, long length) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) length);
+            byte[] buf = new byte[RollerConstants.EIGHT_KB_IN_BYTES];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                bytes.write(buf, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+    
+    
+    /**
+     * Where the bytes of a resource come from.
+     */
+    private abstract static class Source {
+        
+        abstract long length();
+        
+        abstract void transferTo(long position, long count, OutputStream out)
+                throws IOException;
+    }
+    
+    
+    private static class BytesSource extends Source {
+        
+        private final byte[] bytes;
+        
+        BytesSource(byte[] bytes) {
+            this.bytes = bytes;
+        }
+        
+        long length() {
+            return bytes.length;
+        }
+        
+        void transferTo(long position, long count, OutputStream out)
+                throws IOException {
+            out.write(bytes, (int) position, (int) count);
+        }
+    }
+    
+    
+    private static class ChannelSource extends Source {
+        
+        private final FileChannel channel;
+        private final long length;
+        
+        ChannelSource(FileChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+        
+        long length() {
+            return length;
+        }
+        
+        // let the channel move the bytes rather than reading them into a
+        // buffer of our own and writing that out again
+        void transferTo(long position, long count, OutputStream out)
+                throws IOException {
+            WritableByteChannel target = Channels.newChannel(out);
+            long end = position + count;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, target);
+                if (sent <= 0) {
+                    // the file got shorter than we said it was
+                    throw new IOException("Unexpected end of file at " + position);
+                }
+                position += sent;
+            }
+        }
+    }
+    
+}
@@ -36,6 +36,8 @@ public class WeblogMediaResourceRequest extends WeblogRequest {
     private String resourceId = null;
 
     private boolean thumbnail = false;
+
+    private String size = null;
     
     
     public WeblogMediaResourceRequest() {}
@@ -76,6 +78,10 @@ public class WeblogMediaResourceRequest extends WeblogRequest {
         if (request.getParameter("t") != null && "true".equals(request.getParameter("t"))) {
             thumbnail = true;
         }
+
+        if (request.getParameter("s") != null && request.getParameter("s").trim().length() > 0) {
+            size = request.getParameter("s").trim();
+        }
         
         if(log.isDebugEnabled()) {
             log.debug("resourceId = "+this.resourceId);
@@ -109,4 +115,18 @@ public class WeblogMediaResourceRequest extends WeblogRequest {
     public void setThumbnail(boolean thumbnail) {
         this.thumbnail = thumbnail;
     }
+
+    /**
+     * @return the name of the size the image was asked for in, or null
+     */
+    public String getSize() {
+        return size;
+    }
+
+    /**
+     * @param size the size to set
+     */
+    public void setSize(String size) {
+        this.size = size;
+    }
 }
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.ui.rendering.util.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.util.cache.ConcurrentLRUCacheImpl;
+
+
+/**
+ * Keeps the bytes of small, frequently requested static resources such as
+ * theme css and media file thumbnails in memory.
+ *
+ * The cache is bounded by the total size of what it holds rather than by a
+ * number of entries, and only takes resources up to cache.resources.maxFileSize
+ * bytes.  Entries remember the last modified time and length of the resource
+ * they were read from and are only handed out while those still match, so
+ * nothing needs to be invalidated when resources change.
+ *
+ * The entries live in a ConcurrentLRUCacheImpl weighted by their length, so
+ * serving a cached resource never takes a lock.
+ */
+public final class ResourceCache {
+    
+    private static Log log = LogFactory.getLog(ResourceCache.class);
+    
+    // a unique identifier for this cache, this is used as the prefix for
+    // roller config properties that apply to this cache
+    public static final String CACHE_ID = "cache.resources";
+    
+    // aim for room for at least this many of the largest resources per segment
+    private static final int FILES_PER_SEGMENT = 8;
+    
+    private final boolean cacheEnabled;
+    private final long maxBytes;
+    private final long maxFileSize;
+    
+    private final EntryCache entries;
+    
+    // counted here since a stale entry is a hit for the underlying cache
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    
+    // reference to our singleton instance
+    private static ResourceCache singletonInstance = new ResourceCache();
+    
+    
+    private ResourceCache() {
+        cacheEnabled = WebloggerConfig.getBooleanProperty(CACHE_ID+".enabled");
+        maxBytes = Math.max(1, WebloggerConfig.getIntProperty(CACHE_ID+".maxBytes", 0));
+        maxFileSize = Math.min(maxBytes,
+                Math.max(0, WebloggerConfig.getIntProperty(CACHE_ID+".maxFileSize", 0)));
+        
+        // a resource can't be bigger than its segment, so don't split the
+        // budget so finely that the largest ones won't fit
+        long perSegment = Math.max(1, maxFileSize * FILES_PER_SEGMENT);
+        int concurrency = (int) Math.max(1, Math.min(16, maxBytes / perSegment));
+        entries = new EntryCache((int) Math.min(Integer.MAX_VALUE, maxBytes), concurrency);
+        
+        if (cacheEnabled) {
+            log.info("Resource cache enabled, "+maxBytes+" bytes for resources up to "
+                    +maxFileSize+" bytes");
+        }
+    }
+    
+    
+    public static ResourceCache getInstance() {
+        return singletonInstance;
+    }
+    
+    
+    /**
+     * Would a resource of the given length be kept?
+     */
+    public boolean isCacheable(long length) {
+        return cacheEnabled && length > 0 && length <= maxFileSize;
+    }
+    
+    
+    /**
+     * Get the cached bytes of a resource, if it hasn't changed since.
+     */
+    public byte[] get(String key, long lastModified, long length) {
+        
+        if (!cacheEnabled) {
+            return null;
+        }
+        
+        Entry entry = (Entry) entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            log.debug("MISS "+key);
+            return null;
+        }
+        
+        if (entry.lastModified != lastModified || entry.content.length != length) {
+            entries.remove(key);
+            misses.incrementAndGet();
+            log.debug("HIT-EXPIRED "+key);
+            return null;
+        }
+        
+        hits.incrementAndGet();
+        log.debug("HIT "+key);
+        return entry.content;
+    }
+    
+    
+    /**
+     * Keep the bytes of a resource, evicting the least recently used
+     * resources to stay within the budget.
+     */
+    public void put(String key, long lastModified, byte[] content) {
+        
+        if (!isCacheable(content.length)) {
+            return;
+        }
+        
+        entries.put(key, new Entry(lastModified, content), content.length);
+        log.debug("PUT "+key);
+    }
+    
+    
+    public void clear() {
+        entries.clear();
+        hits.set(0);
+        misses.set(0);
+        log.debug("CLEAR");
+    }
+    
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> cacheStats = entries.getStats();
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("size", cacheStats.get("size"));
+        stats.put("bytes", entries.getWeight());
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", cacheStats.get("evictions"));
+        return stats;
+    }
+    
+    
+    private static class Entry {
+        
+        private final long lastModified;
+        private final byte[] content;
+        
+        Entry(long lastModified, byte[] content) {
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+    
+    
+    private static class EntryCache extends ConcurrentLRUCacheImpl {
+        
+        EntryCache(int maxBytes, int concurrency) {
+            // resources never expire, they are checked on every hit instead
+            super(CACHE_ID, maxBytes, 0, concurrency);
+        }
+    }
+    
+}
@@ -23,6 +23,7 @@ import java.net.URLEncoder;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -37,6 +38,7 @@ import org.apache.roller.weblogger.pojos.WeblogBookmarkFolder;
 import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.WeblogCategory;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
+import org.apache.roller.weblogger.pojos.WeblogEntryTag;
 import org.apache.roller.weblogger.pojos.WeblogTemplate;
 import org.apache.roller.weblogger.pojos.Weblog;
 import org.apache.roller.weblogger.ui.rendering.util.WeblogFeedRequest;
@@ -45,11 +47,17 @@ import org.apache.roller.weblogger.util.Utilities;
 import org.apache.roller.weblogger.util.cache.Cache;
 import org.apache.roller.weblogger.util.cache.CacheHandler;
 import org.apache.roller.weblogger.util.cache.CacheManager;
+import org.apache.roller.weblogger.util.cache.DependencyTrackingCache;
 import org.apache.roller.weblogger.util.cache.ExpiringCacheEntry;
 
 
 /**
  * Cache for site-wide weblog content.
+ *
+ * Site-wide content is built from many weblogs, so instead of clearing the
+ * whole cache whenever any weblog changes we keep track of what each cached
+ * page was built from (see ContentDependencies) and only evict the pages
+ * which depend on the changed object.
  */
 public final class SiteWideCache implements CacheHandler {
     
@@ -61,7 +69,7 @@ public final class SiteWideCache implements CacheHandler {
     
     // keep cached content
     private boolean cacheEnabled = true;
-    private Cache contentCache = null;
+    private DependencyTrackingCache contentCache = null;
     
     // keep a cached version of last expired time
     private ExpiringCacheEntry lastUpdateTime = null;
@@ -88,10 +96,28 @@ public final class SiteWideCache implements CacheHandler {
             }
         }
         
+        // what pages were built from is only tracked in memory, so pages kept
+        // by a tiered cache across a restart could never be invalidated
+        if("true".equals(cacheProps.get("l2.persistent"))) {
+            log.warn("Ignoring "+CACHE_ID+".l2.persistent=true, dependencies are not persistent");
+        }
+        cacheProps.put("l2.persistent", "false");
+        
         log.info(cacheProps);
         
         if(cacheEnabled) {
-            contentCache = CacheManager.constructCache(this, cacheProps);
+            Cache cache = CacheManager.constructCache(this, cacheProps);
+            
+            // keep track of dependencies for a few times as many keys as
+            // the cache holds, since evicted keys linger in the index
+            int size = 100;
+            try {
+                size = Integer.parseInt(cacheProps.get("size"));
+            } catch(Exception e) {
+                // ignored
+            }
+            contentCache = new DependencyTrackingCache(cache, size * 4);
+            CacheManager.registerCache(contentCache);
         } else {
             log.warn("Caching has been DISABLED");
         }
@@ -327,6 +353,9 @@ public final class SiteWideCache implements CacheHandler {
     
     /**
      * A weblog entry has changed.
+     *
+     * Only content showing entries of the same weblog, or listings across
+     * weblogs which the entry could show up in, is evicted.
      */
     public void invalidate(WeblogEntry entry) {
         
@@ -334,7 +363,17 @@ public final class SiteWideCache implements CacheHandler {
             return;
         }
         
-        this.contentCache.clear();
+        // an entry can drop out of a tag listing as well as show up in one
+        Set<String> tagNames = new HashSet<String>();
+        for (WeblogEntryTag tag : entry.getTags()) {
+            tagNames.add(tag.getName());
+        }
+        for (WeblogEntryTag tag : entry.getRemovedTags()) {
+            tagNames.add(tag.getName());
+        }
+        
+        this.contentCache.removeEntryDependents(
+                entry.getWebsite().getHandle(), tagNames);
         this.lastUpdateTime = null;
     }
     
@@ -348,7 +387,7 @@ public final class SiteWideCache implements CacheHandler {
             return;
         }
         
-        this.contentCache.clear();
+        this.contentCache.removeWeblogDependents(website.getHandle());
         this.lastUpdateTime = null;
     }
     
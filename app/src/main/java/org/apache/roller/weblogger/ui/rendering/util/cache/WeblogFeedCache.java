@@ -114,6 +114,27 @@ public final class WeblogFeedCache {
     }
     
     
+    /**
+     * Get the last cached value for a key, even if it has been invalidated
+     * since.  Useful to serve something while a fresh copy is being built.
+     */
+    public Object getStale(String key) {
+        
+        if (!cacheEnabled) {
+            return null;
+        }
+        
+        LazyExpiringCacheEntry lazyEntry =
+                (LazyExpiringCacheEntry) this.contentCache.get(key);
+        if(lazyEntry != null) {
+            log.debug("HIT-STALE "+key);
+            return lazyEntry.getStaleValue();
+        }
+        
+        return null;
+    }
+    
+    
     public void put(String key, Object value) {
         
         if (!cacheEnabled) {
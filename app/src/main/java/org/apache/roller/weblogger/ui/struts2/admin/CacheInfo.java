@@ -19,11 +19,21 @@
 package org.apache.roller.weblogger.ui.struts2.admin;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import org.apache.roller.weblogger.business.CommentEventQueue;
+import org.apache.roller.weblogger.business.HitCountQueue;
+import org.apache.roller.weblogger.business.ImageDerivativeService;
+import org.apache.roller.weblogger.business.TagAggregateQueue;
+import org.apache.roller.weblogger.business.WebloggerFactory;
+import org.apache.roller.weblogger.business.pings.PingQueueProcessor;
+import org.apache.roller.weblogger.business.startup.WebloggerStartup;
 import org.apache.roller.weblogger.pojos.GlobalPermission;
+import org.apache.roller.weblogger.ui.rendering.util.cache.ResourceCache;
 import org.apache.roller.weblogger.ui.struts2.util.UIAction;
 import org.apache.roller.weblogger.util.cache.CacheManager;
+import org.apache.roller.weblogger.util.cache.RequestCoalescer;
 
 
 /**
@@ -55,7 +65,39 @@ public class CacheInfo extends UIAction {
     
     
     public void myPrepare() {
-        Map cacheStats = CacheManager.getStats();
+        Map<String, Map<String, Object>> cacheStats =
+                new HashMap<String, Map<String, Object>>(CacheManager.getStats());
+        cacheStats.put(ResourceCache.CACHE_ID, ResourceCache.getInstance().getStats());
+        
+        // not a cache, but hits are held back in much the same way
+        cacheStats.put("hitCountQueue", HitCountQueue.getInstance().getStats());
+        cacheStats.put("commentEventQueue", CommentEventQueue.getInstance().getStats());
+        cacheStats.put("tagAggregateQueue", TagAggregateQueue.getInstance().getStats());
+        cacheStats.put("imageDerivatives", ImageDerivativeService.getInstance().getStats());
+        if (WebloggerStartup.getMailProvider() != null) {
+            cacheStats.put("mailDeliveryQueue",
+                    WebloggerStartup.getMailProvider().getDeliveryQueue().getStats());
+        }
+        
+        // how often concurrent renders were shared
+        for (Map.Entry<String, Map<String, Object>> coalescer : RequestCoalescer
+                .getAllStats().entrySet()) {
+            cacheStats.put("coalescer." + coalescer.getKey(), coalescer.getValue());
+        }
+        
+        // and while we are at it, how busy the thread pools are
+        for (Map.Entry<String, Map<String, Object>> pool : WebloggerFactory
+                .getWeblogger().getThreadManager().getPoolStats().entrySet()) {
+            cacheStats.put("threads." + pool.getKey(), pool.getValue());
+        }
+        
+        // and how the ping targets are doing
+        if (PingQueueProcessor.getInstance() != null) {
+            for (Map.Entry<String, Map<String, Object>> target : PingQueueProcessor
+                    .getInstance().getTargetStats().entrySet()) {
+                cacheStats.put("pings." + target.getKey(), target.getValue());
+            }
+        }
         setStats(cacheStats);
     }
     
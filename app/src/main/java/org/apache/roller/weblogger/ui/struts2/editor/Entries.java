@@ -32,6 +32,7 @@ import org.apache.roller.weblogger.business.WeblogEntryManager;
 import org.apache.roller.weblogger.pojos.WeblogCategory;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.WeblogEntrySearchCriteria;
+import org.apache.roller.weblogger.pojos.WeblogEntrySummary;
 import org.apache.roller.weblogger.pojos.WeblogPermission;
 import org.apache.roller.weblogger.ui.struts2.pagers.EntriesPager;
 import org.apache.roller.weblogger.ui.struts2.util.KeyValueObject;
@@ -55,10 +56,10 @@ public class Entries extends UIAction {
     private EntriesPager pager = null;
     
     // first entry in the list
-    private WeblogEntry firstEntry = null;
+    private WeblogEntrySummary firstEntry = null;
     
     // last entry in the list
-    private WeblogEntry lastEntry = null;
+    private WeblogEntrySummary lastEntry = null;
     
     
     public Entries() {
@@ -80,7 +81,7 @@ public class Entries extends UIAction {
             log.debug("entries bean is ...\n"+getBean().toString());
         }
         
-        List<WeblogEntry> entries = null;
+        List<WeblogEntrySummary> entries = null;
         boolean hasMore = false;
         try {
             String status = getBean().getStatus();
@@ -97,8 +98,8 @@ public class Entries extends UIAction {
             wesc.setSortBy(getBean().getSortBy());
             wesc.setOffset(getBean().getPage() * COUNT);
             wesc.setMaxResults(COUNT + 1);
-            List<WeblogEntry> rawEntries = wmgr.getWeblogEntries(wesc);
-            entries = new ArrayList<WeblogEntry>();
+            List<WeblogEntrySummary> rawEntries = wmgr.getWeblogEntrySummaries(wesc);
+            entries = new ArrayList<WeblogEntrySummary>();
             entries.addAll(rawEntries);
             if (entries.size() > 0) {
                 log.debug("query found "+rawEntries.size()+" results");
@@ -212,19 +213,19 @@ public class Entries extends UIAction {
         this.bean = bean;
     }
 
-    public WeblogEntry getFirstEntry() {
+    public WeblogEntrySummary getFirstEntry() {
         return firstEntry;
     }
 
-    public void setFirstEntry(WeblogEntry firstEntry) {
+    public void setFirstEntry(WeblogEntrySummary firstEntry) {
         this.firstEntry = firstEntry;
     }
 
-    public WeblogEntry getLastEntry() {
+    public WeblogEntrySummary getLastEntry() {
         return lastEntry;
     }
 
-    public void setLastEntry(WeblogEntry lastEntry) {
+    public void setLastEntry(WeblogEntrySummary lastEntry) {
         this.lastEntry = lastEntry;
     }
 
@@ -27,6 +27,7 @@ import org.apache.roller.weblogger.business.UserManager;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.pojos.WeblogPermission;
 import org.apache.roller.weblogger.ui.struts2.util.UIAction;
+import org.apache.roller.weblogger.util.cache.CacheManager;
 
 /**
  * Action for resigning from a weblog.
@@ -67,6 +68,7 @@ public class MemberResign extends UIAction {
             // TODO EXCEPTIONS: better exception handling
             umgr.revokeWeblogPermission(getActionWeblog(), getAuthenticatedUser(), WeblogPermission.ALL_ACTIONS);
             WebloggerFactory.getWeblogger().flush();
+            CacheManager.invalidate(getAuthenticatedUser());
             addMessage("yourWebsites.resigned", getWeblog());
         } catch (WebloggerException ex) {
             log.error("Error doing weblog resign - " + getActionWeblog().getHandle(), ex);
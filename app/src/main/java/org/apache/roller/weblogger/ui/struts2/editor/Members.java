@@ -31,6 +31,7 @@ import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.WeblogPermission;
 import org.apache.roller.weblogger.ui.struts2.util.UIAction;
 import org.apache.roller.weblogger.util.Utilities;
+import org.apache.roller.weblogger.util.cache.CacheManager;
 import org.apache.struts2.interceptor.ParameterAware;
 
 
@@ -109,6 +110,7 @@ public class Members extends UIAction implements ParameterAware {
                 error = true;
             }
             // one iteration for each line (user) in the members table
+            List<User> changedUsers = new ArrayList<User>();
             for (WeblogPermission perms : permsList) {
 
                 String sval = getParameter("perm-" + perms.getUser().getId());
@@ -117,12 +119,14 @@ public class Members extends UIAction implements ParameterAware {
                         if ("-1".equals(sval)) {
                              userMgr.revokeWeblogPermission(
                                     perms.getWeblog(), perms.getUser(), WeblogPermission.ALL_ACTIONS);
+                            changedUsers.add(perms.getUser());
                             removed++;
                         } else {
                             userMgr.revokeWeblogPermission(
                                     perms.getWeblog(), perms.getUser(), WeblogPermission.ALL_ACTIONS);
                             userMgr.grantWeblogPermission(
                                     perms.getWeblog(), perms.getUser(), Utilities.stringToStringList(sval, ","));
+                            changedUsers.add(perms.getUser());
                             changed++;
                         }
                     }
@@ -132,6 +136,11 @@ public class Members extends UIAction implements ParameterAware {
             if (removed > 0 || changed > 0) {
                 log.debug("Weblog permissions updated, flushing changes");                
                 WebloggerFactory.getWeblogger().flush();
+                
+                // so that permission lookups cached anywhere are dropped
+                for (User changedUser : changedUsers) {
+                    CacheManager.invalidate(changedUser);
+                }
             }
             
         } catch (Exception ex) {
@@ -21,7 +21,7 @@ package org.apache.roller.weblogger.ui.struts2.pagers;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import org.apache.roller.weblogger.pojos.WeblogEntry;
+import org.apache.roller.weblogger.pojos.WeblogEntrySummary;
 import org.apache.roller.weblogger.util.URLUtilities;
 
 
@@ -31,7 +31,7 @@ import org.apache.roller.weblogger.util.URLUtilities;
 public class EntriesPager {
     
     // the collection for the pager
-    private final List<WeblogEntry> items;
+    private final List<WeblogEntrySummary> items;
     
     // base url for the pager
     private final String baseUrl;
@@ -43,7 +43,7 @@ public class EntriesPager {
     private final boolean moreItems;
     
     
-    public EntriesPager(String url, int page, List<WeblogEntry> entries, boolean hasMore) {
+    public EntriesPager(String url, int page, List<WeblogEntrySummary> entries, boolean hasMore) {
         this.baseUrl = url;
         this.pageNum = page;
         this.items = entries;
@@ -85,7 +85,7 @@ public class EntriesPager {
     }
     
     
-    public List<WeblogEntry> getItems() {
+    public List<WeblogEntrySummary> getItems() {
         return items;
     }
 
@@ -31,14 +31,12 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.config.WebloggerConfig;
@@ -77,6 +75,9 @@ public final class Blacklist {
     private List<String> blacklistStr = new LinkedList<String>();
     private List<Pattern> blacklistRegex = new LinkedList<Pattern>();
     
+    // the rules above, compiled for testing
+    private volatile BlacklistRules rules = BlacklistRules.EMPTY;
+    
     // setup our singleton at class loading time
     static {
         mLogger.info("Initializing MT Blacklist");
@@ -217,7 +218,10 @@ public final class Blacklist {
         }
         
         if (txtStream != null) {
+            blacklistStr = new LinkedList<String>();
+            blacklistRegex = new LinkedList<Pattern>();
             readFromStream(txtStream, false);
+            rules = new BlacklistRules(blacklistStr, blacklistRegex);
         } else {
             mLogger.error("Couldn't load a blacklist file from anywhere, "
                         + "this means blacklist checking is disabled for now.");
@@ -320,116 +324,40 @@ public final class Blacklist {
         if (str == null || StringUtils.isEmpty(str)) {
             return false;
         }
-
-        // First iterate over blacklist, doing indexOf.
-        // Then iterate over blacklistRegex and test.
-        // As soon as there is a hit in either case return true
         
-        // test plain String.indexOf
-        List<String> stringRules = blacklistStr;
-        if (moreStringRules != null && moreStringRules.size() > 0) {
-            stringRules = new ArrayList<String>();
-            stringRules.addAll(moreStringRules);
-            stringRules.addAll(blacklistStr);
-        }
-        if (testStringRules(str, stringRules)) {
-            return true;
+        if (moreStringRules == null && moreRegexRules == null) {
+            return rules.matches(str);
         }
-        
-        // test regex blacklisted
-        List<Pattern> regexRules = blacklistRegex;
-        if (moreRegexRules != null && moreRegexRules.size() > 0) {
-            regexRules = new ArrayList<Pattern>();
-            regexRules.addAll(moreRegexRules);
-            regexRules.addAll(blacklistRegex);
+        return isBlacklisted(str, new BlacklistRules(
+                (moreStringRules != null) ? moreStringRules : Collections.<String>emptyList(),
+                (moreRegexRules != null) ? moreRegexRules : Collections.<Pattern>emptyList()));
+    }
+    
+    /** 
+     * Does the String argument match any of the rules in the built-in blacklist
+     * plus the already compiled rules provided by caller?
+     * @param str       String to be checked against blacklist
+     * @param moreRules Additional rules to consider
+     */
+    public boolean isBlacklisted(String str, BlacklistRules moreRules) {
+        if (str == null || StringUtils.isEmpty(str)) {
+            return false;
         }
-        return testRegExRules(str, regexRules);
-    }      
+        return moreRules.matches(str) || rules.matches(str);
+    }
 
     /** 
      * Test string only against rules provided by caller, NOT against built-in blacklist.
+     * Callers testing the same rules over and over should hang on to a
+     * compiled BlacklistRules instead.
      * @param str             String to be checked against rules
      * @param stringRules String rules to consider
      * @param regexRules  Regex rules to consider
      */
     public static boolean matchesRulesOnly(
         String str, List<String> stringRules, List<Pattern> regexRules) {
-        return testStringRules(str, stringRules) || testRegExRules(str, regexRules);
-    }
-        
-    /** Test String against the RegularExpression rules. */
-    private static boolean testRegExRules(String str, List<Pattern> regexRules) {
-        for (Pattern testPattern : regexRules) {
-            // want to see what it is matching on, but only in debug mode
-            if (mLogger.isDebugEnabled()) {
-                Matcher matcher = testPattern.matcher(str);
-                if (matcher.find()) {
-                    mLogger.debug(matcher.group()
-                            + " matched by " + testPattern.pattern());
-                    return true;
-                }
-            } else {
-                if (testPattern.matcher(str).find()) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return new BlacklistRules(stringRules, regexRules).matches(str);
     }
-
-    /**
-     * Tests the source text against the String rules. Each String rule is
-     * first treated as a word-boundary, case insensitive regular expression.
-     * If a PatternSyntaxException is encountered, a simple contains test
-     * is performed.
-     *
-     * @param source The text in which to apply the matching rules.
-     * @param rules A list a simple matching rules.
-     *
-     * @return true if a match was found, otherwise false
-     */
-    private static boolean testStringRules(String source, List rules) {
-        boolean matches = false;
-        
-        for (Object ruleObj : rules) {
-            String rule;
-            rule = (String) ruleObj;
-
-            try {
-                StringBuilder patternBuilder;
-                patternBuilder = new StringBuilder();
-                patternBuilder.append("\\b(");
-                patternBuilder.append(rule);
-                patternBuilder.append(")\\b");
-
-                Pattern pattern;
-                pattern = Pattern.compile(patternBuilder.toString(),
-                        Pattern.CASE_INSENSITIVE);
-
-                Matcher matcher;
-                matcher = pattern.matcher(source);
-
-                matches = matcher.find();
-                if (matches) {
-                    break;
-                }
-            }
-            catch (PatternSyntaxException e) {
-                matches = source.contains(rule);
-                if (matches) {
-                    break;
-                }
-            }
-            finally {
-                if (matches && mLogger.isDebugEnabled()) {
-                    // Log the matched rule in debug mode
-                    mLogger.debug("matched:" + rule + ":");
-                }
-            }
-        }
-        
-        return matches;
-    }   
     
     /** Utility method to populate lists based a blacklist in string form */
     public static void populateSpamRules(
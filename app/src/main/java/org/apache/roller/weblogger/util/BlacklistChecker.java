@@ -18,21 +18,36 @@
 package org.apache.roller.weblogger.util;
 
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.roller.weblogger.config.WebloggerConfig;
 import org.apache.roller.weblogger.config.WebloggerRuntimeConfig;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment;
 import org.apache.roller.weblogger.pojos.Weblog;
+import org.apache.roller.weblogger.util.cache.Cache;
+import org.apache.roller.weblogger.util.cache.CacheManager;
 
 /**
  * Checks comment, trackbacks and referrers for spam.
+ *
+ * Weblog and site blacklists are compiled into BlacklistRules once and kept
+ * in a cache keyed by a hash of their text, so they are only compiled again
+ * when one of them changes.
+ *
  * @author Lance Lavandowska
  * @author Dave Johnson
  */
 public final class BlacklistChecker {
 
+    // a unique identifier for the compiled rules cache, this is used as the
+    // prefix for roller config properties that apply to this cache
+    public static final String CACHE_ID = "cache.blacklist";
+
     private BlacklistChecker() {
         // never instantiable
         throw new AssertionError();
@@ -66,15 +81,8 @@ public final class BlacklistChecker {
      */
     public static boolean checkReferrer(Weblog website, String referrerURL) {
         if (WebloggerConfig.getBooleanProperty("site.blacklist.enable.referrers")) {
-            List<String> stringRules = new ArrayList<String>();
-            List<Pattern> regexRules = new ArrayList<Pattern>();
-            Blacklist.populateSpamRules(
-                website.getBlacklist(), stringRules, regexRules, null);
-            if (WebloggerRuntimeConfig.getProperty("spam.blacklist") != null) {
-                Blacklist.populateSpamRules(
-                    WebloggerRuntimeConfig.getProperty("spam.blacklist"), stringRules, regexRules, null);
-            }
-            return Blacklist.matchesRulesOnly(referrerURL, stringRules, regexRules);
+            return getRules(website.getBlacklist(),
+                    WebloggerRuntimeConfig.getProperty("spam.blacklist")).matches(referrerURL);
         }
         return false;
     }
@@ -85,20 +93,61 @@ public final class BlacklistChecker {
      */
     private static boolean testComment(WeblogEntryComment c) {
         boolean ret = false;
-        List<String> stringRules = new ArrayList<String>();
-        List<Pattern> regexRules = new ArrayList<Pattern>();
         Weblog website = c.getWeblogEntry().getWebsite();
-        Blacklist.populateSpamRules(
-            website.getBlacklist(), stringRules, regexRules, 
-            WebloggerRuntimeConfig.getProperty("spam.blacklist"));
+        BlacklistRules rules = getRules(website.getBlacklist(),
+                WebloggerRuntimeConfig.getProperty("spam.blacklist"));
         Blacklist blacklist = Blacklist.getBlacklist();
-        if (   blacklist.isBlacklisted(c.getUrl(),     stringRules, regexRules)
-            || blacklist.isBlacklisted(c.getEmail(),   stringRules, regexRules)
-            || blacklist.isBlacklisted(c.getName(),    stringRules, regexRules)
-            || blacklist.isBlacklisted(c.getContent(), stringRules, regexRules)) {
+        if (   blacklist.isBlacklisted(c.getUrl(),     rules)
+            || blacklist.isBlacklisted(c.getEmail(),   rules)
+            || blacklist.isBlacklisted(c.getName(),    rules)
+            || blacklist.isBlacklisted(c.getContent(), rules)) {
             ret = true;
         }
         return ret;
-    }        
+    }
+    
+    /**
+     * Get the compiled rules for a weblog blacklist plus the site blacklist,
+     * compiling them only if we haven't already.
+     */
+    static BlacklistRules getRules(String weblogBlacklist, String siteBlacklist) {
+        if (weblogBlacklist == null && siteBlacklist == null) {
+            return BlacklistRules.EMPTY;
+        }
+        
+        String key = DigestUtils.md5Hex(
+                siteBlacklist + "\n" + weblogBlacklist);
+        Cache cache = RulesCacheHolder.CACHE;
+        BlacklistRules rules = (BlacklistRules) cache.get(key);
+        if (rules == null) {
+            List<String> stringRules = new ArrayList<String>();
+            List<Pattern> regexRules = new ArrayList<Pattern>();
+            Blacklist.populateSpamRules(
+                weblogBlacklist, stringRules, regexRules, siteBlacklist);
+            rules = new BlacklistRules(stringRules, regexRules);
+            cache.put(key, rules);
+        }
+        return rules;
+    }
+    
+    // created on first use, not when the class is loaded
+    private static final class RulesCacheHolder {
+        private static final Cache CACHE;
+        static {
+            Map<String, String> cacheProps = new HashMap<String, String>();
+            cacheProps.put("id", CACHE_ID);
+            Enumeration allProps = WebloggerConfig.keys();
+            while (allProps.hasMoreElements()) {
+                String prop = (String) allProps.nextElement();
+                
+                // we are only interested in props for this cache
+                if (prop.startsWith(CACHE_ID + ".")) {
+                    cacheProps.put(prop.substring(CACHE_ID.length() + 1),
+                            WebloggerConfig.getProperty(prop));
+                }
+            }
+            CACHE = CacheManager.constructCache(null, cacheProps);
+        }
+    }
 }
 
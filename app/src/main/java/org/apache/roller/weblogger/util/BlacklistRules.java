@@ -0,0 +1,373 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A set of blacklist rules compiled once so they can be tested quickly and
+ * repeatedly.
+ *
+ * The rules mean the same as they always have: each string rule is a case
+ * insensitive, word bounded regular expression (or a plain substring if it
+ * isn't a valid expression) and each regex rule is found anywhere in the
+ * text.  Only how they are tested differs:
+ *
+ *   - string rules made up of letters, digits, hyphens, spaces and dots
+ *     (which is most words and domain names) are all looked for in a single
+ *     pass over the text (Aho-Corasick)
+ *   - other string rules are joined into one case insensitive alternation
+ *   - regex rules are joined into one alternation
+ *
+ * Rules with back references or inline flags can't safely be joined with
+ * others and are tested on their own.
+ */
+public final class BlacklistRules {
+
+    private static final Log LOG = LogFactory.getLog(BlacklistRules.class);
+
+    /** Rule set which never matches anything. */
+    public static final BlacklistRules EMPTY = new BlacklistRules(
+            Collections.<String>emptyList(), Collections.<Pattern>emptyList());
+
+    // string rules which can be matched without a regex
+    private static final Pattern LITERAL_RULE =
+            Pattern.compile("[A-Za-z0-9_](?:[A-Za-z0-9_ .\\-]*[A-Za-z0-9_])?");
+
+    // things which change meaning when a pattern is joined with others
+    private static final Pattern NOT_JOINABLE =
+            Pattern.compile("\\\\[1-9]|\\\\k<|\\(\\?[a-zA-Z\\-]+[:)]");
+
+    private final LiteralMatcher literals;
+    private final List<Pattern> patterns;
+    private final List<String> substrings;
+    private final int ruleCount;
+
+
+    /**
+     * Compile the given rules.
+     *
+     * @param stringRules string rules, as with Blacklist.populateSpamRules().
+     * @param regexRules regex rules, as with Blacklist.populateSpamRules().
+     */
+    public BlacklistRules(List<String> stringRules, List<Pattern> regexRules) {
+
+        List<String> literalRules = new ArrayList<String>();
+        List<String> joinableRules = new ArrayList<String>();
+        List<Pattern> otherPatterns = new ArrayList<Pattern>();
+        List<String> substringRules = new ArrayList<String>();
+
+        for (String rule : stringRules) {
+            if (StringUtils.isEmpty(rule)) {
+                continue;
+            }
+            if (LITERAL_RULE.matcher(rule).matches()) {
+                literalRules.add(rule);
+                continue;
+            }
+            try {
+                Pattern pattern = Pattern.compile("\\b(" + rule + ")\\b",
+                        Pattern.CASE_INSENSITIVE);
+                if (isJoinable(rule)) {
+                    joinableRules.add(rule);
+                } else {
+                    otherPatterns.add(pattern);
+                }
+            } catch (PatternSyntaxException e) {
+                substringRules.add(rule);
+            }
+        }
+
+        List<Pattern> joined = new ArrayList<Pattern>();
+        if (!joinableRules.isEmpty()) {
+            joined.add(Pattern.compile("\\b(?:" + join(joinableRules) + ")\\b",
+                    Pattern.CASE_INSENSITIVE));
+        }
+
+        List<String> joinableRegexes = new ArrayList<String>();
+        for (Pattern pattern : regexRules) {
+            if (pattern.flags() == 0 && isJoinable(pattern.pattern())) {
+                joinableRegexes.add(pattern.pattern());
+            } else {
+                otherPatterns.add(pattern);
+            }
+        }
+        if (joinableRegexes.size() == 1) {
+            joined.add(Pattern.compile(joinableRegexes.get(0)));
+        } else if (!joinableRegexes.isEmpty()) {
+            joined.add(Pattern.compile(join(joinableRegexes)));
+        }
+        joined.addAll(otherPatterns);
+
+        this.literals = literalRules.isEmpty() ? null : new LiteralMatcher(literalRules);
+        this.patterns = joined;
+        this.substrings = substringRules;
+        this.ruleCount = stringRules.size() + regexRules.size();
+    }
+
+
+    /**
+     * Does the text match any of the rules?
+     */
+    public boolean matches(String text) {
+
+        if (StringUtils.isEmpty(text)) {
+            return false;
+        }
+
+        if (literals != null && literals.matches(text)) {
+            return true;
+        }
+
+        for (Pattern pattern : patterns) {
+            Matcher matcher = pattern.matcher(text);
+            if (matcher.find()) {
+                // want to see what it is matching on, but only in debug mode
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(matcher.group() + " matched by " + pattern.pattern());
+                }
+                return true;
+            }
+        }
+
+        for (String rule : substrings) {
+            if (text.contains(rule)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("matched:" + rule + ":");
+                }
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Number of rules this was compiled from.
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+
+    private static boolean isJoinable(String regex) {
+        return !NOT_JOINABLE.matcher(regex).find();
+    }
+
+
+    private static String join(List<String> regexes) {
+        StringBuilder joined = new StringBuilder();
+        for (String regex : regexes) {
+            if (joined.length() > 0) {
+                joined.append('|');
+            }
+            joined.append("(?:").append(regex).append(')');
+        }
+        return joined.toString();
+    }
+
+
+    /**
+     * Looks for many ASCII rules at once, ignoring case, and only accepts
+     * matches which sit on word boundaries just like \b would.
+     *
+     * The automaton is built from the part of each rule before its first dot,
+     * the rest of the rule is compared wherever that part is found, with dots
+     * matching any character other than a line terminator.
+     */
+    private static final class LiteralMatcher {
+
+        private final List<Map<Character, Integer>> transitions =
+                new ArrayList<Map<Character, Integer>>();
+
+        // the rest of each rule ending in each state, null if none do
+        private final List<List<String>> tails = new ArrayList<List<String>>();
+
+        // the state to fall back to when there is no transition
+        private final int[] failure;
+
+        // next state down the failure chain which ends a rule, or 0
+        private final int[] output;
+
+        // depth of each state
+        private final int[] depth;
+
+
+        LiteralMatcher(List<String> rules) {
+
+            newState();
+            for (String rule : rules) {
+                String lower = toLower(rule);
+                int dot = lower.indexOf('.');
+                String head = (dot < 0) ? lower : lower.substring(0, dot);
+
+                int state = 0;
+                for (int i = 0; i < head.length(); i++) {
+                    Integer next = transitions.get(state).get(head.charAt(i));
+                    if (next == null) {
+                        next = newState();
+                        transitions.get(state).put(head.charAt(i), next);
+                    }
+                    state = next;
+                }
+                if (tails.get(state) == null) {
+                    tails.set(state, new ArrayList<String>());
+                }
+                tails.get(state).add(lower.substring(head.length()));
+            }
+
+            int states = transitions.size();
+            failure = new int[states];
+            output = new int[states];
+            depth = new int[states];
+
+            // breadth first, so failure states are always done before we need them
+            LinkedList<Integer> queue = new LinkedList<Integer>();
+            queue.add(0);
+            while (!queue.isEmpty()) {
+                int state = queue.removeFirst();
+                for (Map.Entry<Character, Integer> edge : transitions.get(state).entrySet()) {
+                    int child = edge.getValue();
+                    queue.addLast(child);
+                    depth[child] = depth[state] + 1;
+
+                    int fallback = failure[state];
+                    Integer target = transitions.get(fallback).get(edge.getKey());
+                    while (target == null && fallback != 0) {
+                        fallback = failure[fallback];
+                        target = transitions.get(fallback).get(edge.getKey());
+                    }
+                    failure[child] = (state != 0 && target != null) ? target : 0;
+                    output[child] = (tails.get(failure[child]) != null)
+                            ? failure[child] : output[failure[child]];
+                }
+            }
+        }
+
+
+        private int newState() {
+            transitions.add(new HashMap<Character, Integer>());
+            tails.add(null);
+            return transitions.size() - 1;
+        }
+
+
+        boolean matches(String text) {
+
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = toLower(text.charAt(i));
+                if (c > 127) {
+                    // rules are all ASCII
+                    state = 0;
+                    continue;
+                }
+
+                Integer next = transitions.get(state).get(c);
+                while (next == null && state != 0) {
+                    state = failure[state];
+                    next = transitions.get(state).get(c);
+                }
+                state = (next != null) ? next : 0;
+
+                int found = (tails.get(state) != null) ? state : output[state];
+                while (found != 0) {
+                    int start = i - depth[found] + 1;
+                    if (start == 0 || !isWordChar(text.charAt(start - 1))) {
+                        for (String tail : tails.get(found)) {
+                            int end = matchTail(text, i + 1, tail);
+                            if (end >= 0 && (end == text.length() || !isWordChar(text.charAt(end)))) {
+                                if (LOG.isDebugEnabled()) {
+                                    LOG.debug("matched:" + text.substring(start, end) + ":");
+                                }
+                                return true;
+                            }
+                        }
+                    }
+                    found = output[found];
+                }
+            }
+
+            return false;
+        }
+
+
+        /**
+         * Match the rest of a rule starting at the given position.
+         *
+         * @return where the match ends, or -1 if it doesn't match.
+         */
+        private static int matchTail(String text, int pos, String tail) {
+            for (int i = 0; i < tail.length(); i++) {
+                if (pos >= text.length()) {
+                    return -1;
+                }
+                char c = text.charAt(pos);
+                if (tail.charAt(i) == '.') {
+                    if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                        return -1;
+                    }
+                    // a dot matches a whole code point
+                    if (Character.isHighSurrogate(c) && pos + 1 < text.length()
+                            && Character.isLowSurrogate(text.charAt(pos + 1))) {
+                        pos++;
+                    }
+                } else if (toLower(c) != tail.charAt(i)) {
+                    return -1;
+                }
+                pos++;
+            }
+            return pos;
+        }
+
+
+        private static char toLower(char c) {
+            return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+
+
+        private static String toLower(String str) {
+            StringBuilder lower = new StringBuilder(str.length());
+            for (int i = 0; i < str.length(); i++) {
+                lower.append(toLower(str.charAt(i)));
+            }
+            return lower.toString();
+        }
+
+
+        // what java.util.regex considers a word character for \b
+        private static boolean isWordChar(char c) {
+            return c == '_' || Character.isLetterOrDigit(c);
+        }
+    }
+
+}
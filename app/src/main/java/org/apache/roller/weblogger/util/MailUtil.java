@@ -21,24 +21,21 @@ package org.apache.roller.weblogger.util;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.TreeSet;
-import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.SendFailedException;
 import javax.mail.Session;
-import javax.mail.Transport;
-import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.WebloggerException;
+import org.apache.roller.weblogger.business.MailDeliveryQueue;
 import org.apache.roller.weblogger.business.MailProvider;
 import org.apache.roller.weblogger.business.WebloggerFactory;
 import org.apache.roller.weblogger.business.WeblogManager;
@@ -246,6 +243,9 @@ public class MailUtil {
     /**
      * Send email notification of new or newly approved comment.
      *
+     * Failures are only logged, use sendCommentNotification() if the caller
+     * needs to know.
+     *
      * @param commentObject      The new comment
      * @param messages           Messages to be included in e-mail (or null). 
      *                           Errors will be assumed to be "validation errors" 
@@ -256,6 +256,51 @@ public class MailUtil {
                                              I18nMessages resources,
                                              boolean notifySubscribers) 
             throws MailingException {
+        try {
+            sendCommentNotification(commentObject, messages, resources, notifySubscribers);
+        } catch (Exception e) {
+            log.warn("Exception sending comment notification mail", e);
+            // This will log the stack trace if debug is enabled
+            if (log.isDebugEnabled()) {
+                log.debug(e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Send email notification of new or newly approved comment.
+     *
+     * @param commentObject      The new comment
+     * @param messages           Messages to be included in e-mail (or null). 
+     *                           Errors will be assumed to be "validation errors" 
+     *                           and messages will be assumed to be "from the system"
+     * @throws MessagingException if the mail could not be sent
+     */
+    public static void sendCommentNotification(WeblogEntryComment commentObject,
+                                               RollerMessages messages, 
+                                               I18nMessages resources,
+                                               boolean notifySubscribers) 
+            throws MessagingException {
+        sendCommentNotification(commentObject, messages, resources,
+                notifySubscribers, new HashSet<String>());
+    }
+    
+    
+    /**
+     * Send email notification of new or newly approved comment, skipping
+     * anyone who has already been sent one.
+     *
+     * @param notified addresses already sent this notification, the
+     *                 addresses of each mail sent are added as it goes.
+     * @throws MessagingException if the mail could not be sent
+     */
+    public static void sendCommentNotification(WeblogEntryComment commentObject,
+                                               RollerMessages messages, 
+                                               I18nMessages resources,
+                                               boolean notifySubscribers,
+                                               Set<String> notified) 
+            throws MessagingException {
 
         // TODO: Factor out email notification from moderate message to owner.
 
@@ -432,64 +477,40 @@ public class MailUtil {
         subject += entry.getTitle();
         
         // send message to email recipients
-        try {
-            // use either the weblog configured from address or the site configured from address
-            String from = weblog.getEmailAddress();
-            if(StringUtils.isEmpty(from)) {
-                from = user.getEmailAddress();
-            }
+        // use either the weblog configured from address or the site configured from address
+        String from = weblog.getEmailAddress();
+        if(StringUtils.isEmpty(from)) {
+            from = user.getEmailAddress();
+        }
 
-            boolean isHtml = !isPlainText;
-            
-            if (commentObject.getPending() || weblog.getEmailComments()) {
-                if(isHtml) {
-                    sendHTMLMessage(
-                            from,
-                            new String[]{user.getEmailAddress()},
-                            null,
-                            null,
-                            subject,
-                            ownermsg.toString());
-                } else {
-                    sendTextMessage(
-                            from,
-                            new String[]{user.getEmailAddress()},
-                            null,
-                            null,
-                            subject,
-                            ownermsg.toString());
-                }
-            }
+        boolean isHtml = !isPlainText;
+        
+        if ((commentObject.getPending() || weblog.getEmailComments())
+                && !notified.contains(user.getEmailAddress())) {
+            sendNotification(
+                    from,
+                    new String[]{user.getEmailAddress()},
+                    null,
+                    subject,
+                    ownermsg.toString(),
+                    isHtml);
+            notified.add(user.getEmailAddress());
+        }
 
-            // now send to subscribers
-            if (notifySubscribers && subscribers.size() > 0) {
-                // Form array of commenter addrs
-                String[] commenterAddrs = subscribers.toArray(new String[subscribers.size()]);
+        // now send to subscribers
+        subscribers.removeAll(notified);
+        if (notifySubscribers && subscribers.size() > 0) {
+            // Form array of commenter addrs
+            String[] commenterAddrs = subscribers.toArray(new String[subscribers.size()]);
 
-                if (isHtml) {
-                    sendHTMLMessage(
-                            from, 
-                            null,
-                            null,
-                            commenterAddrs,
-                            subject, 
-                            msg.toString());
-                } else {
-                    sendTextMessage(
-                            from, 
-                            null,
-                            null,
-                            commenterAddrs,
-                            subject, 
-                            msg.toString());
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Exception sending comment notification mail", e);
-            // This will log the stack trace if debug is enabled
-            if (log.isDebugEnabled()) {
-                log.debug(e);
-            }
+            sendNotification(
+                    from, 
+                    null,
+                    commenterAddrs,
+                    subject, 
+                    msg.toString(),
+                    isHtml);
+            notified.addAll(subscribers);
         }
         
         log.debug("Done sending email message");
@@ -539,7 +560,7 @@ public class MailUtil {
         
         // send message to author of approved comment
         try {
-            sendTextMessage(from, new String[] {cd.getEmail()}, null, null, subject, msg.toString());
+            sendNotification(from, new String[] {cd.getEmail()}, null, subject, msg.toString(), false);
         } catch (Exception e) {
             log.warn("Exception sending comment mail: " + e.getMessage());
             // This will log the stack trace if debug is enabled
@@ -567,26 +588,45 @@ public class MailUtil {
      */
     public static void sendMessage(String from, String[] to, String[] cc, String[] bcc, String subject,
             String content, String mimeType) throws MessagingException {
+        sendMessage(from, to, cc, bcc, subject, content, mimeType, false);
+    }
+    
+    
+    /**
+     * Queue a Message with a pre-defined mime-type for sending.
+     *
+     * Mail is sent in the background by the mail provider's delivery queue,
+     * so failures to deliver queued mail are only logged.
+     *
+     * @param from e-mail address of sender
+     * @param to e-mail address(es) of recipients
+     * @param subject subject of e-mail
+     * @param content the body of the e-mail
+     * @param mimeType type of message, i.e. text/plain or text/html
+     * @param digest true if this is a notification which may be combined
+     *        with others to the same recipients into a single mail
+     * @throws MessagingException the exception to indicate failure
+     */
+    public static void sendMessage(String from, String[] to, String[] cc, String[] bcc, String subject,
+            String content, String mimeType, boolean digest) throws MessagingException {
         
         MailProvider mailProvider = WebloggerStartup.getMailProvider();
         if (mailProvider == null) {
             return;
         }
         
-        Session session = mailProvider.getSession();
-        MimeMessage message = new MimeMessage(session);
-        
         // n.b. any default from address is expected to be determined by caller.
+        InternetAddress sentFrom = null;
         if (! StringUtils.isEmpty(from)) {
-            InternetAddress sentFrom = new InternetAddress(from);
-            message.setFrom(sentFrom);
+            sentFrom = new InternetAddress(from);
             if (log.isDebugEnabled()) {
                 log.debug("e-mail from: " + sentFrom);
             }
         }
         
+        InternetAddress[] sendTo = null;
         if (to!=null) {
-            InternetAddress[] sendTo = new InternetAddress[to.length];
+            sendTo = new InternetAddress[to.length];
             
             for (int i = 0; i < to.length; i++) {
                 sendTo[i] = new InternetAddress(to[i]);
@@ -594,11 +634,11 @@ public class MailUtil {
                     log.debug("sending e-mail to: " + to[i]);
                 }
             }
-            message.setRecipients(Message.RecipientType.TO, sendTo);
         }
         
+        InternetAddress[] copyTo = null;
         if (cc != null) {
-            InternetAddress[] copyTo = new InternetAddress[cc.length];
+            copyTo = new InternetAddress[cc.length];
             
             for (int i = 0; i < cc.length; i++) {
                 copyTo[i] = new InternetAddress(cc[i]);
@@ -606,59 +646,22 @@ public class MailUtil {
                     log.debug("copying e-mail to: " + cc[i]);
                 }
             }
-            message.setRecipients(Message.RecipientType.CC, copyTo);
         }
         
+        InternetAddress[] blindCopyTo = null;
         if (bcc != null) {
-            InternetAddress[] copyTo = new InternetAddress[bcc.length];
+            blindCopyTo = new InternetAddress[bcc.length];
             
             for (int i = 0; i < bcc.length; i++) {
-                copyTo[i] = new InternetAddress(bcc[i]);
+                blindCopyTo[i] = new InternetAddress(bcc[i]);
                 if (log.isDebugEnabled()) {
                     log.debug("blind copying e-mail to: " + bcc[i]);
                 }
             }
-            message.setRecipients(Message.RecipientType.BCC, copyTo);
-        }
-        message.setSubject((subject == null) ? "(no subject)" : subject, "UTF-8");
-        message.setContent(content, mimeType);
-        message.setSentDate(new java.util.Date());
-        
-        // First collect all the addresses together.
-        Address[] remainingAddresses = message.getAllRecipients();
-        int nAddresses = remainingAddresses.length;
-        boolean bFailedToSome = false;
-        
-        SendFailedException sendex = new SendFailedException("Unable to send message to some recipients");
-        
-        Transport transport = mailProvider.getTransport();
-        
-        // Try to send while there remain some potentially good addresses
-        try { 
-            do {
-                // Avoid a loop if we are stuck
-                nAddresses = remainingAddresses.length;
-
-                try {
-                    // Send to the list of remaining addresses, ignoring the addresses attached to the message
-                    transport.sendMessage(message, remainingAddresses);
-                } catch(SendFailedException ex) {
-                    bFailedToSome=true;
-                    sendex.setNextException(ex);
-
-                    // Extract the remaining potentially good addresses
-                    remainingAddresses=ex.getValidUnsentAddresses();
-                }
-            } while (remainingAddresses!=null && remainingAddresses.length>0 
-                    && remainingAddresses.length!=nAddresses);
-            
-        } finally {
-            transport.close();
         }
         
-        if (bFailedToSome) {
-            throw sendex;
-        }
+        mailProvider.getDeliveryQueue().send(new MailDeliveryQueue.OutboundMail(
+                sentFrom, sendTo, copyTo, blindCopyTo, subject, content, mimeType, digest));
     }
     
     
@@ -691,6 +694,16 @@ public class MailUtil {
                                        String content) throws MessagingException {
         sendMessage(from, to, cc, bcc, subject, content, "text/html; charset=utf-8");
     }
+    
+    
+    /**
+     * Send a comment notification, which may go out as part of a digest.
+     */
+    private static void sendNotification(String from, String[] to, String[] bcc, String subject,
+                                         String content, boolean isHtml) throws MessagingException {
+        sendMessage(from, to, null, bcc, subject, content,
+                isHtml ? "text/html; charset=utf-8" : "text/plain; charset=utf-8", true);
+    }
 
     /**
      * An exception thrown if there is a problem sending an email.
@@ -17,6 +17,7 @@
 */
 package org.apache.roller.weblogger.util;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -25,8 +26,10 @@ import java.util.List;
  * Holds collection of error messages and collection of status messages.
  * @author David M Johnson
  */
-public class RollerMessages
+public class RollerMessages implements Serializable
 {
+    private static final long serialVersionUID = 1L;
+
     private List<RollerMessage> mErrors = new ArrayList<RollerMessage>();
     private List<RollerMessage> mMessages = new ArrayList<RollerMessage>();
     
@@ -86,8 +89,10 @@ public class RollerMessages
         }
         return sb.toString();
     }
-    public static class RollerMessage
+    public static class RollerMessage implements Serializable
     {
+        private static final long serialVersionUID = 1L;
+
         private String mKey;
         private String[] mArgs;
         public RollerMessage(String key, String[] args)
@@ -18,6 +18,8 @@
 
 package org.apache.roller.weblogger.util.cache;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -187,6 +189,23 @@ public final class CacheManager {
     }
     
     
+    /**
+     * Register a cache so that it's included in clear() and getStats().
+     *
+     * Caches built through constructCache() are registered automatically,
+     * this is for callers which wrap such a cache and want the wrapper to be
+     * the one that's managed.  Any cache with the same id is replaced.
+     */
+    public static void registerCache(Cache cache) {
+
+        log.debug("Registering cache "+cache);
+
+        if(cache != null) {
+            caches.put(cache.getId(), cache);
+        }
+    }
+
+
     /**
      * Register a CacheHandler to listen for object invalidations.
      *
@@ -321,7 +340,17 @@ public final class CacheManager {
      * Place to do any cleanup tasks for cache system.
      */
     public static void shutdown() {
-        // no-op
+        // give caches which keep things outside of the heap a chance to
+        // put them away properly
+        for (Cache cache : caches.values()) {
+            if (cache instanceof Closeable) {
+                try {
+                    ((Closeable) cache).close();
+                } catch (IOException e) {
+                    log.warn("Error closing cache " + cache.getId(), e);
+                }
+            }
+        }
     }
     
 }
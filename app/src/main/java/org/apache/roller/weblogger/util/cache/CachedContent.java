@@ -3,10 +3,17 @@ package org.apache.roller.weblogger.util.cache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.roller.util.RollerConstants;
@@ -14,6 +21,15 @@ import org.apache.roller.util.RollerConstants;
 
 /**
  * A utility class for storing cached content written to a java.io.Writer.
+ *
+ * Alongside the raw bytes we keep a gzip compressed copy and a hash of the
+ * content, both built lazily the first time somebody asks for them, so that
+ * cache hits can be served compressed and validated without redoing that
+ * work on every request.
+ *
+ * Content read back from a MappedContentStore stays in the store's buffers
+ * and is streamed from there by writeContent(), getContent() only makes a
+ * copy on the heap for callers which really need an array.
  */
 public class CachedContent implements Serializable {
     
@@ -25,6 +41,22 @@ public class CachedContent implements Serializable {
     // content-type of data in byte array
     private String contentType = null;
     
+    // content smaller than this isn't worth compressing
+    private static final int MIN_COMPRESS_SIZE = 512;
+    
+    // gzip compressed copy of the content, empty if it doesn't compress
+    private volatile byte[] gzippedContent = null;
+    
+    // hex encoded hash of the content
+    private volatile String contentHash = null;
+    
+    // what the content was built from, if anybody kept track
+    private ContentDependencies dependencies = null;
+    
+    // content living outside of the heap, see MappedContentStore
+    private transient ByteBuffer mappedContent = null;
+    private transient ByteBuffer mappedGzippedContent = null;
+    
     // Use a byte array output stream to cached the output bytes
     private transient ByteArrayOutputStream outstream = null;
     
@@ -57,6 +89,22 @@ public class CachedContent implements Serializable {
     }
     
     
+    /**
+     * Wrap content which has already been rendered and stored elsewhere.
+     * The content is closed for writing.
+     *
+     * @param gzippedContent the compressed content, or null if there is none.
+     */
+    CachedContent(String contentType, ByteBuffer content,
+            ByteBuffer gzippedContent, String contentHash) {
+        this.contentType = contentType;
+        this.content = null;
+        this.mappedContent = content;
+        this.mappedGzippedContent = gzippedContent;
+        this.contentHash = contentHash;
+    }
+    
+    
     /**
      * Get the content cached in this object as a byte array.  If you convert
      * this back to a string yourself, be sure to re-encode in "UTF-8".
@@ -65,10 +113,49 @@ public class CachedContent implements Serializable {
      *       enclosed Writer up until the last call to flush().
      */
     public byte[] getContent() {
+        if (this.mappedContent != null) {
+            return toArray(this.mappedContent);
+        }
         return this.content;
     }
     
     
+    /**
+     * Get the length of the content, or of its compressed copy.
+     */
+    public int getContentLength(boolean gzipped) {
+        if (gzipped) {
+            return (this.mappedContent != null)
+                    ? this.mappedGzippedContent.remaining()
+                    : getGzippedContent().length;
+        }
+        return (this.mappedContent != null)
+                ? this.mappedContent.remaining() : this.content.length;
+    }
+    
+    
+    /**
+     * Write the content, or its compressed copy, to the given stream.
+     *
+     * This does not copy content held outside of the heap onto the heap.
+     */
+    public void writeContent(OutputStream out, boolean gzipped) throws IOException {
+        
+        if (this.mappedContent == null) {
+            out.write(gzipped ? getGzippedContent() : this.content);
+            return;
+        }
+        
+        // write from a duplicate so concurrent readers don't interfere
+        WritableByteChannel channel = Channels.newChannel(out);
+        ByteBuffer source = gzipped ? this.mappedGzippedContent.duplicate()
+                : this.mappedContent.duplicate();
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+    
+    
     /**
      * Get the content cached in this object as a String.
      *
@@ -77,7 +164,7 @@ public class CachedContent implements Serializable {
      */
     public String getContentAsString() {
         try {
-            return new String(this.content,"UTF-8");
+            return new String(getContent(),"UTF-8");
         } catch (UnsupportedEncodingException uex) {
             // shouldn't ever happen - violates Java Spec.
             throw new RuntimeException(uex);
@@ -85,6 +172,58 @@ public class CachedContent implements Serializable {
     }
     
     
+    /**
+     * Get the content gzip compressed.
+     *
+     * The compressed copy is built on first use and kept from then on.
+     *
+     * @return the compressed content, or null if the content is too small or
+     *         doesn't get any smaller by compressing it.
+     */
+    public byte[] getGzippedContent() {
+        
+        if (this.mappedContent != null) {
+            return (this.mappedGzippedContent != null)
+                    ? toArray(this.mappedGzippedContent) : null;
+        }
+        
+        byte[] gzipped = this.gzippedContent;
+        if (gzipped == null) {
+            // two threads may race to build this, which is harmless
+            gzipped = compress(this.content);
+            this.gzippedContent = gzipped;
+        }
+        
+        return (gzipped.length > 0) ? gzipped : null;
+    }
+    
+    
+    /**
+     * Is there a compressed copy of the content worth sending?
+     */
+    public boolean hasGzippedContent() {
+        if (this.mappedContent != null) {
+            return this.mappedGzippedContent != null;
+        }
+        return getGzippedContent() != null;
+    }
+    
+    
+    /**
+     * Get a hash of the content which is suitable for use as a strong ETag.
+     */
+    public String getContentHash() {
+        
+        String hash = this.contentHash;
+        if (hash == null) {
+            hash = DigestUtils.md5Hex(getContent());
+            this.contentHash = hash;
+        }
+        
+        return hash;
+    }
+    
+    
     public PrintWriter getCachedWriter() {
         return cachedWriter;
     }
@@ -95,6 +234,15 @@ public class CachedContent implements Serializable {
     }
     
     
+    public ContentDependencies getDependencies() {
+        return dependencies;
+    }
+    
+    public void setDependencies(ContentDependencies dependencies) {
+        this.dependencies = dependencies;
+    }
+    
+    
     /**
      * Called to flush any output in the cached Writer to
      * the cached content for more permanent storage.
@@ -109,6 +257,8 @@ public class CachedContent implements Serializable {
         
         this.cachedWriter.flush();
         this.content = this.outstream.toByteArray();
+        this.gzippedContent = null;
+        this.contentHash = null;
         
         log.debug("FLUSHED "+this.content.length);
     }
@@ -127,6 +277,8 @@ public class CachedContent implements Serializable {
         
         if(this.outstream != null) {
             this.content = this.outstream.toByteArray();
+            this.gzippedContent = null;
+            this.contentHash = null;
             this.outstream.close();
             this.outstream = null;
         }
@@ -134,4 +286,46 @@ public class CachedContent implements Serializable {
         log.debug("CLOSED");
     }
     
+    
+    // pull content held outside of the heap in before serializing
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (this.mappedContent != null) {
+            this.gzippedContent = (this.mappedGzippedContent != null)
+                    ? toArray(this.mappedGzippedContent) : new byte[0];
+            this.content = toArray(this.mappedContent);
+            this.mappedContent = null;
+            this.mappedGzippedContent = null;
+        }
+        out.defaultWriteObject();
+    }
+    
+    
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+    
+    
+    private static byte[] compress(byte[] bytes) {
+        
+        if (bytes.length < MIN_COMPRESS_SIZE) {
+            return new byte[0];
+        }
+        
+        try {
+            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(bytes.length / 4);
+            GZIPOutputStream gzipOut = new GZIPOutputStream(bytesOut);
+            gzipOut.write(bytes);
+            gzipOut.close();
+            
+            byte[] gzipped = bytesOut.toByteArray();
+            return (gzipped.length < bytes.length) ? gzipped : new byte[0];
+        } catch (IOException e) {
+            // shouldn't be possible, we are only writing to memory
+            log.warn("Unable to compress content", e);
+            return new byte[0];
+        }
+    }
+    
 }
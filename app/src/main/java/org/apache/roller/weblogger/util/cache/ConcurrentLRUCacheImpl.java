@@ -0,0 +1,430 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+
+
+/**
+ * A segmented, mostly lock-free cache with approximate LRU eviction.
+ *
+ * Keys are spread over a number of independent segments.  Each segment keeps
+ * its entries in a ConcurrentHashMap and tracks eviction order with a CLOCK
+ * (second chance) queue, so a cache hit never takes a lock; it only flags the
+ * entry as recently referenced.  Puts take a per-segment lock only when the
+ * segment is over capacity and needs to evict something.
+ *
+ * Entries optionally expire after a timeout, just like ExpiringLRUCacheImpl,
+ * and the hit/miss/put counters are kept per segment so that request threads
+ * don't all fight over the same counter.
+ *
+ * Every entry normally counts as one towards the size of the cache, entries
+ * put with a weight count as that much instead, so the cache can be bounded
+ * by something like the number of bytes it holds.
+ */
+public class ConcurrentLRUCacheImpl implements Cache {
+
+    private static Log log = LogFactory.getLog(ConcurrentLRUCacheImpl.class);
+
+    private static final int DEFAULT_CONCURRENCY = 16;
+
+    private String id = null;
+
+    // timeout in millis, 0 means entries never expire
+    private long timeout = 0;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    private volatile Date startTime = new Date();
+
+
+    protected ConcurrentLRUCacheImpl(String id) {
+        this(id, 100, 0, DEFAULT_CONCURRENCY);
+    }
+
+
+    protected ConcurrentLRUCacheImpl(String id, int maxsize, long timeout, int concurrency) {
+
+        this.id = id;
+
+        // timeout is specified in seconds; only positive values allowed
+        if (timeout > 0) {
+            this.timeout = timeout * RollerConstants.SEC_IN_MS;
+        }
+
+        if (maxsize < 1) {
+            maxsize = 1;
+        }
+        if (concurrency < 1) {
+            concurrency = 1;
+        }
+
+        // use a power of two number of segments, but never more segments
+        // than we have room for entries
+        int numSegments = 1;
+        while (numSegments < concurrency && numSegments * 2 <= maxsize) {
+            numSegments <<= 1;
+        }
+
+        // share out the capacity so the segments add up to exactly maxsize
+        this.segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            int extra = (i < maxsize % numSegments) ? 1 : 0;
+            this.segments[i] = new Segment(maxsize / numSegments + extra);
+        }
+        this.segmentMask = numSegments - 1;
+    }
+
+
+    public String getId() {
+        return this.id;
+    }
+
+
+    /**
+     * Store an entry in the cache.
+     */
+    public void put(String key, Object value) {
+        segmentFor(key).put(key, value, 1);
+    }
+
+
+    /**
+     * Store an entry which counts as the given weight towards the size of
+     * the cache.
+     */
+    public void put(String key, Object value, int weight) {
+        segmentFor(key).put(key, value, Math.max(1, weight));
+    }
+
+
+    /**
+     * Retrieve an entry from the cache.
+     *
+     * If the cached object has expired then we return null, just as if the
+     * entry wasn't found.
+     */
+    public Object get(String key) {
+        return segmentFor(key).get(key);
+    }
+
+
+    public void remove(String key) {
+        segmentFor(key).remove(key);
+    }
+
+
+    public void clear() {
+
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+
+        startTime = new Date();
+    }
+
+
+    public Map<String, Object> getStats() {
+
+        long hits = 0;
+        long misses = 0;
+        long puts = 0;
+        long removes = 0;
+        long evictions = 0;
+        long size = 0;
+        for (Segment segment : segments) {
+            hits += segment.hits.get();
+            misses += segment.misses.get();
+            puts += segment.puts.get();
+            removes += segment.removes.get();
+            evictions += segment.evictions.get();
+            size += segment.map.size();
+        }
+
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("startTime", this.startTime);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("puts", puts);
+        stats.put("removes", removes);
+        stats.put("evictions", evictions);
+        stats.put("size", size);
+
+        // calculate efficiency
+        if((misses - removes) > 0) {
+            double efficiency = (double) hits / (misses + hits);
+            stats.put("efficiency", efficiency * RollerConstants.PERCENT_100);
+        }
+
+        return stats;
+    }
+
+
+    /**
+     * The total weight of the entries in the cache.
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            weight += segment.weight.get();
+        }
+        return weight;
+    }
+
+
+    private Segment segmentFor(String key) {
+        // spread the hash so that keys sharing a long common prefix, which
+        // is what most of our cache keys look like, don't cluster
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h ^= (h >>> 7);
+        return segments[h & segmentMask];
+    }
+
+
+    /**
+     * A single cached value along with its bookkeeping.
+     */
+    private static final class Node {
+
+        final String key;
+        final Object value;
+        final int weight;
+        final long expires;
+
+        // set on every hit, cleared when the clock hand passes over us
+        volatile boolean referenced = false;
+
+        // set once the node is no longer mapped in its segment
+        volatile boolean dead = false;
+
+        Node(String key, Object value, int weight, long expires) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+        }
+
+        boolean hasExpired(long now) {
+            return expires < now;
+        }
+    }
+
+
+    /**
+     * One independently locked slice of the cache.
+     */
+    private final class Segment {
+
+        // maximum total weight
+        final int capacity;
+
+        final ConcurrentHashMap<String, Node> map;
+        final AtomicLong weight = new AtomicLong(0);
+
+        // eviction order, may contain dead nodes which are skipped over
+        final ConcurrentLinkedQueue<Node> clock = new ConcurrentLinkedQueue<Node>();
+        final AtomicInteger deadNodes = new AtomicInteger(0);
+        final AtomicLong deadWeight = new AtomicLong(0);
+
+        // only held while evicting or purging dead nodes
+        final ReentrantLock evictionLock = new ReentrantLock();
+
+        // for metrics
+        final AtomicLong hits = new AtomicLong(0);
+        final AtomicLong misses = new AtomicLong(0);
+        final AtomicLong puts = new AtomicLong(0);
+        final AtomicLong removes = new AtomicLong(0);
+        final AtomicLong evictions = new AtomicLong(0);
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.map = new ConcurrentHashMap<String, Node>(
+                    capacity * 4 / 3 + 1, 0.75f, 1);
+        }
+
+        Object get(String key) {
+
+            Node node = map.get(key);
+            if (node == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            if (timeout > 0 && node.hasExpired(System.currentTimeMillis())) {
+                log.debug("EXPIRED ["+key+"]");
+                if (map.remove(key, node)) {
+                    retire(node);
+                }
+                misses.incrementAndGet();
+                return null;
+            }
+
+            node.referenced = true;
+            hits.incrementAndGet();
+            return node.value;
+        }
+
+        void put(String key, Object value, int nodeWeight) {
+
+            long expires = (timeout > 0)
+                    ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+            Node node = new Node(key, value, nodeWeight, expires);
+
+            weight.addAndGet(nodeWeight);
+            Node old = map.put(key, node);
+            if (old != null) {
+                retire(old);
+            }
+            clock.offer(node);
+            puts.incrementAndGet();
+
+            if (weight.get() > capacity || deadWeight.get() > capacity) {
+                evict();
+            }
+        }
+
+        void remove(String key) {
+
+            Node node = map.remove(key);
+            if (node != null) {
+                retire(node);
+            }
+            removes.incrementAndGet();
+        }
+
+        void clear() {
+
+            evictionLock.lock();
+            try {
+                for (Node node : map.values()) {
+                    node.dead = true;
+                }
+                map.clear();
+                clock.clear();
+                weight.set(0);
+                deadNodes.set(0);
+                deadWeight.set(0);
+
+                // clear metrics
+                hits.set(0);
+                misses.set(0);
+                puts.set(0);
+                removes.set(0);
+                evictions.set(0);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        // a node which has been unmapped but is still in the queue
+        private void retire(Node node) {
+            node.dead = true;
+            weight.addAndGet(-node.weight);
+            deadNodes.incrementAndGet();
+            deadWeight.addAndGet(node.weight);
+        }
+
+        // a dead node has been taken off the queue
+        private void forget(Node node) {
+            deadNodes.decrementAndGet();
+            deadWeight.addAndGet(-node.weight);
+        }
+
+        /**
+         * Run the clock hand until we are back under capacity.
+         *
+         * Referenced nodes get a second chance and go to the back of the
+         * queue.  If readers keep every node referenced we give up on being
+         * fair after two full sweeps and evict whatever is at the head.
+         */
+        private void evict() {
+
+            evictionLock.lock();
+            try {
+                int sweep = 2 * (map.size() + deadNodes.get()) + 1;
+                boolean reseeded = false;
+
+                while (weight.get() > capacity) {
+                    Node node = clock.poll();
+                    if (node == null) {
+                        // a put that raced with clear() can leave a mapped
+                        // node out of the queue, so rebuild it once
+                        if (reseeded) {
+                            break;
+                        }
+                        clock.addAll(map.values());
+                        reseeded = true;
+                        continue;
+                    }
+
+                    if (node.dead) {
+                        forget(node);
+                        continue;
+                    }
+
+                    if (node.referenced && sweep-- > 0) {
+                        node.referenced = false;
+                        clock.offer(node);
+                        continue;
+                    }
+
+                    if (map.remove(node.key, node)) {
+                        node.dead = true;
+                        weight.addAndGet(-node.weight);
+                        evictions.incrementAndGet();
+                    } else {
+                        // a put or remove of the same key got there first and
+                        // counted the node as dead while still queued, but we
+                        // have already taken it off the queue
+                        forget(node);
+                    }
+                }
+
+                // entries that were overwritten or removed are still sitting
+                // in the queue, purge them before they pile up
+                if (deadWeight.get() > capacity) {
+                    Iterator<Node> it = clock.iterator();
+                    while (it.hasNext()) {
+                        Node node = it.next();
+                        if (node.dead) {
+                            it.remove();
+                            forget(node);
+                        }
+                    }
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+}
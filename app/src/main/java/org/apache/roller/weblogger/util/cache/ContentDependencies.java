@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * Records what a piece of cached content was built from.
+ *
+ * Content is tied to the weblogs it was rendered from, plus any cross-weblog
+ * listings it contains.  A listing of entries across all weblogs may be
+ * narrowed down to a set of tags, in which case only entries with one of
+ * those tags can affect it.
+ *
+ * Dependencies are collected for the current thread between calls to
+ * begin() and end(), so the rendering models can simply call the record
+ * methods and not worry about whether anybody is listening.
+ */
+public class ContentDependencies implements Serializable {
+
+    private static final ThreadLocal<ContentDependencies> CURRENT =
+            new ThreadLocal<ContentDependencies>();
+
+    // weblogs whose content was rendered
+    private final Set<String> weblogs = new HashSet<String>();
+
+    // tags filtering cross-weblog entry listings
+    private final Set<String> tags = new HashSet<String>();
+
+    // unfiltered cross-weblog listings
+    private boolean allEntries = false;
+    private boolean allWeblogs = false;
+
+
+    /**
+     * Start collecting dependencies for the current thread.
+     */
+    public static void begin() {
+        CURRENT.set(new ContentDependencies());
+    }
+
+
+    /**
+     * Stop collecting dependencies for the current thread.
+     *
+     * @return what was collected since begin(), or null if nothing was.
+     */
+    public static ContentDependencies end() {
+        ContentDependencies deps = CURRENT.get();
+        CURRENT.remove();
+        return deps;
+    }
+
+
+    public static void recordWeblog(String handle) {
+        ContentDependencies deps = CURRENT.get();
+        if (deps != null && handle != null) {
+            deps.weblogs.add(handle);
+        }
+    }
+
+
+    public static void recordTags(Collection<String> tagNames) {
+        ContentDependencies deps = CURRENT.get();
+        if (deps != null && tagNames != null) {
+            deps.tags.addAll(tagNames);
+        }
+    }
+
+
+    public static void recordAllEntries() {
+        ContentDependencies deps = CURRENT.get();
+        if (deps != null) {
+            deps.allEntries = true;
+        }
+    }
+
+
+    public static void recordAllWeblogs() {
+        ContentDependencies deps = CURRENT.get();
+        if (deps != null) {
+            deps.allWeblogs = true;
+        }
+    }
+
+
+    /**
+     * Does this content need to go when an entry of the given weblog, with
+     * the given tags, is changed?
+     */
+    public boolean dependsOnEntry(String handle, Collection<String> tagNames) {
+
+        if (allEntries || weblogs.contains(handle)) {
+            return true;
+        }
+
+        if (tagNames != null) {
+            for (String tag : tagNames) {
+                if (tags.contains(tag)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Does this content need to go when the given weblog is changed?
+     *
+     * A weblog change can stand for any number of entry changes, so every
+     * cross-weblog listing depends on it.
+     */
+    public boolean dependsOnWeblog(String handle) {
+        return allEntries || allWeblogs || !tags.isEmpty() || weblogs.contains(handle);
+    }
+
+
+    public Set<String> getWeblogs() {
+        return weblogs;
+    }
+
+    public Set<String> getTags() {
+        return tags;
+    }
+
+    public boolean isAllEntries() {
+        return allEntries;
+    }
+
+    public boolean isAllWeblogs() {
+        return allWeblogs;
+    }
+
+
+    @Override
+    public String toString() {
+        return "weblogs=" + weblogs + ", tags=" + tags + ", allEntries=" + allEntries
+                + ", allWeblogs=" + allWeblogs;
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A cache wrapper which remembers the ContentDependencies of each
+ * CachedContent put into it, so that only the entries affected by a change
+ * need to be thrown away instead of the whole cache.
+ *
+ * Values which are not CachedContent, or which carry no dependencies, are
+ * assumed to depend on everything.
+ *
+ * The dependency index is bounded.  When it overflows the oldest tracked key
+ * is dropped from the underlying cache as well, so we never hold content we
+ * would not know how to invalidate.
+ */
+public class DependencyTrackingCache implements Cache, Closeable {
+
+    private static Log log = LogFactory.getLog(DependencyTrackingCache.class);
+
+    private final Cache cache;
+
+    // key -> dependencies, in insertion order
+    private final Map<String, ContentDependencies> index;
+
+    // for metrics
+    private final AtomicLong dependentEvictions = new AtomicLong(0);
+    private final AtomicLong fullClears = new AtomicLong(0);
+
+
+    public DependencyTrackingCache(Cache cache, final int maxTracked) {
+
+        this.cache = cache;
+        this.index = new LinkedHashMap<String, ContentDependencies>(
+                maxTracked * 4 / 3 + 1, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ContentDependencies> eldest) {
+                if (size() > maxTracked) {
+                    DependencyTrackingCache.this.cache.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    public String getId() {
+        return cache.getId();
+    }
+
+
+    public void put(String key, Object value) {
+
+        ContentDependencies deps = null;
+        if (value instanceof CachedContent) {
+            deps = ((CachedContent) value).getDependencies();
+        }
+
+        synchronized (index) {
+            // re-insert so the key moves to the young end of the index
+            index.remove(key);
+            index.put(key, deps);
+            cache.put(key, value);
+        }
+    }
+
+
+    public Object get(String key) {
+        return cache.get(key);
+    }
+
+
+    public void remove(String key) {
+
+        synchronized (index) {
+            index.remove(key);
+            cache.remove(key);
+        }
+    }
+
+
+    public void clear() {
+
+        synchronized (index) {
+            index.clear();
+            cache.clear();
+        }
+        fullClears.incrementAndGet();
+    }
+
+
+    /**
+     * Remove all content that depends on an entry of the given weblog with
+     * the given tags.
+     *
+     * @return the number of cache entries removed.
+     */
+    public int removeEntryDependents(String handle, Collection<String> tagNames) {
+
+        List<String> keys = new ArrayList<String>();
+        synchronized (index) {
+            for (Map.Entry<String, ContentDependencies> entry : index.entrySet()) {
+                ContentDependencies deps = entry.getValue();
+                if (deps == null || deps.dependsOnEntry(handle, tagNames)) {
+                    keys.add(entry.getKey());
+                }
+            }
+            removeAll(keys);
+        }
+
+        log.debug("removed " + keys.size() + " dependents of entry in weblog " + handle);
+        return keys.size();
+    }
+
+
+    /**
+     * Remove all content that depends on the given weblog.
+     *
+     * @return the number of cache entries removed.
+     */
+    public int removeWeblogDependents(String handle) {
+
+        List<String> keys = new ArrayList<String>();
+        synchronized (index) {
+            for (Map.Entry<String, ContentDependencies> entry : index.entrySet()) {
+                ContentDependencies deps = entry.getValue();
+                if (deps == null || deps.dependsOnWeblog(handle)) {
+                    keys.add(entry.getKey());
+                }
+            }
+            removeAll(keys);
+        }
+
+        log.debug("removed " + keys.size() + " dependents of weblog " + handle);
+        return keys.size();
+    }
+
+
+    public Map<String, Object> getStats() {
+
+        Map<String, Object> stats = new HashMap<String, Object>(cache.getStats());
+        stats.put("dependentEvictions", dependentEvictions.get());
+        stats.put("fullClears", fullClears.get());
+        synchronized (index) {
+            stats.put("tracked", index.size());
+        }
+
+        return stats;
+    }
+
+
+    public void close() throws IOException {
+        if (cache instanceof Closeable) {
+            ((Closeable) cache).close();
+        }
+    }
+
+
+    // caller must hold the index lock
+    private void removeAll(List<String> keys) {
+        for (String key : keys) {
+            index.remove(key);
+            cache.remove(key);
+        }
+        dependentEvictions.addAndGet(keys.size());
+    }
+
+}
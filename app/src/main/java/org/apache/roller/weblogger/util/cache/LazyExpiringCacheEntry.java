@@ -54,6 +54,12 @@ public class LazyExpiringCacheEntry implements Serializable {
     }
     
     
+    public LazyExpiringCacheEntry(Object item, long timeCached) {
+        this.value = item;
+        this.timeCached = timeCached;
+    }
+    
+    
     /**
      * Retrieve the value of this cache entry if it is still "fresh".
      *
@@ -68,6 +74,14 @@ public class LazyExpiringCacheEntry implements Serializable {
     }
     
     
+    /**
+     * Retrieve the value of this cache entry whether it is fresh or not.
+     */
+    public Object getStaleValue() {
+        return this.value;
+    }
+    
+    
     /**
      * Determine if this cache entry has expired.
      */
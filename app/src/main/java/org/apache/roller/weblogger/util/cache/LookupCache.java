@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.RollerConstants;
+import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.pojos.User;
+import org.apache.roller.weblogger.pojos.Weblog;
+import org.apache.roller.weblogger.pojos.WeblogBookmark;
+import org.apache.roller.weblogger.pojos.WeblogBookmarkFolder;
+import org.apache.roller.weblogger.pojos.WeblogCategory;
+import org.apache.roller.weblogger.pojos.WeblogEntry;
+import org.apache.roller.weblogger.pojos.WeblogEntryComment;
+import org.apache.roller.weblogger.pojos.WeblogTemplate;
+
+
+/**
+ * A bounded cache from a natural key, like a weblog handle, to the id of the
+ * object it names, for managers which look objects up by such keys.  Given
+ * the id the object itself comes from the JPA shared cache without a query.
+ *
+ * Keys which name nothing are remembered too, so that repeated requests for
+ * a handle or anchor which doesn't exist don't each go to the database.
+ * Those are only trusted for cache.<id>.negativeTimeout seconds, because
+ * another server may create the object in the meantime.
+ *
+ * Subclasses override the CacheHandler methods for the objects they map to
+ * remove their keys.  The cache is registered with the CacheManager, so it is
+ * invalidated along with all other caches and shows in its stats.  Every key
+ * removed is also passed to the cache.lookup.invalidationHook, if one is
+ * configured, which may tell the other servers in a cluster to call
+ * removeRemote() with it.
+ */
+public class LookupCache implements Cache, CacheHandler {
+    
+    private static Log log = LogFactory.getLog(LookupCache.class);
+    
+    /**
+     * Returned by lookup() for a key which is known to name nothing.
+     */
+    public static final String MISSING = "";
+    
+    // all lookup caches by id, for removeRemote()
+    private static final Map<String, LookupCache> lookupCaches =
+            new ConcurrentHashMap<String, LookupCache>();
+    
+    private static InvalidationHook invalidationHook = null;
+    
+    private final Cache cache;
+    private final long negativeTimeout;
+    
+    // for metrics
+    private final AtomicLong negativeHits = new AtomicLong(0);
+    private final AtomicLong remoteRemoves = new AtomicLong(0);
+    
+    
+    static {
+        String classname = WebloggerConfig.getProperty("cache.lookup.invalidationHook");
+        if (classname != null && classname.trim().length() > 0) {
+            try {
+                invalidationHook = (InvalidationHook) Class.forName(classname.trim()).newInstance();
+            } catch (Exception e) {
+                log.error("Unable to instantiate invalidation hook [" + classname + "]", e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Told about every key removed from a lookup cache on this server.
+     */
+    public interface InvalidationHook {
+        
+        void removed(String cacheId, String key);
+    }
+    
+    
+    /**
+     * Create the cache configured by the cache.&lt;id&gt;.* properties.
+     */
+    public LookupCache(String id) {
+        
+        Map<String, String> cacheProps = new HashMap<String, String>();
+        cacheProps.put("id", id);
+        Enumeration allProps = WebloggerConfig.keys();
+        while (allProps.hasMoreElements()) {
+            String prop = (String) allProps.nextElement();
+            
+            // we are only interested in props for this cache
+            if (prop.startsWith(id + ".")) {
+                cacheProps.put(prop.substring(id.length() + 1),
+                        WebloggerConfig.getProperty(prop));
+            }
+        }
+        
+        this.negativeTimeout = WebloggerConfig.getIntProperty(id + ".negativeTimeout", 60)
+                * (long) RollerConstants.SEC_IN_MS;
+        this.cache = CacheManager.constructCache(this, cacheProps);
+        
+        // we are the one the CacheManager should know about
+        CacheManager.registerCache(this);
+        lookupCaches.put(id, this);
+    }
+    
+    
+    /**
+     * Remove a key which was removed from the same cache on another server.
+     */
+    public static void removeRemote(String cacheId, String key) {
+        LookupCache lookupCache = lookupCaches.get(cacheId);
+        if (lookupCache != null) {
+            lookupCache.remoteRemoves.incrementAndGet();
+            lookupCache.cache.remove(key);
+        }
+    }
+    
+    
+    /**
+     * Look up the id of the object a key names.
+     *
+     * @return the id, MISSING if the key is known to name nothing, or null
+     *         if the key isn't known.
+     */
+    public String lookup(String key) {
+        Object value = cache.get(key);
+        if (value instanceof NotFound) {
+            if (System.currentTimeMillis() - ((NotFound) value).time < negativeTimeout) {
+                negativeHits.incrementAndGet();
+                return MISSING;
+            }
+            return null;
+        }
+        return (String) value;
+    }
+    
+    
+    /**
+     * Remember that a key names nothing.
+     */
+    public void putMissing(String key) {
+        cache.put(key, new NotFound(System.currentTimeMillis()));
+    }
+    
+    
+    public String getId() {
+        return cache.getId();
+    }
+    
+    
+    /**
+     * Remember the id of the object a key names.
+     */
+    public void put(String key, Object id) {
+        cache.put(key, id);
+    }
+    
+    
+    public Object get(String key) {
+        return lookup(key);
+    }
+    
+    
+    public void remove(String key) {
+        cache.remove(key);
+        if (invalidationHook != null) {
+            invalidationHook.removed(getId(), key);
+        }
+    }
+    
+    
+    public void clear() {
+        cache.clear();
+    }
+    
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>(cache.getStats());
+        stats.put("negativeHits", negativeHits.get());
+        stats.put("remoteRemoves", remoteRemoves.get());
+        return stats;
+    }
+    
+    
+    public void invalidate(WeblogEntry entry) {
+        // ignored
+    }
+    
+    public void invalidate(Weblog website) {
+        // ignored
+    }
+    
+    public void invalidate(WeblogBookmark bookmark) {
+        // ignored
+    }
+    
+    public void invalidate(WeblogBookmarkFolder folder) {
+        // ignored
+    }
+    
+    public void invalidate(WeblogEntryComment comment) {
+        // ignored
+    }
+    
+    public void invalidate(User user) {
+        // ignored
+    }
+    
+    public void invalidate(WeblogCategory category) {
+        // ignored
+    }
+    
+    public void invalidate(WeblogTemplate template) {
+        // ignored
+    }
+    
+    
+    /**
+     * Cached for a key which names nothing.
+     */
+    private static final class NotFound {
+        
+        private final long time;
+        
+        NotFound(long time) {
+            this.time = time;
+        }
+    }
+    
+}
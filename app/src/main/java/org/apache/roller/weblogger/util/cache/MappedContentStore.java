@@ -0,0 +1,591 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A store for rendered content kept in memory mapped files, outside of the
+ * java heap.
+ *
+ * The byte budget is split over a fixed number of segment files which are
+ * filled one after the other like a log.  When the last one is full the
+ * oldest segment is thrown away, along with everything in it, and a new one
+ * is started in its place.  So the store as a whole behaves like a FIFO
+ * cache with a size in bytes rather than in entries.
+ *
+ * Segment files are named after the cache and a generation number, and each
+ * record is only marked valid once it has been completely written.  If the
+ * store is persistent the segments left behind by a previous run are scanned
+ * at startup, so the content survives a restart.
+ *
+ * Retired segments are deleted instead of being overwritten, so content that
+ * is still being streamed to a client from an old segment stays intact until
+ * the mapping is garbage collected.
+ */
+public class MappedContentStore {
+
+    private static Log log = LogFactory.getLog(MappedContentStore.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SUFFIX = ".seg";
+
+    private static final int SEGMENT_MAGIC = 0x524c4353;
+    private static final int RECORD_MAGIC = 0x524c4352;
+    private static final int VERSION = 1;
+
+    // magic, version, generation
+    private static final int SEGMENT_HEADER = 16;
+
+    // magic, record length, flags, time cached, time stored
+    private static final int RECORD_HEADER = 28;
+
+    private static final int FLAG_REMOVED = 1;
+    private static final int FLAG_LAZY = 2;
+
+    private final String id;
+    private final File dir;
+    private final int segmentSize;
+    private final long timeout;
+
+    // oldest segment first, the last one is being written to
+    private final Segment[] segments;
+    private long nextGeneration = 0;
+
+    // key -> where its latest record lives
+    private final ConcurrentHashMap<String, Location> index =
+            new ConcurrentHashMap<String, Location>();
+
+    // for metrics
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong puts = new AtomicLong(0);
+    private final AtomicLong rotations = new AtomicLong(0);
+
+
+    /**
+     * @param id the cache id, used to name the segment files.
+     * @param dir directory to keep the segment files in.
+     * @param maxBytes total size of all segments.
+     * @param numSegments number of segments to split maxBytes over.
+     * @param timeout how long content stays valid in millis, 0 for ever.
+     * @param persistent keep content left over from a previous run.
+     */
+    public MappedContentStore(String id, File dir, long maxBytes,
+            int numSegments, long timeout, boolean persistent)
+            throws IOException {
+
+        if (numSegments < 2) {
+            numSegments = 2;
+        }
+
+        long size = maxBytes / numSegments;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments of " + size
+                    + " bytes are too large, use more segments");
+        }
+
+        this.id = id;
+        this.dir = dir;
+        this.segmentSize = (int) size;
+        this.timeout = timeout;
+        this.segments = new Segment[numSegments];
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+
+        File[] existing = listSegmentFiles();
+        if (persistent) {
+            recover(existing);
+        } else {
+            for (File file : existing) {
+                delete(file);
+            }
+        }
+
+        if (segments[numSegments - 1] == null) {
+            segments[numSegments - 1] = createSegment();
+        }
+
+        log.info("Cache store " + id + " in " + dir + " holds " + index.size()
+                + " entries, budget " + maxBytes + " bytes");
+    }
+
+
+    /**
+     * Store a value, which must be CachedContent or a LazyExpiringCacheEntry
+     * holding CachedContent.  Anything else is ignored.
+     *
+     * @return true if the value was stored.
+     */
+    public boolean put(String key, Object value) {
+
+        int flags = 0;
+        long timeCached = 0;
+        Object content = value;
+        if (value instanceof LazyExpiringCacheEntry) {
+            LazyExpiringCacheEntry entry = (LazyExpiringCacheEntry) value;
+            flags = FLAG_LAZY;
+            timeCached = entry.getTimeCached();
+            content = entry.getStaleValue();
+        }
+        if (!(content instanceof CachedContent)) {
+            return false;
+        }
+
+        CachedContent cached = (CachedContent) content;
+        byte[] body = cached.getContent();
+        byte[] gzipped = cached.getGzippedContent();
+        byte[] type = toBytes(cached.getContentType());
+        byte[] hash = toBytes(cached.getContentHash());
+
+        return write(key, flags, timeCached, type, hash, body, gzipped);
+    }
+
+
+    /**
+     * Get a value back in the form it was put in.
+     *
+     * The content of the value is not copied out of the store.
+     */
+    public Object get(String key) {
+
+        Location location = index.get(key);
+        if (location == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        int pos = location.offset;
+        int flags = buffer.getInt(pos + 8);
+        long timeCached = buffer.getLong(pos + 12);
+        long timeStored = buffer.getLong(pos + 20);
+
+        if (timeout > 0 && timeStored + timeout < System.currentTimeMillis()) {
+            log.debug("EXPIRED [" + key + "]");
+            index.remove(key, location);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        // skip over the key
+        pos += RECORD_HEADER;
+        pos += 4 + buffer.getInt(pos);
+
+        String type = readString(buffer, pos);
+        pos += 4 + Math.max(0, buffer.getInt(pos));
+        String hash = readString(buffer, pos);
+        pos += 4 + Math.max(0, buffer.getInt(pos));
+
+        ByteBuffer body = slice(buffer, pos);
+        pos += 4 + body.remaining();
+        ByteBuffer gzipped = (buffer.getInt(pos) >= 0) ? slice(buffer, pos) : null;
+
+        hits.incrementAndGet();
+
+        CachedContent content = new CachedContent(type, body, gzipped, hash);
+        if ((flags & FLAG_LAZY) != 0) {
+            return new LazyExpiringCacheEntry(content, timeCached);
+        }
+        return content;
+    }
+
+
+    public void remove(String key) {
+
+        if (index.containsKey(key)) {
+            // leave a marker so the entry stays gone after a restart
+            write(key, FLAG_REMOVED, 0, null, null, null, null);
+        }
+    }
+
+
+    /**
+     * Throw away everything, including the segment files.
+     */
+    public synchronized void clear() {
+
+        index.clear();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] != null) {
+                delete(segments[i].file);
+                segments[i] = null;
+            }
+        }
+
+        try {
+            segments[segments.length - 1] = createSegment();
+        } catch (IOException ex) {
+            log.error("Unable to create cache segment in " + dir, ex);
+        }
+
+        hits.set(0);
+        misses.set(0);
+        puts.set(0);
+        rotations.set(0);
+    }
+
+
+    /**
+     * Make sure everything written so far has reached the disk.
+     */
+    public synchronized void force() {
+        for (Segment segment : segments) {
+            if (segment != null) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+
+    public Map<String, Object> getStats() {
+
+        long bytes = 0;
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment != null) {
+                    bytes += segment.writePos;
+                }
+            }
+        }
+
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("puts", puts.get());
+        stats.put("rotations", rotations.get());
+        stats.put("size", index.size());
+        stats.put("bytes", bytes);
+        return stats;
+    }
+
+
+    private synchronized boolean write(String key, int flags, long timeCached,
+            byte[] type, byte[] hash, byte[] body, byte[] gzipped) {
+
+        byte[] keyBytes = toBytes(key);
+        int length = RECORD_HEADER + 4 + keyBytes.length + lengthOf(type)
+                + lengthOf(hash) + lengthOf(body) + lengthOf(gzipped);
+        if (length > segmentSize - SEGMENT_HEADER) {
+            log.debug("Too large to store [" + key + "] " + length + " bytes");
+            forget(key, null);
+            return false;
+        }
+
+        Segment segment = segments[segments.length - 1];
+        if (segment == null || segment.writePos + length > segmentSize) {
+            try {
+                segment = rotate();
+            } catch (IOException ex) {
+                log.error("Unable to create cache segment in " + dir, ex);
+                forget(key, null);
+                return false;
+            }
+        }
+
+        // fill in everything but the magic, which says the record is good
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int start = segment.writePos;
+        buffer.position(start + 4);
+        buffer.putInt(length);
+        buffer.putInt(flags);
+        buffer.putLong(timeCached);
+        buffer.putLong(System.currentTimeMillis());
+        put(buffer, keyBytes);
+        put(buffer, type);
+        put(buffer, hash);
+        put(buffer, body);
+        put(buffer, gzipped);
+        buffer.putInt(start, RECORD_MAGIC);
+        segment.writePos = start + length;
+
+        if ((flags & FLAG_REMOVED) != 0) {
+            index.remove(key);
+        } else {
+            index.put(key, new Location(segment, start));
+            puts.incrementAndGet();
+        }
+
+        return true;
+    }
+
+
+    // forget a key unless it has moved on to another location
+    private void forget(String key, Location location) {
+        if (location == null) {
+            index.remove(key);
+        } else {
+            index.remove(key, location);
+        }
+    }
+
+
+    /**
+     * Retire the oldest segment and start writing to a new one.
+     * Caller must hold the lock.
+     */
+    private Segment rotate() throws IOException {
+
+        Segment oldest = segments[0];
+        if (oldest != null) {
+            for (Iterator<Map.Entry<String, Location>> it =
+                    index.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Location> entry = it.next();
+                if (entry.getValue().segment == oldest) {
+                    forget(entry.getKey(), entry.getValue());
+                }
+            }
+            delete(oldest.file);
+        }
+
+        System.arraycopy(segments, 1, segments, 0, segments.length - 1);
+        segments[segments.length - 1] = createSegment();
+        rotations.incrementAndGet();
+
+        return segments[segments.length - 1];
+    }
+
+
+    private Segment createSegment() throws IOException {
+
+        long generation = nextGeneration++;
+        File file = new File(dir, id + "-" + generation + SUFFIX);
+        MappedByteBuffer buffer = map(file);
+        buffer.putInt(0, SEGMENT_MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, generation);
+
+        // make sure a stale record from an older file can't be picked up
+        buffer.putInt(SEGMENT_HEADER, 0);
+
+        return new Segment(file, buffer, SEGMENT_HEADER);
+    }
+
+
+    /**
+     * Rebuild the index from the segment files of a previous run.
+     */
+    private void recover(File[] files) {
+
+        // keep only the newest segments which fit in our budget
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = generationOf(a) - generationOf(b);
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        int first = Math.max(0, files.length - segments.length);
+        for (int i = 0; i < first; i++) {
+            delete(files[i]);
+        }
+
+        List<Segment> recovered = new ArrayList<Segment>();
+        for (int i = first; i < files.length; i++) {
+            File file = files[i];
+            try {
+                if (file.length() != segmentSize) {
+                    // the budget has changed, so these are no good to us
+                    throw new IOException("wrong size");
+                }
+
+                MappedByteBuffer buffer = map(file);
+                if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.getInt(4) != VERSION) {
+                    throw new IOException("not a cache segment");
+                }
+
+                Segment segment = new Segment(file, buffer, SEGMENT_HEADER);
+                scan(segment);
+                recovered.add(segment);
+                nextGeneration = Math.max(nextGeneration, generationOf(file) + 1);
+            } catch (IOException ex) {
+                log.warn("Discarding cache segment " + file + ": " + ex.getMessage());
+                delete(file);
+            }
+        }
+
+        // the newest segment goes last, where we carry on writing
+        int slot = segments.length - recovered.size();
+        for (Segment segment : recovered) {
+            segments[slot++] = segment;
+        }
+    }
+
+
+    // replay the records of a segment into the index
+    private void scan(Segment segment) {
+
+        ByteBuffer buffer = segment.buffer;
+        int pos = SEGMENT_HEADER;
+        while (pos + RECORD_HEADER <= segmentSize
+                && buffer.getInt(pos) == RECORD_MAGIC) {
+
+            int length = buffer.getInt(pos + 4);
+            if (length < RECORD_HEADER || pos + length > segmentSize) {
+                break;
+            }
+
+            String key = readString(buffer, pos + RECORD_HEADER);
+            if ((buffer.getInt(pos + 8) & FLAG_REMOVED) != 0) {
+                index.remove(key);
+            } else {
+                index.put(key, new Location(segment, pos));
+            }
+            pos += length;
+        }
+
+        segment.writePos = pos;
+    }
+
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    private File[] listSegmentFiles() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(id + "-") && name.endsWith(SUFFIX)
+                        && generationOf(new File(d, name)) >= 0;
+            }
+        });
+        return (files != null) ? files : new File[0];
+    }
+
+
+    private long generationOf(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(id.length() + 1,
+                    name.length() - SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+
+    private static void delete(File file) {
+        // on some platforms a file can't be deleted while it's mapped, it
+        // will be picked up again and discarded on the next startup
+        if (!file.delete() && file.exists()) {
+            log.debug("Unable to delete " + file);
+        }
+    }
+
+
+    private static byte[] toBytes(String value) {
+        return (value != null) ? value.getBytes(UTF8) : null;
+    }
+
+    private static int lengthOf(byte[] bytes) {
+        return 4 + ((bytes != null) ? bytes.length : 0);
+    }
+
+    // a length of -1 stands for null
+    private static void put(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int pos) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(pos + 4);
+        slice.limit(pos + 4 + buffer.getInt(pos));
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    private static String readString(ByteBuffer buffer, int pos) {
+        int length = buffer.getInt(pos);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(pos + 4);
+        source.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+
+    /**
+     * One mapped segment file.
+     */
+    private static final class Segment {
+
+        final File file;
+        final MappedByteBuffer buffer;
+
+        // only touched while holding the store lock
+        int writePos;
+
+        Segment(File file, MappedByteBuffer buffer, int writePos) {
+            this.file = file;
+            this.buffer = buffer;
+            this.writePos = writePos;
+        }
+    }
+
+
+    /**
+     * Where a record lives.
+     */
+    private static final class Location {
+
+        final Segment segment;
+        final int offset;
+
+        Location(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+}
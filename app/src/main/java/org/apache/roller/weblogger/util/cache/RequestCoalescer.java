@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Coalesces concurrent cache misses for the same key.
+ *
+ * The first thread to miss on a key becomes the leader of a "flight" and is
+ * expected to produce the value and complete() the flight.  Any other thread
+ * that misses on the same key while the flight is open joins it as a
+ * follower and can await() the leader's result instead of doing the same
+ * work again.  Followers only wait for a bounded amount of time, so a stuck
+ * leader never holds them up for longer than that.
+ *
+ * Typical use ...
+ *
+ *   Flight flight = coalescer.join(key);
+ *   if (flight.isLeader()) {
+ *       T value = null;
+ *       try {
+ *           value = produce();
+ *       } finally {
+ *           flight.complete(value);
+ *       }
+ *   } else {
+ *       T value = flight.await(maxWait);
+ *       if (value == null) value = produce();
+ *   }
+ */
+public class RequestCoalescer<T> {
+
+    private static Log log = LogFactory.getLog(RequestCoalescer.class);
+
+    // named coalescers, so their stats can be shown alongside the caches
+    private static final Map<String, RequestCoalescer<?>> registry =
+            new ConcurrentHashMap<String, RequestCoalescer<?>>();
+
+    private final ConcurrentHashMap<String, Flight> flights =
+            new ConcurrentHashMap<String, Flight>();
+
+    // for metrics
+    private final AtomicLong leaders = new AtomicLong(0);
+    private final AtomicLong followers = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+
+
+    public RequestCoalescer() {
+    }
+
+
+    /**
+     * Create a coalescer whose stats are reported under the given id.
+     */
+    public RequestCoalescer(String id) {
+        registry.put(id, this);
+    }
+
+
+    /**
+     * Stats for all named coalescers, keyed by id.
+     */
+    public static Map<String, Map<String, Object>> getAllStats() {
+        Map<String, Map<String, Object>> stats =
+                new HashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, RequestCoalescer<?>> entry : registry.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+
+    /**
+     * Join the flight for the given key, starting a new one with the calling
+     * thread as its leader if there isn't one already.
+     */
+    public Flight join(String key) {
+
+        Flight flight = new Flight(key);
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            leaders.incrementAndGet();
+            return flight;
+        }
+
+        followers.incrementAndGet();
+        return existing;
+    }
+
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("leaders", leaders.get());
+        stats.put("followers", followers.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("inFlight", flights.size());
+        return stats;
+    }
+
+
+    /**
+     * A single in-progress computation of the value for a key.
+     */
+    public final class Flight {
+
+        private final String key;
+        private final Thread leader;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile T result = null;
+
+        private Flight(String key) {
+            this.key = key;
+            this.leader = Thread.currentThread();
+        }
+
+        public boolean isLeader() {
+            return leader == Thread.currentThread();
+        }
+
+        /**
+         * Publish the result to all followers and close the flight.
+         *
+         * A null result tells followers that they need to do the work
+         * themselves.  Only the first call has any effect, so it's safe to
+         * call this from a finally block after a successful completion.
+         */
+        public void complete(T value) {
+            if (done.getCount() > 0) {
+                this.result = value;
+                flights.remove(key, this);
+                done.countDown();
+            }
+        }
+
+        /**
+         * Wait up to maxWait milliseconds for the leader's result.
+         *
+         * @return the result, or null if the leader failed, didn't finish in
+         *         time or we were interrupted.
+         */
+        public T await(long maxWait) {
+            try {
+                if (!done.await(maxWait, TimeUnit.MILLISECONDS)) {
+                    log.debug("Timed out waiting for " + key);
+                    timeouts.incrementAndGet();
+                    return null;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return result;
+        }
+    }
+
+}
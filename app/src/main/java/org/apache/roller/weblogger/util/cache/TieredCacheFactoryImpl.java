@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.roller.util.PropertyExpander;
+import org.apache.roller.util.RollerConstants;
+
+
+/**
+ * Roller tiered cache factory.
+ *
+ * The heap level is built by the factory named in the "l1.factory" property,
+ * the expiring LRU cache factory by default, from the usual "size" and
+ * "timeout" properties.  The off-heap level understands ...
+ *
+ *   l2.dir        - directory for the segment files (required)
+ *   l2.maxBytes   - total size of the segment files, default 64MB
+ *   l2.segments   - number of segment files, default 8
+ *   l2.persistent - keep content across restarts, default true
+ *
+ * If the off-heap level can't be set up we fall back to the heap level only.
+ */
+public class TieredCacheFactoryImpl implements CacheFactory {
+    
+    private static Log log = LogFactory.getLog(TieredCacheFactoryImpl.class);
+    
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    
+    
+    // protected so only the CacheManager can instantiate us
+    protected TieredCacheFactoryImpl() {}
+    
+    
+    /**
+     * Construct a new instance of a Roller tiered cache.
+     */
+    public Cache constructCache(Map properties) {
+        
+        String id = "unknown";
+        long timeout = 15 * 60;
+        long maxBytes = DEFAULT_MAX_BYTES;
+        int segments = 8;
+        
+        String cacheId = (String) properties.get("id");
+        if(cacheId != null) {
+            id = cacheId;
+        }
+        
+        try {
+            timeout = Long.parseLong((String) properties.get("timeout"));
+        } catch(Exception e) {
+            // ignored
+        }
+        
+        try {
+            maxBytes = Long.parseLong((String) properties.get("l2.maxBytes"));
+        } catch(Exception e) {
+            // ignored
+        }
+        
+        try {
+            segments = Integer.parseInt((String) properties.get("l2.segments"));
+        } catch(Exception e) {
+            // ignored
+        }
+        
+        boolean persistent = !"false".equals(properties.get("l2.persistent"));
+        
+        Cache cache = constructHeapCache(properties);
+        
+        String dir = (String) properties.get("l2.dir");
+        if(dir == null || dir.trim().length() == 0) {
+            log.warn("No l2.dir set for cache " + id + ", using heap only");
+            return cache;
+        }
+        
+        try {
+            MappedContentStore store = new MappedContentStore(id,
+                    new File(PropertyExpander.expandSystemProperties(dir.trim())),
+                    maxBytes, segments,
+                    (timeout > 0) ? timeout * RollerConstants.SEC_IN_MS : 0,
+                    persistent);
+            
+            log.debug("new cache constructed. maxBytes=" + maxBytes
+                    + ", segments=" + segments + ", persistent=" + persistent);
+            
+            return new TieredCacheImpl(cache, store);
+        } catch(Exception e) {
+            log.error("Unable to set up off-heap store for cache " + id
+                    + ", using heap only", e);
+            return cache;
+        }
+    }
+    
+    
+    private Cache constructHeapCache(Map properties) {
+        
+        // don't let the heap level factory pick us up again
+        Map<String, String> heapProperties = new HashMap<String, String>();
+        for (Object key : properties.keySet()) {
+            heapProperties.put((String) key, (String) properties.get(key));
+        }
+        heapProperties.remove("factory");
+        
+        String classname = (String) properties.get("l1.factory");
+        if(classname != null) {
+            try {
+                Class factoryClass = Class.forName(classname);
+                CacheFactory factory = (CacheFactory) factoryClass.newInstance();
+                return factory.constructCache(heapProperties);
+            } catch(Exception e) {
+                log.error("Unable to instantiate cache factory ["+classname+
+                        "] falling back on default", e);
+            }
+        }
+        
+        return new ExpiringLRUCacheFactoryImpl().constructCache(heapProperties);
+    }
+    
+}
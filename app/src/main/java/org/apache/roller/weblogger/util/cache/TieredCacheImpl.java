@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A two level cache.  A small heap based cache in front of a much larger
+ * MappedContentStore which keeps rendered content outside of the heap.
+ *
+ * Rendered content is written through to both levels, so the heap level can
+ * stay small without losing anything when it evicts.  A miss on the heap
+ * level which hits the store puts the value back into the heap level, but
+ * the content itself stays in the store.
+ *
+ * Values which the store can't hold are kept in the heap level only.
+ */
+public class TieredCacheImpl implements Cache, Closeable {
+
+    private static Log log = LogFactory.getLog(TieredCacheImpl.class);
+
+    private final Cache cache;
+    private final MappedContentStore store;
+
+
+    protected TieredCacheImpl(Cache cache, MappedContentStore store) {
+        this.cache = cache;
+        this.store = store;
+    }
+
+
+    public String getId() {
+        return cache.getId();
+    }
+
+
+    public void put(String key, Object value) {
+        cache.put(key, value);
+        if (!store.put(key, value)) {
+            // don't leave an older copy behind in the store
+            store.remove(key);
+        }
+    }
+
+
+    public Object get(String key) {
+
+        Object value = cache.get(key);
+        if (value == null) {
+            value = store.get(key);
+            if (value != null) {
+                log.debug("HIT-L2 " + key);
+                cache.put(key, value);
+            }
+        }
+
+        return value;
+    }
+
+
+    public void remove(String key) {
+        cache.remove(key);
+        store.remove(key);
+    }
+
+
+    public void clear() {
+        cache.clear();
+        store.clear();
+    }
+
+
+    public Map<String, Object> getStats() {
+
+        Map<String, Object> stats = new HashMap<String, Object>(cache.getStats());
+        for (Map.Entry<String, Object> stat : store.getStats().entrySet()) {
+            stats.put("l2." + stat.getKey(), stat.getValue());
+        }
+
+        return stats;
+    }
+
+
+    /**
+     * Flush the store to disk.
+     */
+    public void close() {
+        store.force();
+    }
+
+}
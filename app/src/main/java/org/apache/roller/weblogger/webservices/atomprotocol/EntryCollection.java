@@ -166,6 +166,19 @@ public class EntryCollection {
                     log.warn("Unparsable range: " + pathInfo[2]);
                 }
             }        
+            // the next links name the last entry of the previous page, so
+            // that it doesn't have to be found again by its offset
+            Date afterTime = null;
+            String afterId = null;
+            if (pathInfo.length > 3) {
+                String[] after = StringUtils.split(pathInfo[3], "_", 2);
+                try {
+                    afterTime = new Date(Long.parseLong(after[0]));
+                    afterId = after[1];
+                } catch (Exception e) {
+                    log.warn("Unparsable position: " + pathInfo[3]);
+                }
+            }
             String handle = pathInfo[0];
             String absUrl = WebloggerRuntimeConfig.getAbsoluteContextURL();
             Weblog website = roller.getWeblogManager().getWeblogByHandle(handle);
@@ -178,7 +191,11 @@ public class EntryCollection {
             WeblogEntrySearchCriteria wesc = new WeblogEntrySearchCriteria();
             wesc.setWeblog(website);
             wesc.setSortBy(WeblogEntrySearchCriteria.SortBy.UPDATE_TIME);
-            wesc.setOffset(start);
+            if (afterId != null) {
+                wesc.setAfter(afterTime, afterId);
+            } else {
+                wesc.setOffset(start);
+            }
             wesc.setMaxResults(max + 1);
             List<WeblogEntry> entries = roller.getWeblogEntryManager().getWeblogEntries(wesc);
             Feed feed = new Feed();
@@ -209,8 +226,10 @@ public class EntryCollection {
             if (entries.size() > max) {
                 // add next link
                 int nextOffset = start + max;
+                WeblogEntry last = entries.get(max - 1);
                 String url = atomURL+"/"
-                        + website.getHandle() + "/entries/" + nextOffset;
+                        + website.getHandle() + "/entries/" + nextOffset
+                        + "/" + last.getUpdateTime().getTime() + "_" + last.getId();
                 Link nextLink = new Link();
                 nextLink.setRel("next");
                 nextLink.setHref(url);
@@ -71,6 +71,9 @@ import org.apache.roller.weblogger.pojos.WeblogPermission;
  *    /roller-services/app/[weblog-handle]/entries/[offset]
  *    Entry collection for a blog, with offset (GET)
  * 
+ *    /roller-services/app/[weblog-handle]/entries/[offset]/[after]
+ *    Entry collection for a blog, continuing after an entry (GET)
+ * 
  *    /roller-services/app/[weblog-handle]/entry/[id]
  *    Individual entry (GET, PUT, DELETE)
  *
@@ -197,6 +200,7 @@ public class RollerAtomHandler implements AtomHandler {
      * Supports these URI forms:
      *    /<blog-name>/entries
      *    /<blog-name>/entries/offset
+     *    /<blog-name>/entries/offset/after
      *    /<blog-name>/resources
      *    /<blog-name>/resources/offset
      * </pre>
@@ -165,7 +165,7 @@
     </td>
     
     <td>
-        <s:property value="#post.category.name" />
+        <s:property value="#post.categoryName" />
     </td>
     
     <td>
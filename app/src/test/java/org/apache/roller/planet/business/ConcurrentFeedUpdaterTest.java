@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.planet.business;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.roller.planet.business.updater.ConcurrentFeedUpdater;
+import org.apache.roller.planet.business.updater.FeedUpdater;
+import org.apache.roller.planet.pojos.Planet;
+import org.apache.roller.planet.pojos.PlanetGroup;
+import org.apache.roller.planet.pojos.Subscription;
+import org.apache.roller.planet.pojos.SubscriptionEntry;
+import org.apache.roller.weblogger.TestUtils;
+import org.apache.roller.weblogger.business.WebloggerFactory;
+
+
+/**
+ * Test the concurrent feed updater against a local feed server.
+ */
+public class ConcurrentFeedUpdaterTest extends TestCase {
+    
+    private HttpServer server = null;
+    private volatile String feed = null;
+    private volatile String eTag = null;
+    private final AtomicInteger feedHits = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final AtomicInteger missingHits = new AtomicInteger();
+    
+    private Planet testPlanet = null;
+    private PlanetGroup testGroup = null;
+    private Subscription testSub = null;
+    private Subscription missingSub = null;
+    
+    
+    protected void setUp() throws Exception {
+        TestUtils.setupWeblogger();
+        
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/feed", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                feedHits.incrementAndGet();
+                String currentETag = eTag;
+                if (currentETag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = feed.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/rss+xml; charset=UTF-8");
+                exchange.getResponseHeaders().set("ETag", currentETag);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.createContext("/missing", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                missingHits.incrementAndGet();
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        
+        testPlanet = TestUtils.setupPlanet("updaterTestPlanet");
+        testGroup = TestUtils.setupGroup(testPlanet, "updaterTestGroup");
+        testSub = TestUtils.setupSubscription(base + "/feed");
+        missingSub = TestUtils.setupSubscription(base + "/missing");
+        
+        testGroup.getSubscriptions().add(testSub);
+        testSub.getGroups().add(testGroup);
+        testGroup.getSubscriptions().add(missingSub);
+        missingSub.getGroups().add(testGroup);
+        
+        WebloggerFactory.getWeblogger().getPlanetManager().saveGroup(testGroup);
+        WebloggerFactory.getWeblogger().flush();
+    }
+    
+    
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        
+        TestUtils.teardownSubscription(testSub.getId());
+        TestUtils.teardownSubscription(missingSub.getId());
+        TestUtils.teardownGroup(testGroup.getId());
+        TestUtils.teardownPlanet(testPlanet.getId());
+    }
+    
+    
+    public void testUpdateSubscriptions() throws Exception {
+        
+        FeedUpdater updater = new ConcurrentFeedUpdater();
+        
+        // first time around everything gets imported
+        setFeed("v1", item("a", "Entry A"), item("b", "Entry B"), item("c", "Entry C"));
+        update(updater);
+        
+        Map<String, SubscriptionEntry> entries = getEntries();
+        assertEquals(3, entries.size());
+        assertEquals("Test Feed", getSub().getTitle());
+        String idA = entries.get("urn:a").getId();
+        String idB = entries.get("urn:b").getId();
+        assertEquals(1, missingHits.get());
+        
+        // unchanged feed is not sent again, and the failing feed is backing off
+        update(updater);
+        assertEquals(2, feedHits.get());
+        assertEquals(1, notModified.get());
+        assertEquals(1, missingHits.get());
+        entries = getEntries();
+        assertEquals(3, entries.size());
+        assertEquals(idA, entries.get("urn:a").getId());
+        
+        // changes are merged into the existing entries
+        setFeed("v2", item("a", "Entry A"), item("b", "Entry B changed"), item("d", "Entry D"));
+        update(updater);
+        
+        entries = getEntries();
+        assertEquals(3, entries.size());
+        assertEquals(idA, entries.get("urn:a").getId());
+        assertEquals(idB, entries.get("urn:b").getId());
+        assertEquals("Entry B changed", entries.get("urn:b").getTitle());
+        assertNull(entries.get("urn:c"));
+        assertNotNull(entries.get("urn:d"));
+        assertEquals(1, missingHits.get());
+    }
+    
+    
+    private void update(FeedUpdater updater) throws Exception {
+        PlanetManager mgr = WebloggerFactory.getWeblogger().getPlanetManager();
+        updater.updateSubscriptions(mgr.getGroupById(testGroup.getId()));
+        TestUtils.endSession(true);
+    }
+    
+    
+    private Subscription getSub() throws Exception {
+        PlanetManager mgr = WebloggerFactory.getWeblogger().getPlanetManager();
+        return mgr.getSubscriptionById(testSub.getId());
+    }
+    
+    
+    private Map<String, SubscriptionEntry> getEntries() throws Exception {
+        Map<String, SubscriptionEntry> entries = new HashMap<String, SubscriptionEntry>();
+        for (SubscriptionEntry entry : getSub().getEntries()) {
+            entries.put(entry.getGuid(), entry);
+        }
+        return entries;
+    }
+    
+    
+    private void setFeed(String version, String... items) {
+        StringBuilder rss = new StringBuilder();
+        rss.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        rss.append("<rss version=\"2.0\"><channel><title>Test Feed</title>");
+        rss.append("<link>http://example.com/</link><description>test</description>");
+        for (String item : items) {
+            rss.append(item);
+        }
+        rss.append("</channel></rss>");
+        feed = rss.toString();
+        eTag = "\"" + version + "\"";
+    }
+    
+    
+    private static String item(String id, String title) {
+        return "<item><title>" + title + "</title>"
+                + "<link>http://example.com/" + id + "</link>"
+                + "<guid>urn:" + id + "</guid>"
+                + "<pubDate>Mon, 01 Jun 2015 10:00:00 GMT</pubDate>"
+                + "<description>Text of " + title + "</description></item>";
+    }
+    
+    
+    public static Test suite() {
+        return new TestSuite(ConcurrentFeedUpdaterTest.class);
+    }
+    
+}
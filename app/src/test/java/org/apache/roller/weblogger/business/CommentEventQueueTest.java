@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.MessagingException;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.roller.weblogger.business.runnable.BoundedThreadPool;
+import org.apache.roller.weblogger.business.runnable.ThreadManager;
+import org.apache.roller.weblogger.pojos.WeblogEntryComment;
+import org.apache.roller.weblogger.util.RollerMessages;
+
+
+/**
+ * Test retrying of failed work in CommentEventQueue.
+ */
+public class CommentEventQueueTest extends TestCase {
+
+    private BoundedThreadPool pool = null;
+    private CommentEventQueue queue = null;
+    private File journalDir = null;
+
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        pool = new BoundedThreadPool(ThreadManager.MAIL_POOL, 1, 1, BoundedThreadPool.ABORT);
+        journalDir = new File(System.getProperty("java.io.tmpdir"),
+                "comment-queue-test-" + System.nanoTime());
+        assertTrue(journalDir.mkdirs());
+    }
+
+
+    protected void tearDown() throws Exception {
+        if (queue != null) {
+            queue.shutdown();
+        }
+        pool.shutdownNow();
+        File[] files = journalDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        journalDir.delete();
+        super.tearDown();
+    }
+
+
+    public void testFailedSendIsRetried() throws Exception {
+
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final CountDownLatch sent = new CountDownLatch(1);
+        queue = new CommentEventQueue(journalDir, 1, 3, 10, new CommentEventQueue.EventProcessor() {
+            public void process(CommentEventQueue.CommentEvent event) throws Exception {
+                assertEquals("comment1", event.commentId);
+                if (attempts.incrementAndGet() == 1) {
+                    throw new MessagingException("Mail server is down");
+                }
+                sent.countDown();
+            }
+        });
+        queue.start(pool);
+
+        queue.commentSaved(comment("comment1"), new RollerMessages(), Locale.ENGLISH, true, false);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        waitForStat("processed", 1);
+
+        assertEquals(2, attempts.get());
+        assertEquals(1L, queue.getStats().get("retried"));
+        assertEquals(0L, queue.getStats().get("failed"));
+
+        // handled, so nothing left in the journal
+        assertEquals(0, journalDir.listFiles().length);
+    }
+
+
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+
+        final AtomicInteger attempts = new AtomicInteger(0);
+        queue = new CommentEventQueue(journalDir, 1, 2, 10, new CommentEventQueue.EventProcessor() {
+            public void process(CommentEventQueue.CommentEvent event) throws Exception {
+                attempts.incrementAndGet();
+                throw new MessagingException("Mail server is down");
+            }
+        });
+        queue.start(pool);
+
+        queue.commentSaved(comment("comment2"), new RollerMessages(), Locale.ENGLISH, true, false);
+        waitForStat("failed", 1);
+
+        assertEquals(2, attempts.get());
+        assertEquals(1L, queue.getStats().get("retried"));
+        assertEquals(0L, queue.getStats().get("processed"));
+
+        // the event is kept for somebody to look at
+        File[] files = journalDir.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".failed"));
+    }
+
+
+    private void waitForStat(String name, long expected) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (((Long) queue.getStats().get(name)) < expected && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, queue.getStats().get(name));
+    }
+
+
+    private static WeblogEntryComment comment(String id) {
+        WeblogEntryComment comment = new WeblogEntryComment();
+        comment.setId(id);
+        return comment;
+    }
+
+
+    public static Test suite() {
+        return new TestSuite(CommentEventQueueTest.class);
+    }
+
+}
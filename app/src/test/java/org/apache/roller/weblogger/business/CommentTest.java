@@ -18,6 +18,7 @@
 
 package org.apache.roller.weblogger.business;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.List;
@@ -28,12 +29,14 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.TestUtils;
+import org.apache.roller.weblogger.config.WebloggerConfig;
 import org.apache.roller.weblogger.pojos.CommentSearchCriteria;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment;
 import org.apache.roller.weblogger.pojos.WeblogEntryComment.ApprovalStatus;
 import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.Weblog;
+import org.apache.roller.weblogger.util.RollerMessages;
 
 
 /**
@@ -202,6 +205,43 @@ public class CommentTest extends TestCase {
     }
     
     
+    /**
+     * Test that work queued after saving a comment gets done.
+     */
+    public void testCommentEventQueue() throws Exception {
+        
+        WeblogEntryManager mgr = WebloggerFactory.getWeblogger().getWeblogEntryManager();
+        CommentEventQueue queue = CommentEventQueue.getInstance();
+        long processed = (Long) queue.getStats().get("processed");
+        
+        WeblogEntryComment comment = TestUtils.setupComment("queued comment",
+                TestUtils.getManagedWeblogEntry(testEntry));
+        TestUtils.endSession(true);
+        
+        queue.commentSaved(comment, new RollerMessages(), null, true, true);
+        
+        // and one for a comment which is gone before we get to it
+        WeblogEntryComment gone = new WeblogEntryComment();
+        gone.setId("no-such-comment");
+        queue.commentSaved(gone, new RollerMessages(), null, true, true);
+        
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while ((Long) queue.getStats().get("processed") < processed + 2
+                && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        assertEquals(processed + 2, queue.getStats().get("processed"));
+        assertEquals(0L, queue.getStats().get("failed"));
+        
+        // nothing left in the journal
+        File dir = new File(WebloggerConfig.getProperty("comment.queue.dir"));
+        assertEquals(0, dir.list().length);
+        
+        TestUtils.teardownComment(comment.getId());
+        TestUtils.endSession(true);
+    }
+    
+    
     /**
      * Test that when deleting parent objects of a comment that everything
      * down the chain is properly deleted as well.  i.e. deleting an entry
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.roller.weblogger.pojos.FileContent;
+import org.apache.roller.weblogger.pojos.Weblog;
+
+
+/**
+ * Test HashedFileContentManagerImpl.
+ */
+public class HashedFileContentManagerTest extends TestCase {
+
+    private File dir = null;
+    private File oldDir = null;
+    private HashedFileContentManagerImpl mgr = null;
+    private Weblog weblog = null;
+
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File(System.getProperty("java.io.tmpdir"),
+                "roller-hashed-test-" + System.nanoTime());
+        oldDir = new File(dir, "old");
+        mgr = new HashedFileContentManagerImpl(oldDir.getPath(),
+                new File(dir, "hashed").getPath());
+        weblog = new Weblog();
+        weblog.setHandle("hashtest");
+    }
+
+
+    protected void tearDown() throws Exception {
+        delete(dir);
+        super.tearDown();
+    }
+
+
+    public void testSaveAndDelete() throws Exception {
+
+        mgr.saveFileContent(weblog, "one", stream("same content"));
+        mgr.saveFileContent(weblog, "two", stream("same content"));
+        mgr.saveFileContent(weblog, "three", stream("other content"));
+
+        // identical content is stored once, but counts for each file
+        FileContent one = mgr.getFileContent(weblog, "one");
+        FileContent two = mgr.getFileContent(weblog, "two");
+        assertEquals("one", one.getFileId());
+        assertEquals(one.getName(), two.getName());
+        assertEquals("same content", read(two.getInputStream()));
+        assertEquals(12 + 12 + 13, mgr.getUsage(weblog));
+
+        // content stays until the last file using it is gone
+        mgr.deleteFile(weblog, "one");
+        assertEquals("same content", read(mgr.getFileContent(weblog, "two").getInputStream()));
+        mgr.deleteFile(weblog, "two");
+        assertFalse(contains(dir, one.getName()));
+        try {
+            mgr.getFileContent(weblog, "two");
+            fail();
+        } catch (FileNotFoundException expected) {
+        }
+
+        // replacing content adjusts the usage
+        mgr.saveFileContent(weblog, "three", stream("new"));
+        assertEquals("new", read(mgr.getFileContent(weblog, "three").getInputStream()));
+        assertEquals(3, mgr.getUsage(weblog));
+
+        // which is still right after a restart
+        HashedFileContentManagerImpl restarted = new HashedFileContentManagerImpl(
+                oldDir.getPath(), new File(dir, "hashed").getPath());
+        assertEquals(3, restarted.getUsage(weblog));
+
+        try {
+            mgr.getFileContent(weblog, "../three");
+            fail();
+        } catch (FilePathException expected) {
+        }
+
+        mgr.deleteAllFiles(weblog);
+        assertEquals(0, mgr.getUsage(weblog));
+    }
+
+
+    public void testMigrateOldFiles() throws Exception {
+
+        File weblogDir = new File(oldDir, weblog.getHandle());
+        weblogDir.mkdirs();
+        write(new File(weblogDir, "old1"), "old content");
+        write(new File(weblogDir, "old2"), "old content");
+
+        // old files are readable and count until they are moved
+        assertEquals("old content", read(mgr.getFileContent(weblog, "old1").getInputStream()));
+        assertEquals(22, mgr.getUsage(weblog));
+
+        // and saving replaces the old file
+        mgr.saveFileContent(weblog, "old2", stream("newer"));
+
+        assertEquals(1, mgr.migrateOldFiles());
+        assertFalse(weblogDir.exists());
+        assertEquals("old content", read(mgr.getFileContent(weblog, "old1").getInputStream()));
+        assertEquals("newer", read(mgr.getFileContent(weblog, "old2").getInputStream()));
+        assertEquals(16, mgr.getUsage(weblog));
+
+        assertEquals(0, mgr.migrateOldFiles());
+    }
+
+
+    private static InputStream stream(String content) throws Exception {
+        return new ByteArrayInputStream(content.getBytes("UTF-8"));
+    }
+
+
+    private static String read(InputStream in) throws Exception {
+        try {
+            StringBuilder content = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                content.append((char) c);
+            }
+            return content.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+
+    private static void write(File file, String content) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+
+    private static boolean contains(File dir, String name) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                if (child.getName().equals(name) || contains(child, name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+
+    public static Test suite() {
+        return new TestSuite(HashedFileContentManagerTest.class);
+    }
+
+}
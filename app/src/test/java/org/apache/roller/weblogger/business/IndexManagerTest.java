@@ -18,6 +18,8 @@
 package org.apache.roller.weblogger.business;
 
 import java.sql.Timestamp;
+import java.util.HashSet;
+import java.util.Set;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -25,8 +27,11 @@ import org.apache.roller.util.RollerConstants;
 import org.apache.roller.weblogger.TestUtils;
 import org.apache.roller.weblogger.business.search.IndexManagerImpl;
 import org.apache.roller.weblogger.business.search.operations.AddEntryOperation;
+import org.apache.roller.weblogger.business.search.operations.RebuildWebsiteIndexOperation;
 import org.apache.roller.weblogger.business.search.operations.SearchOperation;
+import org.apache.roller.weblogger.business.search.FieldConstants;
 import org.apache.roller.weblogger.business.search.IndexManager;
+import org.apache.roller.weblogger.business.search.SearchResultList;
 import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.WeblogEntry.PubStatus;
@@ -157,4 +162,123 @@ public class IndexManagerTest extends TestCase {
         imgr.executeIndexOperationNow(search3);
         assertEquals(0, search3.getResultsCount());
     }    
+
+    public void testRebuildWebsiteIndex() throws Exception {
+        WeblogEntryManager wem = WebloggerFactory.getWeblogger().getWeblogEntryManager();
+        IndexManager imgr = WebloggerFactory.getWeblogger().getIndexManager();
+
+        WeblogEntry[] entries = new WeblogEntry[3];
+        for (int i = 0; i < entries.length; i++) {
+            WeblogEntry wd = new WeblogEntry();
+            wd.setTitle("The Trouble with Tribbles " + i);
+            wd.setText("Kirk fights a plague of Tribbles aboard the station.");
+            wd.setAnchor("tribbles" + i);
+            wd.setCreatorUserName(testUser.getUserName());
+            wd.setStatus(PubStatus.PUBLISHED);
+            wd.setUpdateTime(new Timestamp(System.currentTimeMillis()));
+            wd.setPubTime(new Timestamp(System.currentTimeMillis()));
+            wd.setWebsite(TestUtils.getManagedWebsite(testWeblog));
+            wd.setCategory(wem.getWeblogCategory(
+                    testWeblog.getWeblogCategory("General").getId()));
+            wem.saveWeblogEntry(wd);
+            entries[i] = wd;
+        }
+        TestUtils.endSession(true);
+
+        RebuildWebsiteIndexOperation rebuild = new RebuildWebsiteIndexOperation(
+                WebloggerFactory.getWeblogger(), (IndexManagerImpl) imgr, testWeblog);
+        imgr.executeIndexOperationNow(rebuild);
+        assertEquals(3, rebuild.getEntriesIndexed());
+
+        SearchOperation search = new SearchOperation(imgr);
+        search.setTerm("Tribbles");
+        imgr.executeIndexOperationNow(search);
+        assertEquals(3, search.getResultsCount());
+
+        // entries which are gone are dropped by the next rebuild
+        wem.removeWeblogEntry(TestUtils.getManagedWeblogEntry(entries[0]));
+        TestUtils.endSession(true);
+
+        rebuild = new RebuildWebsiteIndexOperation(
+                WebloggerFactory.getWeblogger(), (IndexManagerImpl) imgr, testWeblog);
+        imgr.executeIndexOperationNow(rebuild);
+        assertEquals(2, rebuild.getEntriesIndexed());
+
+        SearchOperation search2 = new SearchOperation(imgr);
+        search2.setTerm("Tribbles");
+        imgr.executeIndexOperationNow(search2);
+        assertEquals(2, search2.getResultsCount());
+    }
+
+    public void testPagedSearch() throws Exception {
+        WeblogEntryManager wem = WebloggerFactory.getWeblogger().getWeblogEntryManager();
+        IndexManager imgr = WebloggerFactory.getWeblogger().getIndexManager();
+
+        for (int i = 0; i < 5; i++) {
+            WeblogEntry wd = new WeblogEntry();
+            wd.setTitle("Mirror, Mirror " + i);
+            wd.setText("A transporter accident sends the landing party to a Mirror universe.");
+            wd.setAnchor("mirror" + i);
+            wd.setCreatorUserName(testUser.getUserName());
+            wd.setStatus(PubStatus.PUBLISHED);
+            wd.setUpdateTime(new Timestamp(System.currentTimeMillis()));
+            wd.setPubTime(new Timestamp(System.currentTimeMillis() - i * 60000));
+            wd.setWebsite(TestUtils.getManagedWebsite(testWeblog));
+            wd.setCategory(wem.getWeblogCategory(
+                    testWeblog.getWeblogCategory("General").getId()));
+            wd.addTag("mirror");
+            if (i % 2 == 0) {
+                wd.addTag("goatee");
+            }
+            wem.saveWeblogEntry(wd);
+            TestUtils.endSession(true);
+
+            imgr.executeIndexOperationNow(new AddEntryOperation(
+                    WebloggerFactory.getWeblogger(), (IndexManagerImpl) imgr,
+                    TestUtils.getManagedWeblogEntry(wd)));
+        }
+
+        Set<String> seen = new HashSet<String>();
+        for (int page = 0; page < 3; page++) {
+            SearchOperation search = new SearchOperation(imgr);
+            search.setTerm("Mirror");
+            search.setOffset(page * 2);
+            search.setLimit(2);
+            imgr.executeIndexOperationNow(search);
+            assertEquals(5, search.getResultsCount());
+
+            SearchResultList results = search.getResults();
+            assertEquals(page < 2 ? 2 : 1, results.getHits().size());
+            for (SearchResultList.Hit hit : results.getHits()) {
+                assertTrue(seen.add(hit.getEntryId()));
+            }
+
+            // facets count every match, not just this page
+            assertEquals(Integer.valueOf(5), results.getFacet(
+                    FieldConstants.WEBSITE_HANDLE).get(testWeblog.getHandle()));
+            assertEquals(Integer.valueOf(5), results.getFacet(FieldConstants.TAG).get("mirror"));
+            assertEquals(Integer.valueOf(3), results.getFacet(FieldConstants.TAG).get("goatee"));
+            assertEquals(Integer.valueOf(5), results.getFacet(FieldConstants.CATEGORY).get("general"));
+        }
+
+        SearchOperation search = new SearchOperation(imgr);
+        search.setTerm("Mirror");
+        search.setTag("goatee");
+        search.setSortBy(SearchOperation.SortBy.RELEVANCE);
+        imgr.executeIndexOperationNow(search);
+        assertEquals(3, search.getResultsCount());
+
+        // later pages by relevance are still scored
+        for (int page = 0; page < 2; page++) {
+            search = new SearchOperation(imgr);
+            search.setTerm("Mirror");
+            search.setSortBy(SearchOperation.SortBy.RELEVANCE);
+            search.setOffset(page * 2);
+            search.setLimit(2);
+            imgr.executeIndexOperationNow(search);
+            for (SearchResultList.Hit hit : search.getResults().getHits()) {
+                assertFalse(Float.isNaN(hit.getScore()));
+            }
+        }
+    }
 }
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.internet.InternetAddress;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.roller.weblogger.business.runnable.BoundedThreadPool;
+import org.apache.roller.weblogger.business.runnable.ThreadManager;
+
+
+/**
+ * Test MailDeliveryQueue against a minimal SMTP server running in the test.
+ */
+public class MailDeliveryQueueTest extends TestCase {
+
+    private FakeSmtpServer server = null;
+    private MailDeliveryQueue queue = null;
+    private BoundedThreadPool pool = null;
+
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeSmtpServer(0);
+        pool = new BoundedThreadPool(ThreadManager.MAIL_POOL, 1, 1, BoundedThreadPool.ABORT);
+    }
+
+
+    protected void tearDown() throws Exception {
+        if (queue != null) {
+            queue.shutdown();
+        }
+        pool.shutdownNow();
+        server.close();
+        super.tearDown();
+    }
+
+
+    public void testBatchOverOneConnection() throws Exception {
+
+        queue = new MailDeliveryQueue(new MailProvider("localhost", server.getPort()),
+                100, 50, 30000, 3, 0, 0, 20);
+        queue.start(pool);
+
+        for (int i = 0; i < 10; i++) {
+            queue.send(mail("owner" + i + "@example.com", "Subject " + i, "Body " + i, false));
+        }
+        waitForSent(10);
+
+        assertEquals(10, server.getMessages().size());
+        assertEquals(1, server.getConnections());
+        assertEquals(1L, queue.getStats().get("connections"));
+        assertEquals(0L, queue.getStats().get("failed"));
+    }
+
+
+    public void testDigest() throws Exception {
+
+        queue = new MailDeliveryQueue(new MailProvider("localhost", server.getPort()),
+                100, 50, 30000, 3, 0, 500, 20);
+        queue.start(pool);
+
+        for (int i = 0; i < 3; i++) {
+            queue.send(mail("a@example.com", "New comment " + i, "Comment " + i, true));
+        }
+        queue.send(new MailDeliveryQueue.OutboundMail(new InternetAddress("blog@example.com"),
+                null, null, InternetAddress.parse("a@example.com, b@example.com"),
+                "New comment 3", "Comment 3", "text/plain; charset=utf-8", true));
+
+        // not a notification, goes out straight away
+        queue.send(mail("a@example.com", "Welcome", "Not a notification", false));
+        waitForSent(1);
+        assertEquals(1, server.getMessages().size());
+        assertTrue(server.getMessages().get(0).contains("Not a notification"));
+
+        waitForSent(3);
+        assertEquals(3, server.getMessages().size());
+        assertEquals(3L, queue.getStats().get("digested"));
+
+        String digestForA = null;
+        String digestForB = null;
+        for (int i = 1; i < 3; i++) {
+            List<String> recipients = server.getRecipients().get(i);
+            assertEquals(1, recipients.size());
+            if (recipients.get(0).contains("a@example.com")) {
+                digestForA = server.getMessages().get(i);
+            } else {
+                digestForB = server.getMessages().get(i);
+            }
+        }
+        assertNotNull(digestForA);
+        assertNotNull(digestForB);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(digestForA.contains("Comment " + i));
+        }
+        assertTrue(digestForA.contains("New comment 0 (+3)"));
+        assertTrue(digestForB.contains("Comment 3"));
+        assertFalse(digestForB.contains("Comment 0"));
+    }
+
+
+    public void testRetryWhenServerIsDown() throws Exception {
+
+        int port = server.getPort();
+        server.close();
+
+        queue = new MailDeliveryQueue(new MailProvider("localhost", port),
+                100, 50, 30000, 5, 200, 0, 20);
+        queue.start(pool);
+        queue.send(mail("owner@example.com", "Retried", "Retried body", false));
+
+        long until = System.currentTimeMillis() + 10000;
+        while ((Long) queue.getStats().get("retried") == 0 && System.currentTimeMillis() < until) {
+            Thread.sleep(50);
+        }
+        assertTrue((Long) queue.getStats().get("retried") > 0);
+
+        server = new FakeSmtpServer(port);
+        waitForSent(1);
+        assertTrue(server.getMessages().get(0).contains("Retried body"));
+    }
+
+
+    public void testShutdownSendsPendingDigests() throws Exception {
+
+        queue = new MailDeliveryQueue(new MailProvider("localhost", server.getPort()),
+                100, 50, 30000, 3, 0, 3600000, 20);
+        queue.start(pool);
+        queue.send(mail("a@example.com", "New comment", "Pending comment", true));
+        queue.shutdown();
+        queue = null;
+
+        assertEquals(1, server.getMessages().size());
+        assertTrue(server.getMessages().get(0).contains("Pending comment"));
+    }
+
+
+    public void testShutdownWithoutStart() throws Exception {
+
+        // mail queued before the queue was started still goes out
+        queue = new MailDeliveryQueue(new MailProvider("localhost", server.getPort()),
+                100, 50, 30000, 3, 0, 0, 20);
+        queue.send(mail("owner@example.com", "Early", "Queued before start", false));
+        queue.shutdown();
+        queue = null;
+
+        assertEquals(1, server.getMessages().size());
+        assertTrue(server.getMessages().get(0).contains("Queued before start"));
+    }
+
+
+    private static MailDeliveryQueue.OutboundMail mail(String to, String subject,
+            String content, boolean digest) throws Exception {
+        return new MailDeliveryQueue.OutboundMail(new InternetAddress("blog@example.com"),
+                new InternetAddress[] {new InternetAddress(to)}, null, null,
+                subject, content, "text/plain; charset=utf-8", digest);
+    }
+
+
+    private void waitForSent(long count) throws Exception {
+        long until = System.currentTimeMillis() + 10000;
+        while ((Long) queue.getStats().get("sent") < count && System.currentTimeMillis() < until) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, ((Long) queue.getStats().get("sent")).longValue());
+    }
+
+
+    /**
+     * Just enough of an SMTP server to accept mail and remember it.
+     */
+    private static class FakeSmtpServer implements Runnable {
+
+        private final ServerSocket serverSocket;
+        private final AtomicInteger connections = new AtomicInteger(0);
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        private final List<List<String>> recipients =
+                Collections.synchronizedList(new ArrayList<List<String>>());
+
+        FakeSmtpServer(int port) throws IOException {
+            serverSocket = new ServerSocket(port);
+            Thread thread = new Thread(this, "FakeSmtpServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        int getConnections() {
+            return connections.get();
+        }
+
+        List<String> getMessages() {
+            return messages;
+        }
+
+        List<List<String>> getRecipients() {
+            return recipients;
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread session = new Thread(new Runnable() {
+                        public void run() {
+                            converse(socket);
+                        }
+                    }, "FakeSmtpSession");
+                    session.setDaemon(true);
+                    session.start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void converse(Socket socket) {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+                reply(out, "220 localhost");
+
+                List<String> rcpts = new ArrayList<String>();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String command = line.toUpperCase();
+                    if (command.startsWith("EHLO") || command.startsWith("HELO")) {
+                        reply(out, "250 localhost");
+                    } else if (command.startsWith("MAIL FROM")) {
+                        rcpts = new ArrayList<String>();
+                        reply(out, "250 OK");
+                    } else if (command.startsWith("RCPT TO")) {
+                        rcpts.add(line.substring(8).trim());
+                        reply(out, "250 OK");
+                    } else if (command.startsWith("DATA")) {
+                        reply(out, "354 go ahead");
+                        StringBuilder data = new StringBuilder();
+                        while ((line = in.readLine()) != null && !".".equals(line)) {
+                            data.append(line).append('\n');
+                        }
+                        // recipients first, a test may be waiting on the message
+                        recipients.add(rcpts);
+                        messages.add(data.toString());
+                        reply(out, "250 OK");
+                    } else if (command.startsWith("QUIT")) {
+                        reply(out, "221 bye");
+                        break;
+                    } else {
+                        // RSET, NOOP and anything else
+                        reply(out, "250 OK");
+                    }
+                }
+                socket.close();
+            } catch (IOException e) {
+                // client went away
+            }
+        }
+
+        private static void reply(Writer out, String line) throws IOException {
+            out.write(line + "\r\n");
+            out.flush();
+        }
+    }
+
+
+    public static Test suite() {
+        return new TestSuite(MailDeliveryQueueTest.class);
+    }
+
+}
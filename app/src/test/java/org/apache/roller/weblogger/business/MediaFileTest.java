@@ -33,6 +33,7 @@ import org.apache.roller.weblogger.TestUtils;
 import org.apache.roller.weblogger.WebloggerException;
 import org.apache.roller.weblogger.business.jpa.JPAMediaFileManagerImpl;
 import org.apache.roller.weblogger.config.WebloggerConfig;
+import org.apache.roller.weblogger.pojos.FileContent;
 import org.apache.roller.weblogger.pojos.MediaFile;
 import org.apache.roller.weblogger.pojos.MediaFileDirectory;
 import org.apache.roller.weblogger.pojos.MediaFileFilter;
@@ -391,6 +392,19 @@ public class MediaFileTest extends TestCase {
         assertEquals("test copyright text", mediaFile1.getCopyrightText());
         assertTrue(mediaFile1.getSharedForGallery());
         assertEquals(2000, mediaFile1.getLength());
+        assertTrue(mediaFile1.getWidth() > 0 && mediaFile1.getHeight() > 0);
+
+        // thumbnail and smaller copies are made off the upload path
+        ImageDerivativeService derivatives = ImageDerivativeService.getInstance();
+        FileContent content = mfMgr.getMediaFile(mediaFile.getId(), true).getContent();
+        FileContent thumbnail = derivatives.getThumbnail(content);
+        assertNotNull(thumbnail);
+        assertEquals("image/png", ImageDerivativeService.getContentType(thumbnail));
+        FileContent small = derivatives.getDerivative(content, "small");
+        assertNotNull(small);
+        assertTrue(small.getLength() < content.getLength());
+        assertEquals("image/jpeg", ImageDerivativeService.getContentType(small));
+        assertNull(derivatives.getDerivative(content, "huge"));
 
         TestUtils.endSession(true);
         TestUtils.teardownWeblog(testWeblog.getId());
@@ -23,8 +23,17 @@
 
 package org.apache.roller.weblogger.business;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -32,8 +41,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.TestUtils;
 import org.apache.roller.weblogger.business.pings.AutoPingManager;
+import org.apache.roller.weblogger.business.pings.PingQueueManager;
+import org.apache.roller.weblogger.business.pings.PingQueueProcessor;
 import org.apache.roller.weblogger.business.pings.PingTargetManager;
+import org.apache.roller.weblogger.config.WebloggerRuntimeConfig;
 import org.apache.roller.weblogger.pojos.AutoPing;
+import org.apache.roller.weblogger.pojos.PingQueueEntry;
 import org.apache.roller.weblogger.pojos.PingTarget;
 import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.Weblog;
@@ -367,4 +380,85 @@ public class PingsTest extends TestCase {
         // TODO: implement this test
     }
     
+    
+    /**
+     * Test processing the ping queue against a working and a dead ping target.
+     */
+    public void testProcessQueue() throws Exception {
+        
+        // a ping target which answers every ping
+        final AtomicInteger received = new AtomicInteger(0);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/rpc", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                received.incrementAndGet();
+                byte[] reply = ("<?xml version=\"1.0\"?><methodResponse><params><param><value><struct>"
+                        + "<member><name>flerror</name><value><boolean>0</boolean></value></member>"
+                        + "<member><name>message</name><value>Thanks</value></member>"
+                        + "</struct></value></param></params></methodResponse>").getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/xml");
+                exchange.sendResponseHeaders(200, reply.length);
+                exchange.getResponseBody().write(reply);
+                exchange.close();
+            }
+        });
+        server.start();
+        
+        // and one which isn't there at all
+        ServerSocket socket = new ServerSocket(0);
+        int deadPort = socket.getLocalPort();
+        socket.close();
+        
+        String goodUrl = "http://localhost:" + server.getAddress().getPort() + "/rpc";
+        String deadUrl = "http://localhost:" + deadPort + "/rpc";
+        
+        String oldContextUrl = WebloggerRuntimeConfig.getAbsoluteContextURL();
+        if (oldContextUrl == null) {
+            WebloggerRuntimeConfig.setAbsoluteContextURL("http://localhost/roller");
+        }
+        
+        PingTargetManager ptmgr = WebloggerFactory.getWeblogger().getPingTargetManager();
+        PingTarget goodTarget = new PingTarget(null, "goodPing", goodUrl, false);
+        PingTarget deadTarget = new PingTarget(null, "deadPing", deadUrl, false);
+        ptmgr.savePingTarget(goodTarget);
+        ptmgr.savePingTarget(deadTarget);
+        TestUtils.endSession(true);
+        
+        try {
+            PingQueueManager mgr = WebloggerFactory.getWeblogger().getPingQueueManager();
+            testWeblog = TestUtils.getManagedWebsite(testWeblog);
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            mgr.saveQueueEntry(new PingQueueEntry(null, now, goodTarget, testWeblog, 0));
+            // the same weblog again, which should only be pinged once
+            mgr.saveQueueEntry(new PingQueueEntry(null, now, goodTarget, testWeblog, 0));
+            mgr.saveQueueEntry(new PingQueueEntry(null, now, deadTarget, testWeblog, 0));
+            TestUtils.endSession(true);
+            
+            PingQueueProcessor.init();
+            PingQueueProcessor.getInstance().processQueue();
+            TestUtils.endSession(true);
+            
+            assertEquals(1, received.get());
+            
+            // only the failed ping is left, for another try
+            List<PingQueueEntry> entries = mgr.getAllQueueEntries();
+            assertEquals(1, entries.size());
+            assertEquals(deadTarget.getId(), entries.get(0).getPingTarget().getId());
+            assertEquals(1, entries.get(0).getAttempts());
+            
+            Map<String, Map<String, Object>> stats =
+                    PingQueueProcessor.getInstance().getTargetStats();
+            assertEquals(1L, stats.get(goodUrl).get("pings"));
+            assertEquals(0L, stats.get(goodUrl).get("failures"));
+            assertEquals(1L, stats.get(deadUrl).get("failures"));
+            
+        } finally {
+            server.stop(0);
+            WebloggerRuntimeConfig.setAbsoluteContextURL(oldContextUrl);
+            TestUtils.teardownPingTarget(goodTarget.getId());
+            TestUtils.teardownPingTarget(deadTarget.getId());
+            TestUtils.endSession(true);
+        }
+    }
+    
 }
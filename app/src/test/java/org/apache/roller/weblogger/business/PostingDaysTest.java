@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.TimeZone;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test PostingDays.
+ */
+public class PostingDaysTest extends TestCase {
+    
+    private static final TimeZone TZ = TimeZone.getTimeZone("America/New_York");
+    
+    
+    public void testDays() throws Exception {
+        
+        PostingDays days = new PostingDays(TZ);
+        days.add("a", date(2014, Calendar.MARCH, 3, 10), "cat1", "en_US");
+        days.add("b", date(2014, Calendar.MARCH, 3, 12), "cat2", "en_US");
+        days.add("c", date(2014, Calendar.MARCH, 31, 23), "cat1", "de");
+        days.add("d", date(2014, Calendar.APRIL, 1, 0), "cat1", "en");
+        assertEquals(4, days.size());
+        
+        Date march = date(2014, Calendar.MARCH, 15, 0);
+        assertEquals((1 << 3) | (1 << 31), days.getDays(march, null, null));
+        assertEquals(1 << 3, days.getDays(march, "cat2", null));
+        assertEquals(1 << 3, days.getDays(march, null, "en"));
+        assertEquals(1 << 31, days.getDays(march, "cat1", "de"));
+        assertEquals(0, days.getDays(march, "cat3", null));
+        
+        // moving an entry takes it out of the day it was in
+        days.add("a", date(2014, Calendar.MARCH, 4, 10), "cat1", "en_US");
+        assertEquals((1 << 3) | (1 << 4) | (1 << 31), days.getDays(march, null, null));
+        days.remove("b");
+        assertEquals((1 << 4) | (1 << 31), days.getDays(march, null, null));
+        assertEquals(0, days.getDays(march, "cat2", null));
+        assertEquals(3, days.size());
+    }
+    
+    
+    public void testMonths() throws Exception {
+        
+        PostingDays days = new PostingDays(TZ);
+        days.add("a", date(2013, Calendar.DECEMBER, 31, 22), "cat1", "en");
+        days.add("b", date(2014, Calendar.MARCH, 3, 10), "cat2", "en");
+        days.add("c", date(2014, Calendar.JUNE, 1, 1), "cat1", "en");
+        
+        Date march = date(2014, Calendar.MARCH, 15, 0);
+        assertEquals(date(2014, Calendar.JUNE, 1, 0), days.getMonth(march, null, null, true));
+        assertEquals(date(2013, Calendar.DECEMBER, 1, 0), days.getMonth(march, null, null, false));
+        assertEquals(date(2014, Calendar.MARCH, 1, 0),
+                days.getMonth(date(2014, Calendar.JANUARY, 1, 0), "cat2", null, true));
+        assertNull(days.getMonth(march, "cat2", null, true));
+        assertNull(days.getMonth(march, null, "de", false));
+        
+        days.remove("a");
+        assertNull(days.getMonth(march, null, null, false));
+    }
+    
+    
+    public void testEntryIds() throws Exception {
+        
+        PostingDays days = new PostingDays(TZ);
+        Date time = date(2014, Calendar.MARCH, 3, 10);
+        days.add("a", date(2014, Calendar.MARCH, 1, 10), "cat1", "en");
+        days.add("b", date(2014, Calendar.MARCH, 2, 10), "cat2", "en");
+        days.add("c", time, "cat1", "en");
+        days.add("d", date(2014, Calendar.MARCH, 4, 10), "cat2", "de");
+        days.add("e", date(2014, Calendar.MARCH, 5, 10), "cat1", "en");
+        
+        assertEquals(Arrays.asList("d", "e"), days.getEntryIds(time, null, null, 10, true));
+        assertEquals(Arrays.asList("d"), days.getEntryIds(time, null, null, 1, true));
+        assertEquals(Arrays.asList("e"), days.getEntryIds(time, "cat1", null, 10, true));
+        assertEquals(Arrays.asList("b", "a"), days.getEntryIds(time, null, null, 10, false));
+        assertEquals(Arrays.asList("a"), days.getEntryIds(time, "cat1", "en", 10, false));
+        assertEquals(Arrays.asList("e", "c"), days.getEntryIds(null, "cat1", null, 2, false));
+        assertEquals(Collections.emptyList(), days.getEntryIds(time, null, "de", 10, false));
+    }
+    
+    
+    private static Date date(int year, int month, int day, int hour) {
+        Calendar cal = Calendar.getInstance(TZ);
+        cal.clear();
+        cal.set(year, month, day, hour, 0);
+        return cal.getTime();
+    }
+    
+    
+    public static Test suite() {
+        return new TestSuite(PostingDaysTest.class);
+    }
+    
+}
@@ -25,6 +25,7 @@ import junit.framework.TestSuite;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.roller.weblogger.TestUtils;
+import org.apache.roller.weblogger.config.WebloggerRuntimeConfig;
 import org.apache.roller.weblogger.pojos.RuntimeConfigProperty;
 
 
@@ -77,6 +78,7 @@ public class PropertiesTest extends TestCase {
         prop = mgr.getProperty("site.name");
         assertNotNull(prop);
         assertEquals("testtest", prop.getValue());
+        assertEquals("testtest", mgr.getPropertyValue("site.name"));
         
         // get all properties
         Map props = mgr.getProperties();
@@ -96,6 +98,18 @@ public class PropertiesTest extends TestCase {
         assertNotNull(props);
         assertEquals("foofoo", ((RuntimeConfigProperty)props.get("site.name")).getValue());
         assertEquals("blahblah", ((RuntimeConfigProperty)props.get("site.description")).getValue());
+        
+        // and the in-memory copy keeps up
+        assertEquals("foofoo", WebloggerRuntimeConfig.getProperty("site.name"));
+        assertEquals("blahblah", WebloggerRuntimeConfig.getProperty("site.description"));
+        assertNull(mgr.getPropertyValue("no.such.property"));
+        
+        // but not with changes which were never committed
+        prop = mgr.getProperty("site.description");
+        prop.setValue("rolledback");
+        mgr.saveProperty(prop);
+        TestUtils.endSession(false);
+        assertEquals("blahblah", mgr.getPropertyValue("site.description"));
     }
     
 }
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test TagAggregateQueue.
+ */
+public class TagAggregateQueueTest extends TestCase {
+    
+    public void setUp() throws Exception {
+        TagAggregateQueue.getInstance().drainDeltas();
+    }
+    
+    
+    public void testQueueAndDrain() {
+        
+        TagAggregateQueue queue = TagAggregateQueue.getInstance();
+        
+        queue.queueDeltas("weblog1", deltas("one", 1, "two", 1));
+        queue.queueDeltas("weblog1", deltas("one", 1, "two", -1));
+        
+        // changes which cancel out are gone
+        Map<String, Integer> queued = queue.getQueuedDeltas("weblog1");
+        assertEquals(Collections.singletonMap("one", 2), queued);
+        assertTrue(queue.getQueuedDeltas("weblog2").isEmpty());
+        
+        // a copy doesn't take anything off the queue
+        queued.put("one", 5);
+        assertEquals(Collections.singletonMap("one", 2), queue.getQueuedDeltas("weblog1"));
+        
+        Map<String, Map<String, Integer>> drained = queue.drainDeltas();
+        assertEquals(1, drained.size());
+        assertEquals(Collections.singletonMap("one", 2), drained.get("weblog1"));
+        assertTrue(queue.getQueuedDeltas().isEmpty());
+    }
+    
+    
+    public void testCancelDeltas() {
+        
+        TagAggregateQueue queue = TagAggregateQueue.getInstance();
+        
+        queue.queueDeltas("weblog1", deltas("one", 2, "two", 1));
+        queue.queueDeltas("weblog2", deltas("one", 1, "two", 1));
+        Map<String, Map<String, Integer>> accounted = queue.getQueuedDeltas();
+        
+        // more changes arrive before the accounted ones are cancelled
+        queue.queueDeltas("weblog1", deltas("two", 1, "three", 1));
+        queue.cancelDeltas(accounted);
+        
+        Map<String, Map<String, Integer>> left = queue.getQueuedDeltas();
+        assertEquals(1, left.size());
+        assertEquals(deltas("two", 1, "three", 1), left.get("weblog1"));
+        
+        // cancelling what was drained in the meantime undoes it next time
+        queue.drainDeltas();
+        queue.cancelDeltas(Collections.singletonMap("weblog1", deltas("two", 1, "three", 1)));
+        assertEquals(deltas("two", -1, "three", -1), queue.getQueuedDeltas("weblog1"));
+    }
+    
+    
+    private static Map<String, Integer> deltas(String tag1, int delta1, String tag2, int delta2) {
+        Map<String, Integer> deltas = new HashMap<String, Integer>();
+        deltas.put(tag1, delta1);
+        deltas.put(tag2, delta2);
+        return deltas;
+    }
+    
+    
+    public static Test suite() {
+        return new TestSuite(TagAggregateQueueTest.class);
+    }
+    
+}
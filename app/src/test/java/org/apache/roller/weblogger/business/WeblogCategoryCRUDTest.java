@@ -111,6 +111,7 @@ public class WeblogCategoryCRUDTest extends TestCase {
 
         // make sure we are starting with 1 categories
         assertEquals(1, testWeblog.getWeblogCategories().size());
+        assertEquals(1, mgr.getWeblogCategories(testWeblog).size());
 
         // add a new category
         WeblogCategory newCat = new WeblogCategory(testWeblog, "catTestCategory", null, null);
@@ -126,6 +127,7 @@ public class WeblogCategoryCRUDTest extends TestCase {
         // make sure category count increased
         testWeblog = TestUtils.getManagedWebsite(testWeblog);
         assertEquals(2, testWeblog.getWeblogCategories().size());
+        assertEquals(2, mgr.getWeblogCategories(testWeblog).size());
 
         // update category
         cat.setName("testtest");
@@ -139,6 +141,10 @@ public class WeblogCategoryCRUDTest extends TestCase {
         assertEquals("testtest", cat.getName());
         assertEquals(2, testWeblog.getWeblogCategories().size());
 
+        // cached query results must follow the change too
+        assertNull(mgr.getWeblogCategoryByName(testWeblog, "catTestCategory"));
+        assertEquals(cat, mgr.getWeblogCategoryByName(testWeblog, "testtest"));
+
         // remove category
         mgr.removeWeblogCategory(cat);
         TestUtils.endSession(true);
@@ -151,6 +157,8 @@ public class WeblogCategoryCRUDTest extends TestCase {
         // make sure category count decreased
         testWeblog = TestUtils.getManagedWebsite(testWeblog);
         assertEquals(1, testWeblog.getWeblogCategories().size());
+        assertEquals(1, mgr.getWeblogCategories(testWeblog).size());
+        assertNull(mgr.getWeblogCategoryByName(testWeblog, "testtest"));
         
         log.info("END");
     }
@@ -23,6 +23,9 @@ import java.io.StringWriter;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -40,6 +43,7 @@ import org.apache.roller.weblogger.pojos.WeblogCategory;
 import org.apache.roller.weblogger.pojos.WeblogEntry;
 import org.apache.roller.weblogger.pojos.WeblogEntry.PubStatus;
 import org.apache.roller.weblogger.pojos.WeblogEntrySearchCriteria;
+import org.apache.roller.weblogger.pojos.WeblogEntrySummary;
 import org.apache.roller.weblogger.pojos.WeblogEntryTag;
 import org.apache.roller.weblogger.pojos.Weblog;
 
@@ -226,6 +230,57 @@ public class WeblogEntryTest extends TestCase {
         assertEquals(5, entries.size());
         assertEquals(entry3, entries.get(0));
         
+        // page through them by keyset, which gives the same order
+        List<WeblogEntry> all = mgr.getWeblogEntries(wesc);
+        WeblogEntrySearchCriteria keyset = new WeblogEntrySearchCriteria();
+        keyset.setWeblog(testWeblog);
+        keyset.setMaxResults(2);
+        List<WeblogEntry> paged = new ArrayList<WeblogEntry>();
+        List<WeblogEntry> page;
+        do {
+            page = mgr.getWeblogEntries(keyset);
+            paged.addAll(page);
+            if (!page.isEmpty()) {
+                WeblogEntry last = page.get(page.size() - 1);
+                keyset.setAfter(last.getPubTime(), last.getId());
+            }
+        } while (page.size() == 2);
+        assertEquals(all, paged);
+        
+        // and in ascending order
+        keyset = new WeblogEntrySearchCriteria();
+        keyset.setWeblog(testWeblog);
+        keyset.setSortOrder(WeblogEntrySearchCriteria.SortOrder.ASCENDING);
+        keyset.setMaxResults(2);
+        paged = new ArrayList<WeblogEntry>();
+        do {
+            page = mgr.getWeblogEntries(keyset);
+            paged.addAll(page);
+            if (!page.isEmpty()) {
+                WeblogEntry last = page.get(page.size() - 1);
+                keyset.setAfter(last.getPubTime(), last.getId());
+            }
+        } while (page.size() == 2);
+        Collections.reverse(paged);
+        assertEquals(all, paged);
+        
+        // an entry can't be paged after without its time
+        try {
+            keyset.setAfter(null, all.get(0).getId());
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        
+        // and the summaries list the same entries
+        List<WeblogEntrySummary> summaries = mgr.getWeblogEntrySummaries(wesc);
+        assertEquals(5, summaries.size());
+        for (int i = 0; i < summaries.size(); i++) {
+            assertEquals(all.get(i).getId(), summaries.get(i).getId());
+            assertEquals(all.get(i).getTitle(), summaries.get(i).getTitle());
+            assertEquals(all.get(i).getCategory().getName(), summaries.get(i).getCategoryName());
+        }
+        
         // get all (non-future) PUBLISHED entries in category 
         WeblogEntrySearchCriteria wesc9 = new WeblogEntrySearchCriteria();
         wesc9.setWeblog(testWeblog);
@@ -303,7 +358,20 @@ public class WeblogEntryTest extends TestCase {
         entry = mgr.getPreviousEntry(entry5, null, null);
         assertNotNull(entry);
         assertEquals(entry4, entry);
-        
+
+        // get days with posts
+        Calendar cal = Calendar.getInstance(testWeblog.getTimeZoneInstance());
+        cal.setTime(entry5.getPubTime());
+        int days = mgr.getPostingDays(testWeblog, entry5.getPubTime(), null, null);
+        assertTrue((days & (1 << cal.get(Calendar.DAY_OF_MONTH))) != 0);
+        assertNotNull(mgr.getPostingMonth(testWeblog, new Date(0), null, null, true));
+
+        // a removal which is rolled back leaves the entry in the index
+        mgr.removeWeblogEntry(TestUtils.getManagedWeblogEntry(entry5));
+        TestUtils.endSession(false);
+        entry = mgr.getNextEntry(TestUtils.getManagedWeblogEntry(entry4), null, null);
+        assertEquals(entry5, entry);
+
         // get object map
         WeblogEntrySearchCriteria wesc8 = new WeblogEntrySearchCriteria();
         wesc8.setWeblog(testWeblog);
@@ -933,8 +1001,53 @@ public class WeblogEntryTest extends TestCase {
         TestUtils.endSession(true);
     }
 
-  
-    
+
+    public void testRebuildTagAggregates() throws Exception {
+
+        WeblogEntryManager mgr = WebloggerFactory.getWeblogger().getWeblogEntryManager();
+        testWeblog = TestUtils.getManagedWebsite(testWeblog);
+        testUser = TestUtils.getManagedUser(testUser);
+
+        WeblogEntry entry = TestUtils.setupWeblogEntry("entry1", testWeblog, testUser);
+        entry.addTag("one");
+        entry.addTag("two");
+        mgr.saveWeblogEntry(entry);
+
+        entry = TestUtils.setupWeblogEntry("entry2", testWeblog, testUser);
+        entry.addTag("one");
+        mgr.saveWeblogEntry(entry);
+        TestUtils.endSession(true);
+
+        // counts which have drifted are put right
+        Map<String, Integer> drift = new HashMap<String, Integer>();
+        drift.put("one", 5);
+        drift.put("two", -1);
+        drift.put("three", 2);
+        mgr.updateTagAggregates(Collections.singletonMap(testWeblog.getId(), drift));
+        TestUtils.endSession(true);
+
+        testWeblog = TestUtils.getManagedWebsite(testWeblog);
+        List<TagStat> tags = mgr.getTags(testWeblog, null, null, 0, -1);
+        assertEquals(2, tags.size());
+        assertEquals(7, tags.get(0).getCount());
+        assertEquals("three", tags.get(1).getName());
+
+        mgr.rebuildTagAggregates();
+        TestUtils.endSession(true);
+
+        testWeblog = TestUtils.getManagedWebsite(testWeblog);
+        for (Weblog weblog : Arrays.asList(testWeblog, null)) {
+            tags = mgr.getTags(weblog, null, null, 0, -1);
+            assertEquals(2, tags.size());
+            assertEquals("one", tags.get(0).getName());
+            assertEquals(2, tags.get(0).getCount());
+            assertEquals("two", tags.get(1).getName());
+            assertEquals(1, tags.get(1).getCount());
+        }
+    }
+
+
+
     /**
      * Test that we can add and remove entry attributes for an entry.
      */
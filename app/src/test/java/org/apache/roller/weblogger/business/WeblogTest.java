@@ -18,6 +18,7 @@
 package org.apache.roller.weblogger.business;
 
 import java.util.List;
+import java.util.Map;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -27,6 +28,7 @@ import org.apache.roller.weblogger.TestUtils;
 import org.apache.roller.weblogger.pojos.StatCount;
 import org.apache.roller.weblogger.pojos.User;
 import org.apache.roller.weblogger.pojos.Weblog;
+import org.apache.roller.weblogger.util.cache.CacheManager;
 
 
 /**
@@ -179,6 +181,11 @@ public class WeblogTest extends TestCase {
             assertNotNull(weblog);
             assertEquals(testWeblog1.getHandle(), weblog.getHandle());
             
+            // which shows in the shared cache stats
+            Map<String, Object> stats = CacheManager.getStats().get("jpa.sharedCache");
+            assertNotNull(stats);
+            assertTrue((Long) stats.get("hits") + (Long) stats.get("misses") > 0);
+            
             // lookup by weblog handle
             weblog = null;
             weblog = mgr.getWeblogByHandle(testWeblog1.getHandle());
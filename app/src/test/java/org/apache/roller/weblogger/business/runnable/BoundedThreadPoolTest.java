@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.business.runnable;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test BoundedThreadPool.
+ */
+public class BoundedThreadPoolTest extends TestCase {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger ran = new AtomicInteger(0);
+    private BoundedThreadPool pool = null;
+
+
+    protected void tearDown() throws Exception {
+        release.countDown();
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        super.tearDown();
+    }
+
+
+    public void testCallerRuns() throws Exception {
+
+        pool = new BoundedThreadPool("test", 1, 1, BoundedThreadPool.CALLER_RUNS);
+        pool.execute(blocker());
+        pool.execute(counter());
+
+        // the queue is full, so we have to do this one ourselves
+        final Thread caller = Thread.currentThread();
+        final boolean[] ranHere = new boolean[1];
+        pool.execute(new Runnable() {
+            public void run() {
+                ranHere[0] = (Thread.currentThread() == caller);
+            }
+        });
+        assertTrue(ranHere[0]);
+        assertEquals(1, ((Number) pool.getStats().get("rejected")).intValue());
+        assertEquals(1, ((Number) pool.getStats().get("queueDepth")).intValue());
+
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+        assertEquals(2L, pool.getStats().get("completed"));
+    }
+
+
+    public void testDiscardAndAbort() throws Exception {
+
+        pool = new BoundedThreadPool("test", 1, 1, BoundedThreadPool.DISCARD);
+        pool.execute(blocker());
+        pool.execute(counter());
+        pool.execute(counter());
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+
+        BoundedThreadPool aborting = new BoundedThreadPool("test", 1, 1, BoundedThreadPool.ABORT);
+        CountDownLatch hold = new CountDownLatch(1);
+        try {
+            aborting.execute(blocker(hold));
+            aborting.execute(counter());
+            aborting.execute(counter());
+            fail("Full pool should have refused the task");
+        } catch (RejectedExecutionException expected) {
+            assertEquals(1L, aborting.getStats().get("rejected"));
+        } finally {
+            hold.countDown();
+            aborting.shutdownNow();
+        }
+    }
+
+
+    public void testDiscardCancelsFuture() throws Exception {
+
+        pool = new BoundedThreadPool("test", 1, 1, BoundedThreadPool.DISCARD);
+        pool.execute(blocker());
+        pool.execute(counter());
+
+        // nobody should be left waiting for a task which will never run
+        Future<?> dropped = pool.submit(counter());
+        assertTrue(dropped.isCancelled());
+        try {
+            dropped.get(1, TimeUnit.SECONDS);
+            fail("Discarded task should have been cancelled");
+        } catch (CancellationException expected) {
+            // expected
+        }
+    }
+
+
+    public void testStats() throws Exception {
+
+        pool = new BoundedThreadPool("test", 2, 10, null);
+        assertEquals(BoundedThreadPool.CALLER_RUNS, pool.getStats().get("rejectionPolicy"));
+        assertEquals(10, pool.getStats().get("queueCapacity"));
+
+        pool.execute(blocker());
+        pool.execute(blocker());
+        pool.execute(counter());
+
+        // both threads are stuck, so the counter waits in the queue
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (pool.getActiveCount() < 2 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, pool.getStats().get("activeThreads"));
+        assertEquals(1, pool.getStats().get("queueDepth"));
+
+        Thread.sleep(50);
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(3L, pool.getStats().get("submitted"));
+        assertEquals(3L, pool.getStats().get("completed"));
+        assertTrue((Long) pool.getStats().get("maxWaitMillis") >= 50);
+        assertTrue((Long) pool.getStats().get("maxRunMillis") >= 50);
+    }
+
+
+    private Runnable blocker() {
+        return blocker(release);
+    }
+
+
+    private static Runnable blocker(final CountDownLatch latch) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+
+    private Runnable counter() {
+        return new Runnable() {
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+    }
+
+
+    public static Test suite() {
+        return new TestSuite(BoundedThreadPoolTest.class);
+    }
+
+}
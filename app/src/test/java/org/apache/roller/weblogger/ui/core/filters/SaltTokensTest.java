@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.ui.core.filters;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the stateless salts made by SaltTokens.
+ */
+public class SaltTokensTest extends TestCase {
+
+    private static final byte[] SECRET = "not so secret".getBytes();
+    private static final long ROTATION = 86400000L;
+    private static final long MAX_AGE = 3600000L;
+    private static final long NOW = 1400000000000L;
+
+    public void testValidToken() throws Exception {
+        String token = SaltTokens.createToken(SECRET, ROTATION, "user:bob", NOW);
+        assertTrue(SaltTokens.checkToken(SECRET, ROTATION, MAX_AGE, "user:bob", token, NOW));
+        assertTrue(SaltTokens.checkToken(SECRET, ROTATION, MAX_AGE, "user:bob", token, NOW + MAX_AGE));
+
+        // another server with the same secret accepts it too
+        assertTrue(SaltTokens.checkToken("not so secret".getBytes(), ROTATION, MAX_AGE,
+                "user:bob", token, NOW));
+    }
+
+    public void testInvalidTokens() throws Exception {
+        String token = SaltTokens.createToken(SECRET, ROTATION, "user:bob", NOW);
+
+        // someone else's, expired, from the future or with another secret
+        assertFalse(SaltTokens.checkToken(SECRET, ROTATION, MAX_AGE, "user:eve", token, NOW));
+        assertFalse(SaltTokens.checkToken(SECRET, ROTATION, MAX_AGE, "user:bob", token, NOW + MAX_AGE + 1));
+        assertFalse(SaltTokens.checkToken(SECRET, ROTATION, MAX_AGE, "user:bob", token, NOW - 120000));
+        assertFalse(SaltTokens.checkToken("other".getBytes(), ROTATION, MAX_AGE, "user:bob", token, NOW));
+
+        // tampered with
+        String later = Long.toString(NOW + 1000, Character.MAX_RADIX);
+        assertFalse(SaltTokens.checkToken(SECRET, ROTATION, MAX_AGE, "user:bob",
+                later + token.substring(token.indexOf('.')), NOW));
+        assertFalse(SaltTokens.checkToken(SECRET, ROTATION, MAX_AGE, "user:bob", "garbage", NOW));
+        assertFalse(SaltTokens.checkToken(SECRET, ROTATION, MAX_AGE, "user:bob", "zz.", NOW));
+    }
+
+}
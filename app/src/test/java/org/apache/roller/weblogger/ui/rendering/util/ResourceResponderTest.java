@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.ui.rendering.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.roller.weblogger.pojos.FileContent;
+
+
+/**
+ * Test ResourceResponder.
+ */
+public class ResourceResponderTest extends TestCase {
+    
+    private File file = null;
+    private byte[] bytes = null;
+    
+    
+    protected void setUp() throws Exception {
+        super.setUp();
+        
+        // bigger than the resource cache takes, so it is sent from the file
+        bytes = new byte[200000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        file = File.createTempFile("roller-resource-test", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+    }
+    
+    
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+    
+    
+    public void testParseRanges() throws Exception {
+        
+        List<long[]> ranges = ResourceResponder.parseRanges("bytes=0-9, 20-, -5", 100);
+        assertEquals(3, ranges.size());
+        assertTrue(Arrays.equals(new long[] {0, 9}, ranges.get(0)));
+        assertTrue(Arrays.equals(new long[] {20, 99}, ranges.get(1)));
+        assertTrue(Arrays.equals(new long[] {95, 99}, ranges.get(2)));
+        
+        // past the end gets cut short, a suffix longer than the file is all of it
+        assertTrue(Arrays.equals(new long[] {90, 99},
+                ResourceResponder.parseRanges("bytes=90-500", 100).get(0)));
+        assertTrue(Arrays.equals(new long[] {0, 99},
+                ResourceResponder.parseRanges("bytes=-500", 100).get(0)));
+        
+        // nothing which can be satisfied
+        assertTrue(ResourceResponder.parseRanges("bytes=100-", 100).isEmpty());
+        
+        // broken or silly headers are ignored
+        assertNull(ResourceResponder.parseRanges("items=0-9", 100));
+        assertNull(ResourceResponder.parseRanges("bytes=9-0", 100));
+        assertNull(ResourceResponder.parseRanges("bytes=a-b", 100));
+        assertNull(ResourceResponder.parseRanges("bytes=0-99,0-99", 100));
+    }
+    
+    
+    public void testSendRanges() throws Exception {
+        
+        FileContent content = new FileContent(null, "test", file);
+        String eTag = ResourceResponder.getETag(bytes.length, 1000, null);
+        
+        // everything
+        MockResponse response = new MockResponse();
+        ResourceResponder.sendFile(request(null, null), response.proxy(), "test",
+                content, "audio/mpeg", 1000, eTag);
+        assertEquals(200, response.status);
+        assertEquals(eTag, response.headers.get("ETag"));
+        assertEquals("" + bytes.length, response.headers.get("Content-Length"));
+        assertTrue(Arrays.equals(bytes, response.body.toByteArray()));
+        
+        // one range
+        response = new MockResponse();
+        ResourceResponder.sendFile(request("bytes=100000-", null), response.proxy(), "test",
+                content, "audio/mpeg", 1000, eTag);
+        assertEquals(206, response.status);
+        assertEquals("bytes 100000-199999/200000", response.headers.get("Content-Range"));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 100000, 200000),
+                response.body.toByteArray()));
+        
+        // a range which doesn't fit
+        response = new MockResponse();
+        ResourceResponder.sendFile(request("bytes=300000-", null), response.proxy(), "test",
+                content, "audio/mpeg", 1000, eTag);
+        assertEquals(416, response.status);
+        assertEquals("bytes */200000", response.headers.get("Content-Range"));
+        
+        // if the file changed the range doesn't apply
+        response = new MockResponse();
+        ResourceResponder.sendFile(request("bytes=0-9", "\"other\""), response.proxy(), "test",
+                content, "audio/mpeg", 1000, eTag);
+        assertEquals(200, response.status);
+        assertEquals(bytes.length, response.body.size());
+        
+        // several ranges
+        response = new MockResponse();
+        ResourceResponder.sendFile(request("bytes=0-9,-5", eTag), response.proxy(), "test",
+                content, "audio/mpeg", 1000, eTag);
+        assertEquals(206, response.status);
+        assertTrue(response.contentType.startsWith("multipart/byteranges; boundary="));
+        assertEquals("" + response.body.size(), response.headers.get("Content-Length"));
+        String body = new String(response.body.toByteArray(), "ISO-8859-1");
+        assertTrue(body.contains("Content-Range: bytes 0-9/200000\r\n\r\n"
+                + new String(bytes, 0, 10, "ISO-8859-1") + "\r\n--"));
+        assertTrue(body.contains("Content-Range: bytes 199995-199999/200000\r\n\r\n"
+                + new String(bytes, 199995, 5, "ISO-8859-1") + "\r\n--"));
+        assertTrue(body.endsWith("--\r\n"));
+    }
+    
+    
+    private static HttpServletRequest request(String range, String ifRange) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        if (range != null) {
+            headers.put("Range", range);
+        }
+        if (ifRange != null) {
+            headers.put("If-Range", ifRange);
+        }
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                ResourceResponderTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getHeader".equals(method.getName())) {
+                    return headers.get((String) args[0]);
+                }
+                if ("getDateHeader".equals(method.getName())) {
+                    return -1L;
+                }
+                return null;
+            }
+        });
+    }
+    
+    
+    private static class MockResponse implements InvocationHandler {
+        
+        private int status = 200;
+        private String contentType = null;
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(
+                    ResourceResponderTest.class.getClassLoader(),
+                    new Class<?>[] {HttpServletResponse.class}, this);
+        }
+        
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("setStatus".equals(name)) {
+                status = (Integer) args[0];
+            } else if ("setContentType".equals(name)) {
+                contentType = (String) args[0];
+            } else if ("setHeader".equals(name)) {
+                headers.put((String) args[0], (String) args[1]);
+            } else if ("getOutputStream".equals(name)) {
+                return new ServletOutputStream() {
+                    public void write(int b) {
+                        body.write(b);
+                    }
+                };
+            }
+            return null;
+        }
+    }
+    
+    
+    public static Test suite() {
+        return new TestSuite(ResourceResponderTest.class);
+    }
+    
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test BlacklistRules.
+ */
+public class BlacklistRulesTest extends TestCase {
+
+    private static final String BLACKLIST =
+            "# comment\n"
+            + "viagra\n"
+            + "cheap pills\n"
+            + "he\n"
+            + "she\n"
+            + "hers\n"
+            + "casino-online\n"
+            + "www.spam.com\n"
+            + "c++\n"
+            + "tablets.r.us\n"
+            + "(a)\\1\n"
+            + "(buy)[\\w\\-_.]*online[\\w\\-_.]*\\.[a-z]{2,}\n"
+            + "(?i)(shouting)\n"
+            + "(levitra|phentermine)\n";
+
+    private static final String[] TEXTS = {
+        "Viagra", "buy VIAGRA now", "viagrafree", "xviagra", "_viagra", "viagra_",
+        "cheap pills!", "cheap  pills", "ushers", "she", "the", "he's here", "hers.",
+        "casino-online.com", "casinoonline", "www.spam.com", "wwwxspamxcom",
+        "www\nspam.com", "www\uD83D\uDE00spam.com", "xwww.spam.com", "www.spam.comx",
+        "tablets.r.us", "tablets r us", "Tablets.R.Us!",
+        "i like c++ a lot", "aa", "ab", "buy-cheap-online.com", "buyonline",
+        "SHOUTING", "Levitra", "phentermine.info", "éviagra", "viagraé",
+        "nothing to see here", "", "hé", "Chers"
+    };
+
+
+    public void testSameAnswersAsBefore() throws Exception {
+
+        List<String> stringRules = new ArrayList<String>();
+        List<Pattern> regexRules = new ArrayList<Pattern>();
+        Blacklist.populateSpamRules(BLACKLIST, stringRules, regexRules, null);
+        BlacklistRules rules = new BlacklistRules(stringRules, regexRules);
+
+        for (String text : TEXTS) {
+            assertEquals(text, matchesTheOldWay(text, stringRules, regexRules),
+                    rules.matches(text));
+        }
+    }
+
+
+    public void testMatches() throws Exception {
+
+        List<String> stringRules = Arrays.asList("viagra", "www.spam.com", "c++");
+        List<Pattern> regexRules = Arrays.asList(Pattern.compile("(casino)"));
+        BlacklistRules rules = new BlacklistRules(stringRules, regexRules);
+
+        assertEquals(4, rules.getRuleCount());
+        assertTrue(rules.matches("cheap VIAGRA here"));
+        assertFalse(rules.matches("viagras"));
+        assertTrue(rules.matches("http://www.spam.com/"));
+        assertTrue(rules.matches("c++"));
+        assertTrue(rules.matches("onlinecasinos"));
+        assertFalse(rules.matches("nothing"));
+        assertFalse(rules.matches(null));
+        assertFalse(BlacklistRules.EMPTY.matches("viagra"));
+    }
+
+
+    public void testCompiledOnce() throws Exception {
+
+        BlacklistRules rules = BlacklistChecker.getRules("viagra", "casino");
+        assertSame(rules, BlacklistChecker.getRules("viagra", "casino"));
+        assertNotSame(rules, BlacklistChecker.getRules("viagra\nmore", "casino"));
+        assertSame(BlacklistRules.EMPTY, BlacklistChecker.getRules(null, null));
+
+        assertTrue(rules.matches("online casino"));
+        assertTrue(Blacklist.getBlacklist().isBlacklisted("viagra", rules));
+    }
+
+
+    // what Blacklist did before rules were compiled
+    private static boolean matchesTheOldWay(String source, List<String> stringRules,
+            List<Pattern> regexRules) {
+        for (String rule : stringRules) {
+            try {
+                if (Pattern.compile("\\b(" + rule + ")\\b",
+                        Pattern.CASE_INSENSITIVE).matcher(source).find()) {
+                    return true;
+                }
+            } catch (PatternSyntaxException e) {
+                if (source.contains(rule)) {
+                    return true;
+                }
+            }
+        }
+        for (Pattern pattern : regexRules) {
+            if (pattern.matcher(source).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    public static Test suite() {
+        return new TestSuite(BlacklistRulesTest.class);
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test ImageScaler.
+ */
+public class ImageScalerTest extends TestCase {
+    
+    
+    public void testFitWithin() {
+        
+        assertEquals(new Dimension(120, 60), ImageScaler.fitWithin(1000, 500, 120, 120));
+        assertEquals(new Dimension(60, 120), ImageScaler.fitWithin(500, 1000, 120, 120));
+        
+        // never made larger
+        assertEquals(new Dimension(50, 40), ImageScaler.fitWithin(50, 40, 120, 120));
+        
+        // never nothing left
+        assertEquals(new Dimension(1, 120), ImageScaler.fitWithin(10, 5000, 120, 120));
+    }
+    
+    
+    public void testReadAndScale() throws Exception {
+        
+        Dimension size = ImageScaler.readSize(getClass().getResourceAsStream("/hawk.jpg"));
+        assertNotNull(size);
+        assertTrue(size.width > 0 && size.height > 0);
+        
+        // subsampled while decoding, but never below what was asked for
+        BufferedImage img = ImageScaler.read(getClass().getResourceAsStream("/hawk.jpg"),
+                100, 100);
+        assertTrue(img.getWidth() <= size.width);
+        assertTrue(img.getWidth() >= 100 || img.getHeight() >= 100);
+        
+        Dimension fit = ImageScaler.fitWithin(img.getWidth(), img.getHeight(), 100, 100);
+        BufferedImage scaled = ImageScaler.scale(img, fit.width, fit.height);
+        assertEquals(fit.width, scaled.getWidth());
+        assertEquals(fit.height, scaled.getHeight());
+        assertFalse(ImageScaler.hasAlpha(scaled));
+        
+        // and what we write can be read back
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageScaler.write(scaled, "jpeg", out);
+        assertEquals(fit, ImageScaler.readSize(new ByteArrayInputStream(out.toByteArray())));
+        
+        assertNull(ImageScaler.readSize(new ByteArrayInputStream("not an image".getBytes("UTF-8"))));
+    }
+    
+    
+    public static Test suite() {
+        return new TestSuite(ImageScalerTest.class);
+    }
+    
+}
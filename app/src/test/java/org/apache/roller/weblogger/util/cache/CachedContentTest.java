@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test CachedContent.
+ */
+public class CachedContentTest extends TestCase {
+
+
+    public void testGzippedContent() throws Exception {
+
+        CachedContent content = new CachedContent(0);
+        for (int i = 0; i < 100; i++) {
+            content.getCachedWriter().print("<p>Hello world</p>\n");
+        }
+        content.flush();
+        content.close();
+
+        byte[] gzipped = content.getGzippedContent();
+        assertNotNull(gzipped);
+        assertTrue(gzipped.length < content.getContent().length);
+        assertSame(gzipped, content.getGzippedContent());
+
+        // make sure it decompresses to what we started with
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        assertTrue(Arrays.equals(content.getContent(), out.toByteArray()));
+    }
+
+
+    public void testSmallContentNotCompressed() throws Exception {
+
+        CachedContent content = new CachedContent(0);
+        content.getCachedWriter().print("tiny");
+        content.close();
+
+        assertNull(content.getGzippedContent());
+    }
+
+
+    public void testContentHash() throws Exception {
+
+        CachedContent one = new CachedContent(0);
+        one.getCachedWriter().print("same");
+        one.close();
+
+        CachedContent two = new CachedContent(0);
+        two.getCachedWriter().print("same");
+        two.flush();
+        String flushedHash = two.getContentHash();
+        two.getCachedWriter().print(" but more");
+        two.close();
+
+        assertEquals(one.getContentHash(), flushedHash);
+        assertFalse(one.getContentHash().equals(two.getContentHash()));
+    }
+
+
+    public static Test suite() {
+        return new TestSuite(CachedContentTest.class);
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test ConcurrentLRUCacheImpl.
+ */
+public class ConcurrentLRUCacheTest extends TestCase {
+    
+    public void testPutGetRemove() {
+        
+        Cache cache = new ConcurrentLRUCacheImpl("test", 100, 0, 4);
+        
+        cache.put("key1", "string1");
+        cache.put("key2", "string2");
+        assertEquals("string1", cache.get("key1"));
+        assertEquals("string2", cache.get("key2"));
+        assertNull(cache.get("key3"));
+        
+        cache.put("key1", "string1b");
+        assertEquals("string1b", cache.get("key1"));
+        
+        cache.remove("key1");
+        assertNull(cache.get("key1"));
+        
+        cache.clear();
+        assertNull(cache.get("key2"));
+    }
+    
+    
+    public void testLRU() {
+        
+        // a single segment so that eviction order is predictable
+        Cache cache = new ConcurrentLRUCacheImpl("test", 3, 0, 1);
+        
+        cache.put("key1", "string1");
+        cache.put("key2", "string2");
+        cache.put("key3", "string3");
+        
+        // accessing key1 and key2 will make key3 the eviction candidate
+        cache.get("key1");
+        cache.get("key2");
+        
+        // adding a forth key will push out key3
+        cache.put("key4", "string4");
+        assertNull(cache.get("key3"));
+        assertNotNull(cache.get("key1"));
+        assertNotNull(cache.get("key2"));
+        assertNotNull(cache.get("key4"));
+    }
+    
+    
+    public void testWeightIsBounded() {
+        
+        ConcurrentLRUCacheImpl cache = new ConcurrentLRUCacheImpl("test", 100, 0, 1);
+        
+        cache.put("key1", "string1", 40);
+        cache.put("key2", "string2", 40);
+        assertEquals(80L, cache.getWeight());
+        
+        // overwriting an entry replaces its weight
+        cache.put("key2", "string2b", 20);
+        assertEquals(60L, cache.getWeight());
+        
+        // going over 100 pushes out the least recently used entry
+        cache.get("key2");
+        cache.put("key3", "string3", 50);
+        assertNull(cache.get("key1"));
+        assertNotNull(cache.get("key2"));
+        assertNotNull(cache.get("key3"));
+        assertEquals(70L, cache.getWeight());
+        
+        cache.remove("key2");
+        assertEquals(50L, cache.getWeight());
+        
+        cache.clear();
+        assertEquals(0L, cache.getWeight());
+    }
+    
+    
+    public void testSizeIsBounded() {
+        
+        Cache cache = new ConcurrentLRUCacheImpl("test", 64, 0, 8);
+        
+        for (int i = 0; i < 10000; i++) {
+            cache.put("key" + i, "value" + i);
+            cache.get("key" + (i / 2));
+        }
+        
+        long size = (Long) cache.getStats().get("size");
+        assertTrue("size " + size, size <= 64);
+        assertTrue(size > 0);
+    }
+    
+    
+    public void testTimeout() throws Exception {
+        
+        // one second timeout
+        Cache cache = new ConcurrentLRUCacheImpl("test", 100, 1, 4);
+        
+        cache.put("key1", "string1");
+        assertNotNull(cache.get("key1"));
+        
+        Thread.sleep(1100);
+        assertNull(cache.get("key1"));
+    }
+    
+    
+    public void testStats() {
+        
+        Cache cache = new ConcurrentLRUCacheImpl("test", 100, 0, 4);
+        
+        cache.put("key1", "string1");
+        cache.get("key1");
+        cache.get("key1");
+        cache.get("missing");
+        cache.remove("key1");
+        
+        Map<String, Object> stats = cache.getStats();
+        assertEquals(1L, stats.get("puts"));
+        assertEquals(2L, stats.get("hits"));
+        assertEquals(1L, stats.get("misses"));
+        assertEquals(1L, stats.get("removes"));
+        
+        cache.clear();
+        assertEquals(0L, cache.getStats().get("hits"));
+    }
+    
+    
+    public void testConcurrentAccess() throws Exception {
+        
+        final Cache cache = new ConcurrentLRUCacheImpl("test", 200, 0, 16);
+        final AtomicInteger errors = new AtomicInteger(0);
+        
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            threads.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        String key = "key" + ((i * 31 + seed) % 500);
+                        Object value = cache.get(key);
+                        if (value != null && !key.equals(value)) {
+                            errors.incrementAndGet();
+                        }
+                        if (value == null) {
+                            cache.put(key, key);
+                        }
+                        if (i % 1000 == 0) {
+                            cache.remove(key);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals(0, errors.get());
+        long size = (Long) cache.getStats().get("size");
+        assertTrue("size " + size, size <= 200);
+    }
+    
+    
+    public void testFactory() {
+        
+        Map<String, String> props = new HashMap<String, String>();
+        props.put("id", "cache.test");
+        props.put("size", "10");
+        props.put("timeout", "60");
+        props.put("concurrency", "2");
+        
+        Cache cache = new ConcurrentLRUCacheFactoryImpl().constructCache(props);
+        assertEquals("cache.test", cache.getId());
+        assertTrue(cache instanceof ConcurrentLRUCacheImpl);
+    }
+    
+    
+    public static Test suite() {
+        return new TestSuite(ConcurrentLRUCacheTest.class);
+    }
+    
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test DependencyTrackingCache and ContentDependencies.
+ */
+public class DependencyTrackingCacheTest extends TestCase {
+    
+    private DependencyTrackingCache cache = null;
+    
+    
+    protected void setUp() throws Exception {
+        super.setUp();
+        cache = new DependencyTrackingCache(
+                new ConcurrentLRUCacheImpl("test", 100, 0, 1), 100);
+        
+        // front page, lists entries from everywhere
+        ContentDependencies.begin();
+        ContentDependencies.recordWeblog("frontpage");
+        ContentDependencies.recordAllEntries();
+        cache.put("front", content(ContentDependencies.end()));
+        
+        // weblog directory, lists weblogs only
+        ContentDependencies.begin();
+        ContentDependencies.recordWeblog("frontpage");
+        ContentDependencies.recordAllWeblogs();
+        cache.put("directory", content(ContentDependencies.end()));
+        
+        // entries across weblogs tagged "java"
+        ContentDependencies.begin();
+        ContentDependencies.recordWeblog("frontpage");
+        ContentDependencies.recordTags(Collections.singletonList("java"));
+        cache.put("tag", content(ContentDependencies.end()));
+        
+        // entries of a single weblog
+        ContentDependencies.begin();
+        ContentDependencies.recordWeblog("frontpage");
+        ContentDependencies.recordWeblog("blog1");
+        cache.put("blog1", content(ContentDependencies.end()));
+    }
+    
+    
+    public void testEntryInvalidation() {
+        
+        int removed = cache.removeEntryDependents("blog2", Arrays.asList("python"));
+        assertEquals(1, removed);
+        assertNull(cache.get("front"));
+        assertNotNull(cache.get("directory"));
+        assertNotNull(cache.get("tag"));
+        assertNotNull(cache.get("blog1"));
+        
+        cache.removeEntryDependents("blog2", Arrays.asList("java"));
+        assertNull(cache.get("tag"));
+        assertNotNull(cache.get("blog1"));
+        
+        cache.removeEntryDependents("blog1", null);
+        assertNull(cache.get("blog1"));
+        assertNotNull(cache.get("directory"));
+        
+        assertEquals(3L, cache.getStats().get("dependentEvictions"));
+        assertEquals(0L, cache.getStats().get("fullClears"));
+    }
+    
+    
+    public void testWeblogInvalidation() {
+        
+        cache.removeWeblogDependents("blog2");
+        assertNull(cache.get("front"));
+        assertNull(cache.get("directory"));
+        assertNull(cache.get("tag"));
+        assertNotNull(cache.get("blog1"));
+        
+        // everything depends on the site-wide weblog itself
+        cache.removeWeblogDependents("frontpage");
+        assertNull(cache.get("blog1"));
+    }
+    
+    
+    public void testUnknownDependencies() {
+        
+        cache.put("plain", "no dependencies here");
+        cache.removeEntryDependents("blog2", null);
+        assertNull(cache.get("plain"));
+    }
+    
+    
+    public void testClear() {
+        
+        cache.clear();
+        assertNull(cache.get("blog1"));
+        assertEquals(1L, cache.getStats().get("fullClears"));
+    }
+    
+    
+    public void testNotCollecting() {
+        
+        // recording outside of begin()/end() is a no-op
+        ContentDependencies.recordWeblog("blog1");
+        assertNull(ContentDependencies.end());
+    }
+    
+    
+    private static CachedContent content(ContentDependencies deps) {
+        CachedContent content = new CachedContent(16);
+        content.setDependencies(deps);
+        return content;
+    }
+    
+    
+    public static Test suite() {
+        return new TestSuite(DependencyTrackingCacheTest.class);
+    }
+    
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.roller.weblogger.pojos.Weblog;
+
+
+/**
+ * Test LookupCache.
+ */
+public class LookupCacheTest extends TestCase {
+    
+    public void testLookup() {
+        
+        LookupCache cache = new LookupCache("cache.lookupTest");
+        
+        cache.put("handle1", "id1");
+        cache.putMissing("handle2");
+        assertEquals("id1", cache.lookup("handle1"));
+        assertEquals(LookupCache.MISSING, cache.lookup("handle2"));
+        assertNull(cache.lookup("handle3"));
+        
+        cache.remove("handle1");
+        assertNull(cache.lookup("handle1"));
+        
+        // shows in the cache manager stats
+        Map<String, Object> stats = CacheManager.getStats().get("cache.lookupTest");
+        assertNotNull(stats);
+        assertEquals(1L, stats.get("negativeHits"));
+    }
+    
+    
+    public void testInvalidation() {
+        
+        LookupCache cache = new LookupCache("cache.lookupTest") {
+            @Override
+            public void invalidate(Weblog website) {
+                remove(website.getHandle());
+            }
+        };
+        
+        Weblog weblog = new Weblog();
+        weblog.setHandle("handle1");
+        cache.put("handle1", "id1");
+        cache.put("handle2", "id2");
+        CacheManager.invalidate(weblog);
+        assertNull(cache.lookup("handle1"));
+        assertEquals("id2", cache.lookup("handle2"));
+        
+        // as told by another server
+        LookupCache.removeRemote("cache.lookupTest", "handle2");
+        assertNull(cache.lookup("handle2"));
+        assertEquals(1L, cache.getStats().get("remoteRemoves"));
+    }
+    
+    
+    public static Test suite() {
+        return new TestSuite(LookupCacheTest.class);
+    }
+    
+}
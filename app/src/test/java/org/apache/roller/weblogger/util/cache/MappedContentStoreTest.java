@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test MappedContentStore.
+ */
+public class MappedContentStoreTest extends TestCase {
+
+    private File dir = null;
+
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File(System.getProperty("java.io.tmpdir"),
+                "roller-store-test-" + System.nanoTime());
+    }
+
+
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        super.tearDown();
+    }
+
+
+    public void testPutAndGet() throws Exception {
+
+        MappedContentStore store = new MappedContentStore("test", dir,
+                64 * 1024, 2, 0, false);
+
+        CachedContent content = content("hello world ", 100);
+        store.put("plain", content);
+        store.put("lazy", new LazyExpiringCacheEntry(content, 1234));
+
+        CachedContent plain = (CachedContent) store.get("plain");
+        assertEquals("text/html", plain.getContentType());
+        assertEquals(content.getContentAsString(), plain.getContentAsString());
+        assertEquals(content.getContentHash(), plain.getContentHash());
+        assertTrue(plain.hasGzippedContent());
+
+        // streaming from the store gives the same bytes
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        plain.writeContent(out, true);
+        assertEquals(content.getContentLength(true), out.size());
+
+        LazyExpiringCacheEntry lazy = (LazyExpiringCacheEntry) store.get("lazy");
+        assertEquals(1234, lazy.getTimeCached());
+        assertNotNull(lazy.getValue(1000));
+        assertNull(lazy.getValue(2000));
+
+        store.remove("plain");
+        assertNull(store.get("plain"));
+        assertNull(store.get("missing"));
+    }
+
+
+    public void testByteBudget() throws Exception {
+
+        MappedContentStore store = new MappedContentStore("test", dir,
+                4 * 8192, 4, 0, false);
+
+        // each of these takes up most of a segment
+        for (int i = 0; i < 10; i++) {
+            store.put("key" + i, content("" + i, 6000));
+        }
+
+        // only the newest segments are left
+        assertNull(store.get("key0"));
+        assertNotNull(store.get("key9"));
+        assertTrue((Integer) store.getStats().get("size") <= 4);
+        assertTrue((Long) store.getStats().get("bytes") <= 4 * 8192);
+
+        // too large to store at all
+        assertFalse(store.put("huge", content("x", 10000)));
+    }
+
+
+    public void testSurvivesRestart() throws Exception {
+
+        MappedContentStore store = new MappedContentStore("test", dir,
+                4 * 8192, 4, 0, true);
+        for (int i = 0; i < 10; i++) {
+            store.put("key" + i, content("" + i, 3000));
+        }
+        store.put("key9", content("new", 100));
+        store.remove("key8");
+        store.force();
+
+        MappedContentStore restarted = new MappedContentStore("test", dir,
+                4 * 8192, 4, 0, true);
+        assertEquals(store.getStats().get("size"), restarted.getStats().get("size"));
+        assertNull(restarted.get("key8"));
+        assertEquals(content("new", 100).getContentAsString(),
+                ((CachedContent) restarted.get("key9")).getContentAsString());
+
+        // keeps writing after what was recovered
+        restarted.put("more", content("more", 100));
+        assertNotNull(restarted.get("key7"));
+        assertNotNull(restarted.get("more"));
+
+        // but not if we don't want it to
+        MappedContentStore fresh = new MappedContentStore("test", dir,
+                4 * 8192, 4, 0, false);
+        assertNull(fresh.get("key9"));
+    }
+
+
+    private static CachedContent content(String text, int times) throws Exception {
+        CachedContent content = new CachedContent(0, "text/html");
+        for (int i = 0; i < times; i++) {
+            content.getCachedWriter().print(text);
+        }
+        content.close();
+        return content;
+    }
+
+
+    public static Test suite() {
+        return new TestSuite(MappedContentStoreTest.class);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  The ASF licenses this file to You
+ * under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.  For additional information regarding
+ * copyright in this work, please see the NOTICE file in the top level
+ * directory of this distribution.
+ */
+
+package org.apache.roller.weblogger.util.cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Test RequestCoalescer.
+ */
+public class RequestCoalescerTest extends TestCase {
+
+
+    /**
+     * Many threads missing on the same key should only produce it once.
+     */
+    public void testSingleLeader() throws Exception {
+
+        final RequestCoalescer<String> coalescer = new RequestCoalescer<String>();
+        final AtomicInteger renders = new AtomicInteger(0);
+        final AtomicInteger served = new AtomicInteger(0);
+        final CountDownLatch joined = new CountDownLatch(10);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    RequestCoalescer<String>.Flight flight = coalescer.join("key");
+                    joined.countDown();
+                    String value;
+                    if (flight.isLeader()) {
+                        try {
+                            // hold the flight open until everybody has joined
+                            release.await();
+                        } catch (InterruptedException ignored) {
+                        }
+                        renders.incrementAndGet();
+                        value = "content";
+                        flight.complete(value);
+                    } else {
+                        value = flight.await(10000);
+                    }
+                    if ("content".equals(value)) {
+                        served.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        joined.await();
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, renders.get());
+        assertEquals(10, served.get());
+        assertEquals(0, coalescer.getStats().get("inFlight"));
+    }
+
+
+    public void testFailedLeaderAndTimeout() {
+
+        RequestCoalescer<String> coalescer = new RequestCoalescer<String>();
+
+        // a follower of a stuck leader gives up after maxWait
+        RequestCoalescer<String>.Flight flight = coalescer.join("key");
+        assertTrue(flight.isLeader());
+        assertNull(flight.await(10));
+        assertEquals(1L, coalescer.getStats().get("timeouts"));
+
+        // a failed leader hands out null, and only the first result counts
+        flight.complete(null);
+        flight.complete("late");
+        assertNull(flight.await(10));
+
+        // the flight is closed so the next miss leads a new one
+        RequestCoalescer<String>.Flight next = coalescer.join("key");
+        assertNotSame(flight, next);
+        assertTrue(next.isLeader());
+    }
+
+
+    public static Test suite() {
+        return new TestSuite(RequestCoalescerTest.class);
+    }
+
+}